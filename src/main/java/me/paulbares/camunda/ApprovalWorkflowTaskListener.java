@@ -1,18 +1,36 @@
 package me.paulbares.camunda;
 
-import me.paulbares.domain.Notification;
+import me.paulbares.service.NotificationBatch;
 import me.paulbares.service.NotificationService;
 import me.paulbares.subscription.ApproverWorkflowRegistrar;
 import org.camunda.bpm.engine.delegate.DelegateTask;
 import org.camunda.bpm.engine.delegate.TaskListener;
+import org.camunda.bpm.engine.impl.cfg.TransactionState;
+import org.camunda.bpm.engine.impl.context.Context;
+import org.camunda.bpm.engine.impl.interceptor.CommandContext;
+import org.camunda.bpm.engine.impl.interceptor.CommandContextListener;
+import org.camunda.bpm.engine.impl.persistence.entity.TaskEntity;
 import org.camunda.bpm.engine.task.IdentityLink;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * The {@link TaskListener} of {@link BasicApprovalWorflow} to be listened of task events.
+ * The {@link TaskListener} of {@link BasicApprovalWorflow} to be listened of task events. It is attached to the user
+ * tasks of every deployed process by {@link NotificationProcessEnginePlugin}.
+ * <p>
+ * The notification of a task is saved when the task is created and sent to its assignee if it has one, to its
+ * candidates otherwise. Its recipients are updated when the task is assigned, updated or times out, and it is marked as
+ * inactive when the task is completed or deleted. The events of a task within an engine command are coalesced into a
+ * single change, for instance a task created then assigned is saved once with its assignee as recipient.
+ * </p>
  */
 public class ApprovalWorkflowTaskListener implements TaskListener {
 
@@ -21,6 +39,11 @@ public class ApprovalWorkflowTaskListener implements TaskListener {
    */
   public static final String APPROVED_KEY = "approved";
 
+  /**
+   * The type of the notifications of the tasks, see {@link #createNotification(String)}.
+   */
+  public static final String NOTIFICATION_TYPE = "task";
+
   /**
    * Component to notify subscribers when a task is created or completed.
    */
@@ -31,6 +54,19 @@ public class ApprovalWorkflowTaskListener implements TaskListener {
    */
   protected final NotificationService notificationService;
 
+  /**
+   * The events of the engine commands in progress, by command. The entry of a command is removed when it closes or
+   * fails, see {@link #collect(CommandContext)}: its events are then only referenced by the listener of its transaction.
+   */
+  protected final Map<CommandContext, List<TaskEvent>> eventsByCommand = new ConcurrentHashMap<>();
+
+  /**
+   * The candidates of the user tasks whose definition declares literal candidates, by process definition id then task
+   * definition key, see {@link #resolveCandidates(DelegateTask)}. A redeployed process gets a new process definition
+   * id.
+   */
+  protected final Map<String, Map<String, TaskCandidates>> candidatesByDefinition = new ConcurrentHashMap<>();
+
   /**
    * Constructor.
    */
@@ -42,36 +78,199 @@ public class ApprovalWorkflowTaskListener implements TaskListener {
   @Override
   public void notify(DelegateTask delegateTask) {
     String taskId = delegateTask.getId();
-    Set<String> users;
-    Set<String> groups;
-    Notification notification;
-    boolean isNew;
-    // Only support 2 types of event for the time being.
+    TaskCandidates recipients;
     switch (delegateTask.getEventName()) {
       case TaskListener.EVENTNAME_CREATE:
-        Set<String>[] candidates = extractCandidates(delegateTask.getCandidates());
-        // type and message can be customized here. The values can be read from delegateTask.getVariable() for instance
-        WorkflowNotificationImpl workflowNotification = new WorkflowNotificationImpl(taskId, "task", "message");
-        notification = this.notificationService.saveNotificationAndRecipients(
-                workflowNotification,
-                users = candidates[0],
-                groups = candidates[1]);
-        isNew = true;
+        recipients = resolveRecipients(delegateTask, true);
+        onTaskEvent(taskId, TaskEvent.Type.CREATE, recipients.getUsers(), recipients.getGroups());
+        break;
+      case TaskListener.EVENTNAME_ASSIGNMENT:
+      case TaskListener.EVENTNAME_UPDATE:
+      case TaskListener.EVENTNAME_TIMEOUT:
+        recipients = resolveRecipients(delegateTask, false);
+        onTaskEvent(taskId, TaskEvent.Type.UPDATE, recipients.getUsers(), recipients.getGroups());
         break;
       case TaskListener.EVENTNAME_COMPLETE:
-        notification = this.notificationService.markAsInactive(
-                taskId,
-                users = new HashSet<>(),
-                groups = new HashSet<>());
-        isNew = false;
+      case TaskListener.EVENTNAME_DELETE:
+        onTaskEvent(taskId, TaskEvent.Type.END, Collections.emptySet(), Collections.emptySet());
         break;
       default:
         return; // do nothing
     }
+  }
 
-    if (notification != null) {
-      this.registrar.publish(notification, users, groups, isNew);
+  /**
+   * Resolves the recipients of the notification of a task: its assignee if it has one, its candidates otherwise.
+   *
+   * @param task the task
+   * @param created true if the task has just been created: its candidates are the ones declared by its definition
+   *                if they are static, see {@link #resolveCandidates(DelegateTask)}
+   * @return the recipients of the notification of the task
+   */
+  public TaskCandidates resolveRecipients(DelegateTask task, boolean created) {
+    String assignee = task.getAssignee();
+    if (assignee != null) {
+      return TaskCandidates.ofAssignee(assignee);
     }
+    return created ? resolveCandidates(task) : TaskCandidates.of(task.getCandidates());
+  }
+
+  /**
+   * Resolves the candidates of a task. The candidates of the tasks whose definition only declares literal candidates,
+   * like the ones of {@link BasicApprovalWorflow}, are resolved once per process definition and task definition key.
+   * The others are read from the identity links of the task.
+   *
+   * @param task the task
+   * @return the candidates of the task
+   */
+  public TaskCandidates resolveCandidates(DelegateTask task) {
+    String processDefinitionId = task.getProcessDefinitionId();
+    if (processDefinitionId != null && task instanceof TaskEntity && ((TaskEntity) task).getTaskDefinition() != null) {
+      TaskCandidates candidates = this.candidatesByDefinition
+              .computeIfAbsent(processDefinitionId, __ -> new ConcurrentHashMap<>())
+              .computeIfAbsent(task.getTaskDefinitionKey(), __ -> TaskCandidates.ofDefinition(((TaskEntity) task).getTaskDefinition()));
+      if (candidates != TaskCandidates.DYNAMIC) {
+        return candidates;
+      }
+    }
+    return TaskCandidates.of(task.getCandidates());
+  }
+
+  /**
+   * Clears the candidates resolved per task definition, for instance when processes are deployed.
+   */
+  public void invalidateCandidates() {
+    this.candidatesByDefinition.clear();
+  }
+
+  /**
+   * Called within the engine command for each supported task event. The events of a command are collected and
+   * {@link #flush(List) flushed} once, when its transaction reaches {@link #flushState()}. They are dropped if it rolls
+   * back before. Outside an engine command, the event is handled right away.
+   *
+   * @param taskId the id of the task
+   * @param type the type of the event
+   * @param users the users to notify of a created or updated task, empty otherwise
+   * @param groups the groups of users to notify of a created or updated task, empty otherwise
+   */
+  protected void onTaskEvent(String taskId, TaskEvent.Type type, Set<String> users, Set<String> groups) {
+    TaskEvent event = new TaskEvent(taskId, type, users, groups);
+    CommandContext commandContext = Context.getCommandContext();
+    if (commandContext == null) {
+      handle(Collections.singletonList(event));
+      return;
+    }
+    this.eventsByCommand.computeIfAbsent(commandContext, this::collect).add(event);
+  }
+
+  /**
+   * Starts collecting the events of a command. The list of events is registered in {@link #eventsByCommand} until the
+   * command closes, whether it succeeds or fails, and handed to the listener of its transaction, that flushes it when
+   * the transaction reaches {@link #flushState()}. Whatever the outcome of the transaction, the entry of the command
+   * does not outlive it.
+   *
+   * @param commandContext the command
+   * @return the list to collect the events of the command in
+   */
+  protected List<TaskEvent> collect(CommandContext commandContext) {
+    List<TaskEvent> events = new ArrayList<>();
+    commandContext.getTransactionContext().addTransactionListener(flushState(), __ -> flush(events));
+    commandContext.registerCommandContextListener(new CommandContextListener() {
+      @Override
+      public void onCommandContextClose(CommandContext context) {
+        ApprovalWorkflowTaskListener.this.eventsByCommand.remove(context);
+      }
+
+      @Override
+      public void onCommandFailed(CommandContext context, Throwable t) {
+        ApprovalWorkflowTaskListener.this.eventsByCommand.remove(context);
+      }
+    });
+    return events;
+  }
+
+  /**
+   * The state of the engine transaction at which the events of a command are flushed. By default, just before it
+   * commits: a failure to save the notifications rolls back the command.
+   *
+   * @return the state of the engine transaction at which the events are flushed
+   */
+  protected TransactionState flushState() {
+    return TransactionState.COMMITTING;
+  }
+
+  /**
+   * Handles the events collected within a command.
+   *
+   * @param events the events of the command, in order
+   */
+  protected void flush(List<TaskEvent> events) {
+    if (!events.isEmpty()) {
+      handle(events);
+    }
+  }
+
+  /**
+   * Coalesces the events of each task, see {@link TaskEvent#merge(TaskEvent)}, then saves the notifications of the
+   * created tasks, updates the recipients of the ones of the updated tasks and marks the ones of the completed tasks as
+   * inactive with one call to {@link NotificationService#apply(NotificationBatch)}, and publishes them to the
+   * subscribers at once.
+   *
+   * @param events the events to handle, in order
+   */
+  protected void handle(List<TaskEvent> events) {
+    NotificationBatch batch = new NotificationBatch();
+    for (TaskEvent event : coalesce(events)) {
+      switch (event.type) {
+        case CREATE:
+          batch.save(createNotification(event.taskId), event.users, event.groups);
+          break;
+        case UPDATE:
+          batch.updateRecipients(event.taskId, event.users, event.groups);
+          break;
+        default:
+          batch.markAsInactive(event.taskId);
+      }
+    }
+    if (!batch.isEmpty()) {
+      this.notificationService.apply(batch);
+      this.registrar.publish(batch);
+    }
+  }
+
+  /**
+   * Creates the notification of a task.
+   *
+   * @param taskId the id of the task
+   * @return the notification to save
+   */
+  public WorkflowNotification createNotification(String taskId) {
+    // type and message can be customized here. The values can be read from delegateTask.getVariable() for instance
+    return new WorkflowNotificationImpl(taskId, getNotificationType(), "message");
+  }
+
+  /**
+   * Returns the type of the notifications created by {@link #createNotification(String)}. The notifications of other
+   * types are not managed by this listener, see {@link NotificationReconciler}.
+   *
+   * @return the type of the notifications of the tasks
+   */
+  public String getNotificationType() {
+    return NOTIFICATION_TYPE;
+  }
+
+  /**
+   * Merges the events of each task into a single one.
+   *
+   * @param events the events, in order
+   * @return the merged events, in the order of the first event of each task
+   */
+  protected static Collection<TaskEvent> coalesce(List<TaskEvent> events) {
+    Map<String, TaskEvent> eventByTaskId = new LinkedHashMap<>();
+    for (TaskEvent event : events) {
+      eventByTaskId.merge(event.taskId, event, TaskEvent::merge);
+    }
+    return eventByTaskId.values();
   }
 
   /**
@@ -96,4 +295,79 @@ public class ApprovalWorkflowTaskListener implements TaskListener {
     }
     return r;
   }
+
+  /**
+   * A task event collected within an engine command.
+   */
+  protected static class TaskEvent {
+
+    /**
+     * The types of events, by their effect on the notification of the task.
+     */
+    protected enum Type {
+      /**
+       * The task has been created: its notification is saved.
+       */
+      CREATE,
+      /**
+       * The task has been assigned, updated or has timed out: the recipients of its notification are updated.
+       */
+      UPDATE,
+      /**
+       * The task has been completed or deleted: its notification is marked as inactive.
+       */
+      END
+    }
+
+    /**
+     * The id of the task.
+     */
+    protected final String taskId;
+
+    /**
+     * The type of the event.
+     */
+    protected final Type type;
+
+    /**
+     * The users to notify of a created or updated task.
+     */
+    protected final Set<String> users;
+
+    /**
+     * The groups of users to notify of a created or updated task.
+     */
+    protected final Set<String> groups;
+
+    /**
+     * Constructor.
+     */
+    protected TaskEvent(String taskId, Type type, Set<String> users, Set<String> groups) {
+      this.taskId = taskId;
+      this.type = type;
+      this.users = users;
+      this.groups = groups;
+    }
+
+    /**
+     * Merges this event with the next event of the same task.
+     *
+     * @param next the event that happened after this one
+     * @return the event having the same effect as both, null if they cancel each other out, i.e. the task has been
+     * created then ended
+     */
+    protected TaskEvent merge(TaskEvent next) {
+      switch (next.type) {
+        case CREATE:
+          return next;
+        case UPDATE:
+          if (this.type == Type.END) {
+            return this;
+          }
+          return new TaskEvent(this.taskId, this.type, next.users, next.groups); // a created task keeps being created
+        default:
+          return this.type == Type.CREATE ? null : next;
+      }
+    }
+  }
 }
@@ -13,15 +13,16 @@ public class BasicApprovalWorflow {
   public static final String NAME = BasicApprovalWorflow.class.getName();
 
   /**
-   * Constant to define the name of the bean of the {@link TaskListener}.
+   * The name of the bean of the {@link TaskListener} the definitions deployed before
+   * {@link NotificationProcessEnginePlugin} declare on their user tasks.
    */
   public static final String LISTENER_BEAN_NAME = "myBean";
 
   /**
-   * Creates and gets the {@link BpmnModelElementInstance}.
+   * Creates and gets the {@link BpmnModelElementInstance}. The notifications of its user tasks are managed by the
+   * listener attached by {@link NotificationProcessEnginePlugin}.
    */
   public static BpmnModelInstance getBpmnModelInstance() {
-    String delegateExpression = "${" + LISTENER_BEAN_NAME + "}";
     return Bpmn.createExecutableProcess(NAME)
             .startEvent()
 
@@ -29,8 +30,6 @@ public class BasicApprovalWorflow {
             .name("first task")
             .camundaCandidateUsers("user1,user2,user3")
             .camundaCandidateGroups("group1,group2")
-            .camundaTaskListenerDelegateExpression(TaskListener.EVENTNAME_CREATE, delegateExpression)
-            .camundaTaskListenerDelegateExpression(TaskListener.EVENTNAME_COMPLETE, delegateExpression)
 
             .exclusiveGateway("gateway")
             .condition("first", "${" + ApprovalWorkflowTaskListener.APPROVED_KEY + "}")
@@ -38,8 +37,6 @@ public class BasicApprovalWorflow {
             .userTask()
             .name("second task")
             .camundaCandidateUsers("user4")
-            .camundaTaskListenerDelegateExpression(TaskListener.EVENTNAME_CREATE, delegateExpression)
-            .camundaTaskListenerDelegateExpression(TaskListener.EVENTNAME_COMPLETE, delegateExpression)
             .endEvent()
 
             .moveToLastGateway()
@@ -0,0 +1,77 @@
+package me.paulbares.camunda;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import org.camunda.bpm.engine.ProcessEngine;
+import org.camunda.bpm.engine.impl.ProcessEngineImpl;
+import org.camunda.bpm.engine.impl.cmd.CompleteTaskCmd;
+import org.camunda.bpm.engine.impl.interceptor.CommandExecutor;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Completes many user tasks at once, for instance when an approver approves dozens of tasks in one go.
+ * <p>
+ * The tasks are completed by chunks of {@link #chunkSize} tasks, each chunk in a single engine command instead of one
+ * command per task. Since {@link ApprovalWorkflowTaskListener} collects the task events of a command, the
+ * notifications of a chunk are saved and marked as inactive with set-based statements, see
+ * {@link me.paulbares.service.NotificationService#apply(me.paulbares.service.NotificationBatch)}, and each subscriber
+ * receives a single update for the whole chunk. If a task of a chunk cannot be completed, none of the tasks of this
+ * chunk are, but the ones of the previous chunks remain completed.
+ * </p>
+ */
+public class BulkApprovalService {
+
+  /**
+   * The default number of tasks completed in a single engine command.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 500;
+
+  /**
+   * The executor of the engine commands.
+   */
+  protected final CommandExecutor commandExecutor;
+
+  /**
+   * The number of tasks completed in a single engine command.
+   */
+  protected final int chunkSize;
+
+  /**
+   * Constructor.
+   */
+  public BulkApprovalService(ProcessEngine processEngine, int chunkSize) {
+    Preconditions.checkArgument(chunkSize > 0, "invalid chunk size %s", chunkSize);
+    this.commandExecutor = ((ProcessEngineImpl) processEngine).getProcessEngineConfiguration().getCommandExecutorTxRequired();
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Approves the given tasks i.e. completes them with {@link ApprovalWorkflowTaskListener#APPROVED_KEY} set to true.
+   *
+   * @param taskIds the ids of the tasks to approve
+   */
+  public void approve(Collection<String> taskIds) {
+    complete(taskIds, Map.of(ApprovalWorkflowTaskListener.APPROVED_KEY, true));
+  }
+
+  /**
+   * Completes the given tasks with the same variables.
+   *
+   * @param taskIds the ids of the tasks to complete
+   * @param variables the variables passed to each completion, see
+   *                  {@link org.camunda.bpm.engine.TaskService#complete(String, Map)}
+   */
+  public void complete(Collection<String> taskIds, Map<String, Object> variables) {
+    for (List<String> chunk : Iterables.partition(taskIds, this.chunkSize)) {
+      this.commandExecutor.execute(commandContext -> {
+        for (String taskId : chunk) {
+          new CompleteTaskCmd(taskId, variables).execute(commandContext);
+        }
+        return null;
+      });
+    }
+  }
+}
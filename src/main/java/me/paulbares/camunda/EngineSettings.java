@@ -0,0 +1,252 @@
+package me.paulbares.camunda;
+
+import com.google.common.base.Preconditions;
+import org.camunda.bpm.engine.ProcessEngineConfiguration;
+import org.camunda.bpm.engine.impl.cfg.IdGenerator;
+import org.camunda.bpm.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.camunda.bpm.engine.impl.jobexecutor.DefaultJobExecutor;
+
+import java.util.UUID;
+
+/**
+ * The settings of the workflow engine that matter for its throughput, applied to a
+ * {@link ProcessEngineConfigurationImpl} with {@link #applyTo(ProcessEngineConfigurationImpl)}. The settings of a
+ * {@link Profile} can be overridden one by one. {@code BenchmarkEngineSettings} measures the effect of each of them.
+ */
+public class EngineSettings {
+
+  /**
+   * The predefined sets of settings.
+   */
+  public enum Profile {
+    /**
+     * The defaults of the engine: ids allocated by blocks of 100, audit history and no job executor. The engine shares
+     * the connection pool of the notifications.
+     */
+    DEFAULT,
+    /**
+     * No history, the only setting measured faster than the spread of the runs by {@code BenchmarkEngineSettings}.
+     * The other settings are the ones of {@link #DEFAULT}. The task events cannot be captured from the history with
+     * this profile.
+     */
+    THROUGHPUT
+  }
+
+  /**
+   * How the ids of the engine entities are generated.
+   */
+  public enum IdGeneratorType {
+    /**
+     * Sequential ids allocated by blocks of {@link #idBlockSize} from a row of the engine database, see
+     * {@link org.camunda.bpm.engine.impl.db.DbIdGenerator}. Each block costs a transaction updating this row, on which
+     * the nodes contend.
+     */
+    DATABASE,
+    /**
+     * Random UUIDs generated in memory. No round trip to the database but the inserts are spread over the indexes.
+     */
+    UUID
+  }
+
+  /**
+   * Generates random UUIDs, see {@link IdGeneratorType#UUID}.
+   */
+  static final IdGenerator UUID_GENERATOR = () -> UUID.randomUUID().toString();
+
+  /**
+   * True to send the inserts, updates and deletes of an engine command to the database in JDBC batches.
+   */
+  protected boolean jdbcBatchProcessing = true;
+
+  /**
+   * How the ids of the engine entities are generated.
+   */
+  protected IdGeneratorType idGenerator = IdGeneratorType.DATABASE;
+
+  /**
+   * The number of ids allocated at once by {@link IdGeneratorType#DATABASE}.
+   */
+  protected int idBlockSize = 100;
+
+  /**
+   * The history level, see {@link ProcessEngineConfiguration#HISTORY_AUDIT} for instance.
+   */
+  protected String history = ProcessEngineConfiguration.HISTORY_AUDIT;
+
+  /**
+   * True to activate the job executor running the asynchronous continuations and the timers.
+   */
+  protected boolean jobExecutorActivate = false;
+
+  /**
+   * The number of threads of the job executor kept alive.
+   */
+  protected int jobExecutorCorePoolSize = 3;
+
+  /**
+   * The maximum number of threads of the job executor.
+   */
+  protected int jobExecutorMaxPoolSize = 10;
+
+  /**
+   * The number of acquired jobs waiting for a thread of the job executor.
+   */
+  protected int jobExecutorQueueSize = 3;
+
+  /**
+   * The maximum number of jobs acquired at once by the job executor.
+   */
+  protected int jobExecutorMaxJobsPerAcquisition = 3;
+
+  /**
+   * The maximum number of connections of the pool of the engine. 0 to share the pool of the notifications.
+   */
+  protected int dataSourcePoolSize = 0;
+
+  /**
+   * Creates the settings of a profile.
+   *
+   * @param profile the profile
+   * @return the settings of the profile
+   */
+  public static EngineSettings of(Profile profile) {
+    EngineSettings settings = new EngineSettings();
+    if (profile == Profile.THROUGHPUT) {
+      settings.history = ProcessEngineConfiguration.HISTORY_NONE;
+    }
+    return settings;
+  }
+
+  /**
+   * Applies these settings to the given configuration, except {@link #dataSourcePoolSize} that is up to the caller.
+   *
+   * @param conf the configuration of the engine
+   * @return the configuration
+   */
+  public ProcessEngineConfigurationImpl applyTo(ProcessEngineConfigurationImpl conf) {
+    conf.setJdbcBatchProcessing(this.jdbcBatchProcessing);
+    if (this.idGenerator == IdGeneratorType.UUID) {
+      conf.setIdGenerator(UUID_GENERATOR);
+    } else {
+      conf.setIdBlockSize(this.idBlockSize);
+    }
+    conf.setHistory(this.history);
+    conf.setJobExecutorActivate(this.jobExecutorActivate);
+    if (this.jobExecutorActivate) {
+      DefaultJobExecutor jobExecutor = new DefaultJobExecutor();
+      jobExecutor.setCorePoolSize(this.jobExecutorCorePoolSize);
+      jobExecutor.setMaxPoolSize(this.jobExecutorMaxPoolSize);
+      jobExecutor.setQueueSize(this.jobExecutorQueueSize);
+      jobExecutor.setMaxJobsPerAcquisition(this.jobExecutorMaxJobsPerAcquisition);
+      conf.setJobExecutor(jobExecutor);
+    }
+    return conf;
+  }
+
+  public boolean isJdbcBatchProcessing() {
+    return this.jdbcBatchProcessing;
+  }
+
+  public EngineSettings setJdbcBatchProcessing(boolean jdbcBatchProcessing) {
+    this.jdbcBatchProcessing = jdbcBatchProcessing;
+    return this;
+  }
+
+  public IdGeneratorType getIdGenerator() {
+    return this.idGenerator;
+  }
+
+  public EngineSettings setIdGenerator(IdGeneratorType idGenerator) {
+    this.idGenerator = idGenerator;
+    return this;
+  }
+
+  public int getIdBlockSize() {
+    return this.idBlockSize;
+  }
+
+  public EngineSettings setIdBlockSize(int idBlockSize) {
+    Preconditions.checkArgument(idBlockSize > 0, "invalid id block size %s", idBlockSize);
+    this.idBlockSize = idBlockSize;
+    return this;
+  }
+
+  public String getHistory() {
+    return this.history;
+  }
+
+  public EngineSettings setHistory(String history) {
+    this.history = history;
+    return this;
+  }
+
+  public boolean isJobExecutorActivate() {
+    return this.jobExecutorActivate;
+  }
+
+  public EngineSettings setJobExecutorActivate(boolean jobExecutorActivate) {
+    this.jobExecutorActivate = jobExecutorActivate;
+    return this;
+  }
+
+  public int getJobExecutorCorePoolSize() {
+    return this.jobExecutorCorePoolSize;
+  }
+
+  public EngineSettings setJobExecutorCorePoolSize(int jobExecutorCorePoolSize) {
+    this.jobExecutorCorePoolSize = jobExecutorCorePoolSize;
+    return this;
+  }
+
+  public int getJobExecutorMaxPoolSize() {
+    return this.jobExecutorMaxPoolSize;
+  }
+
+  public EngineSettings setJobExecutorMaxPoolSize(int jobExecutorMaxPoolSize) {
+    this.jobExecutorMaxPoolSize = jobExecutorMaxPoolSize;
+    return this;
+  }
+
+  public int getJobExecutorQueueSize() {
+    return this.jobExecutorQueueSize;
+  }
+
+  public EngineSettings setJobExecutorQueueSize(int jobExecutorQueueSize) {
+    this.jobExecutorQueueSize = jobExecutorQueueSize;
+    return this;
+  }
+
+  public int getJobExecutorMaxJobsPerAcquisition() {
+    return this.jobExecutorMaxJobsPerAcquisition;
+  }
+
+  public EngineSettings setJobExecutorMaxJobsPerAcquisition(int jobExecutorMaxJobsPerAcquisition) {
+    this.jobExecutorMaxJobsPerAcquisition = jobExecutorMaxJobsPerAcquisition;
+    return this;
+  }
+
+  public int getDataSourcePoolSize() {
+    return this.dataSourcePoolSize;
+  }
+
+  public EngineSettings setDataSourcePoolSize(int dataSourcePoolSize) {
+    Preconditions.checkArgument(dataSourcePoolSize >= 0, "invalid pool size %s", dataSourcePoolSize);
+    this.dataSourcePoolSize = dataSourcePoolSize;
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return "EngineSettings{"
+            + "jdbcBatchProcessing=" + this.jdbcBatchProcessing
+            + ", idGenerator=" + this.idGenerator
+            + ", idBlockSize=" + this.idBlockSize
+            + ", history=" + this.history
+            + ", jobExecutorActivate=" + this.jobExecutorActivate
+            + ", jobExecutorPoolSize=" + this.jobExecutorCorePoolSize + "/" + this.jobExecutorMaxPoolSize
+            + ", jobExecutorQueueSize=" + this.jobExecutorQueueSize
+            + ", jobExecutorMaxJobsPerAcquisition=" + this.jobExecutorMaxJobsPerAcquisition
+            + ", dataSourcePoolSize=" + this.dataSourcePoolSize
+            + '}';
+  }
+}
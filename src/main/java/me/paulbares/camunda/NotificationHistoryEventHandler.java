@@ -0,0 +1,68 @@
+package me.paulbares.camunda;
+
+import org.camunda.bpm.engine.impl.context.Context;
+import org.camunda.bpm.engine.impl.history.event.HistoricTaskInstanceEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+import org.camunda.bpm.engine.impl.history.event.HistoryEventTypes;
+import org.camunda.bpm.engine.impl.history.handler.HistoryEventHandler;
+import org.camunda.bpm.engine.impl.persistence.entity.TaskEntity;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A {@link HistoryEventHandler} that drives the notifications from the task instance events of the engine history
+ * instead of task listeners: a notification is saved when a task is created, its recipients are updated when the task
+ * is updated, for instance assigned, and it is marked as inactive when the task is completed or deleted, for instance
+ * when its process instance is cancelled. It is registered along with the default
+ * history handler so the history is still written to the database.
+ * <p>
+ * The events are handed to an {@link ApprovalWorkflowTaskListener} which collects the events of an engine command and
+ * handles them at once, see {@link ApprovalWorkflowTaskListener#onTaskEvent(String, ApprovalWorkflowTaskListener.TaskEvent.Type, Set, Set)}. The engine
+ * history level must produce the task instance events, i.e. be at least {@code activity}.
+ * </p>
+ */
+public class NotificationHistoryEventHandler implements HistoryEventHandler {
+
+  /**
+   * The listener handling the task events.
+   */
+  protected final ApprovalWorkflowTaskListener listener;
+
+  /**
+   * Constructor.
+   */
+  public NotificationHistoryEventHandler(ApprovalWorkflowTaskListener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public void handleEvent(HistoryEvent historyEvent) {
+    if (!(historyEvent instanceof HistoricTaskInstanceEventEntity)) {
+      return;
+    }
+    HistoricTaskInstanceEventEntity event = (HistoricTaskInstanceEventEntity) historyEvent;
+    String taskId = event.getTaskId();
+    boolean created = event.isEventOfType(HistoryEventTypes.TASK_INSTANCE_CREATE);
+    if (created || event.isEventOfType(HistoryEventTypes.TASK_INSTANCE_UPDATE)) {
+      // The task is in the cache of the current command
+      TaskEntity task = Context.getCommandContext().getTaskManager().findTaskById(taskId);
+      if (task != null) {
+        TaskCandidates recipients = this.listener.resolveRecipients(task, created);
+        this.listener.onTaskEvent(taskId,
+                created ? ApprovalWorkflowTaskListener.TaskEvent.Type.CREATE : ApprovalWorkflowTaskListener.TaskEvent.Type.UPDATE,
+                recipients.getUsers(),
+                recipients.getGroups());
+      }
+    } else if (event.isEventOfType(HistoryEventTypes.TASK_INSTANCE_COMPLETE)
+            || event.isEventOfType(HistoryEventTypes.TASK_INSTANCE_DELETE)) {
+      this.listener.onTaskEvent(taskId, ApprovalWorkflowTaskListener.TaskEvent.Type.END, Collections.emptySet(), Collections.emptySet());
+    }
+  }
+
+  @Override
+  public void handleEvents(List<HistoryEvent> historyEvents) {
+    historyEvents.forEach(this::handleEvent);
+  }
+}
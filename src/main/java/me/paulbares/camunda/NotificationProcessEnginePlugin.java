@@ -0,0 +1,106 @@
+package me.paulbares.camunda;
+
+import org.camunda.bpm.engine.delegate.TaskListener;
+import org.camunda.bpm.engine.impl.bpmn.behavior.UserTaskActivityBehavior;
+import org.camunda.bpm.engine.impl.bpmn.parser.AbstractBpmnParseListener;
+import org.camunda.bpm.engine.impl.bpmn.parser.BpmnParseListener;
+import org.camunda.bpm.engine.impl.cfg.AbstractProcessEnginePlugin;
+import org.camunda.bpm.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.camunda.bpm.engine.impl.persistence.entity.ProcessDefinitionEntity;
+import org.camunda.bpm.engine.impl.pvm.process.ActivityImpl;
+import org.camunda.bpm.engine.impl.pvm.process.ScopeImpl;
+import org.camunda.bpm.engine.impl.task.TaskDefinition;
+import org.camunda.bpm.engine.impl.task.listener.DelegateExpressionTaskListener;
+import org.camunda.bpm.engine.impl.util.xml.Element;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A process engine plugin that attaches an {@link ApprovalWorkflowTaskListener} to the create, assignment, update,
+ * complete and delete events of every user task when a process definition is parsed, i.e. on deployment and when a deployed definition is loaded.
+ * The notifications work for any deployed process without declaring the listener in the BPMN models, and the
+ * listener instance is called directly instead of resolving an expression on every event.
+ * <p>
+ * The listeners declared with the legacy {@link BasicApprovalWorflow#LISTENER_BEAN_NAME} delegate expression by the
+ * definitions deployed before are removed so that their events are not handled twice.
+ * </p>
+ */
+public class NotificationProcessEnginePlugin extends AbstractProcessEnginePlugin {
+
+  /**
+   * The expression of the listeners declared by the definitions deployed before this plugin.
+   */
+  static final String LEGACY_EXPRESSION = "${" + BasicApprovalWorflow.LISTENER_BEAN_NAME + "}";
+
+  /**
+   * The events of the user tasks the listener is attached to.
+   */
+  static final String[] EVENTS = {
+          TaskListener.EVENTNAME_CREATE,
+          TaskListener.EVENTNAME_ASSIGNMENT,
+          TaskListener.EVENTNAME_UPDATE,
+          TaskListener.EVENTNAME_COMPLETE,
+          TaskListener.EVENTNAME_DELETE
+  };
+
+  /**
+   * The listener attached to the user tasks.
+   */
+  protected final ApprovalWorkflowTaskListener listener;
+
+  /**
+   * Constructor.
+   */
+  public NotificationProcessEnginePlugin(ApprovalWorkflowTaskListener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public void preInit(ProcessEngineConfigurationImpl configuration) {
+    List<BpmnParseListener> parseListeners = configuration.getCustomPostBPMNParseListeners();
+    if (parseListeners == null) {
+      parseListeners = new ArrayList<>();
+      configuration.setCustomPostBPMNParseListeners(parseListeners);
+    }
+    parseListeners.add(new UserTaskParseListener(this.listener));
+  }
+
+  /**
+   * Attaches a listener to the {@link NotificationProcessEnginePlugin#EVENTS events} of the parsed user tasks. The timeout events need a timer
+   * definition: they are only received by the timeout listeners declared in the models.
+   */
+  static class UserTaskParseListener extends AbstractBpmnParseListener {
+
+    /**
+     * The listener to attach.
+     */
+    protected final ApprovalWorkflowTaskListener listener;
+
+    /**
+     * Constructor.
+     */
+    UserTaskParseListener(ApprovalWorkflowTaskListener listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public void parseProcess(Element processElement, ProcessDefinitionEntity processDefinition) {
+      // The candidates resolved for the previous definitions are not needed anymore
+      this.listener.invalidateCandidates();
+    }
+
+    @Override
+    public void parseUserTask(Element userTaskElement, ScopeImpl scope, ActivityImpl activity) {
+      TaskDefinition taskDefinition = ((UserTaskActivityBehavior) activity.getActivityBehavior()).getTaskDefinition();
+      for (String eventName : EVENTS) {
+        List<TaskListener> listeners = taskDefinition.getTaskListeners().get(eventName);
+        if (listeners != null) {
+          listeners.removeIf(l -> l instanceof DelegateExpressionTaskListener
+                  && LEGACY_EXPRESSION.equals(((DelegateExpressionTaskListener) l).getExpressionText()));
+        }
+        taskDefinition.addTaskListener(eventName, this.listener);
+      }
+    }
+  }
+}
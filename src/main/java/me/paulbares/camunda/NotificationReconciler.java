@@ -0,0 +1,381 @@
+package me.paulbares.camunda;
+
+import com.google.common.base.Preconditions;
+import me.paulbares.service.NotificationBatch;
+import me.paulbares.service.NotificationServiceImpl;
+import me.paulbares.service.RecipientCache;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import org.camunda.bpm.engine.ProcessEngine;
+import org.camunda.bpm.engine.delegate.DelegateTask;
+import org.camunda.bpm.engine.impl.ProcessEngineImpl;
+import org.camunda.bpm.engine.impl.interceptor.CommandExecutor;
+import org.camunda.bpm.engine.task.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Background job repairing the drift between the open user tasks of the workflow engine and the active notifications,
+ * for instance when a node crashes between the commit of an engine command and the write of its notifications, or when
+ * a write fails after the commit.
+ * <p>
+ * Only the notifications of the {@link ApprovalWorkflowTaskListener#getNotificationType() type} created by the listener
+ * are reconciled. Each batch reads a page of {@link #batchSize} open tasks of the processes and the active
+ * notifications of these tasks: the notification of a task without active notification is saved, and the notification
+ * of a task sent to other users than its assignee or candidates gets its recipients replaced. It then reads a page of
+ * active notifications and the open tasks among them: a notification without task is marked as inactive. The tasks and
+ * the notifications are paged independently and matched by id in the databases, so the job does not depend on the two
+ * databases ordering the ids the same way. The corrections of a batch are applied at once and published to the
+ * subscribers. Only two pages are in memory at a time whatever the size of the tables.
+ * </p>
+ * <p>
+ * The tasks and notifications created less than {@link #gracePeriod} ago are left alone since their notifications may
+ * still be in flight. A change racing with the reconciliation can be overwritten with what was read before it; it is
+ * corrected by the next pass. The job sleeps {@link #pause} between two batches and reads at most
+ * {@link #maxBatchesPerRun} batches per run: the next run resumes where the previous one stopped, and starts over once
+ * the end of the tables is reached.
+ * </p>
+ * <p>
+ * The job runs on a single node at a time: before each batch, it takes or renews the {@link #LEASE lease} of the job
+ * in the database, see {@link NotificationServiceImpl#acquireLease(String, String, java.time.Instant, java.time.Instant)}.
+ * The lease lasts {@link #leaseDuration} so that the node keeps it from one run to the next; the other nodes skip their
+ * runs until it expires, for instance when the node stops.
+ * </p>
+ */
+public class NotificationReconciler implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(NotificationReconciler.class);
+
+  /**
+   * The default maximum number of tasks and notifications read at once.
+   */
+  public static final int DEFAULT_BATCH_SIZE = 500;
+
+  /**
+   * The default age below which the tasks and notifications are not reconciled.
+   */
+  public static final String DEFAULT_GRACE_PERIOD = "PT5M";
+
+  /**
+   * The name of the lease of the job in the {@code job_lease} table.
+   */
+  public static final String LEASE = "notification-reconciler";
+
+  /**
+   * The time a batch is expected to take at most, added to the {@link #leaseDuration}.
+   */
+  static final Duration LEASE_MARGIN = Duration.ofMinutes(1);
+
+  /**
+   * The native query reading a page of the open tasks of the processes, see {@link #readTasks(String)}.
+   */
+  static final String TASKS_QUERY = "SELECT * FROM %s WHERE PROC_DEF_ID_ IS NOT NULL AND ID_ > #{after} ORDER BY ID_";
+
+  /**
+   * The workflow engine.
+   */
+  protected final ProcessEngine processEngine;
+
+  /**
+   * The executor of the engine commands reading the candidates of the tasks.
+   */
+  protected final CommandExecutor commandExecutor;
+
+  /**
+   * The service reading and repairing the notifications.
+   */
+  protected final NotificationServiceImpl service;
+
+  /**
+   * The listener creating the notifications of the tasks and resolving their recipients.
+   */
+  protected final ApprovalWorkflowTaskListener listener;
+
+  /**
+   * Component to notify the subscribers of the corrections.
+   */
+  protected final ApproverWorkflowRegistrar registrar;
+
+  /**
+   * The maximum number of tasks and notifications read at once.
+   */
+  protected final int batchSize;
+
+  /**
+   * The age below which the tasks and notifications are not reconciled.
+   */
+  protected final Duration gracePeriod;
+
+  /**
+   * The time to wait between two batches.
+   */
+  protected final Duration pause;
+
+  /**
+   * The maximum number of batches per run.
+   */
+  protected final int maxBatchesPerRun;
+
+  /**
+   * The time between two runs.
+   */
+  protected final Duration interval;
+
+  /**
+   * The time the lease is held after it is taken or renewed: the time between two runs plus {@link #pause} and
+   * {@link #LEASE_MARGIN}, so that the lease does not expire between two batches nor two runs.
+   */
+  protected final Duration leaseDuration;
+
+  /**
+   * The id of this node as owner of the lease.
+   */
+  protected final String owner = UUID.randomUUID().toString();
+
+  /**
+   * Instant supplier to get the current instant. It is for test purpose.
+   */
+  private final Supplier<Instant> timeSupplier;
+
+  /**
+   * The task id after which the next page of tasks starts, the empty string to start from the beginning, null once
+   * the end of the tasks has been reached in the current pass.
+   */
+  protected String taskCursor = "";
+
+  /**
+   * The business id after which the next page of notifications starts, the empty string to start from the beginning,
+   * null once the end of the notifications has been reached in the current pass.
+   */
+  protected String notificationCursor = "";
+
+  /**
+   * Runs the job, null until {@link #start()} is called.
+   */
+  protected ScheduledExecutorService scheduler;
+
+  /**
+   * Constructor.
+   */
+  public NotificationReconciler(ProcessEngine processEngine,
+                                NotificationServiceImpl service,
+                                ApprovalWorkflowTaskListener listener,
+                                ApproverWorkflowRegistrar registrar,
+                                int batchSize,
+                                Duration gracePeriod,
+                                Duration pause,
+                                int maxBatchesPerRun,
+                                Duration interval,
+                                Supplier<Instant> timeSupplier) {
+    Preconditions.checkArgument(batchSize > 0 && batchSize <= NotificationServiceImpl.MAX_IN_PARAMETERS, "invalid batch size %s", batchSize);
+    Preconditions.checkArgument(!gracePeriod.isNegative(), "grace period must not be negative but was %s", gracePeriod);
+    Preconditions.checkArgument(maxBatchesPerRun > 0, "max batches per run must be positive but was %s", maxBatchesPerRun);
+    this.processEngine = processEngine;
+    this.commandExecutor = ((ProcessEngineImpl) processEngine).getProcessEngineConfiguration().getCommandExecutorTxRequired();
+    this.service = service;
+    this.listener = listener;
+    this.registrar = registrar;
+    this.batchSize = batchSize;
+    this.gracePeriod = gracePeriod;
+    this.pause = pause;
+    this.maxBatchesPerRun = maxBatchesPerRun;
+    this.interval = interval;
+    this.leaseDuration = interval.plus(pause).plus(LEASE_MARGIN);
+    this.timeSupplier = timeSupplier;
+  }
+
+  /**
+   * Schedules the job every {@link #interval}.
+   */
+  public synchronized void start() {
+    Preconditions.checkState(this.scheduler == null, "already started");
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "notification-reconciler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long millis = this.interval.toMillis();
+    this.scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        run();
+      } catch (RuntimeException e) {
+        LOGGER.error("Failed to reconcile the notifications with the tasks", e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, millis, millis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Reconciles at most {@link #maxBatchesPerRun} batches, from where the previous run stopped to the end of the tables.
+   * Nothing is done while another node holds the lease of the job.
+   *
+   * @return the number of corrected notifications
+   * @throws InterruptedException if interrupted while pausing between two batches
+   */
+  public long run() throws InterruptedException {
+    Instant createdBefore = this.timeSupplier.get().minus(this.gracePeriod);
+    long corrected = 0;
+    for (int i = 0; i < this.maxBatchesPerRun; i++) {
+      if (i > 0 && !this.pause.isZero()) {
+        Thread.sleep(this.pause.toMillis());
+      }
+      Instant now = this.timeSupplier.get();
+      if (!this.service.acquireLease(LEASE, this.owner, now, now.plus(this.leaseDuration))) {
+        LOGGER.debug("The notifications are reconciled by another node");
+        break;
+      }
+      NotificationBatch corrections = new NotificationBatch();
+      boolean end = reconcileBatch(corrections, createdBefore);
+      if (!corrections.isEmpty()) {
+        this.service.apply(corrections);
+        this.registrar.publish(corrections);
+        corrected += corrections.getEntries().size();
+      }
+      if (end) {
+        // The next run starts over
+        this.taskCursor = "";
+        this.notificationCursor = "";
+        break;
+      }
+    }
+    if (corrected > 0) {
+      LOGGER.warn("{} notifications reconciled with the tasks", corrected);
+    }
+    return corrected;
+  }
+
+  /**
+   * Reconciles the next page of tasks with their notifications, then the next page of notifications with their
+   * tasks, and adds the corrections to the given batch. A page is not read once the end of its table has been reached
+   * in the current pass.
+   *
+   * @param corrections the batch to fill with the corrections
+   * @param createdBefore the tasks and notifications created from this instant are not reconciled
+   * @return true if the end of both tables has been reached
+   */
+  protected boolean reconcileBatch(NotificationBatch corrections, Instant createdBefore) {
+    String type = this.listener.getNotificationType();
+    if (this.taskCursor != null) {
+      List<Task> tasks = readTasks(this.taskCursor);
+      List<String> taskIds = tasks.stream().map(Task::getId).collect(Collectors.toList());
+      Map<String, RecipientCache.Entry> notifications = this.service.getActiveNotifications(type, taskIds);
+      Map<String, TaskCandidates> recipients = resolveRecipients(tasks);
+      List<String> missing = new ArrayList<>();
+      for (Task task : tasks) {
+        RecipientCache.Entry notification = notifications.get(task.getId());
+        TaskCandidates candidates = recipients.get(task.getId());
+        if (notification == null) {
+          if (task.getCreateTime().toInstant().isBefore(createdBefore)) {
+            missing.add(task.getId());
+            corrections.save(this.listener.createNotification(task.getId()), candidates.getUsers(), candidates.getGroups());
+          }
+        } else if (notification.getCreatedAt().isBefore(createdBefore)
+                && (!candidates.getUsers().equals(notification.getUsers()) || !candidates.getGroups().equals(notification.getGroups()))) {
+          corrections.updateRecipients(task.getId(), candidates.getUsers(), candidates.getGroups());
+        }
+      }
+      // A notification wrongly marked as inactive blocks the save of a new one with the same business id
+      this.service.archiveInactiveNotifications(missing);
+      this.taskCursor = tasks.size() < this.batchSize ? null : taskIds.get(taskIds.size() - 1);
+    }
+
+    if (this.notificationCursor != null) {
+      Map<String, Instant> notifications = this.service.getActiveNotificationIds(type, this.notificationCursor, this.batchSize);
+      Set<String> openTaskIds = readOpenTaskIds(notifications.keySet());
+      String last = null;
+      for (Map.Entry<String, Instant> notification : notifications.entrySet()) {
+        if (!openTaskIds.contains(notification.getKey()) && notification.getValue().isBefore(createdBefore)) {
+          corrections.markAsInactive(notification.getKey());
+        }
+        last = notification.getKey();
+      }
+      this.notificationCursor = notifications.size() < this.batchSize ? null : last;
+    }
+    return this.taskCursor == null && this.notificationCursor == null;
+  }
+
+  /**
+   * Reads at most {@link #batchSize} open tasks of the processes, in the order of their ids, starting after the given
+   * id. Standalone tasks do not have notifications.
+   *
+   * @param after the id the page starts after, the empty string for the first page
+   * @return the tasks in the order of their ids
+   */
+  protected List<Task> readTasks(String after) {
+    String table = this.processEngine.getManagementService().getTableName(Task.class);
+    return this.processEngine.getTaskService()
+            .createNativeTaskQuery()
+            .sql(String.format(TASKS_QUERY, table))
+            .parameter("after", after)
+            .listPage(0, this.batchSize);
+  }
+
+  /**
+   * Reads the ids of the open tasks among the given ones.
+   *
+   * @param taskIds the ids of the tasks
+   * @return the ids of the tasks still open
+   */
+  protected Set<String> readOpenTaskIds(Collection<String> taskIds) {
+    if (taskIds.isEmpty()) {
+      return Collections.emptySet();
+    }
+    return this.processEngine.getTaskService()
+            .createTaskQuery()
+            .taskIdIn(taskIds.toArray(new String[0]))
+            .list()
+            .stream()
+            .map(Task::getId)
+            .collect(Collectors.toSet());
+  }
+
+  /**
+   * Resolves the recipients of the notifications of the given tasks, in a single engine command, with
+   * {@link ApprovalWorkflowTaskListener#resolveRecipients(DelegateTask, boolean)}.
+   *
+   * @param tasks the tasks
+   * @return the recipients by task id
+   */
+  protected Map<String, TaskCandidates> resolveRecipients(List<Task> tasks) {
+    return this.commandExecutor.execute(commandContext -> {
+      Map<String, TaskCandidates> recipients = new HashMap<>();
+      for (Task task : tasks) {
+        // The identity links of the unassigned tasks are loaded within this command
+        recipients.put(task.getId(), this.listener.resolveRecipients((DelegateTask) task, false));
+      }
+      return recipients;
+    });
+  }
+
+  /**
+   * Stops the job and releases its lease. A run in progress is interrupted between two batches.
+   */
+  @Override
+  public synchronized void close() throws InterruptedException {
+    if (this.scheduler != null) {
+      this.scheduler.shutdownNow();
+      this.scheduler.awaitTermination(1, TimeUnit.MINUTES);
+      try {
+        this.service.releaseLease(LEASE, this.owner);
+      } catch (RuntimeException e) {
+        LOGGER.warn("Failed to release the lease of the reconciliation, it is taken over once expired", e);
+      }
+    }
+  }
+}
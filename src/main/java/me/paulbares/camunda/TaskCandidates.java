@@ -0,0 +1,131 @@
+package me.paulbares.camunda;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import org.camunda.bpm.engine.delegate.Expression;
+import org.camunda.bpm.engine.impl.task.TaskDefinition;
+import org.camunda.bpm.engine.task.IdentityLink;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The candidate users and groups of a task. The candidates resolved from a {@link TaskDefinition} are immutable and
+ * interned: the tasks whose definitions declare the same candidates share the same instance.
+ */
+public final class TaskCandidates {
+
+  /**
+   * Marks the task definitions whose candidates depend on the task, see {@link #ofDefinition(TaskDefinition)}.
+   */
+  static final TaskCandidates DYNAMIC = new TaskCandidates(Set.of(), Set.of());
+
+  private static final Interner<TaskCandidates> INTERNER = Interners.newWeakInterner();
+
+  private final Set<String> users;
+
+  private final Set<String> groups;
+
+  private TaskCandidates(Set<String> users, Set<String> groups) {
+    this.users = users;
+    this.groups = groups;
+  }
+
+  /**
+   * Extracts the candidates from the identity links of a task.
+   *
+   * @param identityLinks the identity links of the task
+   * @return the candidates, in mutable sets
+   */
+  public static TaskCandidates of(Collection<IdentityLink> identityLinks) {
+    Set<String> users = new HashSet<>();
+    Set<String> groups = new HashSet<>();
+    for (IdentityLink candidate : identityLinks) {
+      String userId = candidate.getUserId();
+      if (userId != null) {
+        users.add(userId);
+      }
+      String groupId = candidate.getGroupId();
+      if (groupId != null) {
+        groups.add(groupId);
+      }
+    }
+    return new TaskCandidates(users, groups);
+  }
+
+  /**
+   * Creates the candidates of an assigned task: its assignee only.
+   *
+   * @param assignee the assignee of the task
+   * @return the candidates
+   */
+  public static TaskCandidates ofAssignee(String assignee) {
+    return new TaskCandidates(Set.of(assignee), Set.of());
+  }
+
+  /**
+   * Resolves the candidates declared by a task definition if they are all literals, e.g.
+   * {@code camunda:candidateUsers="user1,user2"}: all the tasks of this definition have the same candidates.
+   *
+   * @param taskDefinition the task definition
+   * @return the interned candidates, {@link #DYNAMIC} if a candidate is an expression to evaluate for each task or if
+   * no candidate is declared
+   */
+  static TaskCandidates ofDefinition(TaskDefinition taskDefinition) {
+    Set<String> users = literals(taskDefinition.getCandidateUserIdExpressions());
+    Set<String> groups = literals(taskDefinition.getCandidateGroupIdExpressions());
+    if (users == null || groups == null || (users.isEmpty() && groups.isEmpty())) {
+      return DYNAMIC; // the candidates of a task without any declared candidate are usually added by a listener
+    }
+    return INTERNER.intern(new TaskCandidates(Set.copyOf(users), Set.copyOf(groups)));
+  }
+
+  /**
+   * Gets the texts of the given expressions, null if one of them is not a literal.
+   */
+  private static Set<String> literals(Set<Expression> expressions) {
+    Set<String> literals = new HashSet<>();
+    for (Expression expression : expressions) {
+      if (!expression.isLiteralText()) {
+        return null;
+      }
+      literals.add(expression.getExpressionText().trim());
+    }
+    return literals;
+  }
+
+  public Set<String> getUsers() {
+    return this.users;
+  }
+
+  public Set<String> getGroups() {
+    return this.groups;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    TaskCandidates that = (TaskCandidates) o;
+    return this.users.equals(that.users) && this.groups.equals(that.groups);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(this.users, this.groups);
+  }
+
+  @Override
+  public String toString() {
+    return "TaskCandidates{" +
+            "users=" + this.users +
+            ", groups=" + this.groups +
+            '}';
+  }
+}
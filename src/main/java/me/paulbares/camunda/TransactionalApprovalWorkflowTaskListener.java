@@ -0,0 +1,265 @@
+package me.paulbares.camunda;
+
+import com.google.common.base.Preconditions;
+import me.paulbares.service.NotificationService;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import org.camunda.bpm.engine.impl.cfg.TransactionState;
+import org.camunda.bpm.engine.impl.interceptor.CommandContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * An {@link ApprovalWorkflowTaskListener} that handles the task events only once the engine transaction that produced
+ * them has committed, and not on the engine thread.
+ * <p>
+ * The events of an engine command are collected in its {@link CommandContext} and handed, in order, to a
+ * single-threaded dispatcher when its transaction commits: the notifications are then saved and published in one
+ * batch. If the transaction rolls back, the events are dropped and nothing is saved nor sent. The engine threads (job
+ * executor, REST requests) do not wait for the database writes of the notifications and the fan-out to the
+ * subscribers.
+ * </p>
+ * <p>
+ * The dispatcher handles the events one at a time so that the notification of a task is always created before it is
+ * marked as inactive. The events not dispatched yet are lost if the process stops abruptly.
+ * </p>
+ * <p>
+ * With a {@link #coalescingWindowMs coalescing window}, the events of a task are held for this duration after its
+ * first event and merged with the ones of the next commands, so that a burst such as a creation followed by an
+ * assignment and an update is saved and published once. A task created then completed within the window is never
+ * notified.
+ * </p>
+ */
+public class TransactionalApprovalWorkflowTaskListener extends ApprovalWorkflowTaskListener implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TransactionalApprovalWorkflowTaskListener.class);
+
+  /**
+   * Handles the events of the committed commands.
+   */
+  protected final ExecutorService dispatcher;
+
+  /**
+   * The time in ms the events of a task are held after its first event to be merged with the next ones. 0 to handle
+   * the events of a command as soon as it commits.
+   */
+  protected final long coalescingWindowMs;
+
+  /**
+   * Submits a {@link #drain()} to {@link #dispatcher} after {@link #coalescingWindowMs}.
+   */
+  protected final Executor delayedDispatcher;
+
+  /**
+   * True once {@link #close()} has been called: the events held by the coalescing window are then handled without
+   * waiting for their deadline.
+   */
+  protected volatile boolean closed;
+
+  /**
+   * The events held by the coalescing window, by task id, in the order of their first event i.e. of their deadline.
+   * Guarded by itself.
+   */
+  protected final Map<String, PendingEvent> pendingEvents = new LinkedHashMap<>();
+
+  /**
+   * Constructor.
+   */
+  public TransactionalApprovalWorkflowTaskListener(NotificationService notificationService, ApproverWorkflowRegistrar registrar) {
+    this(notificationService, registrar, 0);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param coalescingWindowMs see {@link #coalescingWindowMs}
+   */
+  public TransactionalApprovalWorkflowTaskListener(NotificationService notificationService,
+                                                   ApproverWorkflowRegistrar registrar,
+                                                   long coalescingWindowMs) {
+    this(notificationService, registrar, Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "notification-publisher");
+      thread.setDaemon(true);
+      return thread;
+    }), coalescingWindowMs);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param dispatcher the executor handling the events after commit. It must run them in submission order.
+   */
+  public TransactionalApprovalWorkflowTaskListener(NotificationService notificationService,
+                                                   ApproverWorkflowRegistrar registrar,
+                                                   ExecutorService dispatcher) {
+    this(notificationService, registrar, dispatcher, 0);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param dispatcher the executor handling the events after commit. It must run them one at a time, in submission
+   *                   order.
+   * @param coalescingWindowMs see {@link #coalescingWindowMs}
+   */
+  public TransactionalApprovalWorkflowTaskListener(NotificationService notificationService,
+                                                   ApproverWorkflowRegistrar registrar,
+                                                   ExecutorService dispatcher,
+                                                   long coalescingWindowMs) {
+    super(notificationService, registrar);
+    Preconditions.checkArgument(coalescingWindowMs >= 0, "invalid coalescing window %s", coalescingWindowMs);
+    this.dispatcher = dispatcher;
+    this.coalescingWindowMs = coalescingWindowMs;
+    this.delayedDispatcher = CompletableFuture.delayedExecutor(coalescingWindowMs, TimeUnit.MILLISECONDS, this::dispatch);
+  }
+
+  /**
+   * The events are flushed once the transaction has committed.
+   */
+  @Override
+  protected TransactionState flushState() {
+    return TransactionState.COMMITTED;
+  }
+
+  /**
+   * Hands the events of a committed command to {@link #dispatcher}, or to the coalescing window if any.
+   *
+   * @param events the events of the committed command, in order
+   */
+  @Override
+  protected void flush(List<TaskEvent> events) {
+    if (events.isEmpty()) {
+      return;
+    }
+    if (this.coalescingWindowMs == 0) {
+      dispatch(() -> handleSafely(events));
+      return;
+    }
+
+    boolean newTask = false;
+    synchronized (this.pendingEvents) {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.coalescingWindowMs);
+      for (TaskEvent event : events) {
+        PendingEvent pending = this.pendingEvents.get(event.taskId);
+        if (pending == null) {
+          this.pendingEvents.put(event.taskId, new PendingEvent(event, deadline));
+          newTask = true;
+        } else {
+          pending.event = pending.event.merge(event);
+          if (pending.event == null) {
+            this.pendingEvents.remove(event.taskId); // created and ended within the window
+          }
+        }
+      }
+    }
+    if (this.closed) {
+      dispatch(this::drain); // committed after close, not held
+    } else if (newTask) {
+      this.delayedDispatcher.execute(this::drain);
+    }
+  }
+
+  /**
+   * Runs the given task on {@link #dispatcher}. Once the dispatcher is shut down by {@link #close()}, the task is run on
+   * the calling thread after the ones already dispatched, so that the events committed meanwhile are not lost.
+   *
+   * @param task the task to run
+   */
+  protected void dispatch(Runnable task) {
+    try {
+      this.dispatcher.execute(task);
+    } catch (RejectedExecutionException e) {
+      try {
+        this.dispatcher.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      task.run();
+    }
+  }
+
+  /**
+   * Handles the events held by the coalescing window whose deadline has passed, or all of them once {@link #closed}.
+   * Runs on {@link #dispatcher}, or on the calling thread once it is shut down.
+   */
+  protected void drain() {
+    List<TaskEvent> events = new ArrayList<>();
+    synchronized (this.pendingEvents) {
+      long now = System.nanoTime();
+      Iterator<PendingEvent> it = this.pendingEvents.values().iterator();
+      while (it.hasNext()) {
+        PendingEvent pending = it.next();
+        if (!this.closed && pending.deadline - now > 0) {
+          break; // the next ones have a later deadline, a drain is already scheduled for them
+        }
+        events.add(pending.event);
+        it.remove();
+      }
+    }
+    if (!events.isEmpty()) {
+      handleSafely(events);
+    }
+  }
+
+  /**
+   * Handles the given events and logs the failure if any, so that the next events are still handled.
+   */
+  protected void handleSafely(List<TaskEvent> events) {
+    try {
+      handle(events);
+    } catch (RuntimeException e) {
+      LOGGER.error("Failed to handle the events of tasks " + events.stream().map(event -> event.taskId).collect(Collectors.toList()), e);
+    }
+  }
+
+  /**
+   * Handles the events already committed, including the ones held by the coalescing window, then stops the dispatcher.
+   * The events of the commands committing afterwards are handled on the engine threads, see {@link #dispatch(Runnable)}.
+   */
+  @Override
+  public void close() throws InterruptedException {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    dispatch(this::drain);
+    this.dispatcher.shutdown();
+    this.dispatcher.awaitTermination(1, TimeUnit.MINUTES);
+  }
+
+  /**
+   * The merged events of a task held by the coalescing window.
+   */
+  protected static class PendingEvent {
+
+    /**
+     * The merged events.
+     */
+    protected TaskEvent event;
+
+    /**
+     * The {@link System#nanoTime()} after which the event is handled.
+     */
+    protected final long deadline;
+
+    /**
+     * Constructor.
+     */
+    protected PendingEvent(TaskEvent event, long deadline) {
+      this.event = event;
+      this.deadline = deadline;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package me.paulbares.domain;
+
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * An immutable, read-only view of a {@link Notification}. Unlike {@link Notification}, it is not an entity: it is
+ * created directly from the rows read with JDBC and never tracked by a persistence context.
+ */
+public final class NotificationView {
+
+  private final long id;
+  private final String type;
+  private final String message;
+  private final Instant createdAt;
+  private final boolean isActive;
+  private final String businessId;
+
+  /**
+   * Constructor.
+   */
+  public NotificationView(long id, String type, String message, Instant createdAt, boolean isActive, String businessId) {
+    this.id = id;
+    this.type = type;
+    this.message = message;
+    this.createdAt = createdAt;
+    this.isActive = isActive;
+    this.businessId = businessId;
+  }
+
+  /**
+   * Creates a view of the given notification.
+   *
+   * @param notification the notification. Its id must not be null.
+   * @return the created view
+   */
+  public static NotificationView of(Notification notification) {
+    return new NotificationView(notification.getId(), notification.getType(), notification.getMessage(),
+            notification.getCreatedAt(), notification.getActive(), notification.getBusinessId());
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public Instant getCreatedAt() {
+    return createdAt;
+  }
+
+  public boolean isActive() {
+    return isActive;
+  }
+
+  public String getBusinessId() {
+    return businessId;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    NotificationView that = (NotificationView) o;
+    return id == that.id &&
+            isActive == that.isActive &&
+            Objects.equals(type, that.type) &&
+            Objects.equals(message, that.message) &&
+            Objects.equals(createdAt, that.createdAt) &&
+            Objects.equals(businessId, that.businessId);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(id, type, message, createdAt, isActive, businessId);
+  }
+
+  @Override
+  public String toString() {
+    return "NotificationView{" +
+            "id=" + id +
+            ", type='" + type + '\'' +
+            ", message='" + message + '\'' +
+            ", createdAt=" + createdAt +
+            ", isActive=" + isActive +
+            ", businessId='" + businessId + '\'' +
+            '}';
+  }
+}
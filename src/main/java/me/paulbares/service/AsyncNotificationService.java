@@ -0,0 +1,290 @@
+package me.paulbares.service;
+
+import com.google.common.base.Preconditions;
+import me.paulbares.camunda.WorkflowNotification;
+import me.paulbares.domain.Notification;
+import me.paulbares.domain.NotificationView;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * A {@link ReactiveNotificationService} running the calls to a blocking {@link NotificationService} on a small, fixed
+ * pool of threads. A call only occupies a thread while the database is actually queried: the callers are never
+ * blocked and the calls waiting for a thread are queued, so thousands of concurrent reads (for instance the
+ * subscriptions of {@link me.paulbares.subscription.ApproverWorkflowRegistrar#subscribeAsync}) do not need thousands
+ * of threads.
+ * <p>
+ * The reads of the same inbox (same user and groups) that are waiting for a thread are coalesced: they are served by a
+ * single query. A read never joins a query that has already started so that it always sees the notifications
+ * committed before it was requested. The notifications are then emitted as requested by each {@link Flow.Subscriber}.
+ * Notice that the coalesced reads of {@link #getUnreadAndActiveNotificationsInDescOrder(String, Collection)} share the
+ * same {@link Notification} instances.
+ * </p>
+ */
+public class AsyncNotificationService implements ReactiveNotificationService, AutoCloseable {
+
+  /**
+   * The default number of threads calling the blocking service.
+   */
+  public static final int DEFAULT_POOL_SIZE = 8;
+
+  /**
+   * The blocking service.
+   */
+  protected final NotificationService delegate;
+
+  /**
+   * The threads calling {@link #delegate}.
+   */
+  protected final ExecutorService executor;
+
+  /**
+   * The reads of {@link #getUnreadAndActiveNotificationsInDescOrder(String, Collection)} waiting for a thread.
+   */
+  protected final Map<InboxKey, CompletableFuture<List<Notification>>> pendingReads = new ConcurrentHashMap<>();
+
+  /**
+   * The reads of {@link #getUnreadAndActiveNotificationViewsInDescOrder(String, Collection)} waiting for a thread.
+   */
+  protected final Map<InboxKey, CompletableFuture<List<NotificationView>>> pendingViewReads = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor.
+   *
+   * @param delegate the blocking service
+   * @param poolSize the number of threads calling {@code delegate}, i.e. the maximum number of concurrent calls
+   */
+  public AsyncNotificationService(NotificationService delegate, int poolSize) {
+    Preconditions.checkArgument(poolSize > 0, "pool size must be positive but was %s", poolSize);
+    this.delegate = delegate;
+    AtomicInteger count = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(poolSize, r -> {
+      Thread thread = new Thread(r, "notification-async-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @Override
+  public CompletionStage<Notification> saveNotificationAndRecipients(WorkflowNotification notification, Set<String> users, Set<String> groups) {
+    return CompletableFuture.supplyAsync(() -> this.delegate.saveNotificationAndRecipients(notification, users, groups), this.executor);
+  }
+
+  @Override
+  public CompletionStage<List<Notification>> saveNotificationsAndRecipients(List<NotificationAndRecipients> notifications) {
+    return CompletableFuture.supplyAsync(() -> this.delegate.saveNotificationsAndRecipients(notifications), this.executor);
+  }
+
+  @Override
+  public CompletionStage<Void> markAsRead(String userId, Collection<String> notificationIds) {
+    return CompletableFuture.runAsync(() -> this.delegate.markAsRead(userId, notificationIds), this.executor);
+  }
+
+  @Override
+  public CompletionStage<Void> markAsRead(Map<String, ? extends Collection<String>> notificationIdsByUserId) {
+    return CompletableFuture.runAsync(() -> this.delegate.markAsRead(notificationIdsByUserId), this.executor);
+  }
+
+  @Override
+  public CompletionStage<Void> markAllAsRead(String userId, long maxNotificationId) {
+    return CompletableFuture.runAsync(() -> this.delegate.markAllAsRead(userId, maxNotificationId), this.executor);
+  }
+
+  @Override
+  public CompletionStage<Notification> markAsInactive(String notificationId, Set<String> users, Set<String> groups) {
+    return CompletableFuture.supplyAsync(() -> this.delegate.markAsInactive(notificationId, users, groups), this.executor);
+  }
+
+  @Override
+  public Flow.Publisher<Notification> getUnreadAndActiveNotificationsInDescOrder(String userId, Collection<String> groupIds) {
+    InboxKey key = new InboxKey(userId, groupIds);
+    return subscriber -> new ListSubscription<>(subscriber,
+            read(key, this.pendingReads, this.delegate::getUnreadAndActiveNotificationsInDescOrder));
+  }
+
+  @Override
+  public Flow.Publisher<NotificationView> getUnreadAndActiveNotificationViewsInDescOrder(String userId, Collection<String> groupIds) {
+    InboxKey key = new InboxKey(userId, groupIds);
+    return subscriber -> new ListSubscription<>(subscriber,
+            read(key, this.pendingViewReads, this.delegate::getUnreadAndActiveNotificationViewsInDescOrder));
+  }
+
+  @Override
+  public CompletionStage<Long> countUnreadAndActiveNotifications(String userId, Collection<String> groupIds) {
+    return CompletableFuture.supplyAsync(() -> this.delegate.countUnreadAndActiveNotifications(userId, groupIds), this.executor);
+  }
+
+  /**
+   * Reads the given inbox with the given reader or joins the read of the same inbox if one is waiting for a thread.
+   */
+  private <T> CompletableFuture<List<T>> read(InboxKey key,
+                                              Map<InboxKey, CompletableFuture<List<T>>> pending,
+                                              BiFunction<String, Collection<String>, List<T>> reader) {
+    CompletableFuture<List<T>> created = new CompletableFuture<>();
+    CompletableFuture<List<T>> joined = pending.putIfAbsent(key, created);
+    if (joined != null) {
+      return joined;
+    }
+    try {
+      this.executor.execute(() -> {
+        // Not joinable anymore: the reads requested from now on may need to see more recent notifications.
+        pending.remove(key, created);
+        try {
+          created.complete(reader.apply(key.userId, key.groupIds));
+        } catch (Throwable t) {
+          created.completeExceptionally(t);
+        }
+      });
+    } catch (RuntimeException e) {
+      pending.remove(key, created);
+      created.completeExceptionally(e);
+    }
+    return created;
+  }
+
+  /**
+   * Stops the threads once the calls in progress and queued are done.
+   */
+  @Override
+  public void close() throws InterruptedException {
+    this.executor.shutdown();
+    this.executor.awaitTermination(1, TimeUnit.MINUTES);
+  }
+
+  /**
+   * The user and groups an inbox is read for.
+   */
+  static final class InboxKey {
+
+    final String userId;
+    final Set<String> groupIds;
+
+    InboxKey(String userId, Collection<String> groupIds) {
+      this.userId = userId;
+      this.groupIds = new HashSet<>(groupIds);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      InboxKey that = (InboxKey) o;
+      return this.userId.equals(that.userId) && this.groupIds.equals(that.groupIds);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(this.userId, this.groupIds);
+    }
+  }
+
+  /**
+   * A {@link Flow.Subscription} emitting the items of a list, once read, as requested by its subscriber. The items are
+   * emitted by the thread requesting them or by the thread completing the read, never concurrently.
+   */
+  static final class ListSubscription<T> implements Flow.Subscription {
+
+    final Flow.Subscriber<? super T> subscriber;
+
+    /**
+     * The number of items requested and not emitted yet, {@link Long#MAX_VALUE} for unbounded.
+     */
+    final AtomicLong demand = new AtomicLong();
+
+    /**
+     * The number of pending calls to {@link #drain()}, only one of them emits the items.
+     */
+    final AtomicInteger wip = new AtomicInteger();
+
+    volatile List<T> items;
+    volatile Throwable error;
+    volatile boolean cancelled;
+
+    /**
+     * The index of the next item to emit. Only accessed by the thread draining.
+     */
+    int index;
+
+    /**
+     * True once the subscriber has been completed. Only accessed by the thread draining.
+     */
+    boolean done;
+
+    ListSubscription(Flow.Subscriber<? super T> subscriber, CompletableFuture<List<T>> read) {
+      this.subscriber = subscriber;
+      subscriber.onSubscribe(this);
+      read.whenComplete((items, error) -> {
+        if (error != null) {
+          this.error = error;
+        } else {
+          this.items = items;
+        }
+        drain();
+      });
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        this.error = new IllegalArgumentException("non-positive request: " + n); // rule 3.9
+        drain();
+        return;
+      }
+      this.demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      this.cancelled = true;
+    }
+
+    void drain() {
+      if (this.wip.getAndIncrement() != 0) {
+        return;
+      }
+      do {
+        if (this.done || this.cancelled) {
+          return;
+        }
+        Throwable error = this.error;
+        if (error != null) {
+          this.done = true;
+          this.subscriber.onError(error);
+          return;
+        }
+        List<T> items = this.items;
+        if (items != null) {
+          while (this.index < items.size() && this.demand.get() > 0 && !this.cancelled) {
+            this.subscriber.onNext(items.get(this.index++));
+            this.demand.getAndUpdate(d -> d == Long.MAX_VALUE ? d : d - 1);
+          }
+          if (this.index == items.size() && !this.cancelled) {
+            this.done = true;
+            this.subscriber.onComplete();
+            return;
+          }
+        }
+      } while (this.wip.decrementAndGet() != 0);
+    }
+  }
+}
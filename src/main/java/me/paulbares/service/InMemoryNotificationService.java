@@ -0,0 +1,526 @@
+package me.paulbares.service;
+
+import com.google.common.base.Preconditions;
+import me.paulbares.camunda.WorkflowNotification;
+import me.paulbares.domain.Notification;
+import me.paulbares.domain.NotificationView;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static me.paulbares.service.Snapshots.readInstant;
+import static me.paulbares.service.Snapshots.readString;
+import static me.paulbares.service.Snapshots.readStrings;
+import static me.paulbares.service.Snapshots.writeInstant;
+import static me.paulbares.service.Snapshots.writeString;
+import static me.paulbares.service.Snapshots.writeStrings;
+
+/**
+ * A {@link NotificationService} keeping the active notifications in memory only, for deployments without database or
+ * as a baseline for benchmarks. Nothing survives a restart.
+ * <p>
+ * Each user and each group has its own index of active notifications, a {@link ConcurrentSkipListMap} sorted by
+ * {@link Notification#getId() id}, so that saving, reading, marking as read or inactive a notification costs
+ * O(log n) per recipient without any global lock. Ids are given in creation order so the inboxes are given in
+ * descending order of id, which is the descending order of creation. The index of a user only contains the
+ * notifications it has not read yet. The notifications of its groups are filtered by the set of users that have read
+ * them, see {@link #iterateUnreadAndActiveInDescOrder(String, Collection)}. Inactive notifications are removed from all
+ * indexes: unlike the database, their business ids can be reused.
+ * </p>
+ * <p>
+ * The reads are weakly consistent: they reflect the state of the indexes at some point at or since the creation of the
+ * iterator.
+ * </p>
+ */
+public class InMemoryNotificationService implements NotificationService {
+
+  /**
+   * The version of the format of {@link #writeTo(DataOutput)}.
+   */
+  static final int SNAPSHOT_VERSION = 1;
+
+  /**
+   * Instant supplier to get the current instant. It is for test purpose.
+   */
+  private final Supplier<Instant> timeSupplier;
+
+  /**
+   * Generator of the notification ids.
+   */
+  protected final AtomicLong idGenerator;
+
+  /**
+   * The active notifications indexed by business id.
+   */
+  protected final Map<String, Record> activeByBusinessId = new ConcurrentHashMap<>();
+
+  /**
+   * The unread and active notifications sent directly to a user indexed by id, indexed by user id.
+   */
+  protected final Map<String, ConcurrentSkipListMap<Long, Record>> unreadByUserId = new ConcurrentHashMap<>();
+
+  /**
+   * The active notifications sent to a group indexed by id, indexed by group id.
+   */
+  protected final Map<String, ConcurrentSkipListMap<Long, Record>> activeByGroupId = new ConcurrentHashMap<>();
+
+  /**
+   * The counters of unread notifications of the users that requested it.
+   */
+  protected final UnreadNotificationCounter unreadCounter = new UnreadNotificationCounter();
+
+  /**
+   * Constructor.
+   */
+  public InMemoryNotificationService(Supplier<Instant> timeSupplier) {
+    this(timeSupplier, 0);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param timeSupplier the supplier of the creation time of the notifications
+   * @param lastId the id after which the ids of the new notifications are given
+   */
+  public InMemoryNotificationService(Supplier<Instant> timeSupplier, long lastId) {
+    this.timeSupplier = timeSupplier;
+    this.idGenerator = new AtomicLong(lastId);
+  }
+
+  @Override
+  public Notification saveNotificationAndRecipients(WorkflowNotification notification, Set<String> users, Set<String> groups) {
+    Notification created = create(notification);
+    add(created, users, groups);
+    return created;
+  }
+
+  /**
+   * Creates an active notification with a new id. It is not added to the indexes.
+   *
+   * @param notification the notification emitted by the workflow engine
+   * @return the created notification
+   */
+  protected Notification create(WorkflowNotification notification) {
+    Notification created = NotificationServiceImpl.create(notification, this.timeSupplier);
+    created.setId(this.idGenerator.incrementAndGet());
+    return created;
+  }
+
+  /**
+   * Adds the given active notification to the indexes of its recipients.
+   *
+   * @param created the notification. Its id must be set.
+   * @param users the users the notification is sent to
+   * @param groups the groups of users the notification is sent to
+   * @return the added record
+   * @throws IllegalArgumentException if an active notification has the same business id
+   */
+  protected Record add(Notification created, Set<String> users, Set<String> groups) {
+    Record record = new Record(NotificationView.of(created), Set.copyOf(users), Set.copyOf(groups));
+    if (this.activeByBusinessId.putIfAbsent(record.view.getBusinessId(), record) != null) {
+      throw new IllegalArgumentException("An active notification with the business id " + record.view.getBusinessId() + " already exists");
+    }
+    long id = record.view.getId();
+    // Added within compute so that unindex cannot remove an index that became empty in the meantime
+    for (String user : record.users) {
+      this.unreadByUserId.compute(user, (__, unread) -> index(unread, id, record));
+    }
+    for (String group : record.groups) {
+      this.activeByGroupId.compute(group, (__, active) -> index(active, id, record));
+    }
+    if (!record.active) {
+      unindex(record); // marked as inactive while being indexed
+    } else {
+      this.unreadCounter.onSave(created, record.users, record.groups);
+    }
+    return record;
+  }
+
+  @Override
+  public List<Notification> saveNotificationsAndRecipients(List<NotificationAndRecipients> notifications) {
+    List<Notification> saved = new ArrayList<>(notifications.size());
+    for (NotificationAndRecipients n : notifications) {
+      saved.add(saveNotificationAndRecipients(n.getNotification(), n.getUsers(), n.getGroups()));
+    }
+    return saved;
+  }
+
+  @Override
+  public void markAsRead(String userId, String notificationId) {
+    markAsRead(userId, Collections.singleton(notificationId));
+  }
+
+  @Override
+  public void markAsRead(String userId, Collection<String> notificationIds) {
+    for (String notificationId : notificationIds) {
+      Record record = this.activeByBusinessId.get(notificationId);
+      if (record != null) {
+        markAsRead(userId, record);
+      }
+    }
+    this.unreadCounter.onRead(userId, notificationIds);
+  }
+
+  @Override
+  public void markAsRead(Map<String, ? extends Collection<String>> notificationIdsByUserId) {
+    notificationIdsByUserId.forEach(this::markAsRead);
+  }
+
+  @Override
+  public void markAllAsRead(String userId) {
+    markAllAsRead(userId, Long.MAX_VALUE);
+  }
+
+  @Override
+  public void markAllAsRead(String userId, long maxNotificationId) {
+    ConcurrentSkipListMap<Long, Record> unread = this.unreadByUserId.get(userId);
+    if (unread != null) {
+      ConcurrentNavigableMap<Long, Record> read = unread.headMap(maxNotificationId, true);
+      for (Record record : read.values()) {
+        record.readBy.add(userId);
+      }
+      read.clear();
+    }
+    this.unreadCounter.onReadAll(userId, maxNotificationId);
+  }
+
+  @Override
+  public Notification markAsInactive(String notificationId, Set<String> users, Set<String> groups) {
+    Record record = this.activeByBusinessId.remove(notificationId);
+    if (record == null) {
+      return null;
+    }
+    record.active = false;
+    unindex(record);
+    users.addAll(record.users);
+    groups.addAll(record.groups);
+    this.unreadCounter.onInactive(notificationId, users, groups);
+    return toNotification(record.view, false);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The notification keeps its id and creation time: its record is replaced by one with the new recipients, unless
+   * they are the same. As with {@link NotificationServiceImpl}, the read receipts are lost when the recipients change.
+   * </p>
+   */
+  @Override
+  public Notification updateRecipients(String notificationId,
+                                       Set<String> users,
+                                       Set<String> groups,
+                                       Set<String> previousUsers,
+                                       Set<String> previousGroups) {
+    Record record = this.activeByBusinessId.get(notificationId);
+    if (record != null && record.users.equals(users) && record.groups.equals(groups)) {
+      previousUsers.addAll(record.users);
+      previousGroups.addAll(record.groups);
+      return toNotification(record.view, true);
+    }
+    record = this.activeByBusinessId.remove(notificationId);
+    if (record == null) {
+      return null;
+    }
+    record.active = false;
+    unindex(record);
+    previousUsers.addAll(record.users);
+    previousGroups.addAll(record.groups);
+    this.unreadCounter.onInactive(notificationId, previousUsers, previousGroups);
+    Notification notification = toNotification(record.view, true);
+    add(notification, users, groups);
+    return notification;
+  }
+
+  /**
+   * Adds the given record to the given index, created if null.
+   */
+  private static ConcurrentSkipListMap<Long, Record> index(ConcurrentSkipListMap<Long, Record> index, long id, Record record) {
+    ConcurrentSkipListMap<Long, Record> result = index == null ? new ConcurrentSkipListMap<>() : index;
+    result.put(id, record);
+    return result;
+  }
+
+  /**
+   * Removes the given record from the indexes of its recipients. An index is removed once empty, atomically with
+   * respect to {@link #add(Notification, Set, Set)}.
+   */
+  private void unindex(Record record) {
+    long id = record.view.getId();
+    for (String user : record.users) {
+      this.unreadByUserId.computeIfPresent(user, (__, unread) -> {
+        unread.remove(id);
+        return unread.isEmpty() ? null : unread;
+      });
+    }
+    for (String group : record.groups) {
+      this.activeByGroupId.computeIfPresent(group, (__, active) -> {
+        active.remove(id);
+        return active.isEmpty() ? null : active;
+      });
+    }
+  }
+
+  @Override
+  public List<Notification> getUnreadAndActiveNotificationsInDescOrder(String userId, Collection<String> groupIds) {
+    List<Notification> notifications = new ArrayList<>();
+    iterateUnreadAndActiveInDescOrder(userId, groupIds).forEachRemaining(view -> notifications.add(toNotification(view, true)));
+    return notifications;
+  }
+
+  @Override
+  public List<NotificationView> getUnreadAndActiveNotificationViewsInDescOrder(String userId, Collection<String> groupIds) {
+    List<NotificationView> views = new ArrayList<>();
+    iterateUnreadAndActiveInDescOrder(userId, groupIds).forEachRemaining(views::add);
+    return views;
+  }
+
+  @Override
+  public long countUnreadAndActiveNotifications(String userId, Collection<String> groupIds) {
+    return this.unreadCounter.count(userId, groupIds, (u, consumer) -> {
+      Iterator<Record> it = new MergingIterator(u, groupIds);
+      while (it.hasNext()) {
+        Record record = it.next();
+        consumer.accept(record.view.getId(), record.view.getBusinessId(), record.users.contains(u));
+      }
+    });
+  }
+
+  /**
+   * Iterates over the unread and active notifications intended to the given user and groups of users, in descending
+   * order of id, i.e. of creation, without copying them: the indexes of the user and its groups are merged on the fly
+   * and the returned views are the ones stored in the indexes.
+   *
+   * @param userId the id of the user. It should not be null.
+   * @param groupIds the ids of the groups of users. It should not be null.
+   * @return an iterator over the views of the unread and active notifications
+   */
+  public Iterator<NotificationView> iterateUnreadAndActiveInDescOrder(String userId, Collection<String> groupIds) {
+    MergingIterator records = new MergingIterator(userId, groupIds);
+    return new Iterator<>() {
+      @Override
+      public boolean hasNext() {
+        return records.hasNext();
+      }
+
+      @Override
+      public NotificationView next() {
+        return records.next().view;
+      }
+    };
+  }
+
+  /**
+   * Writes the active notifications, their recipients and the users that have read them in a compact binary format
+   * that can be read by {@link #readFrom(DataInput)}. The notifications written are the ones active at some point at or
+   * since the beginning of the call.
+   *
+   * @param out the output to write to
+   * @return the highest id given to a notification before the call
+   * @throws IOException if an I/O error occurs
+   */
+  public long writeTo(DataOutput out) throws IOException {
+    long lastId = this.idGenerator.get();
+    out.writeInt(SNAPSHOT_VERSION);
+    out.writeLong(lastId);
+    for (Record record : this.activeByBusinessId.values()) {
+      out.writeBoolean(true);
+      NotificationView view = record.view;
+      out.writeLong(view.getId());
+      writeInstant(out, view.getCreatedAt());
+      writeString(out, view.getType());
+      writeString(out, view.getMessage());
+      writeString(out, view.getBusinessId());
+      writeStrings(out, record.users);
+      writeStrings(out, record.groups);
+      writeStrings(out, record.readBy);
+    }
+    out.writeBoolean(false);
+    return lastId;
+  }
+
+  /**
+   * Adds the notifications written by {@link #writeTo(DataOutput)} to this service. The ids of the next notifications
+   * are given after the highest id read.
+   *
+   * @param in the input to read from
+   * @return the number of notifications read
+   * @throws IOException if an I/O error occurs or the input is not a snapshot
+   */
+  public int readFrom(DataInput in) throws IOException {
+    int version = in.readInt();
+    if (version != SNAPSHOT_VERSION) {
+      throw new IOException("Unsupported snapshot version " + version);
+    }
+    long lastId = in.readLong();
+    int count = 0;
+    while (in.readBoolean()) {
+      long id = in.readLong();
+      Instant createdAt = readInstant(in);
+      Notification notification = new Notification(readString(in), readString(in), createdAt, true, readString(in));
+      notification.setId(id);
+      Record record = add(notification, readStrings(in), readStrings(in));
+      for (String user : readStrings(in)) {
+        markAsRead(user, record);
+      }
+      lastId = Math.max(lastId, id);
+      count++;
+    }
+    this.idGenerator.accumulateAndGet(lastId, Math::max);
+    return count;
+  }
+
+  /**
+   * Marks the given record as read by the given user if it is one of its direct recipients.
+   */
+  protected void markAsRead(String userId, Record record) {
+    if (record.users.contains(userId)) {
+      record.readBy.add(userId);
+      ConcurrentSkipListMap<Long, Record> unread = this.unreadByUserId.get(userId);
+      if (unread != null) {
+        unread.remove(record.view.getId());
+      }
+    }
+  }
+
+  /**
+   * Returns the counters of unread notifications maintained by this service.
+   *
+   * @return the counters of unread notifications
+   */
+  public UnreadNotificationCounter getUnreadCounter() {
+    return this.unreadCounter;
+  }
+
+  private static Notification toNotification(NotificationView view, boolean active) {
+    Notification notification = new Notification(view.getType(), view.getMessage(), view.getCreatedAt(), active, view.getBusinessId());
+    notification.setId(view.getId());
+    return notification;
+  }
+
+  /**
+   * An active notification and its recipients.
+   */
+  protected static final class Record {
+
+    final NotificationView view;
+    final Set<String> users;
+    final Set<String> groups;
+
+    /**
+     * The users that have read the notification. Only users in {@link #users} can read it.
+     */
+    final Set<String> readBy = ConcurrentHashMap.newKeySet();
+
+    volatile boolean active = true;
+
+    Record(NotificationView view, Set<String> users, Set<String> groups) {
+      this.view = view;
+      this.users = users;
+      this.groups = groups;
+    }
+  }
+
+  /**
+   * Merges the descending iterators of the indexes of a user and its groups. A notification sent to several of them
+   * is returned once, the notifications read by the user or inactive are skipped.
+   */
+  private final class MergingIterator implements Iterator<Record> {
+
+    final String userId;
+
+    /**
+     * The iterators of the indexes.
+     */
+    final List<Iterator<Record>> iterators = new ArrayList<>();
+
+    /**
+     * The next record of each iterator, null if exhausted.
+     */
+    final Record[] heads;
+
+    Record next;
+
+    MergingIterator(String userId, Collection<String> groupIds) {
+      Preconditions.checkNotNull(userId);
+      this.userId = userId;
+      add(unreadByUserId.get(userId));
+      for (String groupId : groupIds) {
+        add(activeByGroupId.get(groupId));
+      }
+      this.heads = new Record[this.iterators.size()];
+      for (int i = 0; i < this.heads.length; i++) {
+        this.heads[i] = this.iterators.get(i).next(); // not empty when added, see #add
+      }
+      advance();
+    }
+
+    private void add(ConcurrentSkipListMap<Long, Record> index) {
+      if (index != null) {
+        Iterator<Record> iterator = index.descendingMap().values().iterator();
+        if (iterator.hasNext()) {
+          this.iterators.add(iterator);
+        }
+      }
+    }
+
+    /**
+     * Finds the next record to return: the one with the highest id among the heads.
+     */
+    private void advance() {
+      this.next = null;
+      while (this.next == null) {
+        int max = -1;
+        for (int i = 0; i < this.heads.length; i++) {
+          if (this.heads[i] != null && (max < 0 || this.heads[i].view.getId() > this.heads[max].view.getId())) {
+            max = i;
+          }
+        }
+        if (max < 0) {
+          return; // exhausted
+        }
+        Record candidate = this.heads[max];
+        long id = candidate.view.getId();
+        // Moves all the iterators positioned on this record: it is returned once
+        for (int i = 0; i < this.heads.length; i++) {
+          if (this.heads[i] != null && this.heads[i].view.getId() == id) {
+            Iterator<Record> iterator = this.iterators.get(i);
+            this.heads[i] = iterator.hasNext() ? iterator.next() : null;
+          }
+        }
+        if (candidate.active && !candidate.readBy.contains(this.userId)) {
+          this.next = candidate;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return this.next != null;
+    }
+
+    @Override
+    public Record next() {
+      if (this.next == null) {
+        throw new NoSuchElementException();
+      }
+      Record result = this.next;
+      advance();
+      return result;
+    }
+  }
+}
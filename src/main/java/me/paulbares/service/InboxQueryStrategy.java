@@ -0,0 +1,177 @@
+package me.paulbares.service;
+
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.Oracle8iDialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.dialect.SQLServerDialect;
+
+/**
+ * The different ways of writing the queries reading the unread and active notifications of a user, see
+ * {@link NotificationService#getUnreadAndActiveNotificationsInDescOrder(String, java.util.Collection)} and
+ * {@link NotificationService#countUnreadAndActiveNotifications(String, java.util.Collection)}. They all return the same
+ * results but each database engine does not optimize them equally well.
+ * <p>
+ * Every query uses the named parameters {@code :userId} and, when it is written for a non empty list of groups,
+ * {@code :groupIds}. When the user does not belong to any group, the part of the query about groups is left out since
+ * an empty IN list is not valid SQL for most databases.
+ * </p>
+ * <p>
+ * Notice that notifications sent to a group are never marked as read so a notification is read by a user if and only
+ * if the recipient row of this user is marked as read.
+ * </p>
+ */
+public enum InboxQueryStrategy {
+
+  /**
+   * Joins the notifications with the recipients matching the user or its groups and filters out the ones read by the
+   * user with {@code GROUP BY} and {@code HAVING max(is_read) = 0}. The disjunction on user_id and group_id usually
+   * prevents the use of the indexes of the recipient table. This is the original query, kept as a baseline.
+   */
+  GROUP_BY {
+    @Override
+    public String unreadAndActiveQuery(boolean withGroups) {
+      return "SELECT n.id, n.type, n.message, n.created_at, n.is_active, n.business_id"
+              + " FROM notification n"
+              + " INNER JOIN recipient r ON n.id = r.notification_id"
+              + " WHERE " + recipientCondition(withGroups) + " AND n.is_active = true"
+              + " GROUP BY n.id, n.type, n.message, n.created_at, n.is_active, n.business_id"
+              + " HAVING max(r.is_read) = 0" // if the max is positive, it means the user read this notification. Skip it.
+              + " ORDER BY n.created_at DESC";
+    }
+
+    @Override
+    public String unreadAndActiveIdsQuery(boolean withGroups) {
+      return "SELECT n.id, n.business_id, max(CASE WHEN r.user_id = :userId THEN 1 ELSE 0 END)"
+              + " FROM notification n"
+              + " INNER JOIN recipient r ON n.id = r.notification_id"
+              + " WHERE " + recipientCondition(withGroups) + " AND n.is_active = true"
+              + " GROUP BY n.id, n.business_id"
+              + " HAVING max(r.is_read) = 0";
+    }
+
+    private String recipientCondition(boolean withGroups) {
+      return withGroups ? "(r.user_id = :userId OR r.group_id IN (:groupIds))" : "r.user_id = :userId";
+    }
+  },
+
+  /**
+   * Like {@link #GROUP_BY} but the recipients are read with a {@code UNION ALL} of one branch for the user and one
+   * branch for its groups so that each branch can use its own index.
+   */
+  UNION_ALL {
+    @Override
+    public String unreadAndActiveQuery(boolean withGroups) {
+      return "SELECT n.id, n.type, n.message, n.created_at, n.is_active, n.business_id"
+              + " FROM (" + recipients(withGroups) + ") r"
+              + " INNER JOIN notification n ON n.id = r.notification_id"
+              + " WHERE n.is_active = true"
+              + " GROUP BY n.id"
+              + " HAVING max(r.is_read) = 0" // if the max is positive, it means the user read this notification. Skip it.
+              + " ORDER BY n.created_at DESC";
+    }
+
+    @Override
+    public String unreadAndActiveIdsQuery(boolean withGroups) {
+      return "SELECT n.id, n.business_id, max(r.direct)"
+              + " FROM (" + recipients(withGroups) + ") r"
+              + " INNER JOIN notification n ON n.id = r.notification_id"
+              + " WHERE n.is_active = true"
+              + " GROUP BY n.id, n.business_id"
+              + " HAVING max(r.is_read) = 0";
+    }
+
+    private String recipients(boolean withGroups) {
+      String user = "SELECT r.notification_id, r.is_read, 1 AS direct FROM recipient r WHERE r.user_id = :userId";
+      return withGroups
+              ? user + " UNION ALL SELECT r.notification_id, 0, 0 FROM recipient r WHERE r.group_id IN (:groupIds)"
+              : user;
+    }
+  },
+
+  /**
+   * Selects the notifications with a semi-join ({@code IN}) on the unread recipients of the user and its groups and
+   * filters out the ones read by the user with an anti-join ({@code NOT EXISTS}). No aggregation is needed.
+   */
+  EXISTS {
+    @Override
+    public String unreadAndActiveQuery(boolean withGroups) {
+      return "SELECT n.id, n.type, n.message, n.created_at, n.is_active, n.business_id"
+              + " FROM notification n"
+              + " WHERE " + condition(withGroups)
+              + " ORDER BY n.created_at DESC";
+    }
+
+    @Override
+    public String unreadAndActiveIdsQuery(boolean withGroups) {
+      return "SELECT n.id, n.business_id,"
+              + " CASE WHEN EXISTS (SELECT 1 FROM recipient d WHERE d.notification_id = n.id AND d.user_id = :userId) THEN 1 ELSE 0 END"
+              + " FROM notification n"
+              + " WHERE " + condition(withGroups);
+    }
+
+    private String condition(boolean withGroups) {
+      String recipients = "SELECT r.notification_id FROM recipient r WHERE r.user_id = :userId AND r.is_read = 0";
+      if (withGroups) {
+        recipients += " UNION SELECT r.notification_id FROM recipient r WHERE r.group_id IN (:groupIds)";
+      }
+      return "n.id IN (" + recipients + ")"
+              + " AND n.is_active = true"
+              + " AND NOT EXISTS (SELECT 1 FROM recipient rr WHERE rr.notification_id = n.id AND rr.user_id = :userId AND rr.is_read = 1)";
+    }
+  },
+
+  /**
+   * Chooses one of the other strategies depending on the database, see {@link #resolve(Dialect)}. Engines with good
+   * semi-join and anti-join support (PostgreSQL, Oracle, SQL Server) use {@link #EXISTS}, the others (H2, MySQL...)
+   * use {@link #UNION_ALL}.
+   */
+  DIALECT {
+    @Override
+    public String unreadAndActiveQuery(boolean withGroups) {
+      throw new IllegalStateException(name() + " must be resolved before being used");
+    }
+
+    @Override
+    public String unreadAndActiveIdsQuery(boolean withGroups) {
+      throw new IllegalStateException(name() + " must be resolved before being used");
+    }
+
+    @Override
+    public InboxQueryStrategy resolve(Dialect dialect) {
+      if (dialect instanceof PostgreSQL81Dialect
+              || dialect instanceof Oracle8iDialect
+              || dialect instanceof SQLServerDialect) {
+        return EXISTS;
+      }
+      return UNION_ALL;
+    }
+  };
+
+  /**
+   * Returns the query reading the unread and active notifications of a user in descending order of creation. The
+   * selected columns can be mapped to {@link me.paulbares.domain.Notification}.
+   *
+   * @param withGroups true if the query is for a non empty list of groups
+   * @return the query
+   */
+  public abstract String unreadAndActiveQuery(boolean withGroups);
+
+  /**
+   * Returns the query reading the ids of the unread and active notifications of a user. Each row contains the id, the
+   * business id and 1 if the notification was sent directly to the user, 0 otherwise.
+   *
+   * @param withGroups true if the query is for a non empty list of groups
+   * @return the query
+   */
+  public abstract String unreadAndActiveIdsQuery(boolean withGroups);
+
+  /**
+   * Returns the strategy to use with the given dialect.
+   *
+   * @param dialect the dialect of the database
+   * @return the strategy to use
+   */
+  public InboxQueryStrategy resolve(Dialect dialect) {
+    return this;
+  }
+}
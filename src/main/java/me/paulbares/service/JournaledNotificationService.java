@@ -0,0 +1,428 @@
+package me.paulbares.service;
+
+import com.google.common.base.Preconditions;
+import me.paulbares.camunda.WorkflowNotification;
+import me.paulbares.domain.Notification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static me.paulbares.service.Snapshots.readInstant;
+import static me.paulbares.service.Snapshots.readString;
+import static me.paulbares.service.Snapshots.readStrings;
+import static me.paulbares.service.Snapshots.writeInstant;
+import static me.paulbares.service.Snapshots.writeString;
+import static me.paulbares.service.Snapshots.writeStrings;
+
+/**
+ * An {@link InMemoryNotificationService} persisting its changes to a {@link NotificationJournal} in a directory, for
+ * deployments without relational database. Each change costs one append to the memory-mapped journal, there is no
+ * round trip to a database. The reads are served by the in-memory indexes as by {@link InMemoryNotificationService}.
+ * <p>
+ * On construction, the state is rebuilt by loading the last snapshot, if any, and replaying the journal on top of it.
+ * {@link #compact()} writes the current state to a new snapshot and empties the journal. Once {@link #start()} is
+ * called, it is run in the background every {@code compactionInterval} if the journal is larger than
+ * {@code compactionThreshold}. Each change is stamped with a sequence number and the snapshot records the sequence
+ * number of the last change it contains, so that the replay skips the changes of a journal that was not emptied
+ * because of a crash between writing a snapshot and emptying the journal.
+ * </p>
+ * <p>
+ * Each change is appended to the journal before it is applied in memory, so a change that cannot be journaled is never
+ * visible. The changes are appended in the order they are applied, writes are serialized with a lock.
+ * </p>
+ */
+public class JournaledNotificationService extends InMemoryNotificationService implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JournaledNotificationService.class);
+
+  /**
+   * The name of the journal file in the directory.
+   */
+  public static final String JOURNAL_FILE = "notifications.journal";
+
+  /**
+   * The name of the snapshot file in the directory.
+   */
+  public static final String SNAPSHOT_FILE = "notifications.snapshot";
+
+  /**
+   * The default initial size of the journal file: 64 MB.
+   */
+  public static final int DEFAULT_JOURNAL_SIZE = 64 << 20;
+
+  static final byte CREATE = 1;
+  static final byte READ = 2;
+  static final byte READ_ALL = 3;
+  static final byte INACTIVE = 4;
+  static final byte RECIPIENTS = 5;
+
+  protected final Path directory;
+
+  protected final NotificationJournal journal;
+
+  /**
+   * The size in bytes of the journal above which it is compacted.
+   */
+  protected final int compactionThreshold;
+
+  /**
+   * The time between two checks of the size of the journal.
+   */
+  protected final Duration compactionInterval;
+
+  /**
+   * The lock serializing the changes and their appends to the journal.
+   */
+  protected final Object writeLock = new Object();
+
+  /**
+   * The sequence number of the last change appended to the journal or read from the snapshot. Guarded by
+   * {@link #writeLock}.
+   */
+  protected long sequence;
+
+  /**
+   * The sequence number of the last change contained in the snapshot loaded on construction. The replay skips the
+   * changes up to this one.
+   */
+  protected final long snapshotSequence;
+
+  /**
+   * Runs the compaction, null until {@link #start()} is called.
+   */
+  protected ScheduledExecutorService scheduler;
+
+  /**
+   * Constructor. Rebuilds the state from the snapshot and the journal found in the given directory.
+   *
+   * @param directory the directory of the journal and the snapshot, created if it does not exist
+   * @param timeSupplier the supplier of the creation time of the notifications
+   * @param journalSize the initial size in bytes of the journal file
+   * @param compactionThreshold the size in bytes of the journal above which it is compacted
+   * @param compactionInterval the time between two checks of the size of the journal
+   * @throws IOException if the files cannot be read
+   */
+  public JournaledNotificationService(Path directory,
+                                      Supplier<Instant> timeSupplier,
+                                      int journalSize,
+                                      int compactionThreshold,
+                                      Duration compactionInterval) throws IOException {
+    super(timeSupplier);
+    Preconditions.checkArgument(compactionThreshold > 0, "compaction threshold must be positive but was %s", compactionThreshold);
+    this.directory = Files.createDirectories(directory);
+    this.compactionThreshold = compactionThreshold;
+    this.compactionInterval = compactionInterval;
+
+    long start = System.nanoTime();
+    Path snapshot = directory.resolve(SNAPSHOT_FILE);
+    int loaded = 0;
+    if (Files.exists(snapshot)) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+        this.sequence = in.readLong();
+        loaded = readFrom(in);
+      }
+    }
+    this.snapshotSequence = this.sequence;
+    this.journal = new NotificationJournal(directory.resolve(JOURNAL_FILE), journalSize);
+    int replayed = this.journal.replay(this::apply);
+    LOGGER.info("{} notifications loaded and {} changes replayed from {} in {} ms", loaded, replayed, directory,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  @Override
+  public Notification saveNotificationAndRecipients(WorkflowNotification notification, Set<String> users, Set<String> groups) {
+    synchronized (this.writeLock) {
+      Notification created = create(notification);
+      // Checked before the append, the replay would fail otherwise
+      if (this.activeByBusinessId.containsKey(created.getBusinessId())) {
+        throw new IllegalArgumentException("An active notification with the business id " + created.getBusinessId() + " already exists");
+      }
+      append(out -> {
+        out.writeByte(CREATE);
+        out.writeLong(created.getId());
+        writeInstant(out, created.getCreatedAt());
+        writeString(out, created.getType());
+        writeString(out, created.getMessage());
+        writeString(out, created.getBusinessId());
+        writeStrings(out, users);
+        writeStrings(out, groups);
+      });
+      add(created, users, groups);
+      return created;
+    }
+  }
+
+  @Override
+  public void markAsRead(String userId, Collection<String> notificationIds) {
+    synchronized (this.writeLock) {
+      // The ids are journaled with the business ids as they can be reused once the notifications are inactive
+      List<Record> records = new ArrayList<>(notificationIds.size());
+      for (String notificationId : notificationIds) {
+        Record record = this.activeByBusinessId.get(notificationId);
+        if (record != null && record.users.contains(userId)) {
+          records.add(record);
+        }
+      }
+      if (!records.isEmpty()) {
+        append(out -> {
+          out.writeByte(READ);
+          writeString(out, userId);
+          out.writeInt(records.size());
+          for (Record record : records) {
+            out.writeLong(record.view.getId());
+            writeString(out, record.view.getBusinessId());
+          }
+        });
+      }
+      super.markAsRead(userId, notificationIds);
+    }
+  }
+
+  @Override
+  public void markAllAsRead(String userId, long maxNotificationId) {
+    synchronized (this.writeLock) {
+      // Bounded by the last id given so that the replay does not mark the notifications created afterwards as read
+      long maxId = Math.min(maxNotificationId, this.idGenerator.get());
+      append(out -> {
+        out.writeByte(READ_ALL);
+        writeString(out, userId);
+        out.writeLong(maxId);
+      });
+      super.markAllAsRead(userId, maxNotificationId);
+    }
+  }
+
+  @Override
+  public Notification markAsInactive(String notificationId, Set<String> users, Set<String> groups) {
+    synchronized (this.writeLock) {
+      Record record = this.activeByBusinessId.get(notificationId);
+      if (record == null) {
+        return null;
+      }
+      append(out -> {
+        out.writeByte(INACTIVE);
+        out.writeLong(record.view.getId());
+        writeString(out, notificationId);
+      });
+      return super.markAsInactive(notificationId, users, groups);
+    }
+  }
+
+  @Override
+  public Notification updateRecipients(String notificationId,
+                                       Set<String> users,
+                                       Set<String> groups,
+                                       Set<String> previousUsers,
+                                       Set<String> previousGroups) {
+    synchronized (this.writeLock) {
+      Record record = this.activeByBusinessId.get(notificationId);
+      if (record == null) {
+        return null;
+      }
+      if (!record.users.equals(users) || !record.groups.equals(groups)) {
+        append(out -> {
+          out.writeByte(RECIPIENTS);
+          out.writeLong(record.view.getId());
+          writeString(out, notificationId);
+          writeStrings(out, users);
+          writeStrings(out, groups);
+        });
+      }
+      return super.updateRecipients(notificationId, users, groups, previousUsers, previousGroups);
+    }
+  }
+
+  private void append(EventWriter writer) {
+    long next = this.sequence + 1;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    try {
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeLong(next);
+      writer.write(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // cannot happen
+    }
+    this.journal.append(bytes.toByteArray());
+    this.sequence = next;
+  }
+
+  /**
+   * Applies a change read from the journal. The changes already contained in the snapshot are ignored.
+   */
+  private void apply(byte[] event) {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(event));
+    try {
+      long sequence = in.readLong();
+      if (sequence <= this.snapshotSequence) {
+        return;
+      }
+      this.sequence = sequence;
+      byte type = in.readByte();
+      switch (type) {
+        case CREATE: {
+          long id = in.readLong();
+          Instant createdAt = readInstant(in);
+          Notification notification = new Notification(readString(in), readString(in), createdAt, true, readString(in));
+          notification.setId(id);
+          Set<String> users = readStrings(in);
+          Set<String> groups = readStrings(in);
+          if (id > this.idGenerator.get()) {
+            add(notification, users, groups);
+            this.idGenerator.set(id);
+          }
+          break;
+        }
+        case READ: {
+          String userId = readString(in);
+          int size = in.readInt();
+          for (int i = 0; i < size; i++) {
+            Record record = active(in.readLong(), readString(in));
+            if (record != null) {
+              markAsRead(userId, record);
+            }
+          }
+          break;
+        }
+        case READ_ALL:
+          super.markAllAsRead(readString(in), in.readLong());
+          break;
+        case INACTIVE: {
+          long id = in.readLong();
+          String businessId = readString(in);
+          if (active(id, businessId) != null) {
+            super.markAsInactive(businessId, new HashSet<>(), new HashSet<>());
+          }
+          break;
+        }
+        case RECIPIENTS: {
+          long id = in.readLong();
+          String businessId = readString(in);
+          Set<String> users = readStrings(in);
+          Set<String> groups = readStrings(in);
+          if (active(id, businessId) != null) {
+            super.updateRecipients(businessId, users, groups, new HashSet<>(), new HashSet<>());
+          }
+          break;
+        }
+        default:
+          throw new IllegalStateException("Unknown event type " + type);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns the active record with the given id and business id, null if none.
+   */
+  private Record active(long id, String businessId) {
+    Record record = this.activeByBusinessId.get(businessId);
+    return record != null && record.view.getId() == id ? record : null;
+  }
+
+  /**
+   * Schedules the compaction every {@link #compactionInterval}.
+   */
+  public synchronized void start() {
+    Preconditions.checkState(this.scheduler == null, "already started");
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "notification-journal-compaction");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long millis = this.compactionInterval.toMillis();
+    this.scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        if (this.journal.size() > this.compactionThreshold) {
+          compact();
+        }
+      } catch (IOException | RuntimeException e) {
+        LOGGER.error("Failed to compact the journal in " + this.directory, e);
+      }
+    }, millis, millis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Writes the current state to a new snapshot and empties the journal. The writes are blocked meanwhile.
+   *
+   * @throws IOException if the snapshot cannot be written
+   */
+  public void compact() throws IOException {
+    Path snapshot = this.directory.resolve(SNAPSHOT_FILE);
+    Path tmp = this.directory.resolve(SNAPSHOT_FILE + ".tmp");
+    synchronized (this.writeLock) {
+      long start = System.nanoTime();
+      try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeLong(this.sequence);
+        writeTo(data);
+        data.flush();
+        channel.force(true);
+      }
+      Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      int size = this.journal.size();
+      this.journal.reset();
+      LOGGER.info("Journal of {} bytes compacted in {} ms", size, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+  }
+
+  /**
+   * Returns the number of bytes used by the journal.
+   *
+   * @return the number of bytes used by the journal
+   */
+  public int getJournalSize() {
+    return this.journal.size();
+  }
+
+  /**
+   * Stops the compaction and closes the journal after writing it to the storage device.
+   */
+  @Override
+  public void close() throws IOException, InterruptedException {
+    synchronized (this) {
+      if (this.scheduler != null) {
+        this.scheduler.shutdownNow();
+        this.scheduler.awaitTermination(1, TimeUnit.MINUTES);
+      }
+    }
+    synchronized (this.writeLock) {
+      this.journal.close();
+    }
+  }
+
+  /**
+   * Writes an event to a {@link DataOutputStream}.
+   */
+  @FunctionalInterface
+  private interface EventWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+}
@@ -0,0 +1,56 @@
+package me.paulbares.service;
+
+import me.paulbares.camunda.WorkflowNotification;
+
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A {@link WorkflowNotification} along with the users and groups of users that should receive it. It is used to save
+ * several notifications at once with {@link NotificationService#saveNotificationsAndRecipients(java.util.List)}.
+ */
+public class NotificationAndRecipients {
+
+  /**
+   * The notification to save.
+   */
+  protected final WorkflowNotification notification;
+
+  /**
+   * The users to notify.
+   */
+  protected final Set<String> users;
+
+  /**
+   * The groups of users to notify.
+   */
+  protected final Set<String> groups;
+
+  /**
+   * Constructor.
+   *
+   * @param notification the notification to save.
+   * @param users the users to notify
+   * @param groups the groups of users to notify.
+   */
+  public NotificationAndRecipients(WorkflowNotification notification, Set<String> users, Set<String> groups) {
+    Objects.requireNonNull(notification);
+    Objects.requireNonNull(users);
+    Objects.requireNonNull(groups);
+    this.notification = notification;
+    this.users = users;
+    this.groups = groups;
+  }
+
+  public WorkflowNotification getNotification() {
+    return this.notification;
+  }
+
+  public Set<String> getUsers() {
+    return this.users;
+  }
+
+  public Set<String> getGroups() {
+    return this.groups;
+  }
+}
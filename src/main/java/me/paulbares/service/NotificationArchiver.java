@@ -0,0 +1,176 @@
+package me.paulbares.service;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Background job moving the notifications inactive for longer than {@link #retention} and their recipients to the
+ * archive tables so that the size of the hot tables stays proportional to the number of open tasks.
+ * <p>
+ * Every {@link #interval}, the job archives the candidates by batches of {@link #batchSize} notifications, one
+ * transaction per batch, with {@link NotificationServiceImpl#archiveInactiveNotifications(Instant, int)}. To not
+ * compete with the foreground traffic, it runs on a single thread, archives at most {@link #maxRate} notifications per
+ * second, sleeps at least {@link #pause} between two batches and archives at most {@link #maxBatchesPerRun} batches per
+ * run.
+ * </p>
+ */
+public class NotificationArchiver implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(NotificationArchiver.class);
+
+  /**
+   * The default time a notification stays in the hot tables once inactive.
+   */
+  public static final String DEFAULT_RETENTION = "P7D";
+
+  /**
+   * The default maximum number of notifications archived in one transaction.
+   */
+  public static final int DEFAULT_BATCH_SIZE = 500;
+
+  /**
+   * The service archiving the notifications.
+   */
+  protected final NotificationServiceImpl service;
+
+  /**
+   * The time a notification stays in the hot tables once inactive.
+   */
+  protected final Duration retention;
+
+  /**
+   * The maximum number of notifications archived in one transaction.
+   */
+  protected final int batchSize;
+
+  /**
+   * The time to wait between two batches.
+   */
+  protected final Duration pause;
+
+  /**
+   * The maximum number of batches per run.
+   */
+  protected final int maxBatchesPerRun;
+
+  /**
+   * The maximum number of notifications archived per second, 0 for no limit.
+   */
+  protected final int maxRate;
+
+  /**
+   * The time between two runs.
+   */
+  protected final Duration interval;
+
+  /**
+   * Instant supplier to get the current instant. It is for test purpose.
+   */
+  private final Supplier<Instant> timeSupplier;
+
+  /**
+   * Runs the job, null until {@link #start()} is called.
+   */
+  protected ScheduledExecutorService scheduler;
+
+  /**
+   * Constructor.
+   */
+  public NotificationArchiver(NotificationServiceImpl service,
+                              Duration retention,
+                              int batchSize,
+                              Duration pause,
+                              int maxBatchesPerRun,
+                              int maxRate,
+                              Duration interval,
+                              Supplier<Instant> timeSupplier) {
+    Preconditions.checkArgument(!retention.isNegative(), "retention must not be negative but was %s", retention);
+    Preconditions.checkArgument(batchSize > 0 && batchSize <= NotificationServiceImpl.MAX_IN_PARAMETERS, "invalid batch size %s", batchSize);
+    Preconditions.checkArgument(maxBatchesPerRun > 0, "max batches per run must be positive but was %s", maxBatchesPerRun);
+    Preconditions.checkArgument(maxRate >= 0, "max rate must not be negative but was %s", maxRate);
+    this.service = service;
+    this.retention = retention;
+    this.batchSize = batchSize;
+    this.pause = pause;
+    this.maxBatchesPerRun = maxBatchesPerRun;
+    this.maxRate = maxRate;
+    this.interval = interval;
+    this.timeSupplier = timeSupplier;
+  }
+
+  /**
+   * Schedules the job every {@link #interval}.
+   */
+  public synchronized void start() {
+    Preconditions.checkState(this.scheduler == null, "already started");
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "notification-archiver");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long millis = this.interval.toMillis();
+    this.scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        run();
+      } catch (RuntimeException e) {
+        LOGGER.error("Failed to archive inactive notifications", e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, millis, millis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Archives the notifications inactive for longer than {@link #retention}, at most {@link #maxBatchesPerRun} batches.
+   * A batch starts {@link #pause} after the previous one at the earliest, and not before the notifications archived
+   * since the start of the run fit in {@link #maxRate}.
+   *
+   * @return the number of archived notifications
+   * @throws InterruptedException if interrupted while pausing between two batches
+   */
+  public long run() throws InterruptedException {
+    Instant inactiveBefore = this.timeSupplier.get().minus(this.retention);
+    long start = System.nanoTime();
+    long archived = 0;
+    for (int i = 0; i < this.maxBatchesPerRun; i++) {
+      if (i > 0) {
+        long wait = this.pause.toNanos();
+        if (this.maxRate > 0) {
+          long earliest = start + archived * TimeUnit.SECONDS.toNanos(1) / this.maxRate;
+          wait = Math.max(wait, earliest - System.nanoTime());
+        }
+        if (wait > 0) {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        }
+      }
+      int n = this.service.archiveInactiveNotifications(inactiveBefore, this.batchSize);
+      archived += n;
+      if (n < this.batchSize) {
+        break; // nothing left
+      }
+    }
+    if (archived > 0) {
+      LOGGER.info("{} inactive notifications archived", archived);
+    }
+    return archived;
+  }
+
+  /**
+   * Stops the job. A batch in progress is interrupted between two batches.
+   */
+  @Override
+  public synchronized void close() throws InterruptedException {
+    if (this.scheduler != null) {
+      this.scheduler.shutdownNow();
+      this.scheduler.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package me.paulbares.service;
+
+import me.paulbares.camunda.WorkflowNotification;
+import me.paulbares.domain.Notification;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * An ordered list of changes of notifications, new notifications to save, notifications whose recipients change and
+ * notifications to mark as inactive, to be
+ * {@link NotificationService#apply(NotificationBatch) applied} at once, for instance the task events of one workflow
+ * engine command. Once applied, each {@link Entry} gives the saved or inactivated {@link Notification} and its
+ * recipients, to be {@link me.paulbares.subscription.ApproverWorkflowRegistrar#publish(NotificationBatch) published}.
+ */
+public class NotificationBatch {
+
+  /**
+   * The changes in order.
+   */
+  protected final List<Entry> entries = new ArrayList<>();
+
+  /**
+   * Adds a notification to save.
+   *
+   * @param notification the notification to save.
+   * @param users the users to notify
+   * @param groups the groups of users to notify.
+   * @return this
+   */
+  public NotificationBatch save(WorkflowNotification notification, Set<String> users, Set<String> groups) {
+    Objects.requireNonNull(notification);
+    this.entries.add(new Entry(notification, notification.getId(), users, groups));
+    return this;
+  }
+
+  /**
+   * Adds a notification whose recipients are replaced, for instance when its task is assigned. Its previous recipients
+   * are set once applied.
+   *
+   * @param notificationId the id of the notification.
+   * @param users the users to notify from now on
+   * @param groups the groups of users to notify from now on
+   * @return this
+   */
+  public NotificationBatch updateRecipients(String notificationId, Set<String> users, Set<String> groups) {
+    Objects.requireNonNull(notificationId);
+    this.entries.add(new Entry(null, notificationId, users, groups, new HashSet<>(), new HashSet<>()));
+    return this;
+  }
+
+  /**
+   * Adds a notification to mark as inactive. Its recipients are set once applied.
+   *
+   * @param notificationId the id of the notification.
+   * @return this
+   */
+  public NotificationBatch markAsInactive(String notificationId) {
+    Objects.requireNonNull(notificationId);
+    this.entries.add(new Entry(null, notificationId, new HashSet<>(), new HashSet<>()));
+    return this;
+  }
+
+  public List<Entry> getEntries() {
+    return this.entries;
+  }
+
+  public boolean isEmpty() {
+    return this.entries.isEmpty();
+  }
+
+  /**
+   * A change of the batch.
+   */
+  public static class Entry {
+
+    /**
+     * The notification to save, null if the notification is to be updated or marked as inactive.
+     */
+    protected final WorkflowNotification toSave;
+
+    /**
+     * The id of the notification.
+     */
+    protected final String notificationId;
+
+    /**
+     * The users to notify. Filled once applied for a notification marked as inactive.
+     */
+    protected final Set<String> users;
+
+    /**
+     * The groups of users to notify. Filled once applied for a notification marked as inactive.
+     */
+    protected final Set<String> groups;
+
+    /**
+     * The users the notification was sent to before its recipients are updated, filled once applied. Null if the
+     * recipients of the notification are not updated.
+     */
+    protected final Set<String> previousUsers;
+
+    /**
+     * The groups of users the notification was sent to before its recipients are updated, filled once applied. Null if
+     * the recipients of the notification are not updated.
+     */
+    protected final Set<String> previousGroups;
+
+    /**
+     * The saved, updated or inactivated notification, null until applied or if no active notification has been found
+     * to update or mark as inactive.
+     */
+    protected Notification notification;
+
+    /**
+     * Constructor.
+     */
+    protected Entry(WorkflowNotification toSave, String notificationId, Set<String> users, Set<String> groups) {
+      this(toSave, notificationId, users, groups, null, null);
+    }
+
+    /**
+     * Constructor.
+     */
+    protected Entry(WorkflowNotification toSave,
+                    String notificationId,
+                    Set<String> users,
+                    Set<String> groups,
+                    Set<String> previousUsers,
+                    Set<String> previousGroups) {
+      this.toSave = toSave;
+      this.notificationId = notificationId;
+      this.users = users;
+      this.groups = groups;
+      this.previousUsers = previousUsers;
+      this.previousGroups = previousGroups;
+    }
+
+    /**
+     * Returns true if the notification is a new one to save, false if it is to be updated or marked as inactive.
+     *
+     * @return true if the notification is a new one to save
+     */
+    public boolean isNew() {
+      return this.toSave != null;
+    }
+
+    /**
+     * Returns true if the recipients of the notification are to be updated.
+     *
+     * @return true if the recipients of the notification are to be updated
+     */
+    public boolean isUpdate() {
+      return this.previousUsers != null;
+    }
+
+    public WorkflowNotification getToSave() {
+      return this.toSave;
+    }
+
+    public String getNotificationId() {
+      return this.notificationId;
+    }
+
+    public Set<String> getUsers() {
+      return this.users;
+    }
+
+    public Set<String> getGroups() {
+      return this.groups;
+    }
+
+    public Set<String> getPreviousUsers() {
+      return this.previousUsers;
+    }
+
+    public Set<String> getPreviousGroups() {
+      return this.previousGroups;
+    }
+
+    public Notification getNotification() {
+      return this.notification;
+    }
+
+    public void setNotification(Notification notification) {
+      this.notification = notification;
+    }
+  }
+}
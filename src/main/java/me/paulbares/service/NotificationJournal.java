@@ -0,0 +1,148 @@
+package me.paulbares.service;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records stored in a memory-mapped file. Appending a record copies it to the mapped memory:
+ * there is no system call, the operating system writes the pages to the file in the background. The records are
+ * therefore not lost if the process crashes but can be if the operating system crashes before {@link #force()}.
+ * <p>
+ * Each record is written as its length, its CRC32 and its bytes, followed by a length of 0 marking the end of the log.
+ * A torn record, for instance if the process crashed while appending it, fails its checksum and ends the log as well.
+ * The file is extended by doubling its mapped size when full. The class is not thread-safe.
+ * </p>
+ */
+public class NotificationJournal implements AutoCloseable {
+
+  /**
+   * The size of the header of each record: its length and its checksum.
+   */
+  static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+  protected final FileChannel channel;
+
+  protected MappedByteBuffer buffer;
+
+  /**
+   * Constructor. The existing records are kept, call {@link #replay(Consumer)} to read them and position the journal
+   * at their end.
+   *
+   * @param file the file of the journal, created if it does not exist
+   * @param initialSize the initial size in bytes of the file
+   * @throws IOException if the file cannot be opened or mapped
+   */
+  public NotificationJournal(Path file, int initialSize) throws IOException {
+    Preconditions.checkArgument(initialSize > RECORD_HEADER_SIZE, "initial size too small: %s", initialSize);
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(initialSize, this.channel.size()));
+  }
+
+  /**
+   * Reads the records of the journal from the beginning and positions it after the last valid one.
+   *
+   * @param consumer the consumer of the records
+   * @return the number of records read
+   */
+  public int replay(Consumer<byte[]> consumer) {
+    this.buffer.position(0);
+    CRC32 crc = new CRC32();
+    int count = 0;
+    while (this.buffer.remaining() >= RECORD_HEADER_SIZE) {
+      int start = this.buffer.position();
+      int length = this.buffer.getInt();
+      int checksum = this.buffer.getInt();
+      if (length <= 0 || length > this.buffer.remaining()) {
+        this.buffer.position(start);
+        break;
+      }
+      byte[] bytes = new byte[length];
+      this.buffer.get(bytes);
+      crc.reset();
+      crc.update(bytes);
+      if ((int) crc.getValue() != checksum) {
+        this.buffer.position(start); // torn write, overwritten by the next append
+        break;
+      }
+      consumer.accept(bytes);
+      count++;
+    }
+    if (this.buffer.remaining() >= Integer.BYTES) {
+      this.buffer.putInt(this.buffer.position(), 0);
+    }
+    return count;
+  }
+
+  /**
+   * Appends a record at the end of the journal.
+   *
+   * @param bytes the bytes of the record, not empty
+   */
+  public void append(byte[] bytes) {
+    Preconditions.checkArgument(bytes.length > 0, "empty record");
+    int needed = RECORD_HEADER_SIZE + bytes.length + Integer.BYTES;
+    if (this.buffer.remaining() < needed) {
+      grow(needed);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    int start = this.buffer.position();
+    // The end marker is written before the record so that the log never ends with stale bytes
+    this.buffer.putInt(start + RECORD_HEADER_SIZE + bytes.length, 0);
+    this.buffer.position(start + RECORD_HEADER_SIZE);
+    this.buffer.put(bytes);
+    this.buffer.putInt(start + Integer.BYTES, (int) crc.getValue());
+    this.buffer.putInt(start, bytes.length);
+  }
+
+  private void grow(int needed) {
+    long size = this.buffer.capacity();
+    long newSize = Math.max(2 * size, this.buffer.position() + (long) needed);
+    Preconditions.checkState(newSize <= Integer.MAX_VALUE, "journal too large: %s bytes", newSize);
+    int position = this.buffer.position();
+    try {
+      this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    this.buffer.position(position);
+  }
+
+  /**
+   * Discards all the records: the next one is appended at the beginning of the journal.
+   */
+  public void reset() {
+    this.buffer.putInt(0, 0);
+    this.buffer.position(0);
+  }
+
+  /**
+   * Returns the number of bytes used by the records.
+   *
+   * @return the number of bytes used by the records
+   */
+  public int size() {
+    return this.buffer.position();
+  }
+
+  /**
+   * Writes the records to the storage device.
+   */
+  public void force() {
+    this.buffer.force();
+  }
+
+  @Override
+  public void close() throws IOException {
+    force();
+    this.channel.close();
+  }
+}
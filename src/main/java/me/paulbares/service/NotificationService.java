@@ -1,10 +1,14 @@
 package me.paulbares.service;
 
 import me.paulbares.camunda.WorkflowNotification;
+import me.paulbares.camunda.WorkflowNotificationImpl;
 import me.paulbares.domain.Notification;
+import me.paulbares.domain.NotificationView;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -24,6 +28,17 @@ public interface NotificationService {
    */
   Notification saveNotificationAndRecipients(WorkflowNotification notification, Set<String> users, Set<String> groups);
 
+  /**
+   * Saves several notifications and their recipients at once. It is equivalent to calling
+   * {@link #saveNotificationAndRecipients(WorkflowNotification, Set, Set)} for each element of the list, in the same
+   * order, but it is meant to be used when a lot of notifications need to be saved, to backfill the notifications of
+   * existing tasks for instance.
+   *
+   * @param notifications the notifications to save along with the users and groups to notify.
+   * @return the saved notifications in the same order as the input list.
+   */
+  List<Notification> saveNotificationsAndRecipients(List<NotificationAndRecipients> notifications);
+
   /**
    * Marks the notification with the given id as read by the given user. Once read, this notification won't be fetched
    * when calling {@link #getUnreadAndActiveNotificationsInDescOrder(String, Collection)}.
@@ -42,6 +57,32 @@ public interface NotificationService {
    */
   void markAsRead(String userId, Collection<String> notificationIds);
 
+  /**
+   * Marks notifications as read for several users at once, see {@link #markAsRead(String, Collection)}.
+   *
+   * @param notificationIdsByUserId the ids of the notifications to mark as read indexed by user id
+   */
+  void markAsRead(Map<String, ? extends Collection<String>> notificationIdsByUserId);
+
+  /**
+   * Marks all the notifications intended to the given user as read by this user. Like
+   * {@link #markAsRead(String, Collection)}, it only concerns notifications sent directly to the user, not those sent
+   * to the groups he belongs to.
+   *
+   * @param userId the id of the user
+   */
+  void markAllAsRead(String userId);
+
+  /**
+   * Marks all the notifications intended to the given user whose {@link Notification#getId() id} is lower or equal to
+   * the given id as read by this user. It lets a client mark as read everything it has received so far without
+   * marking the notifications created in the meantime. See {@link #markAllAsRead(String)}.
+   *
+   * @param userId the id of the user
+   * @param maxNotificationId the highest {@link Notification#getId() id} of the notifications to mark as read
+   */
+  void markAllAsRead(String userId, long maxNotificationId);
+
   /**
    * Marks the notification with the given id as inactive and fills the input sets with respectively of users and groups
    * of users that need to be notified by this status change. Once inactive, a notification will not be retrieved by
@@ -55,6 +96,83 @@ public interface NotificationService {
    */
   Notification markAsInactive(String notificationId, Set<String> users, Set<String> groups);
 
+  /**
+   * Replaces the recipients of an active notification, for instance when its task is assigned, and fills the input sets
+   * with the users and groups of users it was sent to so far. None of the new recipients has read the notification.
+   * <p>
+   * The default implementation marks the notification as inactive and saves it again with the new recipients, for the
+   * implementations that accept to reuse the business id of an inactive notification.
+   * </p>
+   *
+   * @param notificationId IN - the id of the notification
+   * @param users IN - the users to notify from now on
+   * @param groups IN - the groups of users to notify from now on
+   * @param previousUsers OUT - the users the notification was sent to. It should not be null.
+   * @param previousGroups OUT - the groups of users the notification was sent to. It should not be null.
+   * @return the updated {@link Notification} or null if none has been found with this id as active
+   */
+  default Notification updateRecipients(String notificationId,
+                                        Set<String> users,
+                                        Set<String> groups,
+                                        Set<String> previousUsers,
+                                        Set<String> previousGroups) {
+    Notification inactive = markAsInactive(notificationId, previousUsers, previousGroups);
+    if (inactive == null) {
+      return null;
+    }
+    return saveNotificationAndRecipients(
+            new WorkflowNotificationImpl(inactive.getBusinessId(), inactive.getType(), inactive.getMessage()), users, groups);
+  }
+
+  /**
+   * Marks the notifications of the given entries as inactive at once. It is equivalent to calling
+   * {@link #markAsInactive(String, Set, Set)} for each entry: the users and groups of each entry are filled and its
+   * resulting notification is set, see {@link NotificationBatch.Entry#getNotification()}.
+   *
+   * @param entries the entries of the notifications to mark as inactive
+   */
+  default void markAsInactive(List<NotificationBatch.Entry> entries) {
+    for (NotificationBatch.Entry entry : entries) {
+      entry.setNotification(markAsInactive(entry.getNotificationId(), entry.getUsers(), entry.getGroups()));
+    }
+  }
+
+  /**
+   * Applies the changes of the batch: the notifications to save are saved with one call to
+   * {@link #saveNotificationsAndRecipients(List)}, then the recipients of the notifications to update are
+   * {@link #updateRecipients(String, Set, Set, Set, Set) updated} and the others are marked as inactive with one call to
+   * {@link #markAsInactive(List)}. Since a notification is always saved before being updated and updated before being
+   * marked as inactive, this gives the same result as applying the entries in order. The resulting notification of each
+   * entry is set, see {@link NotificationBatch.Entry#getNotification()}.
+   *
+   * @param batch the changes to apply
+   */
+  default void apply(NotificationBatch batch) {
+    List<NotificationBatch.Entry> newEntries = new ArrayList<>();
+    List<NotificationBatch.Entry> updateEntries = new ArrayList<>();
+    List<NotificationBatch.Entry> inactiveEntries = new ArrayList<>();
+    for (NotificationBatch.Entry entry : batch.getEntries()) {
+      (entry.isNew() ? newEntries : entry.isUpdate() ? updateEntries : inactiveEntries).add(entry);
+    }
+    if (!newEntries.isEmpty()) {
+      List<NotificationAndRecipients> toSave = new ArrayList<>(newEntries.size());
+      for (NotificationBatch.Entry entry : newEntries) {
+        toSave.add(new NotificationAndRecipients(entry.getToSave(), entry.getUsers(), entry.getGroups()));
+      }
+      List<Notification> saved = saveNotificationsAndRecipients(toSave);
+      for (int i = 0; i < saved.size(); i++) {
+        newEntries.get(i).setNotification(saved.get(i));
+      }
+    }
+    for (NotificationBatch.Entry entry : updateEntries) {
+      entry.setNotification(updateRecipients(entry.getNotificationId(), entry.getUsers(), entry.getGroups(),
+              entry.getPreviousUsers(), entry.getPreviousGroups()));
+    }
+    if (!inactiveEntries.isEmpty()) {
+      markAsInactive(inactiveEntries);
+    }
+  }
+
   /**
    * Retrieves all notifications intended to the given user and given groups of users. Only the ones marked as not read
    * and still active (see {@link #markAsRead(String, String)} and {@link #markAsInactive(String, Set, Set)} will be
@@ -65,4 +183,25 @@ public interface NotificationService {
    * @return the retrieved notifications
    */
   List<Notification> getUnreadAndActiveNotificationsInDescOrder(String userId, Collection<String> groupIds);
+
+  /**
+   * Same as {@link #getUnreadAndActiveNotificationsInDescOrder(String, Collection)} but returns immutable views of the
+   * notifications instead of entities. Implementations should read them without going through the persistence context
+   * which is much cheaper for large inboxes.
+   *
+   * @param userId the id of the user. It should not be null.
+   * @param groupIds the ids of the groups of users. It should not be null.
+   * @return the views of the retrieved notifications
+   */
+  List<NotificationView> getUnreadAndActiveNotificationViewsInDescOrder(String userId, Collection<String> groupIds);
+
+  /**
+   * Counts the notifications intended to the given user and given groups of users that are not read and still active
+   * i.e the ones that would be retrieved by {@link #getUnreadAndActiveNotificationsInDescOrder(String, Collection)}.
+   *
+   * @param userId the id of the user. It should not be null.
+   * @param groupIds the ids of the groups of users. It should not be null.
+   * @return the number of unread and active notifications
+   */
+  long countUnreadAndActiveNotifications(String userId, Collection<String> groupIds);
 }
@@ -1,28 +1,227 @@
 package me.paulbares.service;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
 import me.paulbares.camunda.WorkflowNotification;
+import me.paulbares.camunda.WorkflowNotificationImpl;
 import me.paulbares.domain.Notification;
+import me.paulbares.domain.NotificationView;
 import me.paulbares.domain.Recipient;
 import me.paulbares.repository.NotificationRepository;
 import me.paulbares.repository.RecipientRepository;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.RowMapperResultSetExtractor;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterUtils;
+import org.springframework.jdbc.core.namedparam.ParsedSql;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
+import static me.paulbares.service.Transactions.afterCommit;
+
 /**
  * Implementation of {@link NotificationService} that manages notification from a database.
  */
 public class NotificationServiceImpl implements NotificationService {
 
+  /**
+   * The maximum number of values bound to a single IN clause.
+   */
+  public static final int MAX_IN_PARAMETERS = 1000;
+
+  /**
+   * The default number of rows fetched at once by {@link #forEachUnreadAndActiveNotificationView(String, Collection, Consumer)}.
+   */
+  public static final int DEFAULT_FETCH_SIZE = 500;
+
+  /**
+   * Query marking as read the recipients of a user for the given notifications.
+   */
+  static final String MARK_AS_READ_QUERY = "UPDATE recipient r SET r.is_read = 1, r.read_at = :now"
+          + " WHERE r.user_id = :userId AND r.is_read = 0 AND r.notification_id IN"
+          + " (SELECT n.id FROM notification n WHERE n.is_active = true AND n.business_id IN :notificationIds)";
+
+  /**
+   * Query marking as read the recipient of a user for one notification. Used in JDBC batches.
+   */
+  static final String MARK_ONE_AS_READ_QUERY = "UPDATE recipient r SET r.is_read = 1, r.read_at = :now"
+          + " WHERE r.user_id = :userId AND r.is_read = 0 AND r.notification_id ="
+          + " (SELECT n.id FROM notification n WHERE n.is_active = true AND n.business_id = :notificationId)";
+
+  /**
+   * Query marking as read the recipients of a user up to a given notification id.
+   */
+  static final String MARK_ALL_AS_READ_QUERY = "UPDATE recipient r SET r.is_read = 1, r.read_at = :now"
+          + " WHERE r.user_id = :userId AND r.is_read = 0 AND r.notification_id <= :maxNotificationId";
+
+  /**
+   * Query marking a notification as inactive.
+   */
+  static final String MARK_AS_INACTIVE_QUERY = "UPDATE notification n SET n.is_active = false, n.inactivated_at = :now"
+          + " WHERE n.business_id = :notificationId";
+
+  /**
+   * Query marking several notifications as inactive.
+   */
+  static final String MARK_SEVERAL_AS_INACTIVE_QUERY = "UPDATE notification n SET n.is_active = false, n.inactivated_at = :now"
+          + " WHERE n.business_id IN :notificationIds";
+
+  /**
+   * Query reading the ids of the notifications inactive since a given instant, oldest first.
+   */
+  static final String ARCHIVABLE_IDS_QUERY = "SELECT n.id FROM notification n"
+          + " WHERE n.inactivated_at < :inactiveBefore"
+          + " ORDER BY n.inactivated_at";
+
+  /**
+   * Query copying notifications to the archive.
+   */
+  static final String ARCHIVE_NOTIFICATIONS_QUERY = "INSERT INTO notification_archive"
+          + " (id, type, message, created_at, business_id, inactivated_at, archived_at)"
+          + " SELECT n.id, n.type, n.message, n.created_at, n.business_id, n.inactivated_at, :now"
+          + " FROM notification n WHERE n.id IN :ids";
+
+  /**
+   * Query copying the recipients of notifications to the archive.
+   */
+  static final String ARCHIVE_RECIPIENTS_QUERY = "INSERT INTO recipient_archive"
+          + " (id, notification_id, user_id, group_id, is_read, read_at)"
+          + " SELECT r.id, r.notification_id, r.user_id, r.group_id, r.is_read, r.read_at"
+          + " FROM recipient r WHERE r.notification_id IN :ids";
+
+  /**
+   * Query deleting the recipients of notifications.
+   */
+  static final String DELETE_RECIPIENTS_QUERY = "DELETE FROM recipient WHERE notification_id IN :ids";
+
+  /**
+   * Query deleting notifications.
+   */
+  static final String DELETE_NOTIFICATIONS_QUERY = "DELETE FROM notification WHERE id IN :ids";
+
+  /**
+   * Query reading a notification along with its recipients.
+   */
+  static final String RECIPIENTS_QUERY = "SELECT r.user_id, r.group_id, n.type, n.message, n.created_at, n.is_active, n.business_id, n.id"
+          + " FROM recipient r"
+          + " INNER JOIN notification n ON n.id = r.notification_id"
+          + " WHERE n.business_id = :businessId";
+
+  /**
+   * Query reading several notifications along with their recipients.
+   */
+  static final String SEVERAL_RECIPIENTS_QUERY = "SELECT r.user_id, r.group_id, n.type, n.message, n.created_at, n.is_active, n.business_id, n.id"
+          + " FROM recipient r"
+          + " INNER JOIN notification n ON n.id = r.notification_id"
+          + " WHERE n.business_id IN :businessIds";
+
+  /**
+   * Query reading the highest notification id.
+   */
+  static final String MAX_ID_QUERY = "SELECT COALESCE(MAX(n.id), 0) FROM notification n";
+
+  /**
+   * Query reading the active notifications above a given id along with their recipients, see
+   * {@link #catchUp(long, Instant)}.
+   */
+  static final String CATCH_UP_SAVED_QUERY = "SELECT r.user_id, r.group_id, r.is_read, n.type, n.message, n.created_at, n.business_id, n.id"
+          + " FROM notification n"
+          + " INNER JOIN recipient r ON r.notification_id = n.id"
+          + " WHERE n.id > :watermark AND n.is_active = true"
+          + " ORDER BY n.id";
+
+  /**
+   * Query reading the active notifications up to a given id created since a given instant along with their
+   * recipients, see {@link #catchUp(long, Instant)}.
+   */
+  static final String CATCH_UP_LATE_SAVED_QUERY = "SELECT r.user_id, r.group_id, r.is_read, n.type, n.message, n.created_at, n.business_id, n.id"
+          + " FROM notification n"
+          + " INNER JOIN recipient r ON r.notification_id = n.id"
+          + " WHERE n.created_at >= :since AND n.id <= :watermark AND n.is_active = true"
+          + " ORDER BY n.id";
+
+  /**
+   * Query reading the active notifications read by their recipients since a given instant.
+   */
+  static final String CATCH_UP_READ_QUERY = "SELECT r.user_id, n.business_id"
+          + " FROM recipient r"
+          + " INNER JOIN notification n ON n.id = r.notification_id"
+          + " WHERE r.read_at >= :since AND n.is_active = true";
+
+  /**
+   * Query reading the notifications inactive since a given instant along with their recipients.
+   */
+  static final String CATCH_UP_INACTIVE_QUERY = "SELECT r.user_id, r.group_id, n.business_id"
+          + " FROM notification n"
+          + " INNER JOIN recipient r ON r.notification_id = n.id"
+          + " WHERE n.inactivated_at >= :since";
+
+  /**
+   * Query reading the business ids and creation times of the active notifications of a given type above a given
+   * business id, in order. See {@link #getActiveNotificationIds(String, String, int)}.
+   */
+  static final String ACTIVE_IDS_QUERY = "SELECT n.business_id, n.created_at FROM notification n"
+          + " WHERE n.is_active = true AND n.business_id > :after AND n.type = :type"
+          + " ORDER BY n.business_id";
+
+  /**
+   * Query reading several active notifications of a given type along with their recipients, if any. See
+   * {@link #getActiveNotifications(String, Collection)}.
+   */
+  static final String ACTIVE_RECIPIENTS_QUERY = "SELECT r.user_id, r.group_id, n.type, n.message, n.created_at, n.is_active, n.business_id, n.id"
+          + " FROM notification n"
+          + " LEFT JOIN recipient r ON r.notification_id = n.id"
+          + " WHERE n.business_id IN :businessIds AND n.is_active = true AND n.type = :type";
+
+  /**
+   * Query reading the ids of the inactive notifications among given business ids.
+   */
+  static final String INACTIVE_IDS_QUERY = "SELECT n.id FROM notification n"
+          + " WHERE n.is_active = false AND n.business_id IN :businessIds";
+
+  /**
+   * Query taking or renewing a lease of a background job, see {@link #acquireLease(String, String, Instant, Instant)}.
+   */
+  static final String ACQUIRE_LEASE_QUERY = "UPDATE job_lease SET owner = :owner, expires_at = :expiresAt"
+          + " WHERE name = :name AND (owner IS NULL OR owner = :owner OR expires_at < :now)";
+
+  /**
+   * Query releasing a lease of a background job.
+   */
+  static final String RELEASE_LEASE_QUERY = "UPDATE job_lease SET owner = NULL, expires_at = NULL WHERE name = :name AND owner = :owner";
+
   /**
    * The Entity manager.
    */
@@ -43,6 +242,55 @@ public class NotificationServiceImpl implements NotificationService {
    */
   private final Supplier<Instant> timeSupplier;
 
+  /**
+   * The counters of unread notifications of the users that requested it.
+   */
+  protected final UnreadNotificationCounter unreadCounter;
+
+  /**
+   * The cache of the recipients of the notifications recently saved.
+   */
+  protected final RecipientCache recipientCache;
+
+  /**
+   * The way the queries reading the inbox of a user are written.
+   */
+  protected final InboxQueryStrategy inboxQueryStrategy;
+
+  /**
+   * The number of rows fetched at once by {@link #forEachUnreadAndActiveNotificationView(String, Collection, Consumer)}.
+   */
+  protected int fetchSize = DEFAULT_FETCH_SIZE;
+
+  /**
+   * The replica the inboxes are read from, null to read them from the primary database.
+   */
+  protected ReadReplica readReplica;
+
+  /**
+   * Starts the read-only transactions reading the primary database when {@link #readReplica} lags, null to read it
+   * without a transaction of its own.
+   */
+  protected TransactionTemplate readOnlyTransaction;
+
+  /**
+   * Held in read mode while {@link #unreadCounter} and {@link #recipientCache} are updated with new notifications, and
+   * in write mode by {@link WarmStartSnapshot} while it copies them.
+   */
+  protected final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+  /**
+   * The highest id of the notifications given to {@link #onSave(List, List)} or caught up by
+   * {@link #catchUp(long, Instant)}.
+   */
+  protected final AtomicLong maxSavedId = new AtomicLong();
+
+  /**
+   * The number of writes applied to {@link #unreadCounter} and {@link #recipientCache} before being committed, by
+   * {@link WriteBehindNotificationService}. A checkpoint is only taken when there is none.
+   */
+  protected final AtomicInteger uncommittedWrites = new AtomicInteger();
+
   /**
    * Constructor.
    */
@@ -51,10 +299,52 @@ public class NotificationServiceImpl implements NotificationService {
           NotificationRepository notificationRepository,
           RecipientRepository recipientRepository,
           Supplier<Instant> timeSupplier) {
+    this(entityManager, notificationRepository, recipientRepository, timeSupplier, RecipientCache.DEFAULT_MAXIMUM_SIZE,
+            InboxQueryStrategy.UNION_ALL);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param recipientCacheSize the maximum number of notifications whose recipients are kept in {@link #recipientCache}
+   * @param inboxQueryStrategy the way the queries reading the inbox of a user are written. It must not be
+   *                           {@link InboxQueryStrategy#DIALECT}, use {@link InboxQueryStrategy#resolve} first.
+   */
+  public NotificationServiceImpl(
+          EntityManager entityManager,
+          NotificationRepository notificationRepository,
+          RecipientRepository recipientRepository,
+          Supplier<Instant> timeSupplier,
+          long recipientCacheSize,
+          InboxQueryStrategy inboxQueryStrategy) {
+    this(entityManager, notificationRepository, recipientRepository, timeSupplier, recipientCacheSize, inboxQueryStrategy,
+            new UnreadNotificationCounter());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param recipientCacheSize the maximum number of notifications whose recipients are kept in {@link #recipientCache}
+   * @param inboxQueryStrategy the way the queries reading the inbox of a user are written. It must not be
+   *                           {@link InboxQueryStrategy#DIALECT}, use {@link InboxQueryStrategy#resolve} first.
+   * @param unreadCounter the counters of unread notifications, empty
+   */
+  public NotificationServiceImpl(
+          EntityManager entityManager,
+          NotificationRepository notificationRepository,
+          RecipientRepository recipientRepository,
+          Supplier<Instant> timeSupplier,
+          long recipientCacheSize,
+          InboxQueryStrategy inboxQueryStrategy,
+          UnreadNotificationCounter unreadCounter) {
+    Preconditions.checkArgument(inboxQueryStrategy != InboxQueryStrategy.DIALECT, "%s must be resolved", inboxQueryStrategy);
     this.entityManager = entityManager;
     this.notificationRepository = notificationRepository;
     this.recipientRepository = recipientRepository;
     this.timeSupplier = timeSupplier;
+    this.unreadCounter = unreadCounter;
+    this.recipientCache = new RecipientCache(recipientCacheSize);
+    this.inboxQueryStrategy = inboxQueryStrategy;
   }
 
   /**
@@ -75,14 +365,201 @@ public class NotificationServiceImpl implements NotificationService {
   @Override
   @Transactional
   public Notification saveNotificationAndRecipients(WorkflowNotification workflowNotification, Set<String> users, Set<String> groups) {
-    Notification record = this.notificationRepository.save(create(workflowNotification, this.timeSupplier));
+    return saveNotificationsAndRecipients(
+            Collections.singletonList(new NotificationAndRecipients(workflowNotification, users, groups))).get(0);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Notifications and recipients are not persisted as managed entities: rows are inserted with one JDBC batch per
+   * table so the persistence context does not need to track them. Their ids are still given by the identifier
+   * generators of the entities, which allocate blocks of ids from the sequence (pooled optimizer) so only one sequence
+   * call is needed every {@link javax.persistence.SequenceGenerator#allocationSize()} ids.
+   * </p>
+   * <p>
+   * The in-memory structures are updated once the transaction is committed.
+   * </p>
+   */
+  @Override
+  @Transactional
+  public List<Notification> saveNotificationsAndRecipients(List<NotificationAndRecipients> notifications) {
+    List<Notification> records = createNotifications(notifications);
+    write(records, notifications, Collections.emptyList());
+    afterCommit(() -> onSave(records, notifications));
+    return records;
+  }
+
+  /**
+   * Creates the {@link Notification notifications} to save and gives them their ids. Nothing is inserted, see
+   * {@link #write(List, List, Collection)}. Ids are given in the order of the list.
+   *
+   * @param notifications the notifications to create
+   * @return the created notifications, in the same order
+   */
+  @Transactional
+  public List<Notification> createNotifications(List<NotificationAndRecipients> notifications) {
+    SessionImplementor session = this.entityManager.unwrap(SessionImplementor.class);
+    IdentifierGenerator notificationIdGenerator = getIdentifierGenerator(session, Notification.class);
+    List<Notification> records = new ArrayList<>(notifications.size());
+    for (NotificationAndRecipients n : notifications) {
+      Notification record = create(n.getNotification(), this.timeSupplier);
+      record.setId(((Number) notificationIdGenerator.generate(session, record)).longValue());
+      records.add(record);
+    }
+    return records;
+  }
+
+  /**
+   * Inserts the given notifications, created by {@link #createNotifications(List)}, along with their recipients then
+   * marks the notifications whose business ids are given as inactive. Only the database is modified, see
+   * {@link #onSave(List, List)}.
+   *
+   * @param records the notifications to insert
+   * @param notifications the recipients of the notifications to insert, in the same order as {@code records}
+   * @param inactiveIds the business ids of the notifications to mark as inactive
+   */
+  @Transactional
+  public void write(List<Notification> records, List<NotificationAndRecipients> notifications, Collection<String> inactiveIds) {
+    if (!records.isEmpty()) {
+      SessionImplementor session = this.entityManager.unwrap(SessionImplementor.class);
+      session.doWork(connection -> {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO notification (id, type, message, created_at, is_active, business_id) VALUES (?, ?, ?, ?, ?, ?)")) {
+          for (Notification record : records) {
+            int k = 1;
+            statement.setLong(k++, record.getId());
+            statement.setString(k++, record.getType());
+            statement.setString(k++, record.getMessage());
+            statement.setTimestamp(k++, Timestamp.from(record.getCreatedAt()));
+            statement.setBoolean(k++, record.getActive());
+            statement.setString(k++, record.getBusinessId());
+            statement.addBatch();
+          }
+          executeBatch(statement);
+        }
+      });
+      insertRecipients(records, notifications);
+    }
+
+    Instant now = this.timeSupplier.get();
+    for (List<String> chunk : Iterables.partition(inactiveIds, MAX_IN_PARAMETERS)) {
+      this.entityManager
+              .createNativeQuery(MARK_SEVERAL_AS_INACTIVE_QUERY)
+              .setParameter("notificationIds", chunk)
+              .setParameter("now", Timestamp.from(now))
+              .executeUpdate();
+    }
 
-    Iterator<Recipient> userIterator = users.stream().map(u -> new Recipient(record.getId(), u, null, (byte) 0)).iterator();
-    Iterator<Recipient> groupIterator = groups.stream().map(g -> new Recipient(record.getId(), null, g, (byte) 0)).iterator();
-    this.recipientRepository.saveAll(() -> userIterator);
-    this.recipientRepository.saveAll(() -> groupIterator);
+    onReplicatedWrite();
+  }
+
+  /**
+   * Inserts the recipients of the given notifications with one JDBC batch.
+   *
+   * @param records the notifications, already inserted
+   * @param notifications the recipients of the notifications, in the same order as {@code records}
+   */
+  protected void insertRecipients(List<Notification> records, List<NotificationAndRecipients> notifications) {
+    SessionImplementor session = this.entityManager.unwrap(SessionImplementor.class);
+    IdentifierGenerator recipientIdGenerator = getIdentifierGenerator(session, Recipient.class);
+
+    List<Recipient> recipients = new ArrayList<>();
+    for (int i = 0; i < records.size(); i++) {
+      Notification record = records.get(i);
+      for (String user : notifications.get(i).getUsers()) {
+        recipients.add(new Recipient(record.getId(), user, null, (byte) 0));
+      }
+      for (String group : notifications.get(i).getGroups()) {
+        recipients.add(new Recipient(record.getId(), null, group, (byte) 0));
+      }
+    }
+    for (Recipient recipient : recipients) {
+      recipient.setId(((Number) recipientIdGenerator.generate(session, recipient)).longValue());
+    }
+
+    session.doWork(connection -> {
+      try (PreparedStatement statement = connection.prepareStatement(
+              "INSERT INTO recipient (id, notification_id, user_id, group_id, is_read) VALUES (?, ?, ?, ?, ?)")) {
+        for (Recipient recipient : recipients) {
+          int k = 1;
+          statement.setLong(k++, recipient.getId());
+          statement.setLong(k++, recipient.getNotificationId());
+          statement.setString(k++, recipient.getUserId());
+          statement.setString(k++, recipient.getGroupId());
+          statement.setByte(k++, recipient.isRead());
+          statement.addBatch();
+        }
+        executeBatch(statement);
+      }
+    });
+  }
+
+  /**
+   * Updates {@link #unreadCounter} and {@link #recipientCache} once the given notifications are saved. The database is
+   * not modified.
+   *
+   * @param records the saved notifications
+   * @param notifications the recipients of the saved notifications, in the same order as {@code records}
+   */
+  public void onSave(List<Notification> records, List<NotificationAndRecipients> notifications) {
+    Lock lock = this.checkpointLock.readLock();
+    lock.lock();
+    try {
+      for (int i = 0; i < records.size(); i++) {
+        NotificationAndRecipients n = notifications.get(i);
+        this.unreadCounter.onSave(records.get(i), n.getUsers(), n.getGroups());
+        this.recipientCache.put(records.get(i), n.getUsers(), n.getGroups());
+        this.maxSavedId.accumulateAndGet(records.get(i).getId(), Math::max);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Updates {@link #unreadCounter} once the current transaction, if any, is committed, when the given notification is
+   * marked as inactive.
+   */
+  private void onInactive(String notificationId, Set<String> users, Set<String> groups) {
+    // Copied, the caller may reuse the sets before the transaction is committed
+    Set<String> u = new HashSet<>(users);
+    Set<String> g = new HashSet<>(groups);
+    afterCommit(() -> this.unreadCounter.onInactive(notificationId, u, g));
+  }
+
+  /**
+   * Executes the batch of the given statement. If it fails, the exception of the statement that caused the failure is
+   * thrown instead of the {@link BatchUpdateException} to keep the actual reason of the failure (a constraint violation
+   * for instance) as root cause.
+   *
+   * @param statement the statement whose batch is executed
+   * @return the update counts
+   * @throws SQLException if the batch cannot be executed
+   */
+  protected static int[] executeBatch(PreparedStatement statement) throws SQLException {
+    try {
+      return statement.executeBatch();
+    } catch (BatchUpdateException e) {
+      SQLException next = e.getNextException();
+      if (next == null) {
+        throw e;
+      }
+      next.addSuppressed(e);
+      throw next;
+    }
+  }
 
-    return record;
+  /**
+   * Gets the {@link IdentifierGenerator} Hibernate uses for the given entity so that ids given to rows inserted
+   * without the persistence context come from the same pool of ids.
+   *
+   * @param session the current session
+   * @param entityClass the class of the entity
+   * @return the {@link IdentifierGenerator} of the entity
+   */
+  protected static IdentifierGenerator getIdentifierGenerator(SessionImplementor session, Class<?> entityClass) {
+    return session.getFactory().getMetamodel().entityPersister(entityClass).getIdentifierGenerator();
   }
 
   @Override
@@ -94,50 +571,111 @@ public class NotificationServiceImpl implements NotificationService {
   /**
    * {@inheritDoc}
    * <p>
-   * Notice that since we are using hibernate, it seems there is no generic way to update a joined table so that the
-   * update is done in two steps. See this post https://stackoverflow.com/a/1293347.
+   * The recipients are updated with a single statement, the notifications being selected with a sub-query. To keep
+   * the number of bind parameters bounded, the ids are sent by chunks of {@link #MAX_IN_PARAMETERS}, one statement per
+   * chunk. The counters of unread notifications are updated once the transaction is committed.
    * </p>
    */
   @Override
   @Transactional
   public void markAsRead(String userId, Collection<String> notificationIds) {
-    List resultList = this.entityManager
-            .createNativeQuery("SELECT r.id FROM notification n"
-                    + " INNER JOIN recipient r ON n.id = r.notification_id"
-                    + " WHERE r.user_id = :userId AND n.is_active = true AND r.is_read = 0 AND n.business_id IN :notificationIds")
-            .setParameter("userId", userId)
-            .setParameter("notificationIds", notificationIds)
-            .getResultList();
-
-    Set<Long> ids = new HashSet<>(resultList.size());
-    for (Object o : resultList) {
-      ids.add(((Number) o).longValue());
-    }
-
-    if (ids.size() > 0) {
+    for (List<String> chunk : Iterables.partition(notificationIds, MAX_IN_PARAMETERS)) {
       this.entityManager
-              .createNativeQuery("UPDATE recipient r SET r.is_read = 1 WHERE r.id IN :ids")
-              .setParameter("ids", ids)
+              .createNativeQuery(MARK_AS_READ_QUERY)
+              .setParameter("userId", userId)
+              .setParameter("notificationIds", chunk)
+              .setParameter("now", Timestamp.from(this.timeSupplier.get()))
               .executeUpdate();
     }
+    List<String> read = new ArrayList<>(notificationIds);
+    afterCommit(() -> this.unreadCounter.onRead(userId, read));
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * All the recipients are updated with a single JDBC batch of {@link #MARK_ONE_AS_READ_QUERY}, one entry per user and
+   * notification.
+   * </p>
+   */
+  @Override
+  @Transactional
+  public void markAsRead(Map<String, ? extends Collection<String>> notificationIdsByUserId) {
+    SessionImplementor session = this.entityManager.unwrap(SessionImplementor.class);
+    Timestamp now = Timestamp.from(this.timeSupplier.get());
+    session.doWork(connection -> {
+      try (PreparedStatement statement = connection.prepareStatement(NamedParameterUtils.parseSqlStatementIntoString(MARK_ONE_AS_READ_QUERY))) {
+        for (Map.Entry<String, ? extends Collection<String>> e : notificationIdsByUserId.entrySet()) {
+          for (String notificationId : e.getValue()) {
+            statement.setTimestamp(1, now);
+            statement.setString(2, e.getKey());
+            statement.setString(3, notificationId);
+            statement.addBatch();
+          }
+        }
+        executeBatch(statement);
+      }
+    });
+    Map<String, List<String>> read = new HashMap<>();
+    notificationIdsByUserId.forEach((userId, notificationIds) -> read.put(userId, new ArrayList<>(notificationIds)));
+    afterCommit(() -> read.forEach(this.unreadCounter::onRead));
+  }
+
+  @Override
+  @Transactional
+  public void markAllAsRead(String userId) {
+    markAllAsRead(userId, Long.MAX_VALUE);
+  }
+
+  @Override
+  @Transactional
+  public void markAllAsRead(String userId, long maxNotificationId) {
+    this.entityManager
+            .createNativeQuery(MARK_ALL_AS_READ_QUERY)
+            .setParameter("userId", userId)
+            .setParameter("maxNotificationId", maxNotificationId)
+            .setParameter("now", Timestamp.from(this.timeSupplier.get()))
+            .executeUpdate();
+    afterCommit(() -> this.unreadCounter.onReadAll(userId, maxNotificationId));
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The changes are written in a single transaction.
+   * </p>
+   */
+  @Override
+  @Transactional
+  public void apply(NotificationBatch batch) {
+    NotificationService.super.apply(batch);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The recipients and the notification are taken from {@link #recipientCache} when possible. In that case, only one
+   * statement is executed. Otherwise, they are read from the database.
+   * </p>
+   */
   @Override
   @Transactional
   public Notification markAsInactive(String notificationId, Set<String> users, Set<String> groups) {
+    long start = System.nanoTime();
+    Instant now = this.timeSupplier.get();
     int n = this.entityManager
-            .createNativeQuery("UPDATE notification n SET n.is_active = false WHERE n.business_id = :notificationId")
+            .createNativeQuery(MARK_AS_INACTIVE_QUERY)
             .setParameter("notificationId", notificationId)
+            .setParameter("now", Timestamp.from(now))
             .executeUpdate();
     assert n == 1; // should always be 1
-
-    Notification notification = null;
     if (n > 0) {
-      List<Object[]> resultList = this.entityManager.createNativeQuery(
-              "SELECT r.user_id, r.group_id, n.type, n.message, n.created_at, n.is_active, n.business_id, n.id" +
-                      " FROM recipient r" +
-                      " INNER JOIN notification n ON n.id = r.notification_id" +
-                      " WHERE n.business_id = :businessId")
+      onReplicatedWrite();
+    }
+
+    Notification notification = n > 0 ? onInactiveFromCache(notificationId, users, groups) : null;
+    if (n > 0 && notification == null) {
+      List<Object[]> resultList = this.entityManager.createNativeQuery(RECIPIENTS_QUERY)
               .setParameter("businessId", notificationId)
               .getResultList();
       for (Object[] o : resultList) {
@@ -149,32 +687,729 @@ public class NotificationServiceImpl implements NotificationService {
         }
 
         if (notification == null) {
-          int k = 2;
-          notification = new Notification((String) o[k++],
-                  (String) o[k++],
-                  ((Timestamp) o[k++]).toInstant(),
-                  (Boolean) o[k++],
-                  (String) o[k++]);
-          notification.setId(((Number) o[k++]).longValue());
+          notification = toNotification(o);
+        }
+      }
+      onInactive(notificationId, users, groups);
+    }
+
+    this.recipientCache.recordCompletion(System.nanoTime() - start);
+    return notification;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The notifications are marked as inactive with one statement per {@link #MAX_IN_PARAMETERS} ids, and the recipients
+   * of the ones missing from {@link #recipientCache} are read with one query per {@link #MAX_IN_PARAMETERS} ids.
+   * </p>
+   */
+  @Override
+  @Transactional
+  public void markAsInactive(List<NotificationBatch.Entry> entries) {
+    long start = System.nanoTime();
+    Instant now = this.timeSupplier.get();
+    Map<String, NotificationBatch.Entry> entryById = new HashMap<>();
+    entries.forEach(entry -> entryById.putIfAbsent(entry.getNotificationId(), entry));
+    int n = 0;
+    for (List<String> chunk : Iterables.partition(entryById.keySet(), MAX_IN_PARAMETERS)) {
+      n += this.entityManager
+              .createNativeQuery(MARK_SEVERAL_AS_INACTIVE_QUERY)
+              .setParameter("notificationIds", chunk)
+              .setParameter("now", Timestamp.from(now))
+              .executeUpdate();
+    }
+
+    if (n > 0) {
+      onReplicatedWrite();
+
+      List<String> misses = new ArrayList<>();
+      for (NotificationBatch.Entry entry : entryById.values()) {
+        Notification notification = onInactiveFromCache(entry.getNotificationId(), entry.getUsers(), entry.getGroups());
+        if (notification == null) {
+          misses.add(entry.getNotificationId());
+        } else {
+          entry.setNotification(notification);
+        }
+      }
+      for (List<String> chunk : Iterables.partition(misses, MAX_IN_PARAMETERS)) {
+        List<Object[]> resultList = this.entityManager.createNativeQuery(SEVERAL_RECIPIENTS_QUERY)
+                .setParameter("businessIds", chunk)
+                .getResultList();
+        for (Object[] o : resultList) {
+          NotificationBatch.Entry entry = entryById.get((String) o[6]);
+          if (o[0] != null) {
+            entry.getUsers().add((String) o[0]);
+          }
+          if (o[1] != null) {
+            entry.getGroups().add((String) o[1]);
+          }
+          if (entry.getNotification() == null) {
+            entry.setNotification(toNotification(o));
+          }
+        }
+      }
+      for (String notificationId : misses) {
+        NotificationBatch.Entry entry = entryById.get(notificationId);
+        if (entry.getNotification() != null) {
+          onInactive(notificationId, entry.getUsers(), entry.getGroups());
+        }
+      }
+      // The other entries of a notification listed several times get the result of the first one
+      for (NotificationBatch.Entry entry : entries) {
+        NotificationBatch.Entry first = entryById.get(entry.getNotificationId());
+        if (entry != first) {
+          entry.getUsers().addAll(first.getUsers());
+          entry.getGroups().addAll(first.getGroups());
+          entry.setNotification(first.getNotification());
+        }
+      }
+    }
+
+    long elapsed = (System.nanoTime() - start) / Math.max(1, entries.size());
+    entries.forEach(entry -> this.recipientCache.recordCompletion(elapsed));
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The notification keeps its id and creation time: only its recipients are replaced, unless they are the same.
+   * </p>
+   */
+  @Override
+  @Transactional
+  public Notification updateRecipients(String notificationId,
+                                       Set<String> users,
+                                       Set<String> groups,
+                                       Set<String> previousUsers,
+                                       Set<String> previousGroups) {
+    Notification notification;
+    RecipientCache.Entry cached = this.recipientCache.get(notificationId);
+    if (cached != null) {
+      previousUsers.addAll(cached.getUsers());
+      previousGroups.addAll(cached.getGroups());
+      notification = cached.toNotification(true);
+    } else {
+      notification = null;
+      List<Object[]> resultList = this.entityManager.createNativeQuery(RECIPIENTS_QUERY)
+              .setParameter("businessId", notificationId)
+              .getResultList();
+      for (Object[] o : resultList) {
+        if (o[0] != null) {
+          previousUsers.add((String) o[0]);
+        }
+        if (o[1] != null) {
+          previousGroups.add((String) o[1]);
+        }
+        if (notification == null) {
+          notification = toNotification(o);
         }
       }
+      if (notification == null || !notification.getActive()) {
+        previousUsers.clear();
+        previousGroups.clear();
+        return null;
+      }
+    }
+    if (previousUsers.equals(users) && previousGroups.equals(groups)) {
+      return notification; // nothing changes, the read receipts are kept
+    }
+    this.recipientCache.invalidate(notificationId);
+    onInactive(notificationId, previousUsers, previousGroups);
+
+    this.entityManager.createNativeQuery(DELETE_RECIPIENTS_QUERY)
+            .setParameter("ids", Collections.singletonList(notification.getId()))
+            .executeUpdate();
+    List<Notification> records = Collections.singletonList(notification);
+    List<NotificationAndRecipients> recipients = Collections.singletonList(new NotificationAndRecipients(
+            new WorkflowNotificationImpl(notificationId, notification.getType(), notification.getMessage()), users, groups));
+    insertRecipients(records, recipients);
+    onReplicatedWrite();
+    afterCommit(() -> onSave(records, recipients));
+    return notification;
+  }
+
+  /**
+   * Advances the replication position of {@link #readReplica}, if any, when the current transaction commits so that
+   * the reads wait for the replica to apply it. See {@link ReadReplica#onWrite(java.util.function.LongSupplier)}.
+   */
+  private void onReplicatedWrite() {
+    if (this.readReplica != null) {
+      this.readReplica.onWrite(() -> {
+        this.entityManager.createNativeQuery(ReadReplica.ADVANCE_POSITION_QUERY).executeUpdate();
+        return ((Number) this.entityManager.createNativeQuery(ReadReplica.POSITION_QUERY).getSingleResult()).longValue();
+      });
     }
+  }
 
+  /**
+   * Creates a notification from a row of {@link #RECIPIENTS_QUERY}, {@link #SEVERAL_RECIPIENTS_QUERY} or
+   * {@link #ACTIVE_RECIPIENTS_QUERY}.
+   */
+  private static Notification toNotification(Object[] row) {
+    int k = 2;
+    Notification notification = new Notification((String) row[k++],
+            (String) row[k++],
+            ((Timestamp) row[k++]).toInstant(),
+            (Boolean) row[k++],
+            (String) row[k++]);
+    notification.setId(((Number) row[k++]).longValue());
     return notification;
   }
 
+  /**
+   * Updates {@link #unreadCounter} and {@link #recipientCache} when the given notification is marked as inactive if
+   * its recipients are in {@link #recipientCache}. The database is not modified.
+   *
+   * @param notificationId the business id of the notification
+   * @param users a set that will be filled with the users the notification was sent to
+   * @param groups a set that will be filled with the groups the notification was sent to
+   * @return the notification marked as inactive or null if it is not in {@link #recipientCache}
+   */
+  public Notification onInactiveFromCache(String notificationId, Set<String> users, Set<String> groups) {
+    RecipientCache.Entry cached = this.recipientCache.remove(notificationId);
+    if (cached == null) {
+      return null;
+    }
+    users.addAll(cached.getUsers());
+    groups.addAll(cached.getGroups());
+    onInactive(notificationId, users, groups);
+    return cached.toNotification(false);
+  }
+
+  /**
+   * Moves at most {@code batchSize} notifications inactive since before the given instant, oldest first, along with
+   * their recipients from the hot tables to the archive tables. See {@link NotificationArchiver}.
+   *
+   * @param inactiveBefore the notifications inactive since before this instant are archived
+   * @param batchSize the maximum number of notifications to archive. It must not be greater than
+   *                  {@link #MAX_IN_PARAMETERS}.
+   * @return the number of archived notifications
+   */
+  @Transactional
+  public int archiveInactiveNotifications(Instant inactiveBefore, int batchSize) {
+    Preconditions.checkArgument(batchSize > 0 && batchSize <= MAX_IN_PARAMETERS, "invalid batch size %s", batchSize);
+    List<Number> ids = this.entityManager.createNativeQuery(ARCHIVABLE_IDS_QUERY)
+            .setParameter("inactiveBefore", Timestamp.from(inactiveBefore))
+            .setMaxResults(batchSize)
+            .getResultList();
+    if (ids.isEmpty()) {
+      return 0;
+    }
+    return archive(ids);
+  }
+
+  /**
+   * Moves the inactive notifications among the given ones along with their recipients from the hot tables to the
+   * archive tables, for instance before saving them again because their tasks turn out to be still open. They are
+   * archived rather than deleted so that they are kept if the new notifications cannot be saved.
+   *
+   * @param businessIds the business ids of the notifications. There must be at most {@link #MAX_IN_PARAMETERS}.
+   * @return the number of archived notifications
+   */
+  @Transactional
+  public int archiveInactiveNotifications(Collection<String> businessIds) {
+    Preconditions.checkArgument(businessIds.size() <= MAX_IN_PARAMETERS, "too many notifications %s", businessIds.size());
+    if (businessIds.isEmpty()) {
+      return 0;
+    }
+    List<Number> ids = this.entityManager.createNativeQuery(INACTIVE_IDS_QUERY)
+            .setParameter("businessIds", businessIds)
+            .getResultList();
+    if (ids.isEmpty()) {
+      return 0;
+    }
+    return archive(ids);
+  }
+
+  /**
+   * Moves the given notifications along with their recipients from the hot tables to the archive tables.
+   */
+  private int archive(List<Number> ids) {
+    List<Long> longIds = new ArrayList<>(ids.size());
+    ids.forEach(id -> longIds.add(id.longValue()));
+    this.entityManager.createNativeQuery(ARCHIVE_NOTIFICATIONS_QUERY)
+            .setParameter("ids", longIds)
+            .setParameter("now", Timestamp.from(this.timeSupplier.get()))
+            .executeUpdate();
+    this.entityManager.createNativeQuery(ARCHIVE_RECIPIENTS_QUERY).setParameter("ids", longIds).executeUpdate();
+    this.entityManager.createNativeQuery(DELETE_RECIPIENTS_QUERY).setParameter("ids", longIds).executeUpdate();
+    this.entityManager.createNativeQuery(DELETE_NOTIFICATIONS_QUERY).setParameter("ids", longIds).executeUpdate();
+    return longIds.size();
+  }
+
+  /**
+   * Reads the business ids of at most {@code limit} active notifications of the given type, in the order of their
+   * business ids, starting after the given business id. It is meant to go through the active notifications page by
+   * page with a bounded memory, see {@link me.paulbares.camunda.NotificationReconciler}. The order is the one of the
+   * database: the next page must start after the last business id of the previous one.
+   *
+   * @param type the type of the notifications
+   * @param afterBusinessId the business id the page starts after, the empty string for the first page
+   * @param limit the maximum number of notifications to read
+   * @return the creation time of the notifications by business id, in the order of their business ids
+   */
+  @Transactional(readOnly = true)
+  public Map<String, Instant> getActiveNotificationIds(String type, String afterBusinessId, int limit) {
+    Preconditions.checkArgument(limit > 0, "limit must be positive but was %s", limit);
+    List<Object[]> resultList = this.entityManager.createNativeQuery(ACTIVE_IDS_QUERY)
+            .setParameter("after", afterBusinessId)
+            .setParameter("type", type)
+            .setMaxResults(limit)
+            .getResultList();
+    Map<String, Instant> createdAtByBusinessId = new LinkedHashMap<>();
+    for (Object[] o : resultList) {
+      createdAtByBusinessId.put((String) o[0], ((Timestamp) o[1]).toInstant());
+    }
+    return createdAtByBusinessId;
+  }
+
+  /**
+   * Reads the active notifications of the given type among the given ones along with their recipients.
+   *
+   * @param type the type of the notifications
+   * @param businessIds the business ids of the notifications. There must be at most {@link #MAX_IN_PARAMETERS}.
+   * @return the snapshots of the notifications and their recipients by business id
+   */
+  @Transactional(readOnly = true)
+  public Map<String, RecipientCache.Entry> getActiveNotifications(String type, Collection<String> businessIds) {
+    Preconditions.checkArgument(businessIds.size() <= MAX_IN_PARAMETERS, "too many notifications %s", businessIds.size());
+    if (businessIds.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    Map<String, Notification> notifications = new HashMap<>();
+    Map<String, Set<String>> users = new HashMap<>();
+    Map<String, Set<String>> groups = new HashMap<>();
+    List<Object[]> resultList = this.entityManager.createNativeQuery(ACTIVE_RECIPIENTS_QUERY)
+            .setParameter("businessIds", businessIds)
+            .setParameter("type", type)
+            .getResultList();
+    for (Object[] o : resultList) {
+      String businessId = (String) o[6];
+      notifications.computeIfAbsent(businessId, __ -> toNotification(o));
+      Set<String> notificationUsers = users.computeIfAbsent(businessId, __ -> new HashSet<>());
+      Set<String> notificationGroups = groups.computeIfAbsent(businessId, __ -> new HashSet<>());
+      if (o[0] != null) {
+        notificationUsers.add((String) o[0]);
+      }
+      if (o[1] != null) {
+        notificationGroups.add((String) o[1]);
+      }
+    }
+    Map<String, RecipientCache.Entry> entries = new HashMap<>();
+    notifications.forEach((businessId, notification) ->
+            entries.put(businessId, new RecipientCache.Entry(notification, users.get(businessId), groups.get(businessId))));
+    return entries;
+  }
+
+  /**
+   * Takes or renews the lease of a background job that must run on a single node at a time. The lease is granted if
+   * it is free, expired or already held by the given owner. The row of the lease is only locked for the duration of
+   * this call.
+   *
+   * @param name the name of the job, a row of the {@code job_lease} table
+   * @param owner the id of the node
+   * @param now the current time
+   * @param expiresAt the time until which the lease is held unless renewed
+   * @return true if the owner holds the lease
+   */
+  @Transactional
+  public boolean acquireLease(String name, String owner, Instant now, Instant expiresAt) {
+    return this.entityManager.createNativeQuery(ACQUIRE_LEASE_QUERY)
+            .setParameter("name", name)
+            .setParameter("owner", owner)
+            .setParameter("now", Timestamp.from(now))
+            .setParameter("expiresAt", Timestamp.from(expiresAt))
+            .executeUpdate() > 0;
+  }
+
+  /**
+   * Releases the lease of a background job if it is held by the given owner, so that another node can take it over
+   * right away.
+   *
+   * @param name the name of the job
+   * @param owner the id of the node
+   */
+  @Transactional
+  public void releaseLease(String name, String owner) {
+    this.entityManager.createNativeQuery(RELEASE_LEASE_QUERY)
+            .setParameter("name", name)
+            .setParameter("owner", owner)
+            .executeUpdate();
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * When a {@link #setReadReplica(ReadReplica) replica} is set and has caught up with the writes of this service, the
+   * notifications are read from it and are not managed. The transaction on the primary database is only started if
+   * the replica lags, see {@link #inReadOnlyTransaction(Supplier)}.
+   * </p>
+   */
   @Override
+  @Transactional(propagation = Propagation.SUPPORTS, readOnly = true)
   public List<Notification> getUnreadAndActiveNotificationsInDescOrder(String userId, Collection<String> groupIds) {
-    return this.entityManager.createNativeQuery(
-            "SELECT n.id, n.type, n.message, n.created_at, n.is_active, n.business_id" +
-                    " FROM notification n" +
-                    " INNER JOIN recipient r ON n.id = r.notification_id" +
-                    " WHERE (r.user_id = :userId OR r.group_id IN :groupIds) AND n.is_active = true" +
-                    " GROUP BY n.id" +
-                    " HAVING max(r.is_read) = 0" +  // if the max is positive, it means the user read this notification. Skip it.
-                    " ORDER BY n.created_at DESC", Notification.class)
-            .setParameter("userId", userId)
-            .setParameter("groupIds", groupIds)
+    if (this.readReplica != null && this.readReplica.awaitWatermark()) {
+      return readFromReplica(userId, groupIds, resultSet -> {
+        resultSet.setFetchSize(this.fetchSize); // a hint, the statement is created by the template
+        return new RowMapperResultSetExtractor<>((RowMapper<Notification>) (rs, i) -> {
+          Notification notification = new Notification(
+                  rs.getString(2),
+                  rs.getString(3),
+                  rs.getTimestamp(4).toInstant(),
+                  rs.getBoolean(5),
+                  rs.getString(6));
+          notification.setId(rs.getLong(1));
+          return notification;
+        }).extractData(resultSet);
+      });
+    }
+    return inReadOnlyTransaction(() -> {
+      boolean withGroups = !groupIds.isEmpty();
+      Query query = this.entityManager.createNativeQuery(this.inboxQueryStrategy.unreadAndActiveQuery(withGroups), Notification.class)
+              .setParameter("userId", userId);
+      if (withGroups) {
+        query.setParameter("groupIds", groupIds);
+      }
+      return query.getResultList();
+    });
+  }
+
+  /**
+   * Runs a read of the primary database. The read methods that may be served by {@link #readReplica} do not start a
+   * transaction, so that no connection to the primary database is held while waiting for the replica. The read is run
+   * in a read-only transaction of {@link #readOnlyTransaction} instead, once the primary database is known to be read,
+   * unless the caller already has one.
+   */
+  private <T> T inReadOnlyTransaction(Supplier<T> read) {
+    if (this.readOnlyTransaction == null || TransactionSynchronizationManager.isActualTransactionActive()) {
+      return read.get();
+    }
+    return this.readOnlyTransaction.execute(status -> read.get());
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The views are collected from {@link #forEachUnreadAndActiveNotificationView(String, Collection, Consumer)}.
+   * </p>
+   */
+  @Override
+  @Transactional(propagation = Propagation.SUPPORTS, readOnly = true)
+  public List<NotificationView> getUnreadAndActiveNotificationViewsInDescOrder(String userId, Collection<String> groupIds) {
+    List<NotificationView> views = new ArrayList<>();
+    forEachUnreadAndActiveNotificationView(userId, groupIds, views::add);
+    return views;
+  }
+
+  /**
+   * Reads the unread and active notifications intended to the given user and given groups of users, most recent
+   * first, and gives their views to the consumer as the rows are read. The rows are read with JDBC on a read-only
+   * connection, {@link #fetchSize} at a time, and mapped straight to {@link NotificationView} so no entity is created,
+   * registered in the persistence context or snapshotted for dirty checking, and the inbox is never held in memory as
+   * a whole. The transaction on the primary database is only started if the {@link #setReadReplica(ReadReplica)
+   * replica}, if any, lags, see {@link #inReadOnlyTransaction(Supplier)}.
+   *
+   * @param userId the id of the user. It should not be null.
+   * @param groupIds the ids of the groups of users. It should not be null.
+   * @param consumer the consumer of the views, called in the order of the rows
+   */
+  @Transactional(propagation = Propagation.SUPPORTS, readOnly = true)
+  public void forEachUnreadAndActiveNotificationView(String userId, Collection<String> groupIds, Consumer<NotificationView> consumer) {
+    if (this.readReplica != null && this.readReplica.awaitWatermark()) {
+      readFromReplica(userId, groupIds, (ResultSetExtractor<Void>) resultSet -> {
+        resultSet.setFetchSize(this.fetchSize); // a hint, the statement is created by the template
+        while (resultSet.next()) {
+          consumer.accept(toView(resultSet));
+        }
+        return null;
+      });
+      return;
+    }
+    MapSqlParameterSource parameters = inboxParameters(userId, groupIds);
+    ParsedSql parsedSql = NamedParameterUtils.parseSqlStatement(this.inboxQueryStrategy.unreadAndActiveQuery(!groupIds.isEmpty()));
+    String sql = NamedParameterUtils.substituteNamedParameters(parsedSql, parameters);
+    List<Object> values = new ArrayList<>();
+    for (Object value : NamedParameterUtils.buildValueArray(parsedSql, parameters, null)) {
+      if (value instanceof Collection) {
+        values.addAll((Collection<?>) value); // expanded by substituteNamedParameters
+      } else {
+        values.add(value);
+      }
+    }
+
+    inReadOnlyTransaction(() -> {
+      this.entityManager.unwrap(SessionImplementor.class).doWork(connection -> {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+          new ArgumentPreparedStatementSetter(values.toArray()).setValues(statement);
+          statement.setFetchSize(this.fetchSize);
+          try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+              consumer.accept(toView(resultSet));
+            }
+          }
+        }
+      });
+      return null;
+    });
+  }
+
+  /**
+   * Creates a view from the current row of a result set of {@link InboxQueryStrategy#unreadAndActiveQuery(boolean)}.
+   */
+  private static NotificationView toView(ResultSet resultSet) throws SQLException {
+    return new NotificationView(
+            resultSet.getLong(1),
+            resultSet.getString(2),
+            resultSet.getString(3),
+            resultSet.getTimestamp(4).toInstant(),
+            resultSet.getBoolean(5),
+            resultSet.getString(6));
+  }
+
+  /**
+   * Reads the unread and active notifications of a user from {@link #readReplica}.
+   */
+  private <T> T readFromReplica(String userId, Collection<String> groupIds, ResultSetExtractor<T> extractor) {
+    String sql = this.inboxQueryStrategy.unreadAndActiveQuery(!groupIds.isEmpty());
+    MapSqlParameterSource parameters = inboxParameters(userId, groupIds);
+    return this.readReplica.getTemplate().query(sql, parameters, extractor);
+  }
+
+  private static MapSqlParameterSource inboxParameters(String userId, Collection<String> groupIds) {
+    MapSqlParameterSource parameters = new MapSqlParameterSource("userId", userId);
+    if (!groupIds.isEmpty()) {
+      parameters.addValue("groupIds", groupIds);
+    }
+    return parameters;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The initial state of a user is always loaded from the primary database: it is kept in memory as long as the user
+   * is tracked and would not catch up with the read receipts missed by a lagging replica.
+   * </p>
+   */
+  @Override
+  public long countUnreadAndActiveNotifications(String userId, Collection<String> groupIds) {
+    return this.unreadCounter.count(userId, groupIds, (u, consumer) -> getUnreadAndActiveNotificationIds(u, groupIds, consumer));
+  }
+
+  /**
+   * Retrieves the ids of all notifications intended to the given user and given groups of users that are not
+   * read and still active. This is used to initialize {@link #unreadCounter} for this user.
+   *
+   * @param userId the id of the user. It should not be null.
+   * @param groupIds the ids of the groups of users. It should not be null.
+   * @param consumer the consumer of the retrieved notifications
+   */
+  protected void getUnreadAndActiveNotificationIds(String userId,
+                                                  Collection<String> groupIds,
+                                                  UnreadNotificationCounter.UnreadConsumer consumer) {
+    boolean withGroups = !groupIds.isEmpty();
+    Query query = this.entityManager.createNativeQuery(this.inboxQueryStrategy.unreadAndActiveIdsQuery(withGroups))
+            .setParameter("userId", userId);
+    if (withGroups) {
+      query.setParameter("groupIds", groupIds);
+    }
+    List<Object[]> resultList = query.getResultList();
+    for (Object[] o : resultList) {
+      consumer.accept(((Number) o[0]).longValue(), (String) o[1], ((Number) o[2]).intValue() > 0);
+    }
+  }
+
+  /**
+   * Brings {@link #unreadCounter} and {@link #recipientCache}, restored from a checkpoint, up to date with the
+   * database: the active notifications whose id is above {@code watermark} or created since {@code since} are added and
+   * the notifications read or marked as inactive since {@code since} are updated. The ids are not given in the order
+   * of the commits, so a notification with an id below the watermark may have been committed after the checkpoint:
+   * it is found by its creation instant, {@code since} being earlier than the checkpoint by at least the duration of a
+   * transaction. The changes are idempotent so the ones already contained in the checkpoint are harmless.
+   *
+   * @param watermark the highest id of the notifications contained in the checkpoint
+   * @param since the instant from which the changes are not all contained in the checkpoint
+   * @return the highest id of the notifications read
+   */
+  @Transactional(readOnly = true)
+  public long catchUp(long watermark, Instant since) {
+    Timestamp sinceTimestamp = Timestamp.from(since);
+    catchUpSaved(this.entityManager.createNativeQuery(CATCH_UP_LATE_SAVED_QUERY)
+            .setParameter("since", sinceTimestamp)
+            .setParameter("watermark", watermark)
+            .getResultList());
+    long maxId = Math.max(watermark, catchUpSaved(this.entityManager.createNativeQuery(CATCH_UP_SAVED_QUERY)
+            .setParameter("watermark", watermark)
+            .getResultList()));
+
+    List<Object[]> read = this.entityManager.createNativeQuery(CATCH_UP_READ_QUERY)
+            .setParameter("since", sinceTimestamp)
+            .getResultList();
+    for (Object[] o : read) {
+      this.unreadCounter.onRead((String) o[0], Collections.singleton((String) o[1]));
+    }
+
+    List<Object[]> inactive = this.entityManager.createNativeQuery(CATCH_UP_INACTIVE_QUERY)
+            .setParameter("since", sinceTimestamp)
             .getResultList();
+    Map<String, Set<String>> usersByBusinessId = new HashMap<>();
+    Map<String, Set<String>> groupsByBusinessId = new HashMap<>();
+    for (Object[] o : inactive) {
+      String businessId = (String) o[2];
+      Set<String> users = usersByBusinessId.computeIfAbsent(businessId, __ -> new HashSet<>());
+      Set<String> groups = groupsByBusinessId.computeIfAbsent(businessId, __ -> new HashSet<>());
+      if (o[0] != null) {
+        users.add((String) o[0]);
+      }
+      if (o[1] != null) {
+        groups.add((String) o[1]);
+      }
+    }
+    usersByBusinessId.forEach((businessId, users) -> {
+      this.unreadCounter.onInactive(businessId, users, groupsByBusinessId.get(businessId));
+      this.recipientCache.invalidate(businessId);
+    });
+
+    this.maxSavedId.accumulateAndGet(maxId, Math::max);
+    return maxId;
+  }
+
+  /**
+   * Adds the notifications read by {@link #CATCH_UP_SAVED_QUERY} or {@link #CATCH_UP_LATE_SAVED_QUERY} to
+   * {@link #unreadCounter} and {@link #recipientCache}.
+   *
+   * @return the highest id of the notifications, 0 if none
+   */
+  private long catchUpSaved(List<Object[]> saved) {
+    long maxId = 0;
+    for (int i = 0; i < saved.size(); ) {
+      long id = ((Number) saved.get(i)[7]).longValue();
+      Object[] first = saved.get(i);
+      Notification notification = new Notification((String) first[3], (String) first[4], ((Timestamp) first[5]).toInstant(), true, (String) first[6]);
+      notification.setId(id);
+      Set<String> users = new HashSet<>();
+      Set<String> groups = new HashSet<>();
+      List<String> readers = new ArrayList<>();
+      for (; i < saved.size() && ((Number) saved.get(i)[7]).longValue() == id; i++) {
+        Object[] o = saved.get(i);
+        if (o[0] != null) {
+          users.add((String) o[0]);
+          if (((Number) o[2]).intValue() != 0) {
+            readers.add((String) o[0]);
+          }
+        }
+        if (o[1] != null) {
+          groups.add((String) o[1]);
+        }
+      }
+      this.unreadCounter.onSave(notification, users, groups);
+      this.recipientCache.put(notification, users, groups);
+      readers.forEach(user -> this.unreadCounter.onRead(user, Collections.singleton(notification.getBusinessId())));
+      maxId = Math.max(maxId, id);
+    }
+    return maxId;
+  }
+
+  /**
+   * Sets the highest notification id known to {@link #unreadCounter} and {@link #recipientCache} to the highest id in
+   * the database, for a start without checkpoint.
+   *
+   * @return the highest notification id in the database
+   */
+  @Transactional(readOnly = true)
+  public long initMaxSavedId() {
+    long maxId = ((Number) this.entityManager.createNativeQuery(MAX_ID_QUERY).getSingleResult()).longValue();
+    return this.maxSavedId.accumulateAndGet(maxId, Math::max);
+  }
+
+  /**
+   * Returns the highest id of the notifications known to {@link #unreadCounter} and {@link #recipientCache}. The ids
+   * are not given in the order of the commits: a notification with a lower id may be committed, and known to them,
+   * later. See {@link #catchUp(long, Instant)}.
+   *
+   * @return the highest id of the notifications known to the in-memory structures
+   */
+  public long getMaxSavedId() {
+    return this.maxSavedId.get();
+  }
+
+  /**
+   * Returns the number of writes applied to {@link #unreadCounter} and {@link #recipientCache} but not committed yet.
+   * {@link WriteBehindNotificationService} increments it when it applies a queued write, while holding
+   * {@link #getCheckpointLock()} in read mode, and decrements it once the write is committed or has failed.
+   *
+   * @return the number of writes applied to the in-memory structures but not committed yet
+   */
+  public AtomicInteger getUncommittedWrites() {
+    return this.uncommittedWrites;
+  }
+
+  /**
+   * Returns the lock held in read mode by the saves, from the moment ids are given to the new notifications until the
+   * in-memory structures are updated.
+   *
+   * @return the lock excluding the saves from the checkpoints
+   */
+  public ReadWriteLock getCheckpointLock() {
+    return this.checkpointLock;
+  }
+
+  /**
+   * Returns the counters of unread notifications maintained by this service.
+   *
+   * @return the counters of unread notifications
+   */
+  public UnreadNotificationCounter getUnreadCounter() {
+    return this.unreadCounter;
+  }
+
+  /**
+   * Sets the number of rows fetched at once by {@link #forEachUnreadAndActiveNotificationView(String, Collection, Consumer)}.
+   *
+   * @param fetchSize the number of rows fetched at once. It must be positive.
+   */
+  public void setFetchSize(int fetchSize) {
+    Preconditions.checkArgument(fetchSize > 0, "fetch size must be positive but was %s", fetchSize);
+    this.fetchSize = fetchSize;
+  }
+
+  /**
+   * Sets the replica the inboxes are read from.
+   *
+   * @param readReplica the replica, null to read the inboxes from the primary database
+   */
+  public void setReadReplica(ReadReplica readReplica) {
+    this.readReplica = readReplica;
+  }
+
+  /**
+   * Sets the transaction manager of the primary database, used to read it when {@link #readReplica} lags.
+   *
+   * @param transactionManager the transaction manager of the primary database
+   */
+  public void setTransactionManager(PlatformTransactionManager transactionManager) {
+    TransactionTemplate template = new TransactionTemplate(transactionManager);
+    template.setReadOnly(true);
+    this.readOnlyTransaction = template;
+  }
+
+  /**
+   * Returns the way the queries reading the inbox of a user are written.
+   *
+   * @return the strategy used to read the inbox of a user
+   */
+  public InboxQueryStrategy getInboxQueryStrategy() {
+    return this.inboxQueryStrategy;
+  }
+
+  /**
+   * Returns the cache of recipients used by {@link #markAsInactive(String, Set, Set)}. It reports the
+   * {@link RecipientCache#hitRate() hit rate} and the {@link RecipientCache#averageCompletionMicros() latency} of the
+   * completions.
+   *
+   * @return the cache of recipients
+   */
+  public RecipientCache getRecipientCache() {
+    return this.recipientCache;
   }
 }
@@ -0,0 +1,106 @@
+package me.paulbares.service;
+
+import me.paulbares.camunda.WorkflowNotification;
+import me.paulbares.domain.Notification;
+import me.paulbares.domain.NotificationView;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Non-blocking sibling of {@link NotificationService}: the writes return a {@link CompletionStage} completed once the
+ * write is done and the inboxes are read as {@link Flow.Publisher publishers} emitting the notifications on demand.
+ * The methods return immediately, they never block the calling thread. See {@link NotificationService} for the
+ * semantics of each method.
+ */
+public interface ReactiveNotificationService {
+
+  /**
+   * See {@link NotificationService#saveNotificationAndRecipients(WorkflowNotification, Set, Set)}.
+   */
+  CompletionStage<Notification> saveNotificationAndRecipients(WorkflowNotification notification, Set<String> users, Set<String> groups);
+
+  /**
+   * See {@link NotificationService#saveNotificationsAndRecipients(List)}.
+   */
+  CompletionStage<List<Notification>> saveNotificationsAndRecipients(List<NotificationAndRecipients> notifications);
+
+  /**
+   * See {@link NotificationService#markAsRead(String, Collection)}.
+   */
+  CompletionStage<Void> markAsRead(String userId, Collection<String> notificationIds);
+
+  /**
+   * See {@link NotificationService#markAsRead(Map)}.
+   */
+  CompletionStage<Void> markAsRead(Map<String, ? extends Collection<String>> notificationIdsByUserId);
+
+  /**
+   * See {@link NotificationService#markAllAsRead(String, long)}.
+   */
+  CompletionStage<Void> markAllAsRead(String userId, long maxNotificationId);
+
+  /**
+   * See {@link NotificationService#markAsInactive(String, Set, Set)}. The given sets are filled when the returned stage
+   * completes.
+   */
+  CompletionStage<Notification> markAsInactive(String notificationId, Set<String> users, Set<String> groups);
+
+  /**
+   * See {@link NotificationService#getUnreadAndActiveNotificationsInDescOrder(String, Collection)}. The inbox is read
+   * each time a {@link Flow.Subscriber} subscribes to the returned publisher.
+   */
+  Flow.Publisher<Notification> getUnreadAndActiveNotificationsInDescOrder(String userId, Collection<String> groupIds);
+
+  /**
+   * See {@link NotificationService#getUnreadAndActiveNotificationViewsInDescOrder(String, Collection)}. The inbox is
+   * read each time a {@link Flow.Subscriber} subscribes to the returned publisher.
+   */
+  Flow.Publisher<NotificationView> getUnreadAndActiveNotificationViewsInDescOrder(String userId, Collection<String> groupIds);
+
+  /**
+   * See {@link NotificationService#countUnreadAndActiveNotifications(String, Collection)}.
+   */
+  CompletionStage<Long> countUnreadAndActiveNotifications(String userId, Collection<String> groupIds);
+
+  /**
+   * Subscribes to the given publisher and collects all the items it emits.
+   *
+   * @param publisher the publisher
+   * @param <T> the type of the items
+   * @return a stage completed with the items in the order they are emitted once the publisher completes
+   */
+  static <T> CompletionStage<List<T>> collect(Flow.Publisher<T> publisher) {
+    CompletableFuture<List<T>> result = new CompletableFuture<>();
+    publisher.subscribe(new Flow.Subscriber<>() {
+      final List<T> items = new ArrayList<>();
+
+      @Override
+      public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+      }
+
+      @Override
+      public void onNext(T item) {
+        this.items.add(item);
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        result.completeExceptionally(throwable);
+      }
+
+      @Override
+      public void onComplete() {
+        result.complete(this.items);
+      }
+    });
+    return result;
+  }
+}
@@ -0,0 +1,339 @@
+package me.paulbares.service;
+
+import com.google.common.base.Preconditions;
+import me.paulbares.camunda.WorkflowNotification;
+import me.paulbares.domain.Notification;
+import me.paulbares.domain.NotificationView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link NotificationService} aggregating the read receipts sent by the clients with
+ * {@link #markAsRead(String, Collection)}. The calls return immediately: the receipts are merged per user and written
+ * with a single call to {@link NotificationService#markAsRead(Map)} every {@link #flushIntervalMs} ms or as soon as
+ * {@link #maxPendingReceipts} receipts are pending. The pending receipts are written when the aggregator is
+ * {@link #close() closed}, the receipts given afterwards are written synchronously.
+ *
+ * <p>
+ * The in-memory state is updated optimistically: the {@link UnreadNotificationCounter counters} are updated
+ * immediately and the notifications whose receipt is pending are filtered out of the results of the reads (even those
+ * only sent to a group that will not be marked as read once written). The other methods are delegated as is, except
+ * {@link #markAllAsRead(String, long)} that writes the pending receipts first. If a write fails, its receipts stay
+ * pending and are written again with the next ones, and the counters of the users are invalidated. Once twice
+ * {@link #maxPendingReceipts} receipts are pending, because the writes fail or do not keep up, the callers write them
+ * synchronously before adding theirs, and get the failure if any. The receipts still pending when the aggregator is
+ * closed are reported as lost.
+ * </p>
+ */
+public class ReadReceiptAggregator implements NotificationService, AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReadReceiptAggregator.class);
+
+  /**
+   * The default interval in ms between two writes of the pending receipts.
+   */
+  public static final long DEFAULT_FLUSH_INTERVAL_MS = 50;
+
+  /**
+   * The default number of pending receipts triggering a write.
+   */
+  public static final int DEFAULT_MAX_PENDING_RECEIPTS = 1000;
+
+  /**
+   * The service the receipts are written to.
+   */
+  protected final NotificationService delegate;
+
+  /**
+   * The counters updated optimistically.
+   */
+  protected final UnreadNotificationCounter unreadCounter;
+
+  /**
+   * The interval in ms between two writes of the pending receipts.
+   */
+  protected final long flushIntervalMs;
+
+  /**
+   * The number of pending receipts triggering a write.
+   */
+  protected final int maxPendingReceipts;
+
+  /**
+   * The business ids of the notifications marked as read and not written yet indexed by user id. Guarded by this.
+   */
+  protected final Map<String, Set<String>> pendingReceipts = new HashMap<>();
+
+  /**
+   * The number of receipts in {@link #pendingReceipts}. Guarded by this.
+   */
+  protected int pendingCount;
+
+  /**
+   * True once {@link #close()} has been called. Guarded by this.
+   */
+  protected boolean closed;
+
+  /**
+   * True while a write triggered by {@link #maxPendingReceipts} is waiting for {@link #scheduler}, so that at most one
+   * is.
+   */
+  protected final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+  /**
+   * Lock held while writing the receipts so that they are not written twice.
+   */
+  protected final Object flushLock = new Object();
+
+  /**
+   * Writes the pending receipts periodically.
+   */
+  protected final ScheduledExecutorService scheduler;
+
+  /**
+   * Constructor.
+   *
+   * @param delegate the service the receipts are written to
+   * @param unreadCounter the counters of unread notifications of {@code delegate}
+   * @param flushIntervalMs the interval in ms between two writes of the pending receipts
+   * @param maxPendingReceipts the number of pending receipts triggering a write
+   */
+  public ReadReceiptAggregator(NotificationService delegate,
+                               UnreadNotificationCounter unreadCounter,
+                               long flushIntervalMs,
+                               int maxPendingReceipts) {
+    Preconditions.checkArgument(flushIntervalMs > 0, "flush interval must be positive but was %s", flushIntervalMs);
+    Preconditions.checkArgument(maxPendingReceipts > 0, "max pending receipts must be positive but was %s", maxPendingReceipts);
+    this.delegate = delegate;
+    this.unreadCounter = unreadCounter;
+    this.flushIntervalMs = flushIntervalMs;
+    this.maxPendingReceipts = maxPendingReceipts;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "notification-read-receipts");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.scheduler.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void markAsRead(String userId, String notificationId) {
+    markAsRead(userId, Collections.singleton(notificationId));
+  }
+
+  @Override
+  public void markAsRead(String userId, Collection<String> notificationIds) {
+    markAsRead(Collections.singletonMap(userId, notificationIds));
+  }
+
+  @Override
+  public void markAsRead(Map<String, ? extends Collection<String>> notificationIdsByUserId) {
+    boolean closed;
+    boolean overflow;
+    boolean full;
+    synchronized (this) {
+      closed = this.closed;
+      overflow = !closed && this.pendingCount >= 2 * this.maxPendingReceipts;
+      if (!closed && !overflow) {
+        for (Map.Entry<String, ? extends Collection<String>> e : notificationIdsByUserId.entrySet()) {
+          Set<String> pending = this.pendingReceipts.computeIfAbsent(e.getKey(), __ -> new HashSet<>());
+          for (String notificationId : e.getValue()) {
+            if (pending.add(notificationId)) {
+              this.pendingCount++;
+            }
+          }
+        }
+      }
+      full = this.pendingCount >= this.maxPendingReceipts;
+    }
+    if (closed) {
+      this.delegate.markAsRead(notificationIdsByUserId); // nothing would write them later
+      return;
+    }
+    if (overflow) {
+      // The writes fail or do not keep up: write the pending receipts first, the failure if any is thrown to the caller
+      flush();
+      markAsRead(notificationIdsByUserId);
+      return;
+    }
+    notificationIdsByUserId.forEach(this.unreadCounter::onRead);
+    if (full && this.flushScheduled.compareAndSet(false, true)) {
+      try {
+        this.scheduler.execute(() -> {
+          this.flushScheduled.set(false);
+          flushQuietly();
+        });
+      } catch (RejectedExecutionException e) {
+        // Closed in the meantime, the receipts are written by close
+        this.flushScheduled.set(false);
+      }
+    }
+  }
+
+  @Override
+  public void markAllAsRead(String userId) {
+    markAllAsRead(userId, Long.MAX_VALUE);
+  }
+
+  @Override
+  public void markAllAsRead(String userId, long maxNotificationId) {
+    flush(); // the pending receipts may concern notifications above maxNotificationId
+    this.delegate.markAllAsRead(userId, maxNotificationId);
+  }
+
+  @Override
+  public Notification saveNotificationAndRecipients(WorkflowNotification notification, Set<String> users, Set<String> groups) {
+    return this.delegate.saveNotificationAndRecipients(notification, users, groups);
+  }
+
+  @Override
+  public List<Notification> saveNotificationsAndRecipients(List<NotificationAndRecipients> notifications) {
+    return this.delegate.saveNotificationsAndRecipients(notifications);
+  }
+
+  @Override
+  public Notification markAsInactive(String notificationId, Set<String> users, Set<String> groups) {
+    return this.delegate.markAsInactive(notificationId, users, groups);
+  }
+
+  @Override
+  public Notification updateRecipients(String notificationId,
+                                       Set<String> users,
+                                       Set<String> groups,
+                                       Set<String> previousUsers,
+                                       Set<String> previousGroups) {
+    return this.delegate.updateRecipients(notificationId, users, groups, previousUsers, previousGroups);
+  }
+
+  @Override
+  public void markAsInactive(List<NotificationBatch.Entry> entries) {
+    this.delegate.markAsInactive(entries);
+  }
+
+  @Override
+  public void apply(NotificationBatch batch) {
+    this.delegate.apply(batch);
+  }
+
+  @Override
+  public List<Notification> getUnreadAndActiveNotificationsInDescOrder(String userId, Collection<String> groupIds) {
+    List<Notification> notifications = this.delegate.getUnreadAndActiveNotificationsInDescOrder(userId, groupIds);
+    Set<String> pending = getPendingReceipts(userId);
+    return pending.isEmpty() ? notifications : notifications.stream()
+            .filter(n -> !pending.contains(n.getBusinessId()))
+            .collect(Collectors.toList());
+  }
+
+  @Override
+  public List<NotificationView> getUnreadAndActiveNotificationViewsInDescOrder(String userId, Collection<String> groupIds) {
+    List<NotificationView> notifications = this.delegate.getUnreadAndActiveNotificationViewsInDescOrder(userId, groupIds);
+    Set<String> pending = getPendingReceipts(userId);
+    return pending.isEmpty() ? notifications : notifications.stream()
+            .filter(n -> !pending.contains(n.getBusinessId()))
+            .collect(Collectors.toList());
+  }
+
+  @Override
+  public long countUnreadAndActiveNotifications(String userId, Collection<String> groupIds) {
+    long count = this.delegate.countUnreadAndActiveNotifications(userId, groupIds);
+    Set<String> pending = getPendingReceipts(userId);
+    if (!pending.isEmpty()) {
+      // The counter may have been loaded from the database without the pending receipts.
+      this.unreadCounter.onRead(userId, pending);
+      count = this.delegate.countUnreadAndActiveNotifications(userId, groupIds);
+    }
+    return count;
+  }
+
+  /**
+   * Returns a copy of the pending receipts of the given user.
+   *
+   * @param userId the id of the user
+   * @return the business ids of the notifications marked as read by this user and not written yet
+   */
+  public synchronized Set<String> getPendingReceipts(String userId) {
+    Set<String> pending = this.pendingReceipts.get(userId);
+    return pending == null ? Collections.emptySet() : new HashSet<>(pending);
+  }
+
+  /**
+   * Writes all the pending receipts with a single call to {@link NotificationService#markAsRead(Map)}. The receipts
+   * stay pending, i.e. filtered out of the reads, until they are written. If the write fails, they stay pending and
+   * are written by the next flush.
+   */
+  public void flush() {
+    synchronized (this.flushLock) {
+      Map<String, Set<String>> receipts = new HashMap<>();
+      synchronized (this) {
+        if (this.pendingCount == 0) {
+          return;
+        }
+        this.pendingReceipts.forEach((userId, pending) -> receipts.put(userId, new HashSet<>(pending)));
+      }
+      write(receipts);
+      synchronized (this) {
+        receipts.forEach((userId, written) -> {
+          Set<String> pending = this.pendingReceipts.get(userId);
+          this.pendingCount -= pending.size();
+          pending.removeAll(written);
+          this.pendingCount += pending.size();
+          if (pending.isEmpty()) {
+            this.pendingReceipts.remove(userId);
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Stops the periodic writes and writes the pending receipts. If this last write fails, the receipts are lost.
+   */
+  @Override
+  public void close() throws InterruptedException {
+    synchronized (this) {
+      this.closed = true;
+    }
+    this.scheduler.shutdown();
+    this.scheduler.awaitTermination(1, TimeUnit.MINUTES);
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        LOGGER.error("{} read receipts of {} users are lost: {}", this.pendingCount, this.pendingReceipts.size(), this.pendingReceipts);
+      }
+      throw e;
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      // Already logged, keep the scheduled task alive.
+    }
+  }
+
+  private void write(Map<String, Set<String>> receipts) {
+    try {
+      this.delegate.markAsRead(receipts);
+    } catch (RuntimeException e) {
+      LOGGER.error("Failed to write the read receipts of {} users, they will be written again", receipts.size(), e);
+      receipts.keySet().forEach(this.unreadCounter::invalidate);
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package me.paulbares.service;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A read-only copy of the database, asynchronously replicated from the primary one, that
+ * {@link NotificationServiceImpl} reads the inboxes from.
+ * <p>
+ * Because of the replication lag, a notification committed on the primary database may not be visible yet on the
+ * replica. To keep the guarantees of {@link me.paulbares.subscription.ApproverWorkflowRegistrar}, which assumes that a
+ * notification published before a subscription is part of its initial view, the replica tracks a watermark: the
+ * replication position of the last transaction committed by this service on the primary database. The position is a
+ * counter of the {@code replication_heartbeat} table that every transaction writing notifications increments just
+ * before it commits (see {@link #onWrite(LongSupplier)}). The lock on its row orders the increments like the commits,
+ * so, as the replica applies the transactions in the order of their commits, a replica that contains a position
+ * contains all the writes committed before it. Unlike the ids or the timestamps of the notifications, the position does
+ * not depend on the allocation of the ids, the clocks of the nodes, or the order the transactions commit in.
+ * Before reading, {@link #awaitWatermark()} waits until the replica has reached the watermark. If it does not within
+ * {@link #maxWait}, the caller reads from the primary database instead.
+ * </p>
+ * <p>
+ * Notice that the read receipts are not part of the watermark: a notification marked as read may still be returned as
+ * unread while the replica lags.
+ * </p>
+ */
+public class ReadReplica implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReadReplica.class);
+
+  /**
+   * The default maximum time to wait for the replica to reach the watermark.
+   */
+  public static final String DEFAULT_MAX_WAIT = "PT0.5S";
+
+  /**
+   * Query reading the replication position, on the primary database or on the replica.
+   */
+  static final String POSITION_QUERY = "SELECT h.position FROM replication_heartbeat h WHERE h.id = 1";
+
+  /**
+   * Query incrementing the replication position on the primary database.
+   */
+  static final String ADVANCE_POSITION_QUERY = "UPDATE replication_heartbeat SET position = position + 1 WHERE id = 1";
+
+  /**
+   * The replica.
+   */
+  protected final DataSource dataSource;
+
+  /**
+   * The template executing the queries on {@link #dataSource}.
+   */
+  protected final NamedParameterJdbcTemplate template;
+
+  /**
+   * The maximum time to wait for the replica to reach the watermark.
+   */
+  protected final Duration maxWait;
+
+  /**
+   * The time between two checks of the replication progress.
+   */
+  protected final Duration pollInterval;
+
+  /**
+   * The replication position of the last transaction committed on the primary database.
+   */
+  protected final AtomicLong requiredPosition = new AtomicLong();
+
+  /**
+   * The replication position known to be reached by the replica.
+   */
+  protected volatile long replicatedPosition = -1;
+
+  /**
+   * Constructor.
+   *
+   * @param dataSource the replica
+   * @param maxWait the maximum time to wait for the replica to reach the watermark before falling back to the primary
+   *                database
+   * @param pollInterval the time between two checks of the replication progress
+   */
+  public ReadReplica(DataSource dataSource, Duration maxWait, Duration pollInterval) {
+    Preconditions.checkArgument(!maxWait.isNegative(), "max wait must not be negative but was %s", maxWait);
+    Preconditions.checkArgument(!pollInterval.isNegative() && !pollInterval.isZero(), "poll interval must be positive but was %s", pollInterval);
+    this.dataSource = dataSource;
+    this.template = new NamedParameterJdbcTemplate(dataSource);
+    this.maxWait = maxWait;
+    this.pollInterval = pollInterval;
+  }
+
+  /**
+   * Returns the template executing queries on the replica.
+   *
+   * @return the template executing queries on the replica
+   */
+  public NamedParameterJdbcTemplate getTemplate() {
+    return this.template;
+  }
+
+  /**
+   * Advances the replication position with the current transaction, that writes to the primary database: just before
+   * it commits, {@code advance} increments the position within the transaction with {@link #ADVANCE_POSITION_QUERY}
+   * and returns it, and once it is committed, the watermark is raised to this position. The position is advanced once
+   * per transaction however many times this method is called. The row is locked as late as possible so that the
+   * concurrent transactions are only serialized by their commits.
+   *
+   * @param advance increments the replication position on the primary database and returns it
+   */
+  public void onWrite(LongSupplier advance) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      this.requiredPosition.accumulateAndGet(advance.getAsLong(), Math::max);
+      return;
+    }
+    if (TransactionSynchronizationManager.hasResource(this)) {
+      return; // already registered by this transaction
+    }
+    TransactionSynchronizationManager.bindResource(this, Boolean.TRUE);
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+      private long position;
+
+      @Override
+      public void beforeCommit(boolean readOnly) {
+        this.position = advance.getAsLong();
+      }
+
+      @Override
+      public void afterCommit() {
+        ReadReplica.this.requiredPosition.accumulateAndGet(this.position, Math::max);
+      }
+
+      @Override
+      public void afterCompletion(int status) {
+        TransactionSynchronizationManager.unbindResource(ReadReplica.this);
+      }
+    });
+  }
+
+  /**
+   * Waits until the replica has applied the writes committed on the primary database before this call.
+   *
+   * @return true if the replica has reached the watermark, false if it has not within {@link #maxWait}
+   */
+  public boolean awaitWatermark() {
+    long position = this.requiredPosition.get();
+    long deadline = System.nanoTime() + this.maxWait.toNanos();
+    // Once known to be reached, the replica is not queried again until the watermark is raised.
+    while (position > this.replicatedPosition) {
+      refresh();
+      if (position <= this.replicatedPosition) {
+        break;
+      }
+      if (System.nanoTime() - deadline >= 0) {
+        LOGGER.warn("The replica has not reached position {} within {}", position, this.maxWait);
+        return false;
+      }
+      try {
+        Thread.sleep(this.pollInterval.toMillis());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads the replication position from the replica.
+   */
+  private void refresh() {
+    Number replicated = this.template.getJdbcTemplate().queryForObject(POSITION_QUERY, Number.class);
+    if (replicated != null && replicated.longValue() > this.replicatedPosition) {
+      this.replicatedPosition = replicated.longValue();
+    }
+  }
+
+  /**
+   * Closes {@link #dataSource} if it is closeable.
+   */
+  @Override
+  public void close() throws Exception {
+    if (this.dataSource instanceof AutoCloseable) {
+      ((AutoCloseable) this.dataSource).close();
+    }
+  }
+}
@@ -0,0 +1,294 @@
+package me.paulbares.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import me.paulbares.domain.Notification;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static me.paulbares.service.Snapshots.readInstant;
+import static me.paulbares.service.Snapshots.readString;
+import static me.paulbares.service.Snapshots.readStrings;
+import static me.paulbares.service.Snapshots.writeInstant;
+import static me.paulbares.service.Snapshots.writeString;
+import static me.paulbares.service.Snapshots.writeStrings;
+
+/**
+ * A bounded cache of the notifications along with their recipients indexed by {@link Notification#getBusinessId()
+ * business id}. It is filled when the notifications are saved so that marking a notification as inactive does not
+ * require to read its recipients back from the database.
+ * <p>
+ * It also records the latency of {@link NotificationService#markAsInactive(String, Set, Set)} so that the benefit of
+ * the cache can be monitored, see {@link #hitRate()} and {@link #averageCompletionMicros()}.
+ * </p>
+ */
+public class RecipientCache {
+
+  /**
+   * The default maximum number of entries.
+   */
+  public static final int DEFAULT_MAXIMUM_SIZE = 10_000;
+
+  /**
+   * The underlying cache.
+   */
+  protected final Cache<String, Entry> cache;
+
+  /**
+   * The number of recorded completions.
+   */
+  protected final LongAdder completions = new LongAdder();
+
+  /**
+   * The total time spent in recorded completions in nanoseconds.
+   */
+  protected final LongAdder completionNanos = new LongAdder();
+
+  /**
+   * Constructor.
+   *
+   * @param maximumSize the maximum number of entries
+   */
+  public RecipientCache(long maximumSize) {
+    this.cache = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .recordStats()
+            .build();
+  }
+
+  /**
+   * Puts a snapshot of the given notification and its recipients in the cache.
+   *
+   * @param notification the saved notification
+   * @param users the users the notification is sent to
+   * @param groups the groups of users the notification is sent to
+   */
+  public void put(Notification notification, Set<String> users, Set<String> groups) {
+    this.cache.put(notification.getBusinessId(), new Entry(notification, users, groups));
+  }
+
+  /**
+   * Returns the entry associated with the given business id.
+   *
+   * @param businessId the business id of the notification
+   * @return the entry or null if it is not in the cache
+   */
+  public Entry get(String businessId) {
+    return this.cache.getIfPresent(businessId);
+  }
+
+  /**
+   * Returns the entry associated with the given business id and removes it from the cache.
+   *
+   * @param businessId the business id of the notification
+   * @return the entry or null if it is not in the cache
+   */
+  public Entry remove(String businessId) {
+    Entry entry = this.cache.getIfPresent(businessId); // call getIfPresent to record a hit or a miss
+    if (entry != null) {
+      this.cache.invalidate(businessId);
+    }
+    return entry;
+  }
+
+  /**
+   * Removes the entry associated with the given business id, without recording a hit or a miss.
+   *
+   * @param businessId the business id of the notification
+   */
+  public void invalidate(String businessId) {
+    this.cache.invalidate(businessId);
+  }
+
+  /**
+   * Writes the entries in a binary format that can be read by {@link #readFrom(DataInput)}.
+   *
+   * @param out the output to write to
+   * @throws IOException if an I/O error occurs
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    for (Entry entry : this.cache.asMap().values()) {
+      out.writeBoolean(true);
+      out.writeLong(entry.id);
+      writeString(out, entry.type);
+      writeString(out, entry.message);
+      writeInstant(out, entry.createdAt);
+      writeString(out, entry.businessId);
+      writeStrings(out, entry.users);
+      writeStrings(out, entry.groups);
+    }
+    out.writeBoolean(false);
+  }
+
+  /**
+   * Puts the entries written by {@link #writeTo(DataOutput)} in the cache.
+   *
+   * @param in the input to read from
+   * @return the number of entries read
+   * @throws IOException if an I/O error occurs
+   */
+  public int readFrom(DataInput in) throws IOException {
+    int count = 0;
+    while (in.readBoolean()) {
+      long id = in.readLong();
+      Notification notification = new Notification(readString(in), readString(in), readInstant(in), true, readString(in));
+      notification.setId(id);
+      put(notification, readStrings(in), readStrings(in));
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Removes all entries.
+   */
+  public void clear() {
+    this.cache.invalidateAll();
+  }
+
+  /**
+   * Records the time spent to mark a notification as inactive.
+   *
+   * @param nanos the elapsed time in nanoseconds
+   */
+  public void recordCompletion(long nanos) {
+    this.completions.increment();
+    this.completionNanos.add(nanos);
+  }
+
+  /**
+   * Returns the statistics of the cache.
+   *
+   * @return the statistics of the cache
+   */
+  public CacheStats stats() {
+    return this.cache.stats();
+  }
+
+  /**
+   * Returns the approximate number of entries.
+   *
+   * @return the approximate number of entries
+   */
+  public long size() {
+    return this.cache.size();
+  }
+
+  /**
+   * Returns the number of notifications whose recipients were found in the cache.
+   *
+   * @return the number of hits
+   */
+  public long hitCount() {
+    return stats().hitCount();
+  }
+
+  /**
+   * Returns the number of notifications whose recipients were not in the cache.
+   *
+   * @return the number of misses
+   */
+  public long missCount() {
+    return stats().missCount();
+  }
+
+  /**
+   * Returns the ratio of the lookups that were hits.
+   *
+   * @return the hit rate, 1 if there has been no lookup
+   */
+  public double hitRate() {
+    return stats().hitRate();
+  }
+
+  /**
+   * Returns the number of recorded completions.
+   *
+   * @return the number of notifications marked as inactive
+   */
+  public long completionCount() {
+    return this.completions.sum();
+  }
+
+  /**
+   * Returns the average time spent to mark a notification as inactive in microseconds.
+   *
+   * @return the average time spent to mark a notification as inactive or 0 if none has been recorded.
+   */
+  public double averageCompletionMicros() {
+    long count = this.completions.sum();
+    return count == 0 ? 0 : this.completionNanos.sum() / (double) count / TimeUnit.MICROSECONDS.toNanos(1);
+  }
+
+  @Override
+  public String toString() {
+    CacheStats stats = stats();
+    return "RecipientCache{"
+            + "size=" + size()
+            + ", hitRate=" + stats.hitRate()
+            + ", hits=" + stats.hitCount()
+            + ", misses=" + stats.missCount()
+            + ", completions=" + completionCount()
+            + ", averageCompletionMicros=" + averageCompletionMicros()
+            + '}';
+  }
+
+  /**
+   * An immutable snapshot of a notification and its recipients.
+   */
+  public static class Entry {
+
+    final Long id;
+    final String type;
+    final String message;
+    final Instant createdAt;
+    final String businessId;
+    final Set<String> users;
+    final Set<String> groups;
+
+    Entry(Notification notification, Set<String> users, Set<String> groups) {
+      this.id = notification.getId();
+      this.type = notification.getType();
+      this.message = notification.getMessage();
+      this.createdAt = notification.getCreatedAt();
+      this.businessId = notification.getBusinessId();
+      this.users = Set.copyOf(users);
+      this.groups = Set.copyOf(groups);
+    }
+
+    /**
+     * Creates a new {@link Notification} from this snapshot.
+     *
+     * @param isActive the status of the created notification
+     * @return the created notification
+     */
+    public Notification toNotification(boolean isActive) {
+      Notification notification = new Notification(this.type, this.message, this.createdAt, isActive, this.businessId);
+      notification.setId(this.id);
+      return notification;
+    }
+
+    public String getBusinessId() {
+      return this.businessId;
+    }
+
+    public Instant getCreatedAt() {
+      return this.createdAt;
+    }
+
+    public Set<String> getUsers() {
+      return this.users;
+    }
+
+    public Set<String> getGroups() {
+      return this.groups;
+    }
+  }
+}
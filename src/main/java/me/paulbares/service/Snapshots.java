@@ -0,0 +1,68 @@
+package me.paulbares.service;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Helpers to write and read the binary snapshots of the in-memory structures, see
+ * {@link InMemoryNotificationService#writeTo(DataOutput)} and {@link WarmStartSnapshot}.
+ */
+final class Snapshots {
+
+  private Snapshots() {
+  }
+
+  static void writeString(DataOutput out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  static String readString(DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  static void writeStrings(DataOutput out, Collection<String> strings) throws IOException {
+    List<String> copy = new ArrayList<>(strings); // the collection can be concurrently modified
+    out.writeInt(copy.size());
+    for (String s : copy) {
+      writeString(out, s);
+    }
+  }
+
+  static Set<String> readStrings(DataInput in) throws IOException {
+    int size = in.readInt();
+    Set<String> strings = new HashSet<>(size);
+    for (int i = 0; i < size; i++) {
+      strings.add(readString(in));
+    }
+    return strings;
+  }
+
+  static void writeInstant(DataOutput out, Instant instant) throws IOException {
+    out.writeLong(instant.getEpochSecond());
+    out.writeInt(instant.getNano());
+  }
+
+  static Instant readInstant(DataInput in) throws IOException {
+    return Instant.ofEpochSecond(in.readLong(), in.readInt());
+  }
+}
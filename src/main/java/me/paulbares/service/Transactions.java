@@ -0,0 +1,32 @@
+package me.paulbares.service;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Helpers to keep the in-memory structures in line with the transactions of the database.
+ */
+final class Transactions {
+
+  private Transactions() {
+  }
+
+  /**
+   * Runs the given action once the current transaction is committed, or immediately if there is no transaction. The
+   * action is not run if the transaction is rolled back.
+   *
+   * @param action the action to run
+   */
+  static void afterCommit(Runnable action) {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+        @Override
+        public void afterCommit() {
+          action.run();
+        }
+      });
+    } else {
+      action.run();
+    }
+  }
+}
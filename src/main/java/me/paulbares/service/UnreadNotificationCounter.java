@@ -0,0 +1,471 @@
+package me.paulbares.service;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import me.paulbares.domain.Notification;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static me.paulbares.service.Snapshots.readString;
+import static me.paulbares.service.Snapshots.readStrings;
+import static me.paulbares.service.Snapshots.writeString;
+import static me.paulbares.service.Snapshots.writeStrings;
+
+/**
+ * Keeps track in memory of the unread and active notifications of the users whose count has been requested at least
+ * once so that the number of unread notifications can be given without querying the database.
+ * <p>
+ * A user is tracked from the first time its count is requested: the unread and active notifications are loaded once
+ * from the database, then the state is maintained by {@link #onSave(Notification, Set, Set)},
+ * {@link #onRead(String, Collection)}, {@link #onReadAll(String, long)} and {@link #onInactive(String, Set, Set)}. Each tracked user keeps the business
+ * ids of the notifications it has not read yet rather than a plain number. It makes every update idempotent and lets a
+ * change happening while the initial state is being loaded be merged safely with it.
+ * </p>
+ * <p>
+ * The number of tracked users is bounded: beyond {@link #DEFAULT_MAXIMUM_SIZE} users by default, the least recently
+ * tracked ones are evicted. A user is also tracked for at most {@link #DEFAULT_EXPIRE_AFTER_LOAD} by default, after
+ * which its state is reloaded from the database. The counters only see the changes made by the services of this node,
+ * so with several nodes sharing a database, the count of a user misses the changes made by the other nodes for at most
+ * this duration.
+ * </p>
+ * <p>
+ * Notice that, like {@link NotificationService#markAsRead(String, Collection)}, only notifications sent directly to a
+ * user can be marked as read by him. Notifications received through a group stay unread.
+ * </p>
+ */
+public class UnreadNotificationCounter {
+
+  /**
+   * The default maximum number of tracked users.
+   */
+  public static final int DEFAULT_MAXIMUM_SIZE = 10_000;
+
+  /**
+   * The default maximum time a user is tracked before its state is reloaded.
+   */
+  public static final String DEFAULT_EXPIRE_AFTER_LOAD = "PT5M";
+
+  /**
+   * The tracked users indexed by user id.
+   */
+  protected final Cache<String, Entry> entriesByUserId;
+
+  /**
+   * The ids of the tracked users indexed by group id.
+   */
+  protected final Map<String, Set<String>> userIdsByGroupId = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor with the default bounds.
+   */
+  public UnreadNotificationCounter() {
+    this(DEFAULT_MAXIMUM_SIZE, Duration.parse(DEFAULT_EXPIRE_AFTER_LOAD));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maximumSize the maximum number of tracked users
+   * @param expireAfterLoad the maximum time a user is tracked before its state is reloaded from the database
+   */
+  public UnreadNotificationCounter(long maximumSize, Duration expireAfterLoad) {
+    Preconditions.checkArgument(!expireAfterLoad.isNegative() && !expireAfterLoad.isZero(), "expire after load must be positive but was %s", expireAfterLoad);
+    // The state of an entry is only updated in place, so the time since it was written is the time since it was loaded
+    this.entriesByUserId = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(expireAfterLoad)
+            .removalListener(this::onEviction)
+            .build();
+  }
+
+  /**
+   * Returns the number of unread and active notifications intended to the given user and groups of users. If the user
+   * is not tracked yet or if it was tracked with other groups, the initial state is loaded with the given loader.
+   *
+   * @param userId the id of the user
+   * @param groupIds the ids of the groups the user belongs to
+   * @param loader the loader of the unread and active notifications intended to this user and these groups of users
+   * @return the number of unread and active notifications
+   */
+  public long count(String userId, Collection<String> groupIds, Loader loader) {
+    Entry entry = this.entriesByUserId.getIfPresent(userId);
+    if (entry != null && entry.groupIds.size() == groupIds.size() && entry.groupIds.containsAll(groupIds)) {
+      long count = entry.count();
+      // A negative count means the entry is being loaded by another thread. Do not wait for it.
+      return count >= 0 ? count : load(userId, loader).unread.size();
+    }
+
+    if (entry != null) {
+      invalidate(userId);
+    }
+    entry = new Entry(new HashSet<>(groupIds));
+    // Register the entry before loading so that changes happening in the meantime are not lost.
+    register(userId, entry);
+    try {
+      entry.load(load(userId, loader));
+    } catch (RuntimeException e) {
+      invalidate(userId);
+      throw e;
+    }
+    return entry.count();
+  }
+
+  /**
+   * Loads the state of the given user with the given loader without registering it.
+   */
+  private static Entry load(String userId, Loader loader) {
+    Entry loaded = new Entry(Collections.emptySet());
+    loader.load(userId, loaded::add);
+    return loaded;
+  }
+
+  /**
+   * Tracks the given user with the given entry.
+   */
+  private void register(String userId, Entry entry) {
+    this.entriesByUserId.put(userId, entry);
+    for (String groupId : entry.groupIds) {
+      // Within compute to be ordered with onEviction
+      this.userIdsByGroupId.compute(groupId, (__, userIds) -> {
+        Set<String> ids = userIds == null ? ConcurrentHashMap.newKeySet() : userIds;
+        ids.add(userId);
+        return ids;
+      });
+    }
+  }
+
+  /**
+   * Removes an evicted user from {@link #userIdsByGroupId} unless it has been tracked again with the group since.
+   */
+  private void onEviction(RemovalNotification<String, Entry> notification) {
+    if (!notification.wasEvicted()) {
+      return; // replaced or invalidated, see invalidate
+    }
+    String userId = notification.getKey();
+    for (String groupId : notification.getValue().groupIds) {
+      this.userIdsByGroupId.computeIfPresent(groupId, (__, userIds) -> {
+        Entry current = this.entriesByUserId.getIfPresent(userId);
+        if (current == null || !current.groupIds.contains(groupId)) {
+          userIds.remove(userId);
+        }
+        return userIds.isEmpty() ? null : userIds;
+      });
+    }
+  }
+
+  /**
+   * Updates the state of the tracked users that are recipients of a newly saved notification.
+   *
+   * @param notification the saved notification
+   * @param users the users to notify
+   * @param groups the groups of users to notify
+   */
+  public void onSave(Notification notification, Set<String> users, Set<String> groups) {
+    long notificationId = notification.getId();
+    String businessId = notification.getBusinessId();
+    for (String userId : users) {
+      Entry entry = this.entriesByUserId.getIfPresent(userId);
+      if (entry != null) {
+        entry.add(notificationId, businessId, true);
+      }
+    }
+    for (String groupId : groups) {
+      Set<String> userIds = this.userIdsByGroupId.get(groupId);
+      if (userIds != null) {
+        for (String userId : userIds) {
+          Entry entry = this.entriesByUserId.getIfPresent(userId);
+          if (entry != null && !users.contains(userId)) {
+            entry.add(notificationId, businessId, false);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Updates the state of the given user after it has read the given notifications.
+   *
+   * @param userId the id of the user
+   * @param notificationIds the business ids of the read notifications
+   */
+  public void onRead(String userId, Collection<String> notificationIds) {
+    Entry entry = this.entriesByUserId.getIfPresent(userId);
+    if (entry != null) {
+      entry.read(notificationIds);
+    }
+  }
+
+  /**
+   * Updates the state of the given user after it has read all the notifications whose id is lower or equal to the given
+   * one.
+   *
+   * @param userId the id of the user
+   * @param maxNotificationId the highest id of the read notifications
+   */
+  public void onReadAll(String userId, long maxNotificationId) {
+    Entry entry = this.entriesByUserId.getIfPresent(userId);
+    if (entry != null) {
+      entry.readAll(maxNotificationId);
+    }
+  }
+
+  /**
+   * Updates the state of the tracked users that are recipients of a notification that has been marked as inactive.
+   *
+   * @param notificationId the business id of the notification
+   * @param users the users the notification was sent to
+   * @param groups the groups of users the notification was sent to
+   */
+  public void onInactive(String notificationId, Set<String> users, Set<String> groups) {
+    for (String userId : users) {
+      Entry entry = this.entriesByUserId.getIfPresent(userId);
+      if (entry != null) {
+        entry.remove(notificationId);
+      }
+    }
+    for (String groupId : groups) {
+      Set<String> userIds = this.userIdsByGroupId.get(groupId);
+      if (userIds != null) {
+        for (String userId : userIds) {
+          Entry entry = this.entriesByUserId.getIfPresent(userId);
+          if (entry != null) {
+            entry.remove(notificationId);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops tracking the given user. Its state will be reloaded the next time its count is requested.
+   *
+   * @param userId the id of the user
+   */
+  public void invalidate(String userId) {
+    Entry entry = this.entriesByUserId.asMap().remove(userId);
+    if (entry != null) {
+      for (String groupId : entry.groupIds) {
+        this.userIdsByGroupId.computeIfPresent(groupId, (__, userIds) -> {
+          userIds.remove(userId);
+          return userIds.isEmpty() ? null : userIds;
+        });
+      }
+    }
+  }
+
+  /**
+   * Stops tracking all users.
+   */
+  public void clear() {
+    this.entriesByUserId.invalidateAll();
+    this.userIdsByGroupId.clear();
+  }
+
+  /**
+   * Writes the state of the tracked users whose initial state is loaded in a binary format that can be read by
+   * {@link #readFrom(DataInput)}.
+   *
+   * @param out the output to write to
+   * @throws IOException if an I/O error occurs
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    for (Map.Entry<String, Entry> e : this.entriesByUserId.asMap().entrySet()) {
+      e.getValue().writeTo(e.getKey(), out);
+    }
+    out.writeBoolean(false);
+  }
+
+  /**
+   * Tracks the users written by {@link #writeTo(DataOutput)}, replacing their current state if already tracked.
+   *
+   * @param in the input to read from
+   * @return the number of users read
+   * @throws IOException if an I/O error occurs
+   */
+  public int readFrom(DataInput in) throws IOException {
+    int count = 0;
+    while (in.readBoolean()) {
+      String userId = readString(in);
+      Entry entry = new Entry(readStrings(in));
+      int size = in.readInt();
+      for (int i = 0; i < size; i++) {
+        entry.add(in.readLong(), readString(in), in.readBoolean());
+      }
+      entry.removedWhileLoading = null;
+      entry.readWhileLoading = null;
+      invalidate(userId);
+      register(userId, entry);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Loads the unread and active notifications of a user.
+   */
+  @FunctionalInterface
+  public interface Loader {
+
+    /**
+     * Loads the unread and active notifications intended to the given user and the groups it belongs to.
+     *
+     * @param userId the id of the user
+     * @param consumer the consumer to call for each unread and active notification
+     */
+    void load(String userId, UnreadConsumer consumer);
+  }
+
+  /**
+   * Consumer of the unread notifications given by a {@link Loader}.
+   */
+  @FunctionalInterface
+  public interface UnreadConsumer {
+
+    /**
+     * Consumes an unread notification.
+     *
+     * @param notificationId the id of the notification
+     * @param businessId the business id of the notification
+     * @param direct true if the notification has been sent directly to the user, false if it has only been sent to one
+     * of its groups
+     */
+    void accept(long notificationId, String businessId, boolean direct);
+  }
+
+  /**
+   * The unread and active notifications of a tracked user.
+   */
+  static class Entry {
+
+    /**
+     * The groups the user belongs to.
+     */
+    final Set<String> groupIds;
+
+    /**
+     * The ids of the unread notifications indexed by business id.
+     */
+    final Map<String, Long> unread = new HashMap<>();
+
+    /**
+     * The business ids of the unread notifications that have been sent directly to the user. Only those can be read.
+     */
+    final Set<String> direct = new HashSet<>();
+
+    /**
+     * The notifications inactivated while the initial state was loading. Null once loaded.
+     */
+    Set<String> removedWhileLoading = new HashSet<>();
+
+    /**
+     * The notifications read while the initial state was loading. Null once loaded.
+     */
+    Set<String> readWhileLoading = new HashSet<>();
+
+    /**
+     * The highest notification id given to {@link #readAll(long)} while the initial state was loading.
+     */
+    long readUpToWhileLoading = -1;
+
+    Entry(Set<String> groupIds) {
+      this.groupIds = groupIds;
+    }
+
+    /**
+     * Merges the loaded state into this entry and marks it as loaded.
+     *
+     * @param loaded the loaded state
+     */
+    synchronized void load(Entry loaded) {
+      loaded.unread.forEach((businessId, notificationId) -> {
+        boolean direct = loaded.direct.contains(businessId);
+        boolean read = direct
+                && (this.readWhileLoading.contains(businessId) || notificationId <= this.readUpToWhileLoading);
+        if (!read && !this.removedWhileLoading.contains(businessId)) {
+          add(notificationId, businessId, direct);
+        }
+      });
+      this.removedWhileLoading = null;
+      this.readWhileLoading = null;
+    }
+
+    synchronized void add(long notificationId, String businessId, boolean direct) {
+      this.unread.put(businessId, notificationId);
+      if (direct) {
+        this.direct.add(businessId);
+      }
+    }
+
+    synchronized void remove(String businessId) {
+      this.unread.remove(businessId);
+      this.direct.remove(businessId);
+      if (this.removedWhileLoading != null) {
+        this.removedWhileLoading.add(businessId);
+      }
+    }
+
+    synchronized void read(Collection<String> businessIds) {
+      for (String businessId : businessIds) {
+        if (this.direct.remove(businessId)) {
+          this.unread.remove(businessId);
+        }
+        if (this.readWhileLoading != null) {
+          // Cannot know yet if it was sent directly to the user. Only the loaded state can tell.
+          this.readWhileLoading.add(businessId);
+        }
+      }
+    }
+
+    synchronized void readAll(long maxNotificationId) {
+      Iterator<String> iterator = this.direct.iterator();
+      while (iterator.hasNext()) {
+        String businessId = iterator.next();
+        if (this.unread.get(businessId) <= maxNotificationId) {
+          iterator.remove();
+          this.unread.remove(businessId);
+        }
+      }
+      if (this.readWhileLoading != null) {
+        this.readUpToWhileLoading = Math.max(this.readUpToWhileLoading, maxNotificationId);
+      }
+    }
+
+    /**
+     * Writes this entry if its initial state is loaded.
+     */
+    synchronized void writeTo(String userId, DataOutput out) throws IOException {
+      if (this.removedWhileLoading != null) {
+        return;
+      }
+      out.writeBoolean(true);
+      writeString(out, userId);
+      writeStrings(out, this.groupIds);
+      out.writeInt(this.unread.size());
+      for (Map.Entry<String, Long> e : this.unread.entrySet()) {
+        out.writeLong(e.getValue());
+        writeString(out, e.getKey());
+        out.writeBoolean(this.direct.contains(e.getKey()));
+      }
+    }
+
+    /**
+     * Returns the number of unread notifications or -1 if the initial state is not loaded yet.
+     */
+    synchronized long count() {
+      return this.removedWhileLoading == null ? this.unread.size() : -1;
+    }
+  }
+}
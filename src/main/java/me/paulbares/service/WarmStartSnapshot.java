@@ -0,0 +1,250 @@
+package me.paulbares.service;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+
+import static me.paulbares.service.Snapshots.readInstant;
+import static me.paulbares.service.Snapshots.writeInstant;
+
+/**
+ * Periodically checkpoints the in-memory structures of a {@link NotificationServiceImpl}, the
+ * {@link UnreadNotificationCounter unread counters} of the tracked users and the {@link RecipientCache recipients} of the
+ * active notifications, to a binary file so that a restarted node does not rebuild them from the database while all
+ * its clients reconnect.
+ * <p>
+ * A checkpoint is tagged with the highest notification id it contains, the watermark, and the instant it was taken.
+ * On {@link #start()}, the last checkpoint is loaded and {@link NotificationServiceImpl#catchUp(long, Instant)} reads
+ * from the database only the notifications above the watermark, and the notifications, receipts and inactivations
+ * since the checkpoint minus {@link #catchUpMargin}, a bound of the duration of the transactions. Checkpoints older than
+ * {@link #maxAge} are ignored: the structures are then loaded lazily from the database as without checkpoint.
+ * </p>
+ * <p>
+ * The ids are not given in the order of the commits: a notification whose id is below the watermark may be committed
+ * after the checkpoint. The catch-up also reads the notifications created since the checkpoint minus
+ * {@link #catchUpMargin} to find them.
+ * </p>
+ * <p>
+ * A checkpoint only contains committed changes: the structures are updated once the transactions commit, and the
+ * writes of {@link WriteBehindNotificationService} applied to them before being committed are waited for, see
+ * {@link NotificationServiceImpl#getUncommittedWrites()}. The saves are blocked while the structures are copied to
+ * memory, which takes a few milliseconds plus, with write-behind, the time to commit the queued writes. The copy is
+ * written to the file once they are unblocked. Like the structures themselves, a checkpoint only accounts for the
+ * notifications saved by this node.
+ * </p>
+ */
+public class WarmStartSnapshot implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WarmStartSnapshot.class);
+
+  /**
+   * The version of the format of the checkpoints.
+   */
+  static final int VERSION = 1;
+
+  /**
+   * The default maximum age of a checkpoint to be loaded.
+   */
+  public static final String DEFAULT_MAX_AGE = "PT1H";
+
+  /**
+   * The maximum time a checkpoint waits for the uncommitted writes applied to the structures.
+   */
+  static final Duration MAX_COMMIT_WAIT = Duration.ofSeconds(1);
+
+  protected final NotificationServiceImpl service;
+
+  /**
+   * The checkpoint file.
+   */
+  protected final Path file;
+
+  /**
+   * The time between two checkpoints.
+   */
+  protected final Duration interval;
+
+  /**
+   * The maximum age of a checkpoint to be loaded.
+   */
+  protected final Duration maxAge;
+
+  /**
+   * The maximum duration of a transaction reading or inactivating notifications.
+   */
+  protected final Duration catchUpMargin;
+
+  /**
+   * Instant supplier to get the current instant. It is for test purpose.
+   */
+  private final Supplier<Instant> timeSupplier;
+
+  /**
+   * Takes the checkpoints, null until {@link #start()} is called.
+   */
+  protected ScheduledExecutorService scheduler;
+
+  /**
+   * Constructor.
+   */
+  public WarmStartSnapshot(NotificationServiceImpl service,
+                           Path file,
+                           Duration interval,
+                           Duration maxAge,
+                           Duration catchUpMargin,
+                           Supplier<Instant> timeSupplier) {
+    Preconditions.checkArgument(!catchUpMargin.isNegative(), "catch-up margin must not be negative but was %s", catchUpMargin);
+    this.service = service;
+    this.file = file;
+    this.interval = interval;
+    this.maxAge = maxAge;
+    this.catchUpMargin = catchUpMargin;
+    this.timeSupplier = timeSupplier;
+  }
+
+  /**
+   * Restores the last checkpoint then schedules a checkpoint every {@link #interval}.
+   *
+   * @throws IOException if the checkpoint cannot be read
+   */
+  public synchronized void start() throws IOException {
+    Preconditions.checkState(this.scheduler == null, "already started");
+    restore();
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "notification-checkpoint");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long millis = this.interval.toMillis();
+    this.scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        checkpoint();
+      } catch (IOException | RuntimeException e) {
+        LOGGER.error("Failed to checkpoint the notifications to " + this.file, e);
+      }
+    }, millis, millis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Loads the last checkpoint, if any and not older than {@link #maxAge}, into the in-memory structures of the service
+   * and catches up with the database.
+   *
+   * @return true if a checkpoint has been loaded
+   * @throws IOException if the checkpoint cannot be read
+   */
+  public boolean restore() throws IOException {
+    long start = System.nanoTime();
+    if (!Files.exists(this.file)) {
+      this.service.initMaxSavedId();
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.file), 1 << 16))) {
+      int version = in.readInt();
+      Instant checkpointedAt = readInstant(in);
+      long watermark = in.readLong();
+      if (version != VERSION || checkpointedAt.isBefore(this.timeSupplier.get().minus(this.maxAge))) {
+        LOGGER.info("Checkpoint {} of {} ignored", this.file, checkpointedAt);
+        this.service.initMaxSavedId();
+        return false;
+      }
+      int users = this.service.getUnreadCounter().readFrom(in);
+      int notifications = this.service.getRecipientCache().readFrom(in);
+      // The database stores timestamps with a lower precision
+      Instant since = checkpointedAt.minus(this.catchUpMargin).truncatedTo(ChronoUnit.MILLIS);
+      long maxId = this.service.catchUp(watermark, since);
+      LOGGER.info("Checkpoint of {} users and {} notifications up to id {} restored and caught up to id {} in {} ms",
+              users, notifications, watermark, maxId, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      return true;
+    }
+  }
+
+  /**
+   * Writes the in-memory structures of the service to a new checkpoint file. The saves are blocked while the
+   * uncommitted writes are waited for and the structures are copied to memory, not while the file is written.
+   *
+   * @return the watermark of the checkpoint
+   * @throws IOException if the checkpoint cannot be written or the uncommitted writes are not committed within
+   *                     {@link #MAX_COMMIT_WAIT}
+   */
+  public long checkpoint() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+    DataOutputStream out = new DataOutputStream(bytes);
+    long watermark;
+    Lock lock = this.service.getCheckpointLock().writeLock();
+    lock.lock();
+    try {
+      awaitUncommittedWrites();
+      Instant now = this.timeSupplier.get();
+      watermark = this.service.getMaxSavedId();
+      out.writeInt(VERSION);
+      writeInstant(out, now);
+      out.writeLong(watermark);
+      this.service.getUnreadCounter().writeTo(out);
+      this.service.getRecipientCache().writeTo(out);
+      out.flush();
+    } finally {
+      lock.unlock();
+    }
+
+    Path tmp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      bytes.writeTo(Channels.newOutputStream(channel));
+      channel.force(true);
+    }
+    Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return watermark;
+  }
+
+  /**
+   * Waits until the writes applied to the structures before being committed are committed or have failed. No new one
+   * can start since the checkpoint lock is held.
+   */
+  private void awaitUncommittedWrites() throws IOException {
+    long deadline = System.nanoTime() + MAX_COMMIT_WAIT.toNanos();
+    while (this.service.getUncommittedWrites().get() > 0) {
+      if (System.nanoTime() - deadline >= 0) {
+        throw new IOException(this.service.getUncommittedWrites().get() + " writes still not committed after " + MAX_COMMIT_WAIT);
+      }
+      try {
+        Thread.sleep(1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the uncommitted writes");
+      }
+    }
+  }
+
+  /**
+   * Stops the checkpoints and takes a last one.
+   */
+  @Override
+  public synchronized void close() throws IOException, InterruptedException {
+    if (this.scheduler != null) {
+      this.scheduler.shutdownNow();
+      this.scheduler.awaitTermination(1, TimeUnit.MINUTES);
+      this.scheduler = null;
+      checkpoint();
+    }
+  }
+}
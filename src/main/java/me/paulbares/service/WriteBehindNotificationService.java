@@ -0,0 +1,491 @@
+package me.paulbares.service;
+
+import com.google.common.base.Preconditions;
+import me.paulbares.camunda.WorkflowNotification;
+import me.paulbares.domain.Notification;
+import me.paulbares.domain.NotificationView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link NotificationService} that does not write the new notifications and the inactivations to the database in
+ * the calling thread (within the transaction of the workflow engine) but appends them to an in-memory queue. A
+ * background thread drains the queue and writes its content with one transaction per batch (group commit) with
+ * {@link NotificationServiceImpl#write(List, List, Collection)}.
+ *
+ * <p>
+ * Consistency contract:
+ * <ul>
+ *   <li>Ids are given when a notification is queued so that the notifications returned by
+ *   {@link #saveNotificationAndRecipients(WorkflowNotification, Set, Set)} can be published immediately. Concurrent
+ *   saves give their ids and queue their writes in parallel but a flush waits for the saves in progress, see
+ *   {@link #queueLock}: every notification whose id is given before a flush is queued before it.</li>
+ *   <li>The in-memory state of the delegate (unread counters and recipient cache) is updated when the write is queued.
+ *   </li>
+ *   <li>Every other method, in particular the reads, first waits for all the writes queued before the call to be
+ *   committed. A read therefore sees every notification queued before it. Since a notification queued after it has a
+ *   greater id, the watermark computed by
+ *   {@link me.paulbares.subscription.ApproverWorkflowRegistrar#subscribe(me.paulbares.user.CamundaUserDetails,
+ *   me.paulbares.subscription.Subscriber)} stays correct: notifications are neither missed nor sent twice.</li>
+ *   <li>The durability of the writes depends on {@link Durability}.</li>
+ * </ul>
+ * </p>
+ */
+public class WriteBehindNotificationService implements NotificationService, AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindNotificationService.class);
+
+  /**
+   * The default maximum time in ms a write waits in the queue before being written.
+   */
+  public static final long DEFAULT_MAX_DELAY_MS = 10;
+
+  /**
+   * The default maximum number of writes in a batch.
+   */
+  public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+  /**
+   * Defines when the writing methods return.
+   */
+  public enum Durability {
+
+    /**
+     * The methods return as soon as the write is queued. Writes not committed yet are lost if the application stops
+     * abruptly and failed writes are only logged.
+     */
+    QUEUED,
+
+    /**
+     * The methods return once the batch containing the write is committed. Failures are thrown to the caller.
+     */
+    COMMITTED
+  }
+
+  /**
+   * The service actually writing to the database.
+   */
+  protected final NotificationServiceImpl delegate;
+
+  /**
+   * When the writing methods return.
+   */
+  protected final Durability durability;
+
+  /**
+   * The maximum time in ns a write waits in the queue before being written.
+   */
+  protected final long maxDelayNanos;
+
+  /**
+   * The maximum number of writes in a batch.
+   */
+  protected final int maxBatchSize;
+
+  /**
+   * The writes waiting to be written.
+   */
+  protected final BlockingQueue<Operation> queue = new LinkedBlockingQueue<>();
+
+  /**
+   * Held in read mode to give ids to new notifications and queue writes, and in write mode to queue the barriers of
+   * {@link #flush()} and to close the service. Saves run concurrently but never across a barrier: since ids are given
+   * in increasing order, a notification queued after a barrier has a greater id than every notification queued before.
+   */
+  protected final ReadWriteLock queueLock = new ReentrantReadWriteLock();
+
+  /**
+   * The number of writes queued and not written yet.
+   */
+  protected final AtomicInteger pendingWrites = new AtomicInteger();
+
+  /**
+   * The thread writing the batches.
+   */
+  protected final Thread writer;
+
+  /**
+   * False once {@link #close()} has been called.
+   */
+  protected volatile boolean running = true;
+
+  /**
+   * Constructor.
+   *
+   * @param delegate the service actually writing to the database
+   * @param durability when the writing methods return
+   * @param maxDelayMs the maximum time in ms a write waits in the queue before being written
+   * @param maxBatchSize the maximum number of writes in a batch
+   */
+  public WriteBehindNotificationService(NotificationServiceImpl delegate, Durability durability, long maxDelayMs, int maxBatchSize) {
+    Preconditions.checkArgument(maxDelayMs >= 0, "max delay must be positive but was %s", maxDelayMs);
+    Preconditions.checkArgument(maxBatchSize > 0, "max batch size must be positive but was %s", maxBatchSize);
+    this.delegate = delegate;
+    this.durability = durability;
+    this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+    this.maxBatchSize = maxBatchSize;
+    this.writer = new Thread(this::run, "notification-write-behind");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  @Override
+  public Notification saveNotificationAndRecipients(WorkflowNotification notification, Set<String> users, Set<String> groups) {
+    return saveNotificationsAndRecipients(
+            Collections.singletonList(new NotificationAndRecipients(notification, users, groups))).get(0);
+  }
+
+  @Override
+  public List<Notification> saveNotificationsAndRecipients(List<NotificationAndRecipients> notifications) {
+    Save save;
+    Lock lock = this.delegate.getCheckpointLock().readLock();
+    Lock queueLock = this.queueLock.readLock();
+    lock.lock();
+    queueLock.lock();
+    try {
+      checkRunning();
+      save = new Save(this.delegate.createNotifications(notifications), notifications);
+      this.queue.add(save);
+      this.pendingWrites.incrementAndGet();
+      this.delegate.getUncommittedWrites().incrementAndGet();
+      this.delegate.onSave(save.records, notifications);
+    } finally {
+      queueLock.unlock();
+      lock.unlock();
+    }
+    await(save);
+    return save.records;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * If the recipients of the notification are not in {@link NotificationServiceImpl#getRecipientCache()}, the pending
+   * writes are flushed and the notification is marked as inactive synchronously.
+   * </p>
+   */
+  @Override
+  public Notification markAsInactive(String notificationId, Set<String> users, Set<String> groups) {
+    Inactivate inactivate = new Inactivate(notificationId);
+    Notification notification;
+    Lock lock = this.delegate.getCheckpointLock().readLock();
+    Lock queueLock = this.queueLock.readLock();
+    lock.lock();
+    queueLock.lock();
+    try {
+      checkRunning();
+      notification = this.delegate.onInactiveFromCache(notificationId, users, groups);
+      if (notification != null) {
+        this.queue.add(inactivate);
+        this.pendingWrites.incrementAndGet();
+        this.delegate.getUncommittedWrites().incrementAndGet();
+      }
+    } finally {
+      queueLock.unlock();
+      lock.unlock();
+    }
+    if (notification == null) {
+      flush();
+      return this.delegate.markAsInactive(notificationId, users, groups);
+    }
+    await(inactivate);
+    return notification;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The pending writes are flushed and the recipients are updated synchronously.
+   * </p>
+   */
+  @Override
+  public Notification updateRecipients(String notificationId,
+                                       Set<String> users,
+                                       Set<String> groups,
+                                       Set<String> previousUsers,
+                                       Set<String> previousGroups) {
+    flush();
+    return this.delegate.updateRecipients(notificationId, users, groups, previousUsers, previousGroups);
+  }
+
+  @Override
+  public void markAsRead(String userId, String notificationId) {
+    flush();
+    this.delegate.markAsRead(userId, notificationId);
+  }
+
+  @Override
+  public void markAsRead(String userId, Collection<String> notificationIds) {
+    flush();
+    this.delegate.markAsRead(userId, notificationIds);
+  }
+
+  @Override
+  public void markAsRead(Map<String, ? extends Collection<String>> notificationIdsByUserId) {
+    flush();
+    this.delegate.markAsRead(notificationIdsByUserId);
+  }
+
+  @Override
+  public void markAllAsRead(String userId) {
+    flush();
+    this.delegate.markAllAsRead(userId);
+  }
+
+  @Override
+  public void markAllAsRead(String userId, long maxNotificationId) {
+    flush();
+    this.delegate.markAllAsRead(userId, maxNotificationId);
+  }
+
+  @Override
+  public List<Notification> getUnreadAndActiveNotificationsInDescOrder(String userId, Collection<String> groupIds) {
+    flush();
+    return this.delegate.getUnreadAndActiveNotificationsInDescOrder(userId, groupIds);
+  }
+
+  @Override
+  public List<NotificationView> getUnreadAndActiveNotificationViewsInDescOrder(String userId, Collection<String> groupIds) {
+    flush();
+    return this.delegate.getUnreadAndActiveNotificationViewsInDescOrder(userId, groupIds);
+  }
+
+  @Override
+  public long countUnreadAndActiveNotifications(String userId, Collection<String> groupIds) {
+    flush();
+    return this.delegate.countUnreadAndActiveNotifications(userId, groupIds);
+  }
+
+  /**
+   * Waits until all the writes queued before this call are committed (or failed).
+   */
+  public void flush() {
+    Operation barrier = new Operation();
+    Lock queueLock = this.queueLock.writeLock();
+    queueLock.lock();
+    try {
+      if (!this.running && this.queue.isEmpty()) {
+        return; // nothing can be pending
+      }
+      this.queue.add(barrier);
+    } finally {
+      queueLock.unlock();
+    }
+    barrier.future.join();
+  }
+
+  /**
+   * Returns the number of writes queued and not written yet.
+   *
+   * @return the number of writes queued and not written yet
+   */
+  public int pendingWrites() {
+    return this.pendingWrites.get();
+  }
+
+  /**
+   * Writes the pending writes and stops the background thread. The writing methods cannot be called afterwards.
+   */
+  @Override
+  public void close() throws InterruptedException {
+    Lock queueLock = this.queueLock.writeLock();
+    queueLock.lock();
+    try {
+      this.running = false;
+      this.queue.add(new Operation()); // wakes the writer up if it is waiting for more writes
+    } finally {
+      queueLock.unlock();
+    }
+    this.writer.join();
+  }
+
+  private void checkRunning() {
+    if (!this.running) {
+      throw new IllegalStateException("The service is closed");
+    }
+  }
+
+  /**
+   * Waits for the given write to be committed if required by {@link #durability}.
+   */
+  private void await(Operation operation) {
+    if (this.durability == Durability.COMMITTED) {
+      try {
+        operation.future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CompletionException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new CompletionException(e.getCause());
+      }
+    }
+  }
+
+  /**
+   * The loop of {@link #writer}. It takes the first write of the queue and waits for more writes until
+   * {@link #maxBatchSize} writes are taken, the first write has waited {@link #maxDelayNanos} or someone waits for
+   * the queue to be flushed.
+   */
+  private void run() {
+    List<Operation> batch = new ArrayList<>();
+    while (this.running || !this.queue.isEmpty()) {
+      Operation operation;
+      try {
+        operation = this.queue.poll(100, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        continue; // the thread only stops once closed and the queue is empty
+      }
+      if (operation == null) {
+        continue;
+      }
+      batch.add(operation);
+      long deadline = System.nanoTime() + this.maxDelayNanos;
+      try {
+        while (batch.size() < this.maxBatchSize && operation.getClass() != Operation.class) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0 || (operation = this.queue.poll(remaining, TimeUnit.NANOSECONDS)) == null) {
+            break;
+          }
+          batch.add(operation);
+        }
+      } catch (InterruptedException e) {
+        // The writes taken off the queue are already applied to the in-memory state, write them now
+      }
+      write(batch);
+      batch.clear();
+    }
+  }
+
+  /**
+   * Writes the given batch in one transaction and completes the futures of its operations. If the transaction fails,
+   * the writes of the batch are retried one by one so that only the failing ones are reported as failed.
+   */
+  private void write(List<Operation> batch) {
+    List<Notification> records = new ArrayList<>();
+    List<NotificationAndRecipients> notifications = new ArrayList<>();
+    List<String> inactiveIds = new ArrayList<>();
+    int writes = 0;
+    for (Operation operation : batch) {
+      if (operation.getClass() != Operation.class) {
+        writes++;
+      }
+      if (operation instanceof Save) {
+        records.addAll(((Save) operation).records);
+        notifications.addAll(((Save) operation).notifications);
+      } else if (operation instanceof Inactivate) {
+        inactiveIds.add(((Inactivate) operation).businessId);
+      }
+    }
+
+    boolean failed = false;
+    if (!records.isEmpty() || !inactiveIds.isEmpty()) {
+      try {
+        // Inserts come before the updates, a notification is always inactivated after it has been saved.
+        this.delegate.write(records, notifications, inactiveIds);
+      } catch (RuntimeException e) {
+        LOGGER.warn("Failed to write {} notifications and {} inactivations at once, writing them one by one",
+                records.size(), inactiveIds.size(), e);
+        failed = true;
+      }
+    }
+
+    RuntimeException[] failures = new RuntimeException[batch.size()];
+    boolean anyFailure = false;
+    for (int i = 0; failed && i < batch.size(); i++) {
+      failures[i] = writeAlone(batch.get(i));
+      anyFailure |= failures[i] != null;
+    }
+    if (anyFailure) {
+      // The in-memory state has been updated with writes that do not exist, reset it.
+      this.delegate.getUnreadCounter().clear();
+      this.delegate.getRecipientCache().clear();
+    }
+
+    this.pendingWrites.addAndGet(-writes);
+    this.delegate.getUncommittedWrites().addAndGet(-writes);
+    for (int i = 0; i < batch.size(); i++) {
+      if (failures[i] != null) {
+        batch.get(i).future.completeExceptionally(failures[i]);
+      } else {
+        batch.get(i).future.complete(null);
+      }
+    }
+  }
+
+  /**
+   * Writes the given operation in its own transaction.
+   *
+   * @return the failure or null if the operation has been written
+   */
+  private RuntimeException writeAlone(Operation operation) {
+    try {
+      if (operation instanceof Save) {
+        Save save = (Save) operation;
+        this.delegate.write(save.records, save.notifications, Collections.emptyList());
+      } else if (operation instanceof Inactivate) {
+        this.delegate.write(Collections.emptyList(), Collections.emptyList(), Collections.singletonList(((Inactivate) operation).businessId));
+      }
+      return null;
+    } catch (RuntimeException e) {
+      LOGGER.error("Failed to write {}", operation, e);
+      return e;
+    }
+  }
+
+  /**
+   * An element of the queue. Instances of this class are barriers used by {@link #flush()}.
+   */
+  static class Operation {
+
+    /**
+     * Completed once the operation is written.
+     */
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+  }
+
+  /**
+   * Notifications to insert.
+   */
+  static class Save extends Operation {
+
+    final List<Notification> records;
+    final List<NotificationAndRecipients> notifications;
+
+    Save(List<Notification> records, List<NotificationAndRecipients> notifications) {
+      this.records = records;
+      this.notifications = notifications;
+    }
+  }
+
+  /**
+   * A notification to mark as inactive.
+   */
+  static class Inactivate extends Operation {
+
+    final String businessId;
+
+    Inactivate(String businessId) {
+      this.businessId = businessId;
+    }
+  }
+}
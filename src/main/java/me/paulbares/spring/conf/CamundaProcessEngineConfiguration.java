@@ -1,17 +1,34 @@
 package me.paulbares.spring.conf;
 
 import me.paulbares.camunda.ApprovalWorkflowTaskListener;
-import me.paulbares.camunda.BasicApprovalWorflow;
+import me.paulbares.camunda.BulkApprovalService;
+import me.paulbares.camunda.EngineSettings;
+import me.paulbares.camunda.NotificationHistoryEventHandler;
+import me.paulbares.camunda.NotificationProcessEnginePlugin;
+import me.paulbares.camunda.NotificationReconciler;
+import me.paulbares.camunda.TransactionalApprovalWorkflowTaskListener;
 import me.paulbares.service.NotificationService;
+import me.paulbares.service.NotificationServiceImpl;
 import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import com.google.common.base.Preconditions;
+import com.zaxxer.hikari.HikariDataSource;
+import org.camunda.bpm.engine.ProcessEngine;
+import org.camunda.bpm.engine.ProcessEngineConfiguration;
 import org.camunda.bpm.engine.impl.cfg.ProcessEngineConfigurationImpl;
 import org.camunda.bpm.engine.impl.cfg.StandaloneProcessEngineConfiguration;
 import org.camunda.bpm.engine.spring.ProcessEngineFactoryBean;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import javax.annotation.PreDestroy;
 import javax.sql.DataSource;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Collections;
 
 /**
@@ -26,6 +43,12 @@ public class CamundaProcessEngineConfiguration {
   @Autowired
   public DataSource dataSource;
 
+  /**
+   * The properties of {@link #dataSource}, to create the connection pool of the engine.
+   */
+  @Autowired
+  public ObjectProvider<DataSourceProperties> dataSourceProperties;
+
   /**
    * The {@link ApproverWorkflowRegistrar} to inject into {@link ApprovalWorkflowTaskListener}.
    */
@@ -35,6 +58,196 @@ public class CamundaProcessEngineConfiguration {
   @Autowired
   public NotificationService notificationService;
 
+  /**
+   * True to only check the version of the schema of the engine, created or upgraded by a boot without it beforehand,
+   * instead of updating it.
+   */
+  @Value("${notification.engine.validate-schema:false}")
+  public boolean validateSchema;
+
+  /**
+   * True to save and publish the notifications only once the engine transaction has committed, off the engine thread.
+   */
+  @Value("${notification.publish.after-commit:false}")
+  public boolean publishAfterCommit;
+
+  /**
+   * With {@link #publishAfterCommit}, the time in ms the events of a task are held to be merged with the next ones, see
+   * {@link TransactionalApprovalWorkflowTaskListener}. 0 to handle them as soon as their command commits.
+   */
+  @Value("${notification.publish.coalescing-window-ms:0}")
+  public long coalescingWindowMs;
+
+  /**
+   * Where the task events are captured from: {@code listener} for a task listener attached to every user task by
+   * {@link NotificationProcessEnginePlugin}, {@code history} for the task instance events of the engine history, see
+   * {@link NotificationHistoryEventHandler}.
+   */
+  @Value("${notification.capture:listener}")
+  public String capture;
+
+  /**
+   * The number of tasks completed in a single engine command by {@link BulkApprovalService}.
+   */
+  @Value("${notification.bulk-approval.chunk-size:" + BulkApprovalService.DEFAULT_CHUNK_SIZE + "}")
+  public int bulkApprovalChunkSize;
+
+  /**
+   * The maximum number of tasks and notifications read at once by {@link NotificationReconciler}.
+   */
+  @Value("${notification.reconcile.batch-size:" + NotificationReconciler.DEFAULT_BATCH_SIZE + "}")
+  public int reconcileBatchSize;
+
+  /**
+   * The age below which the tasks and notifications are not reconciled, longer than the time a notification can be in
+   * flight.
+   */
+  @Value("${notification.reconcile.grace-period:" + NotificationReconciler.DEFAULT_GRACE_PERIOD + "}")
+  public Duration reconcileGracePeriod;
+
+  /**
+   * The time to wait between two reconciled pages.
+   */
+  @Value("${notification.reconcile.pause:100ms}")
+  public Duration reconcilePause;
+
+  /**
+   * The maximum number of pages reconciled per run.
+   */
+  @Value("${notification.reconcile.max-batches-per-run:100}")
+  public int reconcileMaxBatchesPerRun;
+
+  /**
+   * The time between two runs of the reconciliation job.
+   */
+  @Value("${notification.reconcile.interval:10m}")
+  public Duration reconcileInterval;
+
+  /**
+   * The settings of the engine that matter for its throughput, see {@link EngineSettings.Profile}. Each of them can be
+   * overridden by the properties below.
+   */
+  @Value("${notification.engine.profile:DEFAULT}")
+  public EngineSettings.Profile engineProfile;
+
+  /**
+   * Overrides {@link EngineSettings#jdbcBatchProcessing} if set.
+   */
+  @Value("${notification.engine.jdbc-batch-processing:#{null}}")
+  public Boolean engineJdbcBatchProcessing;
+
+  /**
+   * Overrides {@link EngineSettings#idGenerator} if set.
+   */
+  @Value("${notification.engine.id-generator:#{null}}")
+  public EngineSettings.IdGeneratorType engineIdGenerator;
+
+  /**
+   * Overrides {@link EngineSettings#idBlockSize} if set.
+   */
+  @Value("${notification.engine.id-block-size:#{null}}")
+  public Integer engineIdBlockSize;
+
+  /**
+   * Overrides {@link EngineSettings#history} if set.
+   */
+  @Value("${notification.engine.history:#{null}}")
+  public String engineHistory;
+
+  /**
+   * Overrides {@link EngineSettings#jobExecutorActivate} if set.
+   */
+  @Value("${notification.engine.job-executor.activate:#{null}}")
+  public Boolean engineJobExecutorActivate;
+
+  /**
+   * Overrides {@link EngineSettings#jobExecutorCorePoolSize} if set.
+   */
+  @Value("${notification.engine.job-executor.core-pool-size:#{null}}")
+  public Integer engineJobExecutorCorePoolSize;
+
+  /**
+   * Overrides {@link EngineSettings#jobExecutorMaxPoolSize} if set.
+   */
+  @Value("${notification.engine.job-executor.max-pool-size:#{null}}")
+  public Integer engineJobExecutorMaxPoolSize;
+
+  /**
+   * Overrides {@link EngineSettings#jobExecutorQueueSize} if set.
+   */
+  @Value("${notification.engine.job-executor.queue-size:#{null}}")
+  public Integer engineJobExecutorQueueSize;
+
+  /**
+   * Overrides {@link EngineSettings#jobExecutorMaxJobsPerAcquisition} if set.
+   */
+  @Value("${notification.engine.job-executor.max-jobs-per-acquisition:#{null}}")
+  public Integer engineJobExecutorMaxJobsPerAcquisition;
+
+  /**
+   * Overrides {@link EngineSettings#dataSourcePoolSize} if set.
+   */
+  @Value("${notification.engine.datasource.pool-size:#{null}}")
+  public Integer engineDataSourcePoolSize;
+
+  /**
+   * The connection pool of the engine when it does not share {@link #dataSource}, closed with this configuration.
+   */
+  protected HikariDataSource engineDataSource;
+
+  /**
+   * Returns the settings of {@link #engineProfile} overridden by the properties set.
+   *
+   * @return the settings of the engine
+   */
+  @Bean
+  public EngineSettings engineSettings() {
+    EngineSettings settings = EngineSettings.of(this.engineProfile);
+    if (this.engineJdbcBatchProcessing != null) {
+      settings.setJdbcBatchProcessing(this.engineJdbcBatchProcessing);
+    }
+    if (this.engineIdGenerator != null) {
+      settings.setIdGenerator(this.engineIdGenerator);
+    }
+    if (this.engineIdBlockSize != null) {
+      settings.setIdBlockSize(this.engineIdBlockSize);
+    }
+    if (this.engineHistory != null) {
+      settings.setHistory(this.engineHistory);
+    }
+    if (this.engineJobExecutorActivate != null) {
+      settings.setJobExecutorActivate(this.engineJobExecutorActivate);
+    }
+    if (this.engineJobExecutorCorePoolSize != null) {
+      settings.setJobExecutorCorePoolSize(this.engineJobExecutorCorePoolSize);
+    }
+    if (this.engineJobExecutorMaxPoolSize != null) {
+      settings.setJobExecutorMaxPoolSize(this.engineJobExecutorMaxPoolSize);
+    }
+    if (this.engineJobExecutorQueueSize != null) {
+      settings.setJobExecutorQueueSize(this.engineJobExecutorQueueSize);
+    }
+    if (this.engineJobExecutorMaxJobsPerAcquisition != null) {
+      settings.setJobExecutorMaxJobsPerAcquisition(this.engineJobExecutorMaxJobsPerAcquisition);
+    }
+    if (this.engineDataSourcePoolSize != null) {
+      settings.setDataSourcePoolSize(this.engineDataSourcePoolSize);
+    }
+    return settings;
+  }
+
+  /**
+   * The listener of the task events of the user tasks of every deployed process, see {@link #capture}.
+   *
+   * @return the listener of the task events
+   */
+  @Bean
+  public ApprovalWorkflowTaskListener approvalWorkflowTaskListener() {
+    return this.publishAfterCommit
+            ? new TransactionalApprovalWorkflowTaskListener(this.notificationService, this.registrar, this.coalescingWindowMs)
+            : new ApprovalWorkflowTaskListener(this.notificationService, this.registrar);
+  }
+
   /**
    * The actual {@link ProcessEngineConfigurationImpl} to be used by the workflow engine.
    *
@@ -42,14 +255,53 @@ public class CamundaProcessEngineConfiguration {
    */
   @Bean
   public ProcessEngineConfigurationImpl processEngineConfiguration() {
+    EngineSettings settings = engineSettings();
     ProcessEngineConfigurationImpl conf = new StandaloneProcessEngineConfiguration()
-            .setDataSource(this.dataSource)
-            .setDatabaseSchemaUpdate("true");
-    conf.setBeans(Collections.singletonMap(BasicApprovalWorflow.LISTENER_BEAN_NAME,
-            new ApprovalWorkflowTaskListener(this.notificationService, this.registrar)));
+            .setDataSource(engineDataSource(settings))
+            .setDatabaseSchemaUpdate(this.validateSchema
+                    ? ProcessEngineConfiguration.DB_SCHEMA_UPDATE_FALSE
+                    : ProcessEngineConfiguration.DB_SCHEMA_UPDATE_TRUE);
+    settings.applyTo(conf);
+    if ("history".equals(this.capture)) {
+      Preconditions.checkState(!ProcessEngineConfiguration.HISTORY_NONE.equals(settings.getHistory()),
+              "the task events cannot be captured from the history with the history level %s", settings.getHistory());
+      // Along with the default handler writing the history to the database
+      conf.setCustomHistoryEventHandlers(Collections.singletonList(new NotificationHistoryEventHandler(approvalWorkflowTaskListener())));
+    } else {
+      conf.getProcessEnginePlugins().add(new NotificationProcessEnginePlugin(approvalWorkflowTaskListener()));
+    }
     return conf;
   }
 
+  /**
+   * Returns the {@link DataSource} of the engine: {@link #dataSource} or, if {@link EngineSettings#getDataSourcePoolSize()}
+   * is set, a pool of its own to the same database so that the engine commands and the notification writes, that each
+   * hold a connection while the listener saves the notifications within the engine transaction, cannot exhaust a
+   * shared pool.
+   */
+  protected DataSource engineDataSource(EngineSettings settings) {
+    if (settings.getDataSourcePoolSize() == 0) {
+      return this.dataSource;
+    }
+    this.engineDataSource = this.dataSourceProperties.getObject()
+            .initializeDataSourceBuilder()
+            .type(HikariDataSource.class)
+            .build();
+    this.engineDataSource.setPoolName("camunda-engine");
+    this.engineDataSource.setMaximumPoolSize(settings.getDataSourcePoolSize());
+    return this.engineDataSource;
+  }
+
+  /**
+   * Closes the connection pool of the engine, if any.
+   */
+  @PreDestroy
+  public void closeEngineDataSource() {
+    if (this.engineDataSource != null) {
+      this.engineDataSource.close();
+    }
+  }
+
   /**
    * Returns the process engine.
    *
@@ -61,4 +313,31 @@ public class CamundaProcessEngineConfiguration {
     factoryBean.setProcessEngineConfiguration(processEngineConfiguration());
     return factoryBean;
   }
+
+  /**
+   * Returns the service completing many tasks at once.
+   *
+   * @param processEngine the process engine
+   * @return the service completing many tasks at once
+   */
+  @Bean
+  public BulkApprovalService bulkApprovalService(ProcessEngine processEngine) {
+    return new BulkApprovalService(processEngine, this.bulkApprovalChunkSize);
+  }
+
+  /**
+   * Repairs the drift between the open tasks and the notifications stored in the database in the background when
+   * enabled.
+   *
+   * @param processEngine the process engine
+   * @param notificationService the service storing the notifications in the database
+   * @return the reconciliation job
+   */
+  @Bean(initMethod = "start")
+  @ConditionalOnProperty(name = "notification.reconcile.enabled", havingValue = "true")
+  public NotificationReconciler notificationReconciler(ProcessEngine processEngine, NotificationServiceImpl notificationService) {
+    return new NotificationReconciler(processEngine, notificationService, approvalWorkflowTaskListener(), this.registrar,
+            this.reconcileBatchSize, this.reconcileGracePeriod, this.reconcilePause, this.reconcileMaxBatchesPerRun,
+            this.reconcileInterval, () -> Instant.now());
+  }
 }
@@ -1,15 +1,38 @@
 package me.paulbares.spring.conf;
 
+import me.paulbares.service.AsyncNotificationService;
+import me.paulbares.service.InMemoryNotificationService;
+import me.paulbares.service.InboxQueryStrategy;
+import me.paulbares.service.JournaledNotificationService;
+import me.paulbares.service.NotificationArchiver;
 import me.paulbares.service.NotificationService;
 import me.paulbares.subscription.ApproverWorkflowRegistrar;
 import me.paulbares.repository.NotificationRepository;
 import me.paulbares.repository.RecipientRepository;
 import me.paulbares.service.NotificationServiceImpl;
+import me.paulbares.service.ReadReceiptAggregator;
+import me.paulbares.service.ReadReplica;
+import me.paulbares.service.ReactiveNotificationService;
+import me.paulbares.service.RecipientCache;
+import me.paulbares.service.UnreadNotificationCounter;
+import me.paulbares.service.WarmStartSnapshot;
+import me.paulbares.service.WriteBehindNotificationService;
+import com.zaxxer.hikari.HikariDataSource;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.jdbc.DataSourceBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.transaction.PlatformTransactionManager;
 
 import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 
 /**
@@ -27,13 +50,324 @@ public class NotificationConfiguration {
   @Autowired
   RecipientRepository recipientRepository;
 
+  @Autowired
+  PlatformTransactionManager transactionManager;
+
+  /**
+   * The maximum number of notifications whose recipients are kept in memory to mark them as inactive.
+   */
+  @Value("${notification.recipient-cache.size:" + RecipientCache.DEFAULT_MAXIMUM_SIZE + "}")
+  long recipientCacheSize;
+
+  /**
+   * The maximum number of users whose unread notifications are counted in memory.
+   */
+  @Value("${notification.unread-counter.size:" + UnreadNotificationCounter.DEFAULT_MAXIMUM_SIZE + "}")
+  long unreadCounterSize;
+
+  /**
+   * The maximum time the unread notifications of a user are counted in memory before being reloaded from the database.
+   */
+  @Value("${notification.unread-counter.expire-after-load:" + UnreadNotificationCounter.DEFAULT_EXPIRE_AFTER_LOAD + "}")
+  Duration unreadCounterExpireAfterLoad;
+
+  /**
+   * The way the queries reading the inbox of a user are written. By default, it depends on the database.
+   */
+  @Value("${notification.inbox-query:DIALECT}")
+  InboxQueryStrategy inboxQueryStrategy;
+
+  /**
+   * The number of rows fetched at once when reading the views of the notifications of a user.
+   */
+  @Value("${notification.read.fetch-size:" + NotificationServiceImpl.DEFAULT_FETCH_SIZE + "}")
+  int fetchSize;
+
+  /**
+   * The replica the inboxes are read from, if configured.
+   */
+  @Autowired
+  ObjectProvider<ReadReplica> readReplica;
+
+  /**
+   * The JDBC url of the replica the inboxes are read from. Empty to read them from the primary database.
+   */
+  @Value("${notification.read-replica.url:}")
+  String readReplicaUrl;
+
+  /**
+   * The credentials used to connect to the replica.
+   */
+  @Value("${notification.read-replica.username:}")
+  String readReplicaUsername;
+
+  /**
+   * See {@link #readReplicaUsername}.
+   */
+  @Value("${notification.read-replica.password:}")
+  String readReplicaPassword;
+
+  /**
+   * The maximum time to wait for the replica to catch up with the writes before reading from the primary database.
+   */
+  @Value("${notification.read-replica.max-wait:" + ReadReplica.DEFAULT_MAX_WAIT + "}")
+  Duration readReplicaMaxWait;
+
+  /**
+   * The time between two checks of the replication progress while waiting.
+   */
+  @Value("${notification.read-replica.poll-interval:10ms}")
+  Duration readReplicaPollInterval;
+
   @Bean
   public NotificationServiceImpl notificationService() {
-    return new NotificationServiceImpl(manager, notificationRepository, recipientRepository, () -> Instant.now());
+    InboxQueryStrategy strategy = inboxQueryStrategy.resolve(manager.getEntityManagerFactory()
+            .unwrap(SessionFactoryImplementor.class)
+            .getJdbcServices()
+            .getDialect());
+    NotificationServiceImpl service = new NotificationServiceImpl(manager, notificationRepository, recipientRepository, () -> Instant.now(), recipientCacheSize, strategy,
+            new UnreadNotificationCounter(unreadCounterSize, unreadCounterExpireAfterLoad));
+    service.setFetchSize(fetchSize);
+    service.setReadReplica(readReplica.getIfAvailable());
+    service.setTransactionManager(transactionManager);
+    return service;
+  }
+
+  /**
+   * The replica the inboxes are read from when {@code notification.read-replica.url} is set. It has its own read-only
+   * connection pool, the writes and the workflow engine keep using the primary {@link javax.sql.DataSource}.
+   */
+  @Bean(destroyMethod = "close")
+  @ConditionalOnProperty(name = "notification.read-replica.url")
+  public ReadReplica readReplica() {
+    HikariDataSource dataSource = DataSourceBuilder.create()
+            .type(HikariDataSource.class)
+            .url(readReplicaUrl)
+            .username(readReplicaUsername)
+            .password(readReplicaPassword)
+            .build();
+    dataSource.setPoolName("notification-read-replica");
+    dataSource.setReadOnly(true);
+    return new ReadReplica(dataSource, readReplicaMaxWait, readReplicaPollInterval);
+  }
+
+  /**
+   * When the writes of {@link #writeBehindNotificationService()} are acknowledged.
+   */
+  @Value("${notification.write-behind.durability:QUEUED}")
+  WriteBehindNotificationService.Durability writeBehindDurability;
+
+  /**
+   * The maximum time in ms a write waits before being written by {@link #writeBehindNotificationService()}.
+   */
+  @Value("${notification.write-behind.max-delay-ms:" + WriteBehindNotificationService.DEFAULT_MAX_DELAY_MS + "}")
+  long writeBehindMaxDelayMs;
+
+  /**
+   * The maximum number of writes committed at once by {@link #writeBehindNotificationService()}.
+   */
+  @Value("${notification.write-behind.max-batch-size:" + WriteBehindNotificationService.DEFAULT_MAX_BATCH_SIZE + "}")
+  int writeBehindMaxBatchSize;
+
+  /**
+   * The interval in ms between two writes of the read receipts aggregated by {@link #readReceiptAggregator}.
+   */
+  @Value("${notification.read-receipts.flush-interval-ms:" + ReadReceiptAggregator.DEFAULT_FLUSH_INTERVAL_MS + "}")
+  long readReceiptsFlushIntervalMs;
+
+  /**
+   * The number of pending read receipts triggering a write by {@link #readReceiptAggregator}.
+   */
+  @Value("${notification.read-receipts.max-pending:" + ReadReceiptAggregator.DEFAULT_MAX_PENDING_RECEIPTS + "}")
+  int readReceiptsMaxPending;
+
+  /**
+   * Writes in the background with {@link #notificationService()} when the write-behind mode is enabled.
+   */
+  @Bean
+  @ConditionalOnProperty(name = "notification.write-behind.enabled", havingValue = "true")
+  public WriteBehindNotificationService writeBehindNotificationService() {
+    return new WriteBehindNotificationService(notificationService(), writeBehindDurability, writeBehindMaxDelayMs, writeBehindMaxBatchSize);
+  }
+
+  /**
+   * Aggregates the read receipts in front of the other services when enabled.
+   */
+  @Bean
+  @ConditionalOnProperty(name = "notification.read-receipts.enabled", havingValue = "true")
+  public ReadReceiptAggregator readReceiptAggregator(ObjectProvider<WriteBehindNotificationService> writeBehind) {
+    NotificationService delegate = writeBehind.getIfAvailable();
+    return new ReadReceiptAggregator(delegate != null ? delegate : notificationService(),
+            notificationService().getUnreadCounter(), readReceiptsFlushIntervalMs, readReceiptsMaxPending);
+  }
+
+  /**
+   * Keeps the notifications in memory only, instead of the database, when {@code notification.store} is
+   * {@code memory}.
+   */
+  @Bean
+  @ConditionalOnProperty(name = "notification.store", havingValue = "memory")
+  public InMemoryNotificationService inMemoryNotificationService() {
+    return new InMemoryNotificationService(() -> Instant.now());
+  }
+
+  /**
+   * The directory of the journal and the snapshot of {@link #journaledNotificationService()}.
+   */
+  @Value("${notification.journal.directory:notifications}")
+  Path journalDirectory;
+
+  /**
+   * The initial size in bytes of the journal file.
+   */
+  @Value("${notification.journal.size:" + JournaledNotificationService.DEFAULT_JOURNAL_SIZE + "}")
+  int journalSize;
+
+  /**
+   * The size in bytes of the journal above which it is compacted into a snapshot.
+   */
+  @Value("${notification.journal.compaction-threshold:" + JournaledNotificationService.DEFAULT_JOURNAL_SIZE / 2 + "}")
+  int journalCompactionThreshold;
+
+  /**
+   * The time between two checks of the size of the journal.
+   */
+  @Value("${notification.journal.compaction-interval:1m}")
+  Duration journalCompactionInterval;
+
+  /**
+   * Keeps the notifications in memory and persists their changes to a journal file, instead of the database, when
+   * {@code notification.store} is {@code journal}.
+   */
+  @Bean(initMethod = "start", destroyMethod = "close")
+  @ConditionalOnProperty(name = "notification.store", havingValue = "journal")
+  public JournaledNotificationService journaledNotificationService() throws IOException {
+    return new JournaledNotificationService(journalDirectory, () -> Instant.now(), journalSize,
+            journalCompactionThreshold, journalCompactionInterval);
+  }
+
+  /**
+   * The {@link NotificationService} used by the workflow engine, the registrar and the clients:
+   * {@link #inMemoryNotificationService()} or {@link #journaledNotificationService()} if enabled, otherwise the outermost of {@link #readReceiptAggregator},
+   * {@link #writeBehindNotificationService()} and {@link #notificationService()}. Its life cycle is managed by these
+   * beans.
+   */
+  @Bean(destroyMethod = "")
+  @Primary
+  public NotificationService notificationServiceFacade(ObjectProvider<InMemoryNotificationService> inMemory,
+                                                       ObjectProvider<WriteBehindNotificationService> writeBehind,
+                                                       ObjectProvider<ReadReceiptAggregator> readReceiptAggregator) {
+    NotificationService service = inMemory.getIfAvailable();
+    if (service != null) {
+      return service;
+    }
+    service = readReceiptAggregator.getIfAvailable();
+    if (service == null) {
+      service = writeBehind.getIfAvailable();
+    }
+    return service != null ? service : notificationService();
+  }
+
+  /**
+   * The time a notification stays in the hot tables once inactive before being archived.
+   */
+  @Value("${notification.archive.retention:" + NotificationArchiver.DEFAULT_RETENTION + "}")
+  Duration archiveRetention;
+
+  /**
+   * The maximum number of notifications archived in one transaction.
+   */
+  @Value("${notification.archive.batch-size:" + NotificationArchiver.DEFAULT_BATCH_SIZE + "}")
+  int archiveBatchSize;
+
+  /**
+   * The time to wait between two archived batches.
+   */
+  @Value("${notification.archive.pause:100ms}")
+  Duration archivePause;
+
+  /**
+   * The maximum number of batches archived per run.
+   */
+  @Value("${notification.archive.max-batches-per-run:100}")
+  int archiveMaxBatchesPerRun;
+
+  /**
+   * The maximum number of notifications archived per second, 0 for no limit.
+   */
+  @Value("${notification.archive.max-rate:1000}")
+  int archiveMaxRate;
+
+  /**
+   * The time between two runs of the archival job.
+   */
+  @Value("${notification.archive.interval:1m}")
+  Duration archiveInterval;
+
+  /**
+   * Moves the old inactive notifications to the archive tables in the background when enabled.
+   */
+  @Bean(initMethod = "start")
+  @ConditionalOnProperty(name = "notification.archive.enabled", havingValue = "true")
+  public NotificationArchiver notificationArchiver() {
+    return new NotificationArchiver(notificationService(), archiveRetention, archiveBatchSize, archivePause,
+            archiveMaxBatchesPerRun, archiveMaxRate, archiveInterval, () -> Instant.now());
+  }
+
+  /**
+   * The file {@link #warmStartSnapshot()} checkpoints the in-memory state to. Empty to not checkpoint it.
+   */
+  @Value("${notification.warm-start.file:}")
+  Path warmStartFile;
+
+  /**
+   * The time between two checkpoints.
+   */
+  @Value("${notification.warm-start.interval:1m}")
+  Duration warmStartInterval;
+
+  /**
+   * The maximum age of a checkpoint to be restored.
+   */
+  @Value("${notification.warm-start.max-age:" + WarmStartSnapshot.DEFAULT_MAX_AGE + "}")
+  Duration warmStartMaxAge;
+
+  /**
+   * The maximum duration of a transaction reading or inactivating notifications.
+   */
+  @Value("${notification.warm-start.catch-up-margin:1m}")
+  Duration warmStartCatchUpMargin;
+
+  /**
+   * Restores the in-memory state of {@link #notificationService()} from its last checkpoint on startup and checkpoints
+   * it periodically when {@code notification.warm-start.file} is set.
+   */
+  @Bean(initMethod = "start", destroyMethod = "close")
+  @ConditionalOnProperty(name = "notification.warm-start.file")
+  public WarmStartSnapshot warmStartSnapshot() {
+    return new WarmStartSnapshot(notificationService(), warmStartFile, warmStartInterval, warmStartMaxAge,
+            warmStartCatchUpMargin, () -> Instant.now());
+  }
+
+  /**
+   * The number of threads of {@link #reactiveNotificationService}, i.e. the maximum number of concurrent calls to the
+   * database it makes.
+   */
+  @Value("${notification.reactive.pool-size:" + AsyncNotificationService.DEFAULT_POOL_SIZE + "}")
+  int reactivePoolSize;
+
+  /**
+   * The non-blocking variant of {@link #notificationServiceFacade}.
+   */
+  @Bean
+  public AsyncNotificationService reactiveNotificationService(NotificationService notificationService) {
+    return new AsyncNotificationService(notificationService, reactivePoolSize);
   }
 
   @Bean
-  public ApproverWorkflowRegistrar registrar() {
-    return new ApproverWorkflowRegistrar((user, groups) -> notificationService().getUnreadAndActiveNotificationsInDescOrder(user, groups));
+  public ApproverWorkflowRegistrar registrar(NotificationService notificationService,
+                                             ReactiveNotificationService reactiveNotificationService) {
+    return new ApproverWorkflowRegistrar((user, groups) -> notificationService.getUnreadAndActiveNotificationsInDescOrder(user, groups),
+            (user, groups) -> ReactiveNotificationService.collect(reactiveNotificationService.getUnreadAndActiveNotificationsInDescOrder(user, groups)));
   }
 }
\ No newline at end of file
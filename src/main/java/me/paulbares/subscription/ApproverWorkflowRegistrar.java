@@ -1,7 +1,9 @@
 package me.paulbares.subscription;
 
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Striped;
 import me.paulbares.domain.Notification;
+import me.paulbares.service.NotificationBatch;
 import me.paulbares.user.CamundaUserDetails;
 
 import java.util.ArrayList;
@@ -11,10 +13,13 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.RecursiveAction;
@@ -46,11 +51,22 @@ public class ApproverWorkflowRegistrar {
    */
   protected final BiFunction<String, Collection<String>, List<Notification>> notificationProvider;
 
+  /**
+   * The non-blocking variant of {@link #notificationProvider} used by {@link #subscribeAsync}.
+   */
+  protected final BiFunction<String, Collection<String>, CompletionStage<List<Notification>>> asyncNotificationProvider;
+
   /**
    * Higher {@link Notification#getId()} sent during the subscription of a new {@link Subscriber}.
    */
   protected final Map<Subscriber<?>, Long> lastSubIdBySub;
 
+  /**
+   * The notifications published to the {@link Subscriber subscribers} registered by {@link #subscribeAsync} whose
+   * initial view is being read, along with their {@code isNew} flag. They are delivered after the initial view.
+   */
+  protected final Map<Subscriber<?>, List<Map.Entry<Notification, Boolean>>> pendingUpdatesBySub;
+
   /**
    * The set of subscribers for each user.
    */
@@ -70,11 +86,25 @@ public class ApproverWorkflowRegistrar {
    * Constructor.
    */
   public ApproverWorkflowRegistrar(BiFunction<String, Collection<String>, List<Notification>> notificationProvider) {
+    this(notificationProvider, (user, groups) -> CompletableFuture.completedFuture(notificationProvider.apply(user, groups)));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param notificationProvider see {@link #notificationProvider}
+   * @param asyncNotificationProvider the same provider as {@code notificationProvider} but that does not block the
+   *                                  caller, see {@link #subscribeAsync}
+   */
+  public ApproverWorkflowRegistrar(BiFunction<String, Collection<String>, List<Notification>> notificationProvider,
+                                   BiFunction<String, Collection<String>, CompletionStage<List<Notification>>> asyncNotificationProvider) {
     this.notificationProvider = notificationProvider;
+    this.asyncNotificationProvider = asyncNotificationProvider;
     this.sync = Striped.lazyWeakReadWriteLock(Runtime.getRuntime().availableProcessors() * 4);
     this.subscribersByUserId = new Entry();
     this.subscribersByGroupId = new HashMap<>();
     this.lastSubIdBySub = new ConcurrentHashMap<>();
+    this.pendingUpdatesBySub = new ConcurrentHashMap<>();
   }
 
   /**
@@ -88,23 +118,80 @@ public class ApproverWorkflowRegistrar {
    * completed)
    */
   public void publish(Notification notification, Set<String> users, Set<String> groups, boolean isNew) {
+    Map<String, List<Delivery>> deliveriesByUser = new HashMap<>();
+    addDeliveries(deliveriesByUser, notification, users, groups, isNew);
+    send(deliveriesByUser);
+  }
+
+  /**
+   * Sends the notifications of an {@link me.paulbares.service.NotificationService#apply(NotificationBatch) applied}
+   * batch, as {@link #publish(Notification, Set, Set, boolean)} does for each of them. Each {@link Subscriber} receives
+   * all the notifications of the batch intended to it with a single call, in the order of the batch.
+   * <p>
+   * When the recipients of a notification are updated, the previous recipients that are not recipients anymore
+   * receive it as inactive and the new recipients receive it as active. Nothing is sent if they are the same.
+   * </p>
+   *
+   * @param batch the applied batch
+   */
+  public void publish(NotificationBatch batch) {
+    Map<String, List<Delivery>> deliveriesByUser = new HashMap<>();
+    for (NotificationBatch.Entry entry : batch.getEntries()) {
+      Notification notification = entry.getNotification();
+      if (notification == null) {
+        continue;
+      }
+      if (entry.isUpdate()) {
+        if (entry.getPreviousUsers().equals(entry.getUsers()) && entry.getPreviousGroups().equals(entry.getGroups())) {
+          continue; // nothing changes
+        }
+        Notification removed = new Notification(notification.getType(), notification.getMessage(),
+                notification.getCreatedAt(), false, notification.getBusinessId());
+        removed.setId(notification.getId());
+        addDeliveries(deliveriesByUser, removed,
+                Sets.difference(entry.getPreviousUsers(), entry.getUsers()),
+                Sets.difference(entry.getPreviousGroups(), entry.getGroups()),
+                false);
+      }
+      addDeliveries(deliveriesByUser, notification, entry.getUsers(), entry.getGroups(), entry.isNew());
+    }
+    send(deliveriesByUser);
+  }
+
+  /**
+   * Adds to the given map the {@link Delivery deliveries} of a notification to its subscribers, indexed by user id.
+   */
+  protected void addDeliveries(Map<String, List<Delivery>> deliveriesByUser,
+                               Notification notification,
+                               Set<String> users,
+                               Set<String> groups,
+                               boolean isNew) {
     var subscribersByUser = collectSubscribers(users, groups);
     if (!subscribersByUser.isEmpty()) {
       // To keep track of Subscriber for which the notification has been sent.
       // It guarantees the notification will be deliver only once.
       var notified = Collections.newSetFromMap(new ConcurrentHashMap<>());
-
-      List<SendNotificationTask> tasks = new ArrayList<>();
+      // Order in the condition does matter here !
+      // Only check the id when the notification is new i.e has just been created. If not new, it means
+      // the notification has already been sent either during the subscription or via #onCreate()
+      Predicate<Subscriber<Notification>> predicate =
+              s -> (!isNew || notification.getId() > this.lastSubIdBySub.getOrDefault(s, -1L)) && notified.add(s);
       for (Map.Entry<String, Set<Subscriber<Notification>>> subscribers : subscribersByUser.entrySet()) {
-        tasks.add(new SendNotificationTask(subscribers.getKey(),
-                notification,
-                subscribers.getValue(),
-                // Order in the condition does matter here !
-                // Only check the id when the notification is new i.e has just been created. If not new, it means
-                // the notification has already been sent either during the subscription or via #onCreate()
-                s -> (!isNew || notification.getId() > this.lastSubIdBySub.getOrDefault(s, -1L)) && notified.add(s)));
+        deliveriesByUser.computeIfAbsent(subscribers.getKey(), __ -> new ArrayList<>())
+                .add(new Delivery(notification, isNew, subscribers.getValue(), predicate));
       }
+    }
+  }
 
+  /**
+   * Sends the given deliveries, one task per user.
+   *
+   * @param deliveriesByUser the deliveries indexed by user id
+   */
+  protected void send(Map<String, List<Delivery>> deliveriesByUser) {
+    if (!deliveriesByUser.isEmpty()) {
+      List<SendNotificationTask> tasks = new ArrayList<>(deliveriesByUser.size());
+      deliveriesByUser.forEach((userId, deliveries) -> tasks.add(new SendNotificationTask(userId, deliveries)));
       // Will be done in the common pool. Publish is done in a synchronous way for the time being.
       ForkJoinTask.invokeAll(tasks);
     }
@@ -189,6 +276,70 @@ public class ApproverWorkflowRegistrar {
     return new Subscription(userDetails, subscriber, this::unsubscribe);
   }
 
+  /**
+   * Same as {@link #subscribe(CamundaUserDetails, Subscriber)} but the initial view is read with
+   * {@link #asyncNotificationProvider} and no lock is held while it is read: no thread waits for the read, the returned
+   * stage completes once the initial view has been delivered. The notifications published in the meantime are kept
+   * and delivered right after the initial view, except those already part of it.
+   *
+   * @param userDetails the user details
+   * @param subscriber the subscriber to register
+   * @return the {@link Subscription}, completed once the initial view has been delivered. If the initial view cannot
+   *         be read, the subscriber is unregistered and the stage completes exceptionally.
+   */
+  public CompletionStage<Subscription> subscribeAsync(CamundaUserDetails userDetails, Subscriber<Notification> subscriber) {
+    String userId = userDetails.getUser();
+    Collection<String> groupIds = userDetails.getGroups();
+    writeExecute(userId, () -> {
+      if (this.lastSubIdBySub.containsKey(subscriber)
+              || this.pendingUpdatesBySub.putIfAbsent(subscriber, new ArrayList<>()) != null) {
+        throw new IllegalStateException("A subscriber cannot be use multiple times");
+      }
+      // Registered first for the same reasons as in #subscribe, the notifications are kept until the view is read.
+      this.subscribersByUserId.addSubscriber(userId, subscriber);
+      groupIds.forEach(group -> this.subscribersByGroupId.computeIfAbsent(group, __ -> new Entry())
+              .addSubscriber(userId, subscriber));
+    });
+
+    Subscription subscription = new Subscription(userDetails, subscriber, this::unsubscribe);
+    CompletableFuture<Subscription> result = new CompletableFuture<>();
+    CompletionStage<List<Notification>> initialView;
+    try {
+      initialView = this.asyncNotificationProvider.apply(userId, groupIds);
+    } catch (RuntimeException e) {
+      initialView = CompletableFuture.failedFuture(e);
+    }
+    initialView.whenComplete((notifications, error) -> {
+      if (error != null) {
+        unsubscribe(subscription);
+        result.completeExceptionally(error);
+        return;
+      }
+      try {
+        writeExecute(userId, () -> {
+          List<Map.Entry<Notification, Boolean>> pending = this.pendingUpdatesBySub.remove(subscriber);
+          if (pending == null) {
+            return; // unsubscribed in the meantime
+          }
+          long max = notifications.stream().mapToLong(Notification::getId).max().orElse(-1);
+          this.lastSubIdBySub.put(subscriber, max);
+          if (!notifications.isEmpty()) {
+            subscriber.onSubscribe(notifications);
+          }
+          for (Map.Entry<Notification, Boolean> update : pending) {
+            if (!update.getValue() || update.getKey().getId() > max) {
+              subscriber.onUpdate(update.getKey());
+            }
+          }
+        });
+        result.complete(subscription);
+      } catch (RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    });
+    return result;
+  }
+
   /**
    * Unregistered the subscriber associated to this subscription.
    *
@@ -200,6 +351,7 @@ public class ApproverWorkflowRegistrar {
     String userId = userDetails.getUser();
     writeExecute(userId, () -> {
       this.lastSubIdBySub.remove(subscriber);
+      this.pendingUpdatesBySub.remove(subscriber);
       this.subscribersByUserId.removeSubscriber(userId, subscriber);
       userDetails.getGroups().forEach(groupId -> {
         Entry entry = this.subscribersByGroupId.get(groupId);
@@ -246,24 +398,24 @@ public class ApproverWorkflowRegistrar {
   }
 
   /**
-   * {@link ForkJoinTask} to send the notification to a set of {@link Subscriber} for a particular user.
+   * A notification to deliver to a set of {@link Subscriber} of a particular user.
    */
-  class SendNotificationTask extends RecursiveAction {
+  static class Delivery {
 
     /**
-     * The id of the user.
+     * The notification to send.
      */
-    protected final String userId;
+    protected final Notification notification;
 
     /**
-     * The set of {@link Subscriber} to which the notification will be delivered.
+     * True if {@link #notification} is a new one, see {@link #publish}.
      */
-    protected final Set<Subscriber<Notification>> subscribers;
+    protected final boolean isNew;
 
     /**
-     * The notification to send.
+     * The set of {@link Subscriber} to which the notification will be delivered.
      */
-    protected final Notification notification;
+    protected final Set<Subscriber<Notification>> subscribers;
 
     /**
      * A predicate to filter out {@link Subscriber the subsctiber} from {@link #subscribers} to which the notification
@@ -274,24 +426,66 @@ public class ApproverWorkflowRegistrar {
     /**
      * Constructor.
      */
-    public SendNotificationTask(String userId,
-                                Notification notification,
-                                Set<Subscriber<Notification>> subscribers,
-                                Predicate<Subscriber<Notification>> predicate) {
-      this.subscribers = subscribers;
+    Delivery(Notification notification,
+             boolean isNew,
+             Set<Subscriber<Notification>> subscribers,
+             Predicate<Subscriber<Notification>> predicate) {
       this.notification = notification;
-      this.userId = userId;
+      this.isNew = isNew;
+      this.subscribers = subscribers;
       this.predicate = predicate;
     }
+  }
+
+  /**
+   * {@link ForkJoinTask} to send notifications to the {@link Subscriber subscribers} of a particular user.
+   */
+  class SendNotificationTask extends RecursiveAction {
+
+    /**
+     * The id of the user.
+     */
+    protected final String userId;
+
+    /**
+     * The notifications to send, in order.
+     */
+    protected final List<Delivery> deliveries;
+
+    /**
+     * Constructor.
+     */
+    public SendNotificationTask(String userId, List<Delivery> deliveries) {
+      this.userId = userId;
+      this.deliveries = deliveries;
+    }
 
     @Override
     protected void compute() {
-      readExecute(this.userId,
-              () -> this.subscribers.stream()
-                      // Creates a composed predicate to make sure that within the lock, the subscriber is still there
-                      // and has not been unsubscribed
-                      .filter(this.predicate.and(lastSubIdBySub::containsKey))
-                      .forEach(s -> s.onUpdate(this.notification)));
+      readExecute(this.userId, () -> {
+        Map<Subscriber<Notification>, List<Notification>> updates = new LinkedHashMap<>();
+        for (Delivery delivery : this.deliveries) {
+          delivery.subscribers.forEach(s -> {
+            List<Map.Entry<Notification, Boolean>> pending = pendingUpdatesBySub.get(s);
+            if (pending != null) {
+              // The initial view of the subscriber is being read, see #subscribeAsync. Filtered once it is read.
+              synchronized (pending) {
+                pending.add(Map.entry(delivery.notification, delivery.isNew));
+              }
+            } else if (lastSubIdBySub.containsKey(s) && delivery.predicate.test(s)) {
+              // Within the lock, the subscriber is still there and has not been unsubscribed
+              updates.computeIfAbsent(s, __ -> new ArrayList<>()).add(delivery.notification);
+            }
+          });
+        }
+        updates.forEach((s, notifications) -> {
+          if (notifications.size() == 1) {
+            s.onUpdate(notifications.get(0));
+          } else {
+            s.onUpdates(notifications);
+          }
+        });
+      });
     }
   }
 
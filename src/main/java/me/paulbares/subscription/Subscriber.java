@@ -24,4 +24,14 @@ public interface Subscriber<T> {
    * @param notification
    */
   void onUpdate(T notification);
+
+  /**
+   * Method invoked when several notifications are delivered at once, for instance the changes made by one workflow
+   * engine command. By default, {@link #onUpdate(Object)} is invoked for each of them in order.
+   *
+   * @param notifications
+   */
+  default void onUpdates(List<T> notifications) {
+    notifications.forEach(this::onUpdate);
+  }
 }
\ No newline at end of file
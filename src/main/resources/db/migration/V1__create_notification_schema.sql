@@ -0,0 +1,23 @@
+-- Initial schema of the notification tables, as previously generated by Hibernate from the entities.
+
+CREATE SEQUENCE sequence_generator START WITH 1 INCREMENT BY 50;
+
+CREATE TABLE notification (
+    id          BIGINT       NOT NULL,
+    type        VARCHAR(255) NOT NULL,
+    message     VARCHAR(255),
+    created_at  TIMESTAMP    NOT NULL,
+    is_active   BOOLEAN      NOT NULL,
+    business_id VARCHAR(255) NOT NULL,
+    CONSTRAINT pk_notification PRIMARY KEY (id),
+    CONSTRAINT uk_notification_business_id UNIQUE (business_id)
+);
+
+CREATE TABLE recipient (
+    id              BIGINT       NOT NULL,
+    notification_id BIGINT       NOT NULL,
+    user_id         VARCHAR(255),
+    group_id        VARCHAR(255),
+    is_read         TINYINT      NOT NULL,
+    CONSTRAINT pk_recipient PRIMARY KEY (id)
+);
@@ -0,0 +1,10 @@
+-- Indexes for the queries of NotificationServiceImpl. Their plans are checked by TestQueryPlans.
+
+-- Inbox, unread count and read status of the notifications sent directly to a user.
+CREATE INDEX idx_recipient_user ON recipient (user_id, notification_id, is_read);
+
+-- Inbox and unread count of the notifications sent to a group of users.
+CREATE INDEX idx_recipient_group ON recipient (group_id, notification_id);
+
+-- Recipients of a notification, when it is marked as inactive.
+CREATE INDEX idx_recipient_notification ON recipient (notification_id, user_id, group_id);
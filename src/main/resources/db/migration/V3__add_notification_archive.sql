@@ -0,0 +1,33 @@
+-- Cold storage of the inactive notifications, filled by NotificationArchiver so that the hot tables only contain the
+-- notifications of the open tasks and of the tasks closed within the retention window.
+
+-- When the notification was marked as inactive. Null while it is active.
+ALTER TABLE notification ADD COLUMN inactivated_at TIMESTAMP;
+
+-- Notifications already inactive are kept for a full retention window from now on.
+UPDATE notification SET inactivated_at = CURRENT_TIMESTAMP WHERE is_active = false;
+
+-- Candidates for the archival, oldest first.
+CREATE INDEX idx_notification_inactivated_at ON notification (inactivated_at);
+
+CREATE TABLE notification_archive (
+    id             BIGINT       NOT NULL,
+    type           VARCHAR(255) NOT NULL,
+    message        VARCHAR(255),
+    created_at     TIMESTAMP    NOT NULL,
+    business_id    VARCHAR(255) NOT NULL,
+    inactivated_at TIMESTAMP    NOT NULL,
+    archived_at    TIMESTAMP    NOT NULL,
+    CONSTRAINT pk_notification_archive PRIMARY KEY (id)
+);
+
+CREATE TABLE recipient_archive (
+    id              BIGINT       NOT NULL,
+    notification_id BIGINT       NOT NULL,
+    user_id         VARCHAR(255),
+    group_id        VARCHAR(255),
+    is_read         TINYINT      NOT NULL,
+    CONSTRAINT pk_recipient_archive PRIMARY KEY (id)
+);
+
+CREATE INDEX idx_recipient_archive_notification ON recipient_archive (notification_id);
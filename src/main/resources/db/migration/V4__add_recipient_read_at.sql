@@ -0,0 +1,5 @@
+-- When the notification was marked as read by the recipient. Null while it is unread. WarmStartSnapshot reads the
+-- receipts written since its last checkpoint with it.
+ALTER TABLE recipient ADD COLUMN read_at TIMESTAMP;
+
+CREATE INDEX idx_recipient_read_at ON recipient (read_at);
@@ -0,0 +1,3 @@
+-- Active notifications in the order of their business ids, read page by page by NotificationReconciler to compare them
+-- with the open tasks of the workflow engine.
+CREATE INDEX idx_notification_active_business_id ON notification (is_active, business_id);
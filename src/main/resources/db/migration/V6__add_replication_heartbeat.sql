@@ -0,0 +1,11 @@
+-- Replication position of the notification writes, incremented by NotificationServiceImpl just before a transaction
+-- writing notifications commits when a read replica is configured. The lock on the row orders the increments like the
+-- commits, so a replica that has applied a position has applied all the writes committed before it.
+
+CREATE TABLE replication_heartbeat (
+    id       INT    NOT NULL,
+    position BIGINT NOT NULL,
+    CONSTRAINT pk_replication_heartbeat PRIMARY KEY (id)
+);
+
+INSERT INTO replication_heartbeat (id, position) VALUES (1, 0);
@@ -0,0 +1,3 @@
+-- Notifications created since a given instant, read by WarmStartSnapshot to catch up with the ones whose id is below
+-- the watermark of its checkpoint but that were committed after it.
+CREATE INDEX idx_notification_created_at ON notification (created_at);
@@ -0,0 +1,11 @@
+-- Leases of the background jobs that run on a single node at a time, see NotificationServiceImpl#acquireLease. A node
+-- holds a lease while owner is its id and expires_at is in the future; another node takes it over once it expires.
+
+CREATE TABLE job_lease (
+    name       VARCHAR(64) NOT NULL,
+    owner      VARCHAR(64),
+    expires_at TIMESTAMP,
+    CONSTRAINT pk_job_lease PRIMARY KEY (name)
+);
+
+INSERT INTO job_lease (name) VALUES ('notification-reconciler');
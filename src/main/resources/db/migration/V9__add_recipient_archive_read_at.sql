@@ -0,0 +1,2 @@
+-- When the notification was marked as read by the recipient, copied from recipient.read_at by the archival.
+ALTER TABLE recipient_archive ADD COLUMN read_at TIMESTAMP;
@@ -0,0 +1,31 @@
+package me.paulbares;
+
+import org.junit.jupiter.api.Test;
+
+import static me.paulbares.TestValidateSchema.boot;
+
+/**
+ * Measures the time to start and stop {@link Application}, with and without {@code notification.engine.validate-schema},
+ * on a database whose schemas are up to date like in a rolling deploy. The ns/op column is the time of a boot.
+ */
+public class BenchmarkStartup {
+
+  static final String DATABASE = "startup-benchmark";
+
+  static final int WARMUPS = 3;
+
+  static final int ITERATIONS = 5;
+
+  @Test
+  void benchmark() {
+    Runnable update = () -> boot(DATABASE).close();
+    Runnable validate = () -> boot(DATABASE, "notification.engine.validate-schema=true").close();
+    // The schemas are created by the first boot. Both are warmed up before measuring not to favor the last one.
+    for (int i = 0; i < WARMUPS; i++) {
+      update.run();
+      validate.run();
+    }
+    Benchmarks.run("schema updated", 0, ITERATIONS, 1, update);
+    Benchmarks.run("schema validated", 0, ITERATIONS, 1, validate);
+  }
+}
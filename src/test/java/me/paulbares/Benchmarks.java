@@ -0,0 +1,85 @@
+package me.paulbares;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Utility class for benchmarks. Benchmark classes are named {@code Benchmark*} so that they are not picked by surefire
+ * when running the unit tests. Run them explicitly with {@code mvn test -Dtest='Benchmark*'}.
+ */
+public class Benchmarks {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Benchmarks.class);
+
+  /**
+   * Thread mx bean used to measure the memory allocated by the benchmarked code.
+   */
+  private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  /**
+   * The result of a benchmark.
+   */
+  public static class Result {
+
+    public final String name;
+    public final long operations;
+    public final long nanos;
+    public final long allocatedBytes;
+
+    Result(String name, long operations, long nanos, long allocatedBytes) {
+      this.name = name;
+      this.operations = operations;
+      this.nanos = nanos;
+      this.allocatedBytes = allocatedBytes;
+    }
+
+    public double operationsPerSecond() {
+      return this.operations / (this.nanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    public double nanosPerOperation() {
+      return this.nanos / (double) this.operations;
+    }
+
+    public double bytesPerOperation() {
+      return this.allocatedBytes / (double) this.operations;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%-50s %12.0f ops/s %12.0f ns/op %12.0f B/op", this.name, operationsPerSecond(),
+              nanosPerOperation(), bytesPerOperation());
+    }
+  }
+
+  /**
+   * Runs the given task {@code warmups} times then measures {@code iterations} executions of it on the current thread
+   * and logs the result.
+   *
+   * @param name the name of the benchmark
+   * @param warmups the number of executions before measuring
+   * @param iterations the number of measured executions
+   * @param operationsPerIteration the number of operations done by one execution of the task
+   * @param task the task to benchmark
+   * @return the result of the benchmark
+   */
+  public static Result run(String name, int warmups, int iterations, long operationsPerIteration, Runnable task) {
+    for (int i = 0; i < warmups; i++) {
+      task.run();
+    }
+    long threadId = Thread.currentThread().getId();
+    long bytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      task.run();
+    }
+    long nanos = System.nanoTime() - start;
+    bytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - bytes;
+    Result result = new Result(name, operationsPerIteration * iterations, nanos, bytes);
+    LOGGER.info("{}", result);
+    return result;
+  }
+}
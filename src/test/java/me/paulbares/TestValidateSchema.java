@@ -0,0 +1,61 @@
+package me.paulbares;
+
+import me.paulbares.bpmn.TestBasicApprovalWorkflow;
+import me.paulbares.camunda.BasicApprovalWorflow;
+import me.paulbares.service.NotificationService;
+import org.camunda.bpm.engine.ProcessEngine;
+import org.camunda.bpm.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestValidateSchema {
+
+  /**
+   * Starts {@link Application} on the given in-memory database, kept until the JVM exits.
+   *
+   * @param database the name of the database
+   * @param properties additional properties, {@code key=value}
+   * @return the started context
+   */
+  static ConfigurableApplicationContext boot(String database, String... properties) {
+    List<String> all = new ArrayList<>(Arrays.asList(properties));
+    all.add("spring.datasource.url=jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1");
+    return new SpringApplicationBuilder(Application.class)
+            .web(WebApplicationType.NONE)
+            .properties(all.toArray(new String[0]))
+            .run();
+  }
+
+  @Test
+  void testValidateSchema() {
+    // The schema of the engine is created by a boot without validation
+    boot("validate-schema").close();
+
+    try (ConfigurableApplicationContext context = boot("validate-schema", "notification.engine.validate-schema=true")) {
+      ProcessEngine processEngine = context.getBean(ProcessEngine.class);
+      ProcessEngineConfigurationImpl conf = (ProcessEngineConfigurationImpl) processEngine.getProcessEngineConfiguration();
+      assertThat(conf.getDatabaseSchemaUpdate()).isEqualTo(ProcessEngineConfigurationImpl.DB_SCHEMA_UPDATE_FALSE);
+
+      TestBasicApprovalWorkflow.deployIfNecessary(processEngine);
+      processEngine.getRuntimeService().startProcessInstanceByKey(BasicApprovalWorflow.NAME);
+      NotificationService notificationService = context.getBean(NotificationService.class);
+      assertThat(notificationService.countUnreadAndActiveNotifications("user1", List.of())).isEqualTo(1);
+    }
+  }
+
+  @Test
+  void testValidateSchemaWithoutSchema() {
+    // The schema of the engine is not created
+    assertThatThrownBy(() -> boot("validate-schema-no-schema", "notification.engine.validate-schema=true").close())
+            .hasStackTraceContaining("There are no Camunda tables in the database");
+  }
+}
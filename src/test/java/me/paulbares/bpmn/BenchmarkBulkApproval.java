@@ -0,0 +1,116 @@
+package me.paulbares.bpmn;
+
+import me.paulbares.Benchmarks;
+import me.paulbares.camunda.ApprovalWorkflowTaskListener;
+import me.paulbares.camunda.BasicApprovalWorflow;
+import me.paulbares.camunda.BulkApprovalService;
+import me.paulbares.domain.Notification;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import me.paulbares.subscription.Subscriber;
+import me.paulbares.subscription.Subscription;
+import org.camunda.bpm.engine.ProcessEngine;
+import org.camunda.bpm.engine.task.Task;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static me.paulbares.Utils.user1;
+import static me.paulbares.Utils.user4;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the throughput of approving tasks one by one with {@link org.camunda.bpm.engine.TaskService#complete(String, Map)}
+ * and with {@link BulkApprovalService}, notifications saved in the database and delivered to the subscribers included.
+ */
+@SpringBootTest(classes = me.paulbares.Application.class, webEnvironment = SpringBootTest.WebEnvironment.NONE)
+public class BenchmarkBulkApproval {
+
+  static final int TASKS = 200;
+
+  static final int WARMUPS = 2;
+
+  static final int ITERATIONS = 5;
+
+  @Autowired
+  ProcessEngine processEngine;
+
+  @Autowired
+  BulkApprovalService bulkApprovalService;
+
+  @Autowired
+  ApproverWorkflowRegistrar registrar;
+
+  /**
+   * The number of updates received by the subscribers.
+   */
+  final AtomicLong updateCalls = new AtomicLong();
+
+  @Test
+  void benchmark() {
+    TestBasicApprovalWorkflow.deployIfNecessary(this.processEngine);
+    Subscription subscription1 = this.registrar.subscribe(user1, subscriber());
+    Subscription subscription4 = this.registrar.subscribe(user4, subscriber());
+    Map<String, Object> approved = Map.of(ApprovalWorkflowTaskListener.APPROVED_KEY, true);
+
+    Deque<List<String>> tasks = startInstances();
+    Benchmarks.Result single = Benchmarks.run("TaskService#complete", WARMUPS, ITERATIONS, TASKS,
+            () -> tasks.pop().forEach(id -> this.processEngine.getTaskService().complete(id, approved)));
+    long singleUpdates = this.updateCalls.getAndSet(0);
+
+    Deque<List<String>> bulkTasks = startInstances();
+    Benchmarks.Result bulk = Benchmarks.run("BulkApprovalService#approve", WARMUPS, ITERATIONS, TASKS,
+            () -> this.bulkApprovalService.approve(bulkTasks.pop()));
+    long bulkUpdates = this.updateCalls.getAndSet(0);
+
+    subscription1.unsubscribe();
+    subscription4.unsubscribe();
+    assertThat(singleUpdates).isEqualTo(2L * TASKS * (WARMUPS + ITERATIONS));
+    assertThat(bulkUpdates).isEqualTo(2L * (WARMUPS + ITERATIONS)); // one per subscriber and chunk
+    assertThat(bulk.operationsPerSecond()).isGreaterThan(single.operationsPerSecond());
+  }
+
+  /**
+   * Starts the instances whose first task is approved by one execution of a benchmark.
+   *
+   * @return the ids of the first tasks, {@link #TASKS} per execution
+   */
+  Deque<List<String>> startInstances() {
+    Deque<List<String>> tasks = new ArrayDeque<>();
+    for (int i = 0; i < WARMUPS + ITERATIONS; i++) {
+      List<String> ids = new ArrayList<>(TASKS);
+      for (int j = 0; j < TASKS; j++) {
+        String instanceId = this.processEngine.getRuntimeService().startProcessInstanceByKey(BasicApprovalWorflow.NAME).getId();
+        Task task = this.processEngine.getTaskService().createTaskQuery().processInstanceId(instanceId).singleResult();
+        ids.add(task.getId());
+      }
+      tasks.add(ids);
+    }
+    this.updateCalls.set(0);
+    return tasks;
+  }
+
+  Subscriber<Notification> subscriber() {
+    return new Subscriber<>() {
+      @Override
+      public void onSubscribe(List<Notification> notifications) {
+      }
+
+      @Override
+      public void onUpdate(Notification notification) {
+        updateCalls.incrementAndGet();
+      }
+
+      @Override
+      public void onUpdates(List<Notification> notifications) {
+        updateCalls.incrementAndGet();
+      }
+    };
+  }
+}
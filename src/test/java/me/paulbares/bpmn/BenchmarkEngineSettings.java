@@ -0,0 +1,258 @@
+package me.paulbares.bpmn;
+
+import com.zaxxer.hikari.HikariDataSource;
+import me.paulbares.Benchmarks;
+import me.paulbares.camunda.ApprovalWorkflowTaskListener;
+import me.paulbares.camunda.BasicApprovalWorflow;
+import me.paulbares.camunda.EngineSettings;
+import me.paulbares.camunda.NotificationProcessEnginePlugin;
+import me.paulbares.service.NotificationService;
+import me.paulbares.service.NotificationServiceImpl;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import org.camunda.bpm.engine.ProcessEngine;
+import org.camunda.bpm.engine.ProcessEngineConfiguration;
+import org.camunda.bpm.engine.TaskService;
+import org.camunda.bpm.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.camunda.bpm.engine.impl.cfg.StandaloneProcessEngineConfiguration;
+import org.camunda.bpm.engine.impl.history.HistoryLevel;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures the number of {@link BasicApprovalWorflow} instances run per second from start to end, both tasks approved
+ * and their notifications saved in the database, for each setting of {@link EngineSettings} changed alone from the
+ * defaults and for the {@link EngineSettings.Profile#THROUGHPUT} profile.
+ * <p>
+ * Each engine has a database of its own, except the ones running the profiles as they ship and comparing the
+ * connection pools: they share the database of the notifications, with the same pool or with a pool of their own. The
+ * schema of an engine is dropped and its notifications are archived once it is closed since the ids of the tasks of
+ * the next one start over.
+ * </p>
+ */
+@SpringBootTest(classes = me.paulbares.Application.class, webEnvironment = SpringBootTest.WebEnvironment.NONE)
+public class BenchmarkEngineSettings {
+
+  static final int THREADS = 4;
+
+  static final int INSTANCES_PER_THREAD = 50;
+
+  static final int WARMUPS = 2;
+
+  static final int ITERATIONS = 3;
+
+  /**
+   * The number of times all the variants are measured, one after the other so that a slow period of the machine does
+   * not favor one of them. The JIT keeps improving during the first round, which is not reported.
+   */
+  static final int ROUNDS = 5;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BenchmarkEngineSettings.class);
+
+  @Autowired
+  DataSource dataSource;
+
+  @Autowired
+  DataSourceProperties dataSourceProperties;
+
+  @Autowired
+  NotificationService notificationService;
+
+  @Autowired
+  NotificationServiceImpl notificationServiceImpl;
+
+  @Autowired
+  ApproverWorkflowRegistrar registrar;
+
+  int engines;
+
+  /**
+   * The instances run per second of each variant, one per round after the first.
+   */
+  final Map<String, List<Double>> results = new LinkedHashMap<>();
+
+  @Test
+  void benchmark() throws Exception {
+    Map<String, EngineSettings> variants = new LinkedHashMap<>();
+    variants.put("default", EngineSettings.of(EngineSettings.Profile.DEFAULT));
+    variants.put("jdbc batch processing off", EngineSettings.of(EngineSettings.Profile.DEFAULT).setJdbcBatchProcessing(false));
+    variants.put("id blocks of 1000", EngineSettings.of(EngineSettings.Profile.DEFAULT).setIdBlockSize(1000));
+    variants.put("uuid ids", EngineSettings.of(EngineSettings.Profile.DEFAULT).setIdGenerator(EngineSettings.IdGeneratorType.UUID));
+    variants.put("activity history", EngineSettings.of(EngineSettings.Profile.DEFAULT).setHistory(ProcessEngineConfiguration.HISTORY_ACTIVITY));
+    variants.put("no history", EngineSettings.of(EngineSettings.Profile.DEFAULT).setHistory(ProcessEngineConfiguration.HISTORY_NONE));
+    variants.put("job executor", EngineSettings.of(EngineSettings.Profile.DEFAULT).setJobExecutorActivate(true));
+    for (int round = 1; round <= ROUNDS; round++) {
+      for (Map.Entry<String, EngineSettings> variant : variants.entrySet()) {
+        try (HikariDataSource engineDataSource = new HikariDataSource()) {
+          engineDataSource.setJdbcUrl("jdbc:h2:mem:engine-settings-" + this.engines);
+          engineDataSource.setMaximumPoolSize(2 * THREADS);
+          benchmark(round, variant.getKey(), variant.getValue(), engineDataSource);
+        }
+      }
+
+      // The profiles as they ship, the engine on the database of the notifications with the pool of the notifications
+      // or a pool of its own
+      for (EngineSettings.Profile profile : EngineSettings.Profile.values()) {
+        EngineSettings settings = EngineSettings.of(profile);
+        try (HikariDataSource engineDataSource = engineDataSource(settings)) {
+          benchmark(round, profile + " profile", settings, engineDataSource == null ? this.dataSource : engineDataSource);
+        }
+      }
+      for (EngineSettings.Profile profile : EngineSettings.Profile.values()) {
+        // More connections than threads: a command fetching a block of ids holds a second connection
+        EngineSettings settings = EngineSettings.of(profile).setDataSourcePoolSize(2 * THREADS);
+        try (HikariDataSource engineDataSource = engineDataSource(settings)) {
+          benchmark(round, profile + " profile, pool of its own", settings, engineDataSource);
+        }
+      }
+    }
+
+    // The median and the spread of each variant over the rounds
+    for (Map.Entry<String, List<Double>> result : this.results.entrySet()) {
+      List<Double> values = new ArrayList<>(result.getValue());
+      Collections.sort(values);
+      LOGGER.info(String.format("%-50s median %4.0f min %4.0f max %4.0f ops/s", result.getKey(),
+              values.get(values.size() / 2), values.get(0), values.get(values.size() - 1)));
+    }
+  }
+
+  /**
+   * Creates the pool of the engine to the database of the notifications like
+   * {@code CamundaProcessEngineConfiguration#engineDataSource}, null if the engine shares the pool of the notifications.
+   * The engine gets a schema of its own: the one of the notifications already contains the tables of the engine of
+   * the application, with its history level.
+   */
+  HikariDataSource engineDataSource(EngineSettings settings) throws SQLException {
+    if (settings.getDataSourcePoolSize() == 0) {
+      return null;
+    }
+    String schema = "ENGINE_SETTINGS_" + this.engines;
+    try (Connection connection = this.dataSource.getConnection(); Statement statement = connection.createStatement()) {
+      statement.execute("CREATE SCHEMA IF NOT EXISTS " + schema);
+    }
+    HikariDataSource engineDataSource = this.dataSourceProperties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    engineDataSource.setMaximumPoolSize(settings.getDataSourcePoolSize());
+    engineDataSource.setSchema(schema);
+    return engineDataSource;
+  }
+
+  void benchmark(int round, String name, EngineSettings settings, DataSource dataSource) throws Exception {
+    String schema = dataSource instanceof HikariDataSource ? ((HikariDataSource) dataSource).getSchema() : null;
+    ProcessEngineConfigurationImpl conf = new StandaloneProcessEngineConfiguration()
+            .setDataSource(dataSource)
+            // Dropped on close unless it is the one of the application
+            .setDatabaseSchemaUpdate(dataSource == this.dataSource
+                    ? ProcessEngineConfiguration.DB_SCHEMA_UPDATE_TRUE
+                    : ProcessEngineConfiguration.DB_SCHEMA_UPDATE_CREATE_DROP)
+            .setProcessEngineName("engine-settings-" + this.engines++);
+    if (schema != null) {
+      conf.setDatabaseSchema(schema);
+      conf.setDatabaseTablePrefix(schema + ".");
+    }
+    settings.applyTo(conf);
+    conf.getProcessEnginePlugins().add(new NotificationProcessEnginePlugin(new ApprovalWorkflowTaskListener(this.notificationService, this.registrar)));
+    // The schema of the application has the history level of its engine
+    String historyLevel = dataSource == this.dataSource ? setHistoryLevel(settings.getHistory()) : null;
+    ProcessEngine processEngine = conf.buildProcessEngine();
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      processEngine.getRepositoryService().createDeployment()
+              .addModelInstance(BasicApprovalWorflow.NAME + ".bpmn", BasicApprovalWorflow.getBpmnModelInstance())
+              .deploy();
+      Benchmarks.Result result = Benchmarks.run("round " + round + ", " + name, WARMUPS, ITERATIONS, THREADS * INSTANCES_PER_THREAD, () -> runInstances(processEngine, executor));
+      if (round > 1) {
+        this.results.computeIfAbsent(name, k -> new ArrayList<>()).add(result.operationsPerSecond());
+      }
+      assertThat(processEngine.getTaskService().createTaskQuery().processDefinitionKey(BasicApprovalWorflow.NAME).count()).isZero();
+    } finally {
+      executor.shutdown();
+      processEngine.close();
+      if (historyLevel != null) {
+        updateHistoryLevel(historyLevel);
+      }
+    }
+    Instant now = Instant.now();
+    while (this.notificationServiceImpl.archiveInactiveNotifications(now, NotificationServiceImpl.MAX_IN_PARAMETERS) > 0) {
+      // until all are archived
+    }
+  }
+
+  /**
+   * Sets the history level recorded in the schema of the application, the engine refusing to start with another one.
+   *
+   * @param history the name of the history level
+   * @return the previous history level, as recorded
+   */
+  String setHistoryLevel(String history) throws SQLException {
+    String previous;
+    try (Connection connection = this.dataSource.getConnection(); Statement statement = connection.createStatement()) {
+      ResultSet resultSet = statement.executeQuery("SELECT VALUE_ FROM ACT_GE_PROPERTY WHERE NAME_ = 'historyLevel'");
+      resultSet.next();
+      previous = resultSet.getString(1);
+    }
+    int id = Stream.of(HistoryLevel.HISTORY_LEVEL_NONE, HistoryLevel.HISTORY_LEVEL_ACTIVITY, HistoryLevel.HISTORY_LEVEL_AUDIT, HistoryLevel.HISTORY_LEVEL_FULL)
+            .filter(level -> level.getName().equals(history))
+            .findFirst()
+            .orElseThrow()
+            .getId();
+    updateHistoryLevel(Integer.toString(id));
+    return previous;
+  }
+
+  void updateHistoryLevel(String value) throws SQLException {
+    try (Connection connection = this.dataSource.getConnection();
+         PreparedStatement statement = connection.prepareStatement("UPDATE ACT_GE_PROPERTY SET VALUE_ = ? WHERE NAME_ = 'historyLevel'")) {
+      statement.setString(1, value);
+      statement.executeUpdate();
+    }
+  }
+
+  /**
+   * Runs {@link #INSTANCES_PER_THREAD} instances on each of the {@link #THREADS} threads, both tasks approved.
+   */
+  static void runInstances(ProcessEngine processEngine, ExecutorService executor) {
+    TaskService taskService = processEngine.getTaskService();
+    Map<String, Object> approved = Map.of(ApprovalWorkflowTaskListener.APPROVED_KEY, true);
+    Function<String, String> currentTask = instanceId -> taskService.createTaskQuery().processInstanceId(instanceId).singleResult().getId();
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      futures.add(executor.submit(() -> {
+        for (int j = 0; j < INSTANCES_PER_THREAD; j++) {
+          String instanceId = processEngine.getRuntimeService().startProcessInstanceByKey(BasicApprovalWorflow.NAME).getId();
+          taskService.complete(currentTask.apply(instanceId), approved);
+          taskService.complete(currentTask.apply(instanceId), approved);
+        }
+      }));
+    }
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
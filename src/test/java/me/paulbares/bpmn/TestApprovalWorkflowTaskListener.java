@@ -0,0 +1,147 @@
+package me.paulbares.bpmn;
+
+import me.paulbares.camunda.ApprovalWorkflowTaskListener;
+import me.paulbares.camunda.NotificationProcessEnginePlugin;
+import me.paulbares.domain.Notification;
+import me.paulbares.service.InMemoryNotificationService;
+import me.paulbares.service.NotificationAndRecipients;
+import me.paulbares.service.NotificationBatch;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import me.paulbares.subscription.Subscriber;
+import org.camunda.bpm.engine.ProcessEngine;
+import org.camunda.bpm.engine.impl.cfg.StandaloneInMemProcessEngineConfiguration;
+import org.camunda.bpm.engine.runtime.ProcessInstance;
+import org.camunda.bpm.engine.task.Task;
+import org.camunda.bpm.model.bpmn.Bpmn;
+import org.camunda.bpm.model.bpmn.BpmnModelInstance;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static me.paulbares.Utils.getCurrentTask;
+import static me.paulbares.Utils.user1;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestApprovalWorkflowTaskListener {
+
+  static final String PROCESS = "two-steps";
+
+  ProcessEngine processEngine;
+
+  /**
+   * The number of calls to {@link InMemoryNotificationService#apply(NotificationBatch)}.
+   */
+  final AtomicInteger applyCalls = new AtomicInteger();
+
+  /**
+   * True to make the next save fail.
+   */
+  final AtomicBoolean failSave = new AtomicBoolean();
+
+  /**
+   * The updates received by user1, one list per call.
+   */
+  final List<List<String>> updates = Collections.synchronizedList(new ArrayList<>());
+
+  @BeforeEach
+  void setUp() {
+    InMemoryNotificationService notificationService = new InMemoryNotificationService(() -> Instant.now()) {
+      @Override
+      public void apply(NotificationBatch batch) {
+        applyCalls.incrementAndGet();
+        super.apply(batch);
+      }
+
+      @Override
+      public List<Notification> saveNotificationsAndRecipients(List<NotificationAndRecipients> notifications) {
+        if (failSave.get()) {
+          throw new IllegalStateException("save failed");
+        }
+        return super.saveNotificationsAndRecipients(notifications);
+      }
+    };
+    ApproverWorkflowRegistrar registrar = new ApproverWorkflowRegistrar(notificationService::getUnreadAndActiveNotificationsInDescOrder);
+    registrar.subscribe(user1, new Subscriber<>() {
+      @Override
+      public void onSubscribe(List<Notification> notifications) {
+      }
+
+      @Override
+      public void onUpdate(Notification notification) {
+        onUpdates(List.of(notification));
+      }
+
+      @Override
+      public void onUpdates(List<Notification> notifications) {
+        List<String> update = new ArrayList<>();
+        notifications.forEach(n -> update.add(n.getBusinessId() + (n.getActive() ? "+" : "-")));
+        updates.add(update);
+      }
+    });
+
+    StandaloneInMemProcessEngineConfiguration conf = new StandaloneInMemProcessEngineConfiguration();
+    conf.setJdbcUrl("jdbc:h2:mem:task-listener");
+    conf.getProcessEnginePlugins().add(new NotificationProcessEnginePlugin(new ApprovalWorkflowTaskListener(notificationService, registrar)));
+    this.processEngine = conf.buildProcessEngine();
+    this.processEngine.getRepositoryService().createDeployment().addModelInstance(PROCESS + ".bpmn", model()).deploy();
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.processEngine.close();
+  }
+
+  /**
+   * Two user tasks of user1 one after the other.
+   */
+  static BpmnModelInstance model() {
+    return Bpmn.createExecutableProcess(PROCESS)
+            .startEvent()
+            .userTask()
+            .camundaCandidateUsers("user1")
+            .userTask()
+            .camundaCandidateGroups("group1")
+            .endEvent()
+            .done();
+  }
+
+  @Test
+  void testOneBatchPerCommand() {
+    ProcessInstance instance = this.processEngine.getRuntimeService().startProcessInstanceByKey(PROCESS);
+    Task first = getCurrentTask(this.processEngine, instance);
+    assertThat(this.applyCalls).hasValue(1);
+    assertThat(this.updates).containsExactly(List.of(first.getId() + "+"));
+
+    // The completion of the first task and the creation of the second one are applied and delivered at once
+    this.processEngine.getTaskService().complete(first.getId());
+    Task second = getCurrentTask(this.processEngine, instance);
+    assertThat(this.applyCalls).hasValue(2);
+    assertThat(this.updates).containsExactly(
+            List.of(first.getId() + "+"),
+            List.of(first.getId() + "-", second.getId() + "+"));
+  }
+
+  @Test
+  void testFailedSaveRollsBackTheCommand() {
+    ProcessInstance instance = this.processEngine.getRuntimeService().startProcessInstanceByKey(PROCESS);
+    Task first = getCurrentTask(this.processEngine, instance);
+
+    this.failSave.set(true);
+    assertThatThrownBy(() -> this.processEngine.getTaskService().complete(first.getId())).hasMessageContaining("save failed");
+    assertThat(getCurrentTask(this.processEngine, instance).getId()).isEqualTo(first.getId());
+    assertThat(this.updates).hasSize(1);
+
+    // The events of the failed command are not kept
+    this.failSave.set(false);
+    this.processEngine.getTaskService().complete(first.getId());
+    assertThat(this.updates).hasSize(2);
+  }
+}
@@ -2,6 +2,7 @@ package me.paulbares.bpmn;
 
 import me.paulbares.camunda.ApprovalWorkflowTaskListener;
 import me.paulbares.camunda.BasicApprovalWorflow;
+import me.paulbares.camunda.NotificationProcessEnginePlugin;
 import me.paulbares.service.NotificationService;
 import me.paulbares.subscription.ApproverWorkflowRegistrar;
 import org.assertj.core.api.Assertions;
@@ -37,7 +38,7 @@ public class TestBasicApprovalWorkflow {
   public static void init() {
     registrar = new ApproverWorkflowRegistrar((a, b) -> Collections.emptyList());
     StandaloneInMemProcessEngineConfiguration conf = new StandaloneInMemProcessEngineConfiguration();
-    conf.setBeans(Collections.singletonMap(BasicApprovalWorflow.LISTENER_BEAN_NAME, new ApprovalWorkflowTaskListener(Mockito.mock(NotificationService.class), registrar)));
+    conf.getProcessEnginePlugins().add(new NotificationProcessEnginePlugin(new ApprovalWorkflowTaskListener(Mockito.mock(NotificationService.class), registrar)));
     processEngine = conf.buildProcessEngine();
     deployIfNecessary(processEngine);
   }
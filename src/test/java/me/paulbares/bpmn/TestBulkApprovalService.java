@@ -0,0 +1,134 @@
+package me.paulbares.bpmn;
+
+import me.paulbares.camunda.ApprovalWorkflowTaskListener;
+import me.paulbares.camunda.BasicApprovalWorflow;
+import me.paulbares.camunda.BulkApprovalService;
+import me.paulbares.camunda.NotificationProcessEnginePlugin;
+import me.paulbares.domain.Notification;
+import me.paulbares.service.InMemoryNotificationService;
+import me.paulbares.service.NotificationBatch;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import me.paulbares.subscription.Subscriber;
+import org.camunda.bpm.engine.ProcessEngine;
+import org.camunda.bpm.engine.impl.cfg.StandaloneInMemProcessEngineConfiguration;
+import org.camunda.bpm.engine.task.Task;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static me.paulbares.Utils.user1;
+import static me.paulbares.Utils.user4;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestBulkApprovalService {
+
+  ProcessEngine processEngine;
+
+  InMemoryNotificationService notificationService;
+
+  BulkApprovalService bulkApprovalService;
+
+  /**
+   * The number of calls to {@link InMemoryNotificationService#markAsInactive(List)}.
+   */
+  final AtomicInteger inactiveCalls = new AtomicInteger();
+
+  /**
+   * The number of notifications received by user1 and user4, one element per call.
+   */
+  final List<Integer> user1Updates = Collections.synchronizedList(new ArrayList<>());
+  final List<Integer> user4Updates = Collections.synchronizedList(new ArrayList<>());
+
+  @BeforeEach
+  void setUp() {
+    this.notificationService = new InMemoryNotificationService(() -> Instant.now()) {
+      @Override
+      public void markAsInactive(List<NotificationBatch.Entry> entries) {
+        inactiveCalls.incrementAndGet();
+        super.markAsInactive(entries);
+      }
+    };
+    ApproverWorkflowRegistrar registrar = new ApproverWorkflowRegistrar(this.notificationService::getUnreadAndActiveNotificationsInDescOrder);
+    registrar.subscribe(user1, subscriber(this.user1Updates));
+    registrar.subscribe(user4, subscriber(this.user4Updates));
+
+    StandaloneInMemProcessEngineConfiguration conf = new StandaloneInMemProcessEngineConfiguration();
+    conf.setJdbcUrl("jdbc:h2:mem:bulk-approval");
+    conf.getProcessEnginePlugins().add(new NotificationProcessEnginePlugin(new ApprovalWorkflowTaskListener(this.notificationService, registrar)));
+    this.processEngine = conf.buildProcessEngine();
+    this.processEngine.getRepositoryService().createDeployment()
+            .addModelInstance(BasicApprovalWorflow.NAME + ".bpmn", BasicApprovalWorflow.getBpmnModelInstance())
+            .deploy();
+    this.bulkApprovalService = new BulkApprovalService(this.processEngine, 4);
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.processEngine.close();
+  }
+
+  static Subscriber<Notification> subscriber(List<Integer> updates) {
+    return new Subscriber<>() {
+      @Override
+      public void onSubscribe(List<Notification> notifications) {
+      }
+
+      @Override
+      public void onUpdate(Notification notification) {
+        onUpdates(List.of(notification));
+      }
+
+      @Override
+      public void onUpdates(List<Notification> notifications) {
+        updates.add(notifications.size());
+      }
+    };
+  }
+
+  List<String> startInstances(int count) {
+    for (int i = 0; i < count; i++) {
+      this.processEngine.getRuntimeService().startProcessInstanceByKey(BasicApprovalWorflow.NAME);
+    }
+    this.user1Updates.clear();
+    return this.processEngine.getTaskService().createTaskQuery().taskCandidateUser("user1").list()
+            .stream()
+            .map(Task::getId)
+            .collect(Collectors.toList());
+  }
+
+  @Test
+  void testApprove() {
+    List<String> taskIds = startInstances(10);
+    assertThat(taskIds).hasSize(10);
+
+    this.bulkApprovalService.approve(taskIds);
+
+    assertThat(this.notificationService.countUnreadAndActiveNotifications("user1", List.of())).isZero();
+    assertThat(this.notificationService.countUnreadAndActiveNotifications("user4", List.of())).isEqualTo(10);
+    // One set-based inactivation and one update per subscriber for each chunk of 4 tasks
+    assertThat(this.inactiveCalls).hasValue(3);
+    assertThat(this.user1Updates).containsExactly(4, 4, 2);
+    assertThat(this.user4Updates).containsExactly(4, 4, 2);
+  }
+
+  @Test
+  void testFailedChunk() {
+    List<String> taskIds = new ArrayList<>(startInstances(6));
+    taskIds.add(5, "unknown");
+
+    assertThatThrownBy(() -> this.bulkApprovalService.approve(taskIds)).hasMessageContaining("unknown");
+
+    // The first chunk is completed, the second one is rolled back
+    assertThat(this.notificationService.countUnreadAndActiveNotifications("user1", List.of())).isEqualTo(2);
+    assertThat(this.notificationService.countUnreadAndActiveNotifications("user4", List.of())).isEqualTo(4);
+    assertThat(this.user1Updates).containsExactly(4);
+  }
+}
@@ -0,0 +1,92 @@
+package me.paulbares.bpmn;
+
+import me.paulbares.camunda.ApprovalWorkflowTaskListener;
+import me.paulbares.camunda.BasicApprovalWorflow;
+import me.paulbares.camunda.EngineSettings;
+import me.paulbares.camunda.NotificationProcessEnginePlugin;
+import me.paulbares.service.InMemoryNotificationService;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import org.camunda.bpm.engine.ProcessEngine;
+import org.camunda.bpm.engine.ProcessEngineConfiguration;
+import org.camunda.bpm.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.camunda.bpm.engine.impl.cfg.StandaloneInMemProcessEngineConfiguration;
+import org.camunda.bpm.engine.runtime.ProcessInstance;
+import org.camunda.bpm.engine.task.Task;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static me.paulbares.Utils.getCurrentTask;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestEngineSettings {
+
+  ProcessEngine processEngine;
+
+  InMemoryNotificationService notificationService;
+
+  ProcessEngine buildProcessEngine(EngineSettings settings) {
+    this.notificationService = new InMemoryNotificationService(() -> Instant.now());
+    ApproverWorkflowRegistrar registrar = new ApproverWorkflowRegistrar(this.notificationService::getUnreadAndActiveNotificationsInDescOrder);
+    StandaloneInMemProcessEngineConfiguration conf = new StandaloneInMemProcessEngineConfiguration();
+    conf.setJdbcUrl("jdbc:h2:mem:engine-settings");
+    settings.applyTo(conf);
+    conf.getProcessEnginePlugins().add(new NotificationProcessEnginePlugin(new ApprovalWorkflowTaskListener(this.notificationService, registrar)));
+    this.processEngine = conf.buildProcessEngine();
+    this.processEngine.getRepositoryService().createDeployment()
+            .addModelInstance(BasicApprovalWorflow.NAME + ".bpmn", BasicApprovalWorflow.getBpmnModelInstance())
+            .deploy();
+    return this.processEngine;
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.processEngine.close();
+  }
+
+  @Test
+  void testDefaultProfile() {
+    ProcessEngineConfigurationImpl conf = (ProcessEngineConfigurationImpl) buildProcessEngine(EngineSettings.of(EngineSettings.Profile.DEFAULT))
+            .getProcessEngineConfiguration();
+    assertThat(conf.isJdbcBatchProcessing()).isTrue();
+    assertThat(conf.getIdBlockSize()).isEqualTo(100);
+    assertThat(conf.getHistoryLevel().getName()).isEqualTo(ProcessEngineConfiguration.HISTORY_AUDIT);
+    assertThat(conf.isJobExecutorActivate()).isFalse();
+  }
+
+  @Test
+  void testThroughputProfile() {
+    EngineSettings settings = EngineSettings.of(EngineSettings.Profile.THROUGHPUT);
+    ProcessEngine processEngine = buildProcessEngine(settings);
+    ProcessEngineConfigurationImpl conf = (ProcessEngineConfigurationImpl) processEngine.getProcessEngineConfiguration();
+    assertThat(conf.getIdBlockSize()).isEqualTo(100);
+    assertThat(conf.getHistoryLevel().getName()).isEqualTo(ProcessEngineConfiguration.HISTORY_NONE);
+    assertThat(conf.isJobExecutorActivate()).isFalse();
+    assertThat(settings.getDataSourcePoolSize()).isZero();
+
+    ProcessInstance instance = processEngine.getRuntimeService().startProcessInstanceByKey(BasicApprovalWorflow.NAME);
+    Task task = getCurrentTask(processEngine, instance);
+    assertThat(this.notificationService.countUnreadAndActiveNotifications("user1", List.of())).isEqualTo(1);
+    processEngine.getTaskService().complete(task.getId(), Map.of(ApprovalWorkflowTaskListener.APPROVED_KEY, true));
+    assertThat(this.notificationService.countUnreadAndActiveNotifications("user1", List.of())).isZero();
+    assertThat(this.notificationService.countUnreadAndActiveNotifications("user4", List.of())).isEqualTo(1);
+
+    // Nothing is recorded in the history
+    assertThat(processEngine.getHistoryService().createHistoricTaskInstanceQuery().count()).isZero();
+    assertThat(processEngine.getHistoryService().createHistoricVariableInstanceQuery().count()).isZero();
+  }
+
+  @Test
+  void testUuidIds() {
+    ProcessEngine processEngine = buildProcessEngine(EngineSettings.of(EngineSettings.Profile.DEFAULT)
+            .setIdGenerator(EngineSettings.IdGeneratorType.UUID));
+    ProcessInstance instance = processEngine.getRuntimeService().startProcessInstanceByKey(BasicApprovalWorflow.NAME);
+    Task task = getCurrentTask(processEngine, instance);
+    assertThat(UUID.fromString(task.getId()).toString()).isEqualTo(task.getId());
+    assertThat(this.notificationService.countUnreadAndActiveNotifications("user1", List.of())).isEqualTo(1);
+  }
+}
@@ -0,0 +1,111 @@
+package me.paulbares.bpmn;
+
+import me.paulbares.camunda.ApprovalWorkflowTaskListener;
+import me.paulbares.camunda.NotificationHistoryEventHandler;
+import me.paulbares.service.InMemoryNotificationService;
+import me.paulbares.service.NotificationBatch;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import org.camunda.bpm.engine.ProcessEngine;
+import org.camunda.bpm.engine.impl.cfg.StandaloneInMemProcessEngineConfiguration;
+import org.camunda.bpm.engine.runtime.ProcessInstance;
+import org.camunda.bpm.engine.task.Task;
+import org.camunda.bpm.model.bpmn.Bpmn;
+import org.camunda.bpm.model.bpmn.BpmnModelInstance;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static me.paulbares.Utils.getCurrentTask;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestNotificationHistoryEventHandler {
+
+  static final String PROCESS = "history";
+
+  ProcessEngine processEngine;
+
+  InMemoryNotificationService notificationService;
+
+  /**
+   * The number of calls to {@link InMemoryNotificationService#apply(NotificationBatch)}.
+   */
+  final AtomicInteger applyCalls = new AtomicInteger();
+
+  @BeforeEach
+  void setUp() {
+    this.notificationService = new InMemoryNotificationService(() -> Instant.now()) {
+      @Override
+      public void apply(NotificationBatch batch) {
+        applyCalls.incrementAndGet();
+        super.apply(batch);
+      }
+    };
+    ApproverWorkflowRegistrar registrar = new ApproverWorkflowRegistrar((a, b) -> Collections.emptyList());
+    StandaloneInMemProcessEngineConfiguration conf = new StandaloneInMemProcessEngineConfiguration();
+    conf.setJdbcUrl("jdbc:h2:mem:history-handler");
+    conf.setCustomHistoryEventHandlers(List.of(new NotificationHistoryEventHandler(
+            new ApprovalWorkflowTaskListener(this.notificationService, registrar))));
+    this.processEngine = conf.buildProcessEngine();
+    this.processEngine.getRepositoryService().createDeployment().addModelInstance(PROCESS + ".bpmn", model()).deploy();
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.processEngine.close();
+  }
+
+  /**
+   * Two user tasks one after the other, without any listener.
+   */
+  static BpmnModelInstance model() {
+    return Bpmn.createExecutableProcess(PROCESS)
+            .startEvent()
+            .userTask()
+            .camundaCandidateUsers("user1")
+            .camundaCandidateGroups("group1")
+            .userTask()
+            .camundaCandidateUsers("user2")
+            .endEvent()
+            .done();
+  }
+
+  List<String> inbox(String user) {
+    return this.notificationService.getUnreadAndActiveNotificationsInDescOrder(user, List.of("group1"))
+            .stream()
+            .map(n -> n.getBusinessId())
+            .collect(Collectors.toList());
+  }
+
+  @Test
+  void testCreateAndComplete() {
+    ProcessInstance instance = this.processEngine.getRuntimeService().startProcessInstanceByKey(PROCESS);
+    Task first = getCurrentTask(this.processEngine, instance);
+    assertThat(inbox("user1")).containsExactly(first.getId());
+    assertThat(inbox("user3")).containsExactly(first.getId()); // through group1
+    assertThat(this.applyCalls).hasValue(1);
+
+    this.processEngine.getTaskService().complete(first.getId());
+    Task second = getCurrentTask(this.processEngine, instance);
+    assertThat(inbox("user1")).isEmpty();
+    assertThat(inbox("user2")).containsExactly(second.getId());
+    // One batch for the completion of the first task and the creation of the second one
+    assertThat(this.applyCalls).hasValue(2);
+  }
+
+  @Test
+  void testDeletedTask() {
+    ProcessInstance instance = this.processEngine.getRuntimeService().startProcessInstanceByKey(PROCESS);
+    Task first = getCurrentTask(this.processEngine, instance);
+    assertThat(inbox("user1")).containsExactly(first.getId());
+
+    // Ignored by the task listeners
+    this.processEngine.getRuntimeService().deleteProcessInstance(instance.getId(), "cancelled");
+    assertThat(inbox("user1")).isEmpty();
+  }
+}
@@ -0,0 +1,86 @@
+package me.paulbares.bpmn;
+
+import me.paulbares.camunda.ApprovalWorkflowTaskListener;
+import me.paulbares.camunda.BasicApprovalWorflow;
+import me.paulbares.camunda.NotificationProcessEnginePlugin;
+import me.paulbares.service.InMemoryNotificationService;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import org.camunda.bpm.engine.ProcessEngine;
+import org.camunda.bpm.engine.delegate.TaskListener;
+import org.camunda.bpm.engine.impl.cfg.StandaloneInMemProcessEngineConfiguration;
+import org.camunda.bpm.engine.runtime.ProcessInstance;
+import org.camunda.bpm.engine.task.Task;
+import org.camunda.bpm.model.bpmn.Bpmn;
+import org.camunda.bpm.model.bpmn.BpmnModelInstance;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+
+import static me.paulbares.Utils.getCurrentTask;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestNotificationProcessEnginePlugin {
+
+  ProcessEngine processEngine;
+
+  InMemoryNotificationService notificationService;
+
+  @BeforeEach
+  void setUp() {
+    this.notificationService = new InMemoryNotificationService(() -> Instant.now());
+    ApproverWorkflowRegistrar registrar = new ApproverWorkflowRegistrar((a, b) -> Collections.emptyList());
+    StandaloneInMemProcessEngineConfiguration conf = new StandaloneInMemProcessEngineConfiguration();
+    conf.setJdbcUrl("jdbc:h2:mem:notification-plugin");
+    // No bean is registered: the expressions of the legacy definitions would fail if they were evaluated
+    conf.getProcessEnginePlugins().add(new NotificationProcessEnginePlugin(new ApprovalWorkflowTaskListener(this.notificationService, registrar)));
+    this.processEngine = conf.buildProcessEngine();
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.processEngine.close();
+  }
+
+  /**
+   * A process with a single user task for user1, whose listener is declared with the legacy delegate expression or not.
+   */
+  static BpmnModelInstance model(String key, boolean legacy) {
+    var userTask = Bpmn.createExecutableProcess(key)
+            .startEvent()
+            .userTask()
+            .camundaCandidateUsers("user1");
+    if (legacy) {
+      String expression = "${" + BasicApprovalWorflow.LISTENER_BEAN_NAME + "}";
+      userTask = userTask
+              .camundaTaskListenerDelegateExpression(TaskListener.EVENTNAME_CREATE, expression)
+              .camundaTaskListenerDelegateExpression(TaskListener.EVENTNAME_COMPLETE, expression);
+    }
+    return userTask.endEvent().done();
+  }
+
+  void startAndComplete(String key, boolean legacy) {
+    this.processEngine.getRepositoryService().createDeployment().addModelInstance(key + ".bpmn", model(key, legacy)).deploy();
+    ProcessInstance instance = this.processEngine.getRuntimeService().startProcessInstanceByKey(key);
+    Task task = getCurrentTask(this.processEngine, instance);
+    assertThat(this.notificationService.getUnreadAndActiveNotificationsInDescOrder("user1", List.of()))
+            .extracting(n -> n.getBusinessId())
+            .containsExactly(task.getId());
+
+    this.processEngine.getTaskService().complete(task.getId());
+    assertThat(this.notificationService.countUnreadAndActiveNotifications("user1", List.of())).isZero();
+  }
+
+  @Test
+  void testAnyProcess() {
+    startAndComplete("any", false);
+  }
+
+  @Test
+  void testLegacyListenerIsReplaced() {
+    startAndComplete("legacy", true);
+  }
+}
@@ -0,0 +1,239 @@
+package me.paulbares.bpmn;
+
+import me.paulbares.Utils.AccumulatorSubscriber;
+import me.paulbares.camunda.ApprovalWorkflowTaskListener;
+import me.paulbares.camunda.NotificationProcessEnginePlugin;
+import me.paulbares.camunda.NotificationReconciler;
+import me.paulbares.camunda.WorkflowNotificationImpl;
+import me.paulbares.domain.Notification;
+import me.paulbares.repository.NotificationRepository;
+import me.paulbares.repository.RecipientRepository;
+import me.paulbares.service.NotificationServiceImpl;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import org.camunda.bpm.engine.ProcessEngine;
+import org.camunda.bpm.engine.delegate.DelegateTask;
+import org.camunda.bpm.engine.impl.cfg.StandaloneInMemProcessEngineConfiguration;
+import org.camunda.bpm.engine.task.Task;
+import org.camunda.bpm.model.bpmn.Bpmn;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+
+import javax.persistence.EntityManager;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static me.paulbares.Utils.user1;
+import static me.paulbares.Utils.user2;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+@DataJpaTest
+public class TestNotificationReconciler {
+
+  static final String PROCESS = "reconciler";
+
+  static final Instant START = Instant.parse("2020-06-01T00:00:00Z");
+
+  @Autowired
+  EntityManager manager;
+
+  @Autowired
+  NotificationRepository notificationRepository;
+
+  @Autowired
+  RecipientRepository recipientRepository;
+
+  NotificationServiceImpl service;
+
+  ProcessEngine processEngine;
+
+  ApproverWorkflowRegistrar registrar;
+
+  /**
+   * Ignores the task events while true, to make the notifications drift from the tasks.
+   */
+  boolean muted;
+
+  final AtomicReference<Instant> now = new AtomicReference<>(Instant.now());
+
+  final AccumulatorSubscriber subscriber1 = new AccumulatorSubscriber();
+
+  final AccumulatorSubscriber subscriber2 = new AccumulatorSubscriber();
+
+  NotificationReconciler reconciler;
+
+  @BeforeEach
+  void setUp() {
+    this.service = new NotificationServiceImpl(this.manager, this.notificationRepository, this.recipientRepository, () -> START);
+    this.registrar = new ApproverWorkflowRegistrar(this.service::getUnreadAndActiveNotificationsInDescOrder);
+    ApprovalWorkflowTaskListener listener = new ApprovalWorkflowTaskListener(this.service, this.registrar) {
+      @Override
+      public void notify(DelegateTask delegateTask) {
+        if (!muted) {
+          super.notify(delegateTask);
+        }
+      }
+    };
+
+    StandaloneInMemProcessEngineConfiguration conf = new StandaloneInMemProcessEngineConfiguration();
+    conf.setJdbcUrl("jdbc:h2:mem:reconciler");
+    conf.getProcessEnginePlugins().add(new NotificationProcessEnginePlugin(listener));
+    this.processEngine = conf.buildProcessEngine();
+    this.processEngine.getRepositoryService().createDeployment()
+            .addModelInstance(PROCESS + ".bpmn", Bpmn.createExecutableProcess(PROCESS)
+                    .startEvent()
+                    .userTask()
+                    .camundaCandidateUsers("user1")
+                    .endEvent()
+                    .done())
+            .deploy();
+    // Pages of 2 tasks and notifications
+    this.reconciler = new NotificationReconciler(this.processEngine, this.service, listener, this.registrar, 2,
+            Duration.ofHours(1), Duration.ZERO, 100, Duration.ofMinutes(1), this.now::get);
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.processEngine.close();
+  }
+
+  String startTask() {
+    String instanceId = this.processEngine.getRuntimeService().startProcessInstanceByKey(PROCESS).getId();
+    Task task = this.processEngine.getTaskService().createTaskQuery().processInstanceId(instanceId).singleResult();
+    return task.getId();
+  }
+
+  List<String> inbox(String user) {
+    return this.service.getUnreadAndActiveNotificationsInDescOrder(user, List.of())
+            .stream()
+            .map(Notification::getBusinessId)
+            .collect(Collectors.toList());
+  }
+
+  @Test
+  void testReconcile() throws InterruptedException {
+    List<String> tasks = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      tasks.add(startTask());
+    }
+
+    this.muted = true;
+    String missing = startTask();
+    this.processEngine.getTaskService().complete(tasks.get(1));
+    this.processEngine.getTaskService().setAssignee(tasks.get(2), "user2");
+    this.muted = false;
+    // Marked as inactive while the task is still open
+    this.service.markAsInactive(tasks.get(3), new HashSet<>(), new HashSet<>());
+
+    this.registrar.subscribe(user1, this.subscriber1);
+    this.registrar.subscribe(user2, this.subscriber2);
+
+    // The tasks are within the grace period, only the notifications are old enough to be corrected
+    assertThat(this.reconciler.run()).isEqualTo(2);
+    assertThat(inbox("user1")).containsExactlyInAnyOrder(tasks.get(0), tasks.get(4));
+    assertThat(inbox("user2")).containsExactly(tasks.get(2));
+    assertThat(this.subscriber1.updateNotifications)
+            .extracting(Notification::getBusinessId, Notification::getActive)
+            .containsExactlyInAnyOrder(tuple(tasks.get(1), false), tuple(tasks.get(2), false));
+    assertThat(this.subscriber2.updateIds).containsExactly(tasks.get(2));
+    this.subscriber1.clear();
+
+    this.now.set(Instant.now().plus(Duration.ofHours(2)));
+    assertThat(this.reconciler.run()).isEqualTo(2);
+    assertThat(inbox("user1")).containsExactlyInAnyOrder(tasks.get(0), tasks.get(3), tasks.get(4), missing);
+    assertThat(this.subscriber1.updateIds).containsExactlyInAnyOrder(tasks.get(3), missing);
+
+    // Nothing left to reconcile
+    assertThat(this.reconciler.run()).isEqualTo(0);
+  }
+
+  @Test
+  void testFailedSaveKeepsInactiveNotification() throws InterruptedException {
+    String task = startTask();
+    this.service.markAsInactive(task, new HashSet<>(), new HashSet<>());
+    this.now.set(Instant.now().plus(Duration.ofHours(2)));
+
+    NotificationServiceImpl failing = Mockito.spy(this.service);
+    Mockito.doThrow(new IllegalStateException("concurrent save")).when(failing).apply(Mockito.any());
+    NotificationReconciler reconciler = new NotificationReconciler(this.processEngine, failing,
+            new ApprovalWorkflowTaskListener(this.service, this.registrar), this.registrar, 2, Duration.ofHours(1),
+            Duration.ZERO, 100, Duration.ofMinutes(1), this.now::get);
+    assertThatThrownBy(reconciler::run).isInstanceOf(IllegalStateException.class);
+    // Archived, not deleted
+    assertThat(this.manager.createNativeQuery("SELECT business_id FROM notification_archive").getResultList()).containsExactly(task);
+
+    // Once the lease of the failed node has expired
+    this.now.set(this.now.get().plus(Duration.ofMinutes(5)));
+    assertThat(this.reconciler.run()).isEqualTo(1);
+    assertThat(inbox("user1")).containsExactly(task);
+  }
+
+  @Test
+  void testResumeFromPreviousRun() throws InterruptedException {
+    List<String> tasks = new ArrayList<>();
+    this.muted = true;
+    for (int i = 0; i < 6; i++) {
+      tasks.add(startTask());
+    }
+    this.muted = false;
+    this.now.set(Instant.now().plus(Duration.ofHours(2)));
+
+    NotificationReconciler reconciler = new NotificationReconciler(this.processEngine, this.service,
+            new ApprovalWorkflowTaskListener(this.service, this.registrar), this.registrar, 2, Duration.ofHours(1),
+            Duration.ZERO, 1, Duration.ofMinutes(1), this.now::get);
+    // One page per run
+    assertThat(reconciler.run()).isEqualTo(2);
+    assertThat(reconciler.run()).isEqualTo(2);
+    assertThat(reconciler.run()).isEqualTo(2);
+    assertThat(inbox("user1")).containsExactlyInAnyOrderElementsOf(tasks);
+    // The end of the tables has been reached, the next runs start over
+    assertThat(reconciler.run()).isEqualTo(0);
+    assertThat(reconciler.run()).isEqualTo(0);
+  }
+
+  @Test
+  void testOtherTypesAreIgnored() throws InterruptedException {
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("reminder1", "reminder", "message"), Set.of("user1"), Set.of());
+    this.now.set(Instant.now().plus(Duration.ofHours(2)));
+
+    // Not created by the listener, it has no task
+    assertThat(this.reconciler.run()).isZero();
+    assertThat(inbox("user1")).containsExactly("reminder1");
+  }
+
+  @Test
+  void testSingleNode() throws InterruptedException {
+    this.muted = true;
+    startTask();
+    this.muted = false;
+    this.now.set(Instant.now().plus(Duration.ofHours(2)));
+    NotificationReconciler other = new NotificationReconciler(this.processEngine, this.service,
+            new ApprovalWorkflowTaskListener(this.service, this.registrar), this.registrar, 2, Duration.ofHours(1),
+            Duration.ZERO, 100, Duration.ofMinutes(1), this.now::get);
+    assertThat(this.reconciler.run()).isEqualTo(1);
+
+    // The first node holds the lease
+    this.muted = true;
+    String missing = startTask();
+    this.muted = false;
+    assertThat(other.run()).isZero();
+    assertThat(inbox("user1")).doesNotContain(missing);
+
+    // Taken over once expired
+    this.now.set(this.now.get().plus(Duration.ofMinutes(5)));
+    assertThat(other.run()).isEqualTo(1);
+    assertThat(inbox("user1")).contains(missing);
+    assertThat(this.reconciler.run()).isZero();
+  }
+}
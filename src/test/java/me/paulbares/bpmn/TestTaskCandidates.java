@@ -0,0 +1,127 @@
+package me.paulbares.bpmn;
+
+import me.paulbares.camunda.ApprovalWorkflowTaskListener;
+import me.paulbares.camunda.NotificationProcessEnginePlugin;
+import me.paulbares.camunda.TaskCandidates;
+import me.paulbares.service.InMemoryNotificationService;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import org.camunda.bpm.engine.ProcessEngine;
+import org.camunda.bpm.engine.delegate.DelegateTask;
+import org.camunda.bpm.engine.impl.cfg.StandaloneInMemProcessEngineConfiguration;
+import org.camunda.bpm.model.bpmn.Bpmn;
+import org.camunda.bpm.model.bpmn.BpmnModelInstance;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestTaskCandidates {
+
+  static final String PROCESS = "candidates";
+
+  ProcessEngine processEngine;
+
+  RecordingListener listener;
+
+  /**
+   * Records the resolved candidates.
+   */
+  static class RecordingListener extends ApprovalWorkflowTaskListener {
+
+    final List<TaskCandidates> resolved = new ArrayList<>();
+
+    RecordingListener() {
+      super(new InMemoryNotificationService(() -> Instant.now()), new ApproverWorkflowRegistrar((a, b) -> Collections.emptyList()));
+    }
+
+    @Override
+    public TaskCandidates resolveCandidates(DelegateTask task) {
+      TaskCandidates candidates = super.resolveCandidates(task);
+      this.resolved.add(candidates);
+      return candidates;
+    }
+
+    Set<String> definitions() {
+      return this.candidatesByDefinition.keySet();
+    }
+  }
+
+  @BeforeEach
+  void setUp() {
+    this.listener = new RecordingListener();
+    StandaloneInMemProcessEngineConfiguration conf = new StandaloneInMemProcessEngineConfiguration();
+    conf.setJdbcUrl("jdbc:h2:mem:task-candidates");
+    conf.getProcessEnginePlugins().add(new NotificationProcessEnginePlugin(this.listener));
+    this.processEngine = conf.buildProcessEngine();
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.processEngine.close();
+  }
+
+  void deploy(BpmnModelInstance model) {
+    this.processEngine.getRepositoryService().createDeployment().addModelInstance(PROCESS + ".bpmn", model).deploy();
+  }
+
+  void start(Map<String, Object> variables) {
+    this.processEngine.getRuntimeService().startProcessInstanceByKey(PROCESS, variables);
+  }
+
+  static BpmnModelInstance model(String candidateUsers) {
+    return Bpmn.createExecutableProcess(PROCESS)
+            .startEvent()
+            .userTask()
+            .camundaCandidateUsers(candidateUsers)
+            .camundaCandidateGroups("group1")
+            .endEvent()
+            .done();
+  }
+
+  @Test
+  void testStaticCandidatesAreShared() {
+    deploy(model("user1, user2"));
+    start(Map.of());
+    start(Map.of());
+
+    assertThat(this.listener.resolved).hasSize(2);
+    TaskCandidates candidates = this.listener.resolved.get(0);
+    assertThat(candidates.getUsers()).containsExactlyInAnyOrder("user1", "user2");
+    assertThat(candidates.getGroups()).containsExactly("group1");
+    assertThat(this.listener.resolved.get(1)).isSameAs(candidates);
+  }
+
+  @Test
+  void testDynamicCandidatesAreResolvedPerTask() {
+    deploy(model("${approver}"));
+    start(Map.of("approver", "user1"));
+    start(Map.of("approver", "user2"));
+
+    assertThat(this.listener.resolved).hasSize(2);
+    assertThat(this.listener.resolved.get(0).getUsers()).containsExactly("user1");
+    assertThat(this.listener.resolved.get(1).getUsers()).containsExactly("user2");
+    assertThat(this.listener.resolved.get(1).getGroups()).containsExactly("group1");
+  }
+
+  @Test
+  void testRedeployment() {
+    deploy(model("user1"));
+    start(Map.of());
+    Set<String> before = Set.copyOf(this.listener.definitions());
+    assertThat(before).hasSize(1);
+
+    deploy(model("user2"));
+    start(Map.of());
+    assertThat(this.listener.resolved.get(1).getUsers()).containsExactly("user2");
+    // The entry of the previous definition has been dropped
+    assertThat(this.listener.definitions()).hasSize(1).doesNotContainAnyElementsOf(before);
+  }
+}
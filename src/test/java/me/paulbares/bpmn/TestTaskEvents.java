@@ -0,0 +1,217 @@
+package me.paulbares.bpmn;
+
+import me.paulbares.Utils.AccumulatorSubscriber;
+import me.paulbares.camunda.ApprovalWorkflowTaskListener;
+import me.paulbares.camunda.NotificationProcessEnginePlugin;
+import me.paulbares.camunda.TransactionalApprovalWorkflowTaskListener;
+import me.paulbares.domain.Notification;
+import me.paulbares.service.InMemoryNotificationService;
+import me.paulbares.service.NotificationAndRecipients;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import org.camunda.bpm.engine.ProcessEngine;
+import org.camunda.bpm.engine.impl.cfg.StandaloneInMemProcessEngineConfiguration;
+import org.camunda.bpm.engine.runtime.ProcessInstance;
+import org.camunda.bpm.engine.task.Task;
+import org.camunda.bpm.model.bpmn.Bpmn;
+import org.camunda.bpm.model.bpmn.BpmnModelInstance;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static me.paulbares.Utils.getCurrentTask;
+import static me.paulbares.Utils.user1;
+import static me.paulbares.Utils.user2;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestTaskEvents {
+
+  static final String PROCESS = "task-events";
+
+  ProcessEngine processEngine;
+
+  InMemoryNotificationService notificationService;
+
+  ApprovalWorkflowTaskListener listener;
+
+  final AccumulatorSubscriber subscriber1 = new AccumulatorSubscriber();
+
+  final AccumulatorSubscriber subscriber2 = new AccumulatorSubscriber();
+
+  /**
+   * The number of notifications saved and updated.
+   */
+  final AtomicInteger saves = new AtomicInteger();
+  final AtomicInteger updates = new AtomicInteger();
+
+  /**
+   * Builds the engine.
+   *
+   * @param coalescingWindowMs the coalescing window of the listener, -1 to handle the events before commit
+   */
+  void setUp(String candidateUsers, String assignee, long coalescingWindowMs) {
+    this.notificationService = new InMemoryNotificationService(() -> Instant.now()) {
+      @Override
+      public List<Notification> saveNotificationsAndRecipients(List<NotificationAndRecipients> notifications) {
+        saves.addAndGet(notifications.size());
+        return super.saveNotificationsAndRecipients(notifications);
+      }
+
+      @Override
+      public Notification updateRecipients(String notificationId, Set<String> users, Set<String> groups, Set<String> previousUsers, Set<String> previousGroups) {
+        updates.incrementAndGet();
+        return super.updateRecipients(notificationId, users, groups, previousUsers, previousGroups);
+      }
+    };
+    ApproverWorkflowRegistrar registrar = new ApproverWorkflowRegistrar(this.notificationService::getUnreadAndActiveNotificationsInDescOrder);
+    registrar.subscribe(user1, this.subscriber1);
+    registrar.subscribe(user2, this.subscriber2);
+    this.listener = coalescingWindowMs < 0
+            ? new ApprovalWorkflowTaskListener(this.notificationService, registrar)
+            : new TransactionalApprovalWorkflowTaskListener(this.notificationService, registrar, coalescingWindowMs);
+
+    StandaloneInMemProcessEngineConfiguration conf = new StandaloneInMemProcessEngineConfiguration();
+    conf.setJdbcUrl("jdbc:h2:mem:task-events");
+    conf.getProcessEnginePlugins().add(new NotificationProcessEnginePlugin(this.listener));
+    this.processEngine = conf.buildProcessEngine();
+    var userTask = Bpmn.createExecutableProcess(PROCESS).startEvent().userTask().camundaCandidateUsers(candidateUsers);
+    if (assignee != null) {
+      userTask = userTask.camundaAssignee(assignee);
+    }
+    BpmnModelInstance model = userTask.endEvent().done();
+    this.processEngine.getRepositoryService().createDeployment().addModelInstance(PROCESS + ".bpmn", model).deploy();
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    if (this.listener instanceof TransactionalApprovalWorkflowTaskListener) {
+      ((TransactionalApprovalWorkflowTaskListener) this.listener).close();
+    }
+    this.processEngine.close();
+  }
+
+  List<String> inbox(String user) {
+    return this.notificationService.getUnreadAndActiveNotificationsInDescOrder(user, List.of())
+            .stream()
+            .map(Notification::getBusinessId)
+            .collect(Collectors.toList());
+  }
+
+  @Test
+  void testAssignment() {
+    setUp("user1", null, -1);
+    ProcessInstance instance = this.processEngine.getRuntimeService().startProcessInstanceByKey(PROCESS);
+    Task task = getCurrentTask(this.processEngine, instance);
+    assertThat(inbox("user1")).containsExactly(task.getId());
+    Long id = this.subscriber1.updateNotifications.get(0).getId();
+    this.subscriber1.clear();
+
+    this.processEngine.getTaskService().setAssignee(task.getId(), "user2");
+    assertThat(inbox("user1")).isEmpty();
+    assertThat(inbox("user2")).containsExactly(task.getId());
+    // The assignment and update events are applied once
+    assertThat(this.updates).hasValue(1);
+    assertThat(this.subscriber1.updateNotifications).extracting(Notification::getActive).containsExactly(false);
+    assertThat(this.subscriber2.updateNotifications).extracting(Notification::getActive).containsExactly(true);
+    // The notification keeps its id
+    assertThat(this.subscriber1.updateNotifications).extracting(Notification::getId).containsExactly(id);
+    assertThat(this.subscriber2.updateNotifications).extracting(Notification::getId).containsExactly(id);
+
+    // Back to the candidates
+    this.processEngine.getTaskService().setAssignee(task.getId(), null);
+    assertThat(inbox("user1")).containsExactly(task.getId());
+    assertThat(inbox("user2")).isEmpty();
+  }
+
+  @Test
+  void testUpdateWithoutChange() {
+    setUp("user1", null, -1);
+    ProcessInstance instance = this.processEngine.getRuntimeService().startProcessInstanceByKey(PROCESS);
+    Task task = getCurrentTask(this.processEngine, instance);
+    this.subscriber1.clear();
+
+    this.processEngine.getTaskService().setPriority(task.getId(), 10);
+    assertThat(this.updates).hasValue(1);
+    assertThat(this.subscriber1.updateIds).isEmpty();
+    assertThat(inbox("user1")).containsExactly(task.getId());
+  }
+
+  @Test
+  void testAssignedOnCreation() {
+    setUp("user1", "user2", -1);
+    ProcessInstance instance = this.processEngine.getRuntimeService().startProcessInstanceByKey(PROCESS);
+    Task task = getCurrentTask(this.processEngine, instance);
+
+    assertThat(inbox("user1")).isEmpty();
+    assertThat(inbox("user2")).containsExactly(task.getId());
+    assertThat(this.saves).hasValue(1);
+    assertThat(this.updates).hasValue(0);
+    assertThat(this.subscriber1.updateIds).isEmpty();
+  }
+
+  @Test
+  void testDelete() {
+    setUp("user1", null, -1);
+    ProcessInstance instance = this.processEngine.getRuntimeService().startProcessInstanceByKey(PROCESS);
+    assertThat(inbox("user1")).hasSize(1);
+
+    this.processEngine.getRuntimeService().deleteProcessInstance(instance.getId(), "cancelled");
+    assertThat(inbox("user1")).isEmpty();
+  }
+
+  @Test
+  void testCoalescingWindow() throws Exception {
+    setUp("user1", null, 60_000);
+    ProcessInstance instance = this.processEngine.getRuntimeService().startProcessInstanceByKey(PROCESS);
+    Task task = getCurrentTask(this.processEngine, instance);
+    this.processEngine.getTaskService().setAssignee(task.getId(), "user2");
+    this.processEngine.getTaskService().setPriority(task.getId(), 10);
+    assertThat(this.saves).hasValue(0);
+
+    // A second instance created then completed within the window
+    ProcessInstance other = this.processEngine.getRuntimeService().startProcessInstanceByKey(PROCESS);
+    this.processEngine.getTaskService().complete(getCurrentTask(this.processEngine, other).getId());
+
+    // Handles the events held by the window
+    ((TransactionalApprovalWorkflowTaskListener) this.listener).close();
+    assertThat(this.saves).hasValue(1);
+    assertThat(this.updates).hasValue(0);
+    assertThat(inbox("user1")).isEmpty();
+    assertThat(inbox("user2")).containsExactly(task.getId());
+    assertThat(this.subscriber1.updateIds).isEmpty();
+    assertThat(this.subscriber2.updateIds).containsExactly(task.getId());
+  }
+
+  @Test
+  void testCommittedAfterClose() throws Exception {
+    setUp("user1", null, 60_000);
+    ((TransactionalApprovalWorkflowTaskListener) this.listener).close();
+
+    // Handled on the engine thread, not held by the window
+    ProcessInstance instance = this.processEngine.getRuntimeService().startProcessInstanceByKey(PROCESS);
+    Task task = getCurrentTask(this.processEngine, instance);
+    assertThat(inbox("user1")).containsExactly(task.getId());
+
+    this.processEngine.getTaskService().setAssignee(task.getId(), "user2");
+    assertThat(inbox("user1")).isEmpty();
+    assertThat(inbox("user2")).containsExactly(task.getId());
+  }
+
+  @Test
+  void testCoalescingWindowElapses() throws Exception {
+    setUp("user1", null, 50);
+    ProcessInstance instance = this.processEngine.getRuntimeService().startProcessInstanceByKey(PROCESS);
+    Task task = getCurrentTask(this.processEngine, instance);
+
+    long deadline = System.currentTimeMillis() + 5_000;
+    while (inbox("user1").isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(inbox("user1")).isEqualTo(Collections.singletonList(task.getId()));
+  }
+}
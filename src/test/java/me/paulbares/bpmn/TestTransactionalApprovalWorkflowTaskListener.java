@@ -0,0 +1,170 @@
+package me.paulbares.bpmn;
+
+import me.paulbares.Utils.AccumulatorSubscriber;
+import me.paulbares.camunda.NotificationProcessEnginePlugin;
+import me.paulbares.camunda.TransactionalApprovalWorkflowTaskListener;
+import me.paulbares.domain.Notification;
+import me.paulbares.service.InMemoryNotificationService;
+import me.paulbares.service.NotificationAndRecipients;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import org.camunda.bpm.engine.ProcessEngine;
+import org.camunda.bpm.engine.delegate.TaskListener;
+import org.camunda.bpm.engine.impl.cfg.StandaloneInMemProcessEngineConfiguration;
+import org.camunda.bpm.engine.runtime.ProcessInstance;
+import org.camunda.bpm.engine.task.Task;
+import org.camunda.bpm.model.bpmn.Bpmn;
+import org.camunda.bpm.model.bpmn.BpmnModelInstance;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static me.paulbares.Utils.getCurrentTask;
+import static me.paulbares.Utils.user1;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestTransactionalApprovalWorkflowTaskListener {
+
+  static final String PROCESS = "transactional";
+
+  static final String FAIL_KEY = "fail";
+
+  ProcessEngine processEngine;
+
+  InMemoryNotificationService notificationService;
+
+  ExecutorService dispatcher;
+
+  Listener listener;
+
+  AccumulatorSubscriber subscriber;
+
+  /**
+   * The unread notifications of user1 seen within the engine commands, after the listener has been called.
+   */
+  final List<Long> countsWithinCommand = new ArrayList<>();
+
+  /**
+   * The threads the notifications have been saved from.
+   */
+  final List<String> savingThreads = Collections.synchronizedList(new ArrayList<>());
+
+  @BeforeEach
+  void setUp() {
+    this.notificationService = new InMemoryNotificationService(() -> Instant.now()) {
+      @Override
+      public List<Notification> saveNotificationsAndRecipients(List<NotificationAndRecipients> notifications) {
+        savingThreads.add(Thread.currentThread().getName());
+        return super.saveNotificationsAndRecipients(notifications);
+      }
+    };
+    ApproverWorkflowRegistrar registrar = new ApproverWorkflowRegistrar(this.notificationService::getUnreadAndActiveNotificationsInDescOrder);
+    this.subscriber = new AccumulatorSubscriber();
+    registrar.subscribe(user1, this.subscriber);
+
+    this.dispatcher = Executors.newSingleThreadExecutor(r -> new Thread(r, "dispatcher"));
+    TaskListener failing = task -> {
+      this.countsWithinCommand.add(this.notificationService.countUnreadAndActiveNotifications("user1", user1.getGroups()));
+      if (Boolean.TRUE.equals(task.getVariable(FAIL_KEY))) {
+        throw new IllegalStateException("rollback");
+      }
+    };
+    StandaloneInMemProcessEngineConfiguration conf = new StandaloneInMemProcessEngineConfiguration();
+    conf.setJdbcUrl("jdbc:h2:mem:transactional-listener");
+    conf.setBeans(Map.of("failing", failing));
+    this.listener = new Listener(this.notificationService, registrar, this.dispatcher);
+    conf.getProcessEnginePlugins().add(new NotificationProcessEnginePlugin(this.listener));
+    this.processEngine = conf.buildProcessEngine();
+    this.processEngine.getRepositoryService().createDeployment().addModelInstance(PROCESS + ".bpmn", model()).deploy();
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.dispatcher.shutdownNow();
+    this.processEngine.close();
+  }
+
+  static BpmnModelInstance model() {
+    return Bpmn.createExecutableProcess(PROCESS)
+            .startEvent()
+            .userTask()
+            .camundaCandidateUsers("user1")
+            .camundaCandidateGroups("group1")
+            .camundaTaskListenerDelegateExpression(TaskListener.EVENTNAME_CREATE, "${failing}")
+            .endEvent()
+            .done();
+  }
+
+  /**
+   * Exposes the number of engine commands whose events are being collected.
+   */
+  static class Listener extends TransactionalApprovalWorkflowTaskListener {
+
+    Listener(InMemoryNotificationService notificationService, ApproverWorkflowRegistrar registrar, ExecutorService dispatcher) {
+      super(notificationService, registrar, dispatcher);
+    }
+
+    int commandsInProgress() {
+      return this.eventsByCommand.size();
+    }
+  }
+
+  /**
+   * Waits for the events already dispatched to be handled.
+   */
+  void awaitDispatched() throws Exception {
+    this.dispatcher.submit(() -> {}).get();
+  }
+
+  @Test
+  void testPublishedAfterCommit() throws Exception {
+    ProcessInstance instance = this.processEngine.getRuntimeService()
+            .createProcessInstanceByKey(PROCESS)
+            .setVariable(FAIL_KEY, false)
+            .execute();
+    awaitDispatched();
+    Task task = getCurrentTask(this.processEngine, instance);
+
+    // Nothing is saved while the command is running
+    assertThat(this.countsWithinCommand).containsExactly(0L);
+    assertThat(this.savingThreads).containsExactly("dispatcher");
+    assertThat(this.subscriber.updateIds).containsExactly(task.getId());
+    assertThat(this.notificationService.countUnreadAndActiveNotifications("user1", user1.getGroups())).isEqualTo(1);
+
+    this.processEngine.getTaskService().complete(task.getId());
+    awaitDispatched();
+    assertThat(this.subscriber.updateIds).containsExactly(task.getId(), task.getId());
+    assertThat(this.subscriber.updateNotifications.get(1).getActive()).isFalse();
+    assertThat(this.notificationService.countUnreadAndActiveNotifications("user1", user1.getGroups())).isZero();
+    assertThat(this.listener.commandsInProgress()).isZero();
+  }
+
+  @Test
+  void testNothingPublishedOnRollback() throws Exception {
+    assertThatThrownBy(() -> this.processEngine.getRuntimeService()
+            .createProcessInstanceByKey(PROCESS)
+            .setVariable(FAIL_KEY, true)
+            .execute())
+            .hasMessageContaining("rollback");
+    awaitDispatched();
+
+    assertThat(this.countsWithinCommand).containsExactly(0L);
+    assertThat(this.savingThreads).isEmpty();
+    assertThat(this.subscriber.updateIds).isEmpty();
+    assertThat(this.processEngine.getTaskService().createTaskQuery().count()).isZero();
+    assertThat(this.listener.commandsInProgress()).isZero();
+
+    // The next commands are not affected
+    this.processEngine.getRuntimeService().createProcessInstanceByKey(PROCESS).setVariable(FAIL_KEY, false).execute();
+    awaitDispatched();
+    assertThat(this.subscriber.updateIds).hasSize(1);
+  }
+}
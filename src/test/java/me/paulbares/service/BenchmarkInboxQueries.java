@@ -0,0 +1,97 @@
+package me.paulbares.service;
+
+import me.paulbares.Benchmarks;
+import me.paulbares.camunda.WorkflowNotificationImpl;
+import me.paulbares.repository.NotificationRepository;
+import me.paulbares.repository.RecipientRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+
+import javax.persistence.EntityManager;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the {@link InboxQueryStrategy strategies} reading the inbox of a user on a synthetic dataset on H2.
+ */
+@DataJpaTest
+public class BenchmarkInboxQueries {
+
+  static final int NOTIFICATIONS = 10_000;
+  static final int USERS = 500;
+  static final int GROUPS = 50;
+  static final int QUERIES = 50;
+
+  @Autowired
+  EntityManager manager;
+
+  @Autowired
+  NotificationRepository notificationRepository;
+
+  @Autowired
+  RecipientRepository recipientRepository;
+
+  @Autowired
+  NotificationServiceImpl service;
+
+  @Test
+  void benchmark() {
+    Random random = new Random(0);
+    List<NotificationAndRecipients> notifications = new ArrayList<>(NOTIFICATIONS);
+    for (int i = 0; i < NOTIFICATIONS; i++) {
+      Set<String> users = new HashSet<>();
+      for (int j = random.nextInt(3); j > 0; j--) {
+        users.add("user" + random.nextInt(USERS));
+      }
+      Set<String> groups = random.nextBoolean() ? Collections.singleton("group" + random.nextInt(GROUPS)) : Collections.emptySet();
+      notifications.add(new NotificationAndRecipients(new WorkflowNotificationImpl("task" + i, "type", "message"), users, groups));
+    }
+    this.service.saveNotificationsAndRecipients(notifications);
+    // Each user reads about a third of its notifications
+    for (int u = 0; u < USERS; u++) {
+      this.service.markAllAsRead("user" + u, NOTIFICATIONS / 3);
+    }
+
+    List<String> users = new ArrayList<>();
+    List<List<String>> groups = new ArrayList<>();
+    for (int i = 0; i < QUERIES; i++) {
+      users.add("user" + random.nextInt(USERS));
+      groups.add(i % 4 == 0 ? Collections.emptyList() : Arrays.asList("group" + random.nextInt(GROUPS), "group" + random.nextInt(GROUPS)));
+    }
+
+    Map<InboxQueryStrategy, Benchmarks.Result> inbox = new EnumMap<>(InboxQueryStrategy.class);
+    for (InboxQueryStrategy strategy : InboxQueryStrategy.values()) {
+      if (strategy == InboxQueryStrategy.DIALECT) {
+        continue;
+      }
+      NotificationServiceImpl service = new NotificationServiceImpl(this.manager, this.notificationRepository,
+              this.recipientRepository, Instant::now, RecipientCache.DEFAULT_MAXIMUM_SIZE, strategy);
+      inbox.put(strategy, Benchmarks.run("inbox " + strategy, 2, 5, QUERIES, () -> {
+        for (int i = 0; i < QUERIES; i++) {
+          service.getUnreadAndActiveNotificationsInDescOrder(users.get(i), groups.get(i));
+        }
+      }));
+      Benchmarks.run("inbox ids " + strategy, 2, 5, QUERIES, () -> {
+        for (int i = 0; i < QUERIES; i++) {
+          service.getUnreadAndActiveNotificationIds(users.get(i), groups.get(i), (id, businessId, direct) -> {
+          });
+        }
+      });
+    }
+
+    // The baseline scans the recipient table
+    assertThat(inbox.get(InboxQueryStrategy.UNION_ALL).operationsPerSecond())
+            .isGreaterThan(inbox.get(InboxQueryStrategy.GROUP_BY).operationsPerSecond());
+  }
+}
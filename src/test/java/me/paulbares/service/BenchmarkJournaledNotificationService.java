@@ -0,0 +1,93 @@
+package me.paulbares.service;
+
+import me.paulbares.Benchmarks;
+import me.paulbares.camunda.WorkflowNotificationImpl;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures the write throughput of {@link JournaledNotificationService} against {@link InMemoryNotificationService}
+ * and its recovery time, from the journal only and from a snapshot.
+ */
+public class BenchmarkJournaledNotificationService {
+
+  static final int BATCH_SIZE = 10_000;
+
+  static final int NB_NOTIFICATIONS = 200_000;
+
+  @TempDir
+  Path directory;
+
+  final Set<String> users = Set.of("user1", "user2", "user3");
+
+  final Set<String> groups = Set.of("group1", "group2");
+
+  final AtomicInteger idGenerator = new AtomicInteger();
+
+  @Test
+  void benchmark() throws Exception {
+    InMemoryNotificationService inMemory = new InMemoryNotificationService(() -> Instant.now());
+    Benchmarks.Result memory = Benchmarks.run("in-memory save", 2, 5, BATCH_SIZE, () -> saveBatch(inMemory));
+
+    int first = this.idGenerator.get();
+    JournaledNotificationService journaled = open();
+    Benchmarks.Result journal = Benchmarks.run("journaled save", 2, 5, BATCH_SIZE, () -> saveBatch(journaled));
+    // One append per change: the journal should not be an order of magnitude slower than memory
+    assertThat(journal.operationsPerSecond()).isGreaterThan(memory.operationsPerSecond() / 10);
+
+    while (this.idGenerator.get() - first < NB_NOTIFICATIONS) {
+      saveBatch(journaled);
+    }
+    int saved = this.idGenerator.get() - first;
+    for (int i = first; i < this.idGenerator.get(); i += 3) {
+      journaled.markAsRead("user1", "task" + i);
+    }
+    journaled.close();
+
+    Benchmarks.Result replay = Benchmarks.run("recovery from journal of " + NB_NOTIFICATIONS, 1, 3, 1, () -> {
+      try (JournaledNotificationService service = open()) {
+        assertThat(service.countUnreadAndActiveNotifications("user2", Set.of())).isEqualTo(saved);
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+
+    try (JournaledNotificationService service = open()) {
+      service.compact();
+    }
+    Benchmarks.Result snapshot = Benchmarks.run("recovery from snapshot of " + NB_NOTIFICATIONS, 1, 3, 1, () -> {
+      try (JournaledNotificationService service = open()) {
+        assertThat(service.countUnreadAndActiveNotifications("user2", Set.of())).isEqualTo(saved);
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    assertThat(snapshot.nanosPerOperation()).isLessThan(replay.nanosPerOperation());
+  }
+
+  JournaledNotificationService open() {
+    try {
+      return new JournaledNotificationService(this.directory, () -> Instant.now(), JournaledNotificationService.DEFAULT_JOURNAL_SIZE,
+              Integer.MAX_VALUE, Duration.ofMinutes(1));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  void saveBatch(InMemoryNotificationService service) {
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      String id = "task" + this.idGenerator.getAndIncrement();
+      service.saveNotificationAndRecipients(new WorkflowNotificationImpl(id, "type", "message"), this.users, this.groups);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package me.paulbares.service;
+
+import me.paulbares.Benchmarks;
+import me.paulbares.camunda.WorkflowNotificationImpl;
+import me.paulbares.domain.Notification;
+import me.paulbares.domain.Recipient;
+import me.paulbares.repository.NotificationRepository;
+import me.paulbares.repository.RecipientRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+
+import javax.persistence.EntityManager;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the throughput of the notification insert paths on H2.
+ */
+@DataJpaTest
+public class BenchmarkNotificationInsert {
+
+  static final int BATCH_SIZE = 1_000;
+
+  @Autowired
+  EntityManager manager;
+
+  @Autowired
+  NotificationRepository notificationRepository;
+
+  @Autowired
+  RecipientRepository recipientRepository;
+
+  @Autowired
+  NotificationServiceImpl service;
+
+  final AtomicInteger idGenerator = new AtomicInteger();
+
+  final Set<String> users = new HashSet<>(Arrays.asList("user1", "user2", "user3"));
+
+  final Set<String> groups = new HashSet<>(Arrays.asList("group1", "group2"));
+
+  @Test
+  void benchmark() {
+    Benchmarks.Result entities = Benchmarks.run("managed entities (repository save)", 2, 5, BATCH_SIZE, () -> {
+      for (NotificationAndRecipients n : batch()) {
+        Notification record = this.notificationRepository.save(NotificationServiceImpl.create(n.getNotification(), Instant::now));
+        n.getUsers().forEach(u -> this.recipientRepository.save(new Recipient(record.getId(), u, null, (byte) 0)));
+        n.getGroups().forEach(g -> this.recipientRepository.save(new Recipient(record.getId(), null, g, (byte) 0)));
+      }
+      this.manager.flush();
+      this.manager.clear();
+    });
+
+    Benchmarks.Result single = Benchmarks.run("saveNotificationAndRecipients", 2, 5, BATCH_SIZE, () -> {
+      for (NotificationAndRecipients n : batch()) {
+        this.service.saveNotificationAndRecipients(n.getNotification(), n.getUsers(), n.getGroups());
+      }
+    });
+
+    Benchmarks.Result bulk = Benchmarks.run("saveNotificationsAndRecipients", 2, 5, BATCH_SIZE,
+            () -> this.service.saveNotificationsAndRecipients(batch()));
+
+    assertThat(this.notificationRepository.count()).isEqualTo(3 * 7 * BATCH_SIZE);
+    assertThat(bulk.operationsPerSecond()).isGreaterThan(entities.operationsPerSecond());
+    assertThat(bulk.operationsPerSecond()).isGreaterThan(single.operationsPerSecond());
+  }
+
+  List<NotificationAndRecipients> batch() {
+    List<NotificationAndRecipients> batch = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      String id = "task" + this.idGenerator.getAndIncrement();
+      batch.add(new NotificationAndRecipients(new WorkflowNotificationImpl(id, "type", "message"), this.users, this.groups));
+    }
+    return batch;
+  }
+}
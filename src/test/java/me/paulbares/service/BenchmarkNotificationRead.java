@@ -0,0 +1,70 @@
+package me.paulbares.service;
+
+import me.paulbares.Benchmarks;
+import me.paulbares.camunda.WorkflowNotificationImpl;
+import me.paulbares.domain.NotificationView;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+
+import javax.persistence.EntityManager;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the latency and the allocations of the entity (JPA) and view (JDBC) read paths of the inbox of a user on
+ * H2 for different sizes of inbox, with {@link InMemoryNotificationService} as baseline.
+ */
+@DataJpaTest
+public class BenchmarkNotificationRead {
+
+  static final int[] SIZES = {1_000, 10_000, 100_000};
+
+  @Autowired
+  EntityManager manager;
+
+  @Autowired
+  NotificationServiceImpl service;
+
+  @Test
+  void benchmark() {
+    List<String> groups = Collections.singletonList("group1");
+    InMemoryNotificationService inMemory = new InMemoryNotificationService(() -> Instant.now());
+    int saved = 0;
+    for (int size : SIZES) {
+      List<NotificationAndRecipients> notifications = new ArrayList<>();
+      for (; saved < size; saved++) {
+        notifications.add(new NotificationAndRecipients(new WorkflowNotificationImpl("task" + saved, "type", "message" + saved),
+                Set.of("user1"), Set.of("group1")));
+      }
+      this.service.saveNotificationsAndRecipients(notifications);
+      inMemory.saveNotificationsAndRecipients(notifications);
+      this.manager.clear();
+
+      int iterations = Math.max(1, 100_000 / size);
+      Benchmarks.Result entities = Benchmarks.run("entities " + size, iterations, 3 * iterations, size, () -> {
+        assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", groups)).hasSize(size);
+        this.manager.clear(); // the entities are attached to the persistence context of the test
+      });
+      Benchmarks.Result views = Benchmarks.run("views " + size, iterations, 3 * iterations, size,
+              () -> assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user1", groups)).hasSize(size));
+      Benchmarks.Result baseline = Benchmarks.run("in-memory " + size, iterations, 3 * iterations, size, () -> {
+        Iterator<NotificationView> it = inMemory.iterateUnreadAndActiveInDescOrder("user1", groups);
+        int count = 0;
+        for (; it.hasNext(); it.next()) {
+          count++;
+        }
+        assertThat(count).isEqualTo(size);
+      });
+
+      assertThat(views.bytesPerOperation()).isLessThan(entities.bytesPerOperation());
+      assertThat(baseline.bytesPerOperation()).isLessThan(views.bytesPerOperation());
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package me.paulbares.service;
+
+import me.paulbares.Benchmarks;
+import me.paulbares.camunda.WorkflowNotificationImpl;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures the time for a restarted node to serve the unread counts of all its users, the restart-to-ready time, with
+ * the in-memory structures loaded lazily from the database (cold start) and restored from a {@link WarmStartSnapshot}
+ * (warm start).
+ */
+@DataJpaTest
+public class BenchmarkWarmStart {
+
+  static final int NB_USERS = 2_000;
+
+  static final int NB_NOTIFICATIONS_PER_USER = 20;
+
+  static final int NB_GROUP_NOTIFICATIONS = 100;
+
+  static final List<String> GROUPS = List.of("group1");
+
+  @Autowired
+  EntityManager manager;
+
+  @Autowired
+  NotificationServiceImpl service;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void benchmark() throws IOException {
+    List<NotificationAndRecipients> notifications = new ArrayList<>();
+    for (int i = 0; i < NB_USERS * NB_NOTIFICATIONS_PER_USER; i++) {
+      notifications.add(new NotificationAndRecipients(new WorkflowNotificationImpl("task" + i, "type", "message"),
+              Set.of("user" + (i % NB_USERS)), Set.of()));
+    }
+    for (int i = 0; i < NB_GROUP_NOTIFICATIONS; i++) {
+      notifications.add(new NotificationAndRecipients(new WorkflowNotificationImpl("group-task" + i, "type", "message"),
+              Set.of(), Set.of("group1")));
+    }
+    this.service.saveNotificationsAndRecipients(notifications);
+    this.manager.clear();
+    long expected = NB_NOTIFICATIONS_PER_USER + NB_GROUP_NOTIFICATIONS;
+
+    Benchmarks.Result cold = Benchmarks.run("cold start of " + NB_USERS + " users", 1, 3, NB_USERS, () -> {
+      restart();
+      countAll(expected);
+    });
+
+    WarmStartSnapshot snapshot = new WarmStartSnapshot(this.service, this.directory.resolve("checkpoint"),
+            Duration.ofMinutes(1), Duration.ofHours(1), Duration.ofMinutes(1), () -> Instant.now());
+    snapshot.checkpoint();
+    Benchmarks.Result warm = Benchmarks.run("warm start of " + NB_USERS + " users", 1, 3, NB_USERS, () -> {
+      restart();
+      try {
+        assertThat(snapshot.restore()).isTrue();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      countAll(expected);
+    });
+
+    assertThat(warm.nanosPerOperation()).isLessThan(cold.nanosPerOperation());
+  }
+
+  void restart() {
+    this.service.getUnreadCounter().clear();
+    this.service.getRecipientCache().clear();
+  }
+
+  void countAll(long expected) {
+    for (int u = 0; u < NB_USERS; u++) {
+      assertThat(this.service.countUnreadAndActiveNotifications("user" + u, GROUPS)).isEqualTo(expected);
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package me.paulbares.service;
+
+import me.paulbares.Utils.AccumulatorSubscriber;
+import me.paulbares.camunda.WorkflowNotificationImpl;
+import me.paulbares.domain.Notification;
+import me.paulbares.domain.NotificationView;
+import me.paulbares.repository.NotificationRepository;
+import me.paulbares.repository.RecipientRepository;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import me.paulbares.subscription.Subscription;
+import me.paulbares.user.CamundaUserDetailsImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * The calls are made by the threads of the service in their own transactions so the test methods are not
+ * transactional and the tables are cleaned up after each test.
+ */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class TestAsyncNotificationService {
+
+  @Autowired
+  NotificationRepository notificationRepository;
+
+  @Autowired
+  RecipientRepository recipientRepository;
+
+  @Autowired
+  NotificationServiceImpl delegate;
+
+  AsyncNotificationService service;
+
+  /**
+   * The number of calls to the delegate by method name.
+   */
+  final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+
+  final AtomicInteger concurrentCalls = new AtomicInteger();
+
+  final AtomicInteger maxConcurrentCalls = new AtomicInteger();
+
+  /**
+   * Released to let the calls to {@link NotificationService#countUnreadAndActiveNotifications} return.
+   */
+  final CountDownLatch countLatch = new CountDownLatch(1);
+
+  @BeforeEach
+  void setUp() {
+    this.delegate.getUnreadCounter().clear();
+    this.delegate.getRecipientCache().clear();
+  }
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    this.countLatch.countDown();
+    this.service.close();
+    this.recipientRepository.deleteAll();
+    this.notificationRepository.deleteAll();
+  }
+
+  /**
+   * Returns {@link #delegate} instrumented to record the calls.
+   */
+  NotificationService instrumentedDelegate() {
+    return (NotificationService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{NotificationService.class},
+            (proxy, method, args) -> {
+              this.calls.computeIfAbsent(method.getName(), __ -> new AtomicInteger()).incrementAndGet();
+              int concurrent = this.concurrentCalls.incrementAndGet();
+              this.maxConcurrentCalls.accumulateAndGet(concurrent, Math::max);
+              try {
+                if (method.getName().equals("countUnreadAndActiveNotifications")) {
+                  this.countLatch.await();
+                }
+                return method.invoke(this.delegate, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              } finally {
+                this.concurrentCalls.decrementAndGet();
+              }
+            });
+  }
+
+  /**
+   * Saves notifications for the given user. They have the same creation time so their order is not defined.
+   */
+  void save(int nbNotifications, String user) {
+    this.delegate.saveNotificationsAndRecipients(IntStream.range(0, nbNotifications)
+            .mapToObj(i -> new NotificationAndRecipients(new WorkflowNotificationImpl(user + "task" + i, "type", "message"),
+                    Set.of(user), Collections.emptySet()))
+            .collect(Collectors.toList()));
+  }
+
+  @Test
+  void testBackpressure() throws Exception {
+    this.service = new AsyncNotificationService(this.delegate, 2);
+    save(5, "user1");
+
+    List<NotificationView> received = new CopyOnWriteArrayList<>();
+    CompletableFuture<Flow.Subscription> subscription = new CompletableFuture<>();
+    CompletableFuture<Void> completed = new CompletableFuture<>();
+    this.service.getUnreadAndActiveNotificationViewsInDescOrder("user1", Collections.emptyList()).subscribe(new Flow.Subscriber<>() {
+      @Override
+      public void onSubscribe(Flow.Subscription s) {
+        subscription.complete(s);
+      }
+
+      @Override
+      public void onNext(NotificationView item) {
+        received.add(item);
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        completed.completeExceptionally(throwable);
+      }
+
+      @Override
+      public void onComplete() {
+        completed.complete(null);
+      }
+    });
+
+    subscription.get().request(2);
+    waitUntil(() -> received.size() == 2);
+    Thread.sleep(50);
+    assertThat(received).hasSize(2);
+    assertThat(completed).isNotDone();
+
+    subscription.get().request(3);
+    completed.get(10, TimeUnit.SECONDS);
+    assertThat(received).extracting(NotificationView::getBusinessId)
+            .containsExactlyInAnyOrder("user1task4", "user1task3", "user1task2", "user1task1", "user1task0");
+  }
+
+  @Test
+  void testQueuedReadsAreCoalesced() throws Exception {
+    this.service = new AsyncNotificationService(instrumentedDelegate(), 1);
+    save(3, "user1");
+
+    // Occupies the only thread
+    CompletableFuture<Long> count = this.service.countUnreadAndActiveNotifications("user1", Collections.emptyList()).toCompletableFuture();
+    waitUntil(() -> this.concurrentCalls.get() == 1);
+    List<CompletableFuture<List<Notification>>> reads = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      reads.add(ReactiveNotificationService.collect(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.emptyList())).toCompletableFuture());
+    }
+    this.countLatch.countDown();
+
+    assertThat(count.get(10, TimeUnit.SECONDS)).isEqualTo(3);
+    for (CompletableFuture<List<Notification>> read : reads) {
+      assertThat(read.get(10, TimeUnit.SECONDS)).extracting(Notification::getBusinessId)
+              .containsExactlyInAnyOrder("user1task2", "user1task1", "user1task0");
+    }
+    assertThat(this.calls.get("getUnreadAndActiveNotificationsInDescOrder").get()).isEqualTo(1);
+
+    // The read has started, a new one is not coalesced with it.
+    ReactiveNotificationService.collect(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.emptyList()))
+            .toCompletableFuture().get(10, TimeUnit.SECONDS);
+    assertThat(this.calls.get("getUnreadAndActiveNotificationsInDescOrder").get()).isEqualTo(2);
+  }
+
+  @Test
+  void testManyConcurrentSubscribes() throws Exception {
+    int poolSize = 2;
+    this.service = new AsyncNotificationService(instrumentedDelegate(), poolSize);
+    ApproverWorkflowRegistrar registrar = new ApproverWorkflowRegistrar(this.delegate::getUnreadAndActiveNotificationsInDescOrder,
+            (user, groups) -> ReactiveNotificationService.collect(this.service.getUnreadAndActiveNotificationsInDescOrder(user, groups)));
+    int nbUsers = 20;
+    for (int u = 0; u < nbUsers; u++) {
+      save(2, "user" + u);
+    }
+
+    int nbSubscribers = 2000;
+    List<AccumulatorSubscriber> subscribers = new ArrayList<>();
+    List<CompletableFuture<Subscription>> subscriptions = new ArrayList<>();
+    for (int i = 0; i < nbSubscribers; i++) {
+      AccumulatorSubscriber subscriber = new AccumulatorSubscriber();
+      subscribers.add(subscriber);
+      subscriptions.add(registrar.subscribeAsync(new CamundaUserDetailsImpl("user" + (i % nbUsers)), subscriber)
+              .toCompletableFuture());
+    }
+    CompletableFuture.allOf(subscriptions.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+
+    for (int i = 0; i < nbSubscribers; i++) {
+      String user = "user" + (i % nbUsers);
+      assertThat(subscribers.get(i).initialIds).containsExactlyInAnyOrder(user + "task1", user + "task0");
+    }
+    assertThat(this.maxConcurrentCalls.get()).isLessThanOrEqualTo(poolSize);
+    assertThat(this.calls.get("getUnreadAndActiveNotificationsInDescOrder").get()).isLessThan(nbSubscribers);
+    subscriptions.forEach(s -> s.join().unsubscribe());
+  }
+
+  static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!condition.getAsBoolean()) {
+      assertThat(System.nanoTime() - deadline).as("timeout").isNegative();
+      Thread.sleep(1);
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package me.paulbares.service;
+
+import me.paulbares.camunda.WorkflowNotificationImpl;
+import me.paulbares.domain.Notification;
+import me.paulbares.domain.NotificationView;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestInMemoryNotificationService {
+
+  InMemoryNotificationService service;
+
+  @BeforeEach
+  void setUp() {
+    this.service = new InMemoryNotificationService(() -> Instant.now());
+  }
+
+  Notification save(String businessId, Set<String> users, Set<String> groups) {
+    return this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl(businessId, "type", "message " + businessId), users, groups);
+  }
+
+  @Test
+  void testGetUnreadNotifications() {
+    Notification n1 = save("task1", Set.of("user1"), Set.of("group1"));
+    Notification n2 = save("task2", Collections.emptySet(), Set.of("group3"));
+    Notification n3 = save("task3", Set.of("user1"), Set.of("group1"));
+    Notification n4 = save("task4", Set.of("user2"), Set.of("group1", "group2"));
+    this.service.markAsInactive("task3", new HashSet<>(), new HashSet<>());
+
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", List.of("group1", "group2")))
+            .containsExactly(n4, n1);
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", List.of("group1", "group2", "group3")))
+            .containsExactly(n4, n2, n1);
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user3", List.of("group3")))
+            .containsExactly(NotificationView.of(n2));
+    assertThat(this.service.countUnreadAndActiveNotifications("user1", List.of("group1", "group2", "group3"))).isEqualTo(3);
+    assertThat(n3.getId()).isBetween(n2.getId(), n4.getId());
+  }
+
+  @Test
+  void testBusinessIdMustBeUniqueAmongActiveNotifications() {
+    save("task1", Set.of("user1"), Collections.emptySet());
+    assertThatThrownBy(() -> save("task1", Set.of("user2"), Collections.emptySet()))
+            .isInstanceOf(IllegalArgumentException.class);
+
+    this.service.markAsInactive("task1", new HashSet<>(), new HashSet<>());
+    Notification saved = save("task1", Set.of("user2"), Collections.emptySet());
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user2", Collections.emptyList())).containsExactly(saved);
+  }
+
+  @Test
+  void testMarkAsInactive() {
+    Notification saved = save("task1", Set.of("user1", "user2"), Set.of("group1"));
+    Set<String> users = new HashSet<>();
+    Set<String> groups = new HashSet<>();
+    Notification inactive = this.service.markAsInactive("task1", users, groups);
+
+    assertThat(inactive.getId()).isEqualTo(saved.getId());
+    assertThat(inactive.getActive()).isFalse();
+    assertThat(users).containsExactlyInAnyOrder("user1", "user2");
+    assertThat(groups).containsExactly("group1");
+    assertThat(this.service.markAsInactive("task1", new HashSet<>(), new HashSet<>())).isNull();
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", List.of("group1"))).isEmpty();
+    assertThat(this.service.unreadByUserId).isEmpty();
+    assertThat(this.service.activeByGroupId).isEmpty();
+  }
+
+  @Test
+  void testMarkAsRead() {
+    Notification n1 = save("task1", Set.of("user1"), Set.of("group1"));
+    Notification n2 = save("task2", Set.of("user1", "user2"), Collections.emptySet());
+    Notification n3 = save("task3", Collections.emptySet(), Set.of("group1"));
+    assertThat(this.service.countUnreadAndActiveNotifications("user1", List.of("group1"))).isEqualTo(3);
+
+    // Sent to user1 directly and via group1: hidden once read
+    this.service.markAsRead("user1", "task1");
+    // Only the direct recipients can read a notification
+    this.service.markAsRead("user1", "task3");
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", List.of("group1"))).containsExactly(n3, n2);
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user2", List.of("group1"))).containsExactly(n3, n2, n1);
+    assertThat(this.service.countUnreadAndActiveNotifications("user1", List.of("group1"))).isEqualTo(2);
+
+    Notification n4 = save("task4", Set.of("user1"), Collections.emptySet());
+    this.service.markAllAsRead("user1", n2.getId());
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", List.of("group1"))).containsExactly(n4, n3);
+    assertThat(this.service.countUnreadAndActiveNotifications("user1", List.of("group1"))).isEqualTo(2);
+    this.service.markAllAsRead("user1");
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", List.of("group1"))).containsExactly(n3);
+    assertThat(this.service.countUnreadAndActiveNotifications("user1", List.of("group1"))).isEqualTo(1);
+  }
+
+  @Test
+  void testIterateWithoutCopy() {
+    save("task1", Set.of("user1"), Collections.emptySet());
+    save("task2", Set.of("user1"), Collections.emptySet());
+    Iterator<NotificationView> first = this.service.iterateUnreadAndActiveInDescOrder("user1", Collections.emptyList());
+    Iterator<NotificationView> second = this.service.iterateUnreadAndActiveInDescOrder("user1", Collections.emptyList());
+    assertThat(first.next()).isSameAs(second.next());
+  }
+
+  @Test
+  void testConcurrentWrites() throws Exception {
+    int nThreads = 8;
+    int perThread = 1000;
+    ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < nThreads; t++) {
+        int thread = t;
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < perThread; i++) {
+            String id = thread + "-" + i;
+            save(id, Set.of("user" + thread), Set.of("group1"));
+            if (i % 2 == 0) {
+              this.service.markAsInactive(id, new HashSet<>(), new HashSet<>());
+            } else if (i % 3 == 0) {
+              this.service.markAsRead("user" + thread, id);
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    List<String> read = IntStream.range(0, perThread).filter(i -> i % 2 != 0 && i % 3 == 0)
+            .mapToObj(i -> "0-" + i).collect(Collectors.toList());
+    List<NotificationView> views = this.service.getUnreadAndActiveNotificationViewsInDescOrder("user0", List.of("group1"));
+    assertThat(views).hasSize(nThreads * perThread / 2 - read.size());
+    assertThat(views).isSortedAccordingTo((a, b) -> Long.compare(b.getId(), a.getId()));
+    assertThat(views).extracting(NotificationView::getBusinessId).doesNotContainAnyElementsOf(read);
+    assertThat(this.service.countUnreadAndActiveNotifications("user0", List.of("group1"))).isEqualTo(views.size());
+  }
+
+  @Test
+  void testConcurrentWritesEmptyingIndexes() throws Exception {
+    int nThreads = 8;
+    int perThread = 20_000;
+    ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < nThreads; t++) {
+        int thread = t;
+        futures.add(executor.submit(() -> {
+          // The index of group1 becomes empty and is removed over and over while the other threads add to it
+          for (int i = 0; i < perThread; i++) {
+            String id = thread + "-" + i;
+            save(id, Set.of("user1"), Set.of("group1"));
+            if (i < perThread - 1) {
+              this.service.markAsInactive(id, new HashSet<>(), new HashSet<>());
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user1", Collections.emptyList())).hasSize(nThreads);
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user2", List.of("group1"))).hasSize(nThreads);
+  }
+}
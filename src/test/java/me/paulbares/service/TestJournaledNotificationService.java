@@ -0,0 +1,245 @@
+package me.paulbares.service;
+
+import me.paulbares.camunda.WorkflowNotificationImpl;
+import me.paulbares.domain.Notification;
+import me.paulbares.domain.NotificationView;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestJournaledNotificationService {
+
+  @TempDir
+  Path directory;
+
+  JournaledNotificationService service;
+
+  @AfterEach
+  void tearDown() throws Exception {
+    this.service.close();
+  }
+
+  /**
+   * Closes {@link #service} if open and opens a new one on {@link #directory}.
+   */
+  JournaledNotificationService reopen(int journalSize) throws Exception {
+    if (this.service != null) {
+      this.service.close();
+    }
+    this.service = new JournaledNotificationService(this.directory, () -> Instant.now(), journalSize, 1 << 20, Duration.ofMinutes(1));
+    return this.service;
+  }
+
+  Notification save(String businessId, Set<String> users, Set<String> groups) {
+    return this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl(businessId, "type", "message " + businessId), users, groups);
+  }
+
+  /**
+   * Creates, reads and inactivates notifications. The inboxes of user1 and user2 (with group1) should then contain
+   * task5, task3 and task4, task5, task3, task1, see {@link #assertPopulated()}.
+   */
+  void populate() {
+    save("task1", Set.of("user1", "user2"), Collections.emptySet());
+    save("task2", Set.of("user1"), Set.of("group1"));
+    save("task3", Set.of("user2"), Set.of("group1"));
+    this.service.markAsRead("user1", List.of("task1", "task3"));
+    this.service.markAllAsRead("user1");
+    save("task4", Set.of("user1", "user2"), Collections.emptySet());
+    save("task5", Collections.emptySet(), Set.of("group1"));
+    this.service.markAsInactive("task2", new HashSet<>(), new HashSet<>());
+    this.service.markAsInactive("task4", new HashSet<>(), new HashSet<>());
+    save("task4", Set.of("user2"), Collections.emptySet()); // same business id as an inactive notification
+  }
+
+  void assertPopulated() {
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user1", List.of("group1")))
+            .extracting(NotificationView::getBusinessId)
+            .containsExactly("task5", "task3");
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user2", List.of("group1")))
+            .extracting(NotificationView::getBusinessId)
+            .containsExactly("task4", "task5", "task3", "task1");
+    assertThat(this.service.countUnreadAndActiveNotifications("user2", List.of("group1"))).isEqualTo(4);
+  }
+
+  @Test
+  void testFailedAppendIsNotApplied() throws Exception {
+    reopen(64);
+    save("task1", Set.of("user1"), Collections.emptySet());
+    this.service.journal.close(); // it can no longer grow
+    String large = "task2".repeat(100);
+    assertThatThrownBy(() -> save(large, Set.of("user1"), Collections.emptySet())).isInstanceOf(UncheckedIOException.class);
+
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user1", Collections.emptyList()))
+            .extracting(NotificationView::getBusinessId)
+            .containsExactly("task1");
+  }
+
+  @Test
+  void testRecovery() throws Exception {
+    reopen(1 << 16);
+    populate();
+    List<Notification> before = this.service.getUnreadAndActiveNotificationsInDescOrder("user2", List.of("group1"));
+    assertPopulated();
+
+    reopen(1 << 16);
+    assertPopulated();
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user2", List.of("group1"))).isEqualTo(before);
+    // Ids are given after the ones replayed
+    assertThat(save("task6", Set.of("user1"), Collections.emptySet()).getId()).isGreaterThan(before.get(0).getId());
+  }
+
+  @Test
+  void testRecoveryOfUpdatedRecipients() throws Exception {
+    reopen(1 << 16);
+    Notification saved = save("task1", Set.of("user1"), Collections.emptySet());
+    Notification updated = this.service.updateRecipients("task1", Set.of("user2"), Set.of("group1"), new HashSet<>(), new HashSet<>());
+    assertThat(updated.getId()).isEqualTo(saved.getId());
+
+    reopen(1 << 16);
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user1", List.of())).isEmpty();
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user2", List.of("group1")))
+            .extracting(NotificationView::getId)
+            .containsExactly(saved.getId());
+  }
+
+  @Test
+  void testCompaction() throws Exception {
+    reopen(1 << 16);
+    populate();
+    assertThat(this.service.getJournalSize()).isPositive();
+    this.service.compact();
+    assertThat(this.service.getJournalSize()).isZero();
+    assertThat(Files.exists(this.directory.resolve(JournaledNotificationService.SNAPSHOT_FILE))).isTrue();
+
+    reopen(1 << 16);
+    assertPopulated();
+    this.service.markAsRead("user2", "task4");
+    save("task6", Set.of("user1"), Collections.emptySet());
+
+    reopen(1 << 16);
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user2", Collections.emptyList()))
+            .extracting(NotificationView::getBusinessId)
+            .containsExactly("task3", "task1");
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user1", Collections.emptyList()))
+            .extracting(NotificationView::getBusinessId)
+            .containsExactly("task6");
+  }
+
+  @Test
+  void testReplayOfCompactedJournal() throws Exception {
+    reopen(1 << 16);
+    populate();
+    this.service.journal.force();
+    Path journal = this.directory.resolve(JournaledNotificationService.JOURNAL_FILE);
+    Path copy = this.directory.resolve("copy");
+    Files.copy(journal, copy);
+    this.service.compact();
+    this.service.close();
+
+    // As if the process crashed after writing the snapshot but before emptying the journal
+    Files.copy(copy, journal, StandardCopyOption.REPLACE_EXISTING);
+    this.service = null;
+    reopen(1 << 16);
+    assertPopulated();
+  }
+
+  @Test
+  void testReplayOfCompactedJournalWithRecipientChanges() throws Exception {
+    reopen(1 << 16);
+    save("task1", Set.of("user1"), Collections.emptySet());
+    this.service.updateRecipients("task1", Set.of("user2"), Collections.emptySet(), new HashSet<>(), new HashSet<>());
+    this.service.markAsRead("user2", "task1");
+    Notification task2 = save("task2", Set.of("user4"), Collections.emptySet());
+    this.service.markAllAsRead("user3", task2.getId());
+    this.service.updateRecipients("task2", Set.of("user3"), Collections.emptySet(), new HashSet<>(), new HashSet<>());
+    this.service.journal.force();
+    Path journal = this.directory.resolve(JournaledNotificationService.JOURNAL_FILE);
+    Path copy = this.directory.resolve("copy");
+    Files.copy(journal, copy);
+    this.service.compact();
+    this.service.close();
+
+    // As if the process crashed between moving the snapshot and emptying the journal
+    Files.copy(copy, journal, StandardCopyOption.REPLACE_EXISTING);
+    this.service = null;
+    reopen(1 << 16);
+    // The receipt of user2 is kept, and the earlier read-all of user3 does not apply to task2
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user2", List.of())).isEmpty();
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user3", List.of()))
+            .extracting(NotificationView::getBusinessId)
+            .containsExactly("task2");
+
+    // The changes after the snapshot are replayed
+    this.service.markAsRead("user3", "task2");
+    save("task3", Set.of("user3"), Collections.emptySet());
+    reopen(1 << 16);
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user3", List.of()))
+            .extracting(NotificationView::getBusinessId)
+            .containsExactly("task3");
+  }
+
+  @Test
+  void testTornWriteIsIgnored() throws Exception {
+    reopen(1 << 16);
+    save("task1", Set.of("user1"), Collections.emptySet());
+    int size = this.service.getJournalSize();
+    this.service.close();
+
+    // A record whose length is written but not its bytes
+    try (FileChannel channel = FileChannel.open(this.directory.resolve(JournaledNotificationService.JOURNAL_FILE), StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.allocate(8).putInt(100).putInt(42).flip(), size);
+    }
+    this.service = null;
+    reopen(1 << 16);
+    assertThat(this.service.getJournalSize()).isEqualTo(size);
+    save("task2", Set.of("user1"), Collections.emptySet());
+
+    reopen(1 << 16);
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user1", Collections.emptyList()))
+            .extracting(NotificationView::getBusinessId)
+            .containsExactly("task2", "task1");
+  }
+
+  @Test
+  void testJournalGrows() throws Exception {
+    reopen(64);
+    for (int i = 0; i < 100; i++) {
+      save("task" + i, Set.of("user1"), Collections.emptySet());
+    }
+    assertThat(this.service.getJournalSize()).isGreaterThan(64);
+
+    reopen(64);
+    assertThat(this.service.countUnreadAndActiveNotifications("user1", Collections.emptyList())).isEqualTo(100);
+  }
+
+  @Test
+  void testBackgroundCompaction() throws Exception {
+    this.service = new JournaledNotificationService(this.directory, () -> Instant.now(), 1 << 16, 100, Duration.ofMillis(10));
+    this.service.start();
+    populate();
+    long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+    while (!Files.exists(this.directory.resolve(JournaledNotificationService.SNAPSHOT_FILE))) {
+      assertThat(System.nanoTime()).as("timeout").isLessThan(deadline);
+      Thread.sleep(5);
+    }
+    reopen(1 << 16);
+    assertPopulated();
+  }
+}
@@ -0,0 +1,132 @@
+package me.paulbares.service;
+
+import me.paulbares.camunda.WorkflowNotificationImpl;
+import me.paulbares.domain.Notification;
+import me.paulbares.repository.NotificationRepository;
+import me.paulbares.repository.RecipientRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+
+import javax.persistence.EntityManager;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@DataJpaTest
+public class TestNotificationArchiver {
+
+  static final Instant START = Instant.parse("2020-06-01T00:00:00Z");
+
+  @Autowired
+  EntityManager manager;
+
+  @Autowired
+  NotificationRepository notificationRepository;
+
+  @Autowired
+  RecipientRepository recipientRepository;
+
+  final AtomicReference<Instant> now = new AtomicReference<>(START);
+
+  NotificationServiceImpl service;
+
+  @BeforeEach
+  void setUp() {
+    this.service = new NotificationServiceImpl(this.manager, this.notificationRepository, this.recipientRepository, this.now::get);
+  }
+
+  @Test
+  void testArchiveAfterRetention() throws InterruptedException {
+    List<NotificationAndRecipients> notifications = IntStream.range(0, 10)
+            .mapToObj(i -> new NotificationAndRecipients(new WorkflowNotificationImpl("task" + i, "type", "message"),
+                    Set.of("user1"), Set.of("group1")))
+            .collect(Collectors.toList());
+    this.service.saveNotificationsAndRecipients(notifications);
+    this.service.markAsRead("user1", "task0");
+    this.service.markAsInactive("task0", new HashSet<>(), new HashSet<>());
+    this.service.markAsInactive("task1", new HashSet<>(), new HashSet<>());
+    this.now.set(START.plus(Duration.ofDays(2)));
+    this.service.markAsInactive("task2", new HashSet<>(), new HashSet<>());
+
+    NotificationArchiver archiver = new NotificationArchiver(this.service, Duration.ofDays(1), 100, Duration.ZERO, 10, 0,
+            Duration.ofMinutes(1), this.now::get);
+    // task2 is still within the retention window
+    assertThat(archiver.run()).isEqualTo(2);
+    assertThat(this.notificationRepository.findAll()).extracting(Notification::getBusinessId).doesNotContain("task0", "task1").hasSize(8);
+    assertThat(this.recipientRepository.count()).isEqualTo(16);
+    assertThat(count("notification_archive")).isEqualTo(2);
+    assertThat(count("recipient_archive")).isEqualTo(4);
+    // The receipts keep their timestamp
+    assertThat(count("recipient_archive WHERE is_read = 1 AND read_at IS NOT NULL")).isEqualTo(1);
+
+    // Nothing left to archive
+    assertThat(archiver.run()).isEqualTo(0);
+
+    this.now.set(START.plus(Duration.ofDays(4)));
+    assertThat(archiver.run()).isEqualTo(1);
+    assertThat(count("notification_archive")).isEqualTo(3);
+    // The active notifications are never archived
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.emptyList())).hasSize(7);
+  }
+
+  @Test
+  void testBoundedBatches() throws InterruptedException {
+    List<NotificationAndRecipients> notifications = IntStream.range(0, 25)
+            .mapToObj(i -> new NotificationAndRecipients(new WorkflowNotificationImpl("task" + i, "type", "message"),
+                    Set.of("user1"), Collections.emptySet()))
+            .collect(Collectors.toList());
+    this.service.saveNotificationsAndRecipients(notifications);
+    for (int i = 0; i < 25; i++) {
+      this.service.markAsInactive("task" + i, new HashSet<>(), new HashSet<>());
+    }
+    this.now.set(START.plus(Duration.ofDays(1)));
+
+    assertThat(this.service.archiveInactiveNotifications(this.now.get(), 10)).isEqualTo(10);
+    assertThat(count("notification_archive")).isEqualTo(10);
+
+    // At most 1 batch per run
+    NotificationArchiver archiver = new NotificationArchiver(this.service, Duration.ZERO, 10, Duration.ZERO, 1, 0,
+            Duration.ofMinutes(1), this.now::get);
+    assertThat(archiver.run()).isEqualTo(10);
+    assertThat(archiver.run()).isEqualTo(5);
+    assertThat(this.notificationRepository.count()).isEqualTo(0);
+    assertThat(this.recipientRepository.count()).isEqualTo(0);
+    assertThat(count("recipient_archive")).isEqualTo(25);
+  }
+
+  @Test
+  void testMaxRate() throws InterruptedException {
+    List<NotificationAndRecipients> notifications = IntStream.range(0, 25)
+            .mapToObj(i -> new NotificationAndRecipients(new WorkflowNotificationImpl("task" + i, "type", "message"),
+                    Set.of("user1"), Collections.emptySet()))
+            .collect(Collectors.toList());
+    this.service.saveNotificationsAndRecipients(notifications);
+    for (int i = 0; i < 25; i++) {
+      this.service.markAsInactive("task" + i, new HashSet<>(), new HashSet<>());
+    }
+    this.now.set(START.plus(Duration.ofDays(1)));
+
+    // 20 notifications per second: the second batch waits 0.5 s, the third one 1 s after the start of the run
+    NotificationArchiver archiver = new NotificationArchiver(this.service, Duration.ZERO, 10, Duration.ZERO, 10, 20,
+            Duration.ofMinutes(1), this.now::get);
+    long start = System.nanoTime();
+    assertThat(archiver.run()).isEqualTo(25);
+    assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.SECONDS.toNanos(1));
+  }
+
+  long count(String table) {
+    return ((BigInteger) this.manager.createNativeQuery("SELECT COUNT(*) FROM " + table).getSingleResult()).longValue();
+  }
+}
@@ -3,26 +3,38 @@ package me.paulbares.service;
 import me.paulbares.camunda.WorkflowNotification;
 import me.paulbares.camunda.WorkflowNotificationImpl;
 import me.paulbares.domain.Notification;
+import me.paulbares.domain.NotificationView;
 import me.paulbares.domain.Recipient;
 import me.paulbares.repository.NotificationRepository;
 import me.paulbares.repository.RecipientRepository;
 import org.h2.jdbc.JdbcSQLIntegrityConstraintViolationException;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.persistence.EntityManager;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
@@ -41,11 +53,27 @@ public class TestNotificationService {
   @Autowired
   NotificationServiceImpl service;
 
+  @Autowired
+  PlatformTransactionManager transactionManager;
+
   @BeforeEach
   void setUp() {
     // Make sure repositories are empty before each test
     Assertions.assertEquals(0, this.notificationRepository.findAll().size());
     Assertions.assertEquals(0, this.recipientRepository.findAll().size());
+    // Counters are kept in memory, they are not rolled back with the database
+    this.service.getUnreadCounter().clear();
+    this.service.getRecipientCache().clear();
+  }
+
+  /**
+   * The tests checking the counters of unread notifications are not transactional: the counters are only updated once
+   * the changes are committed.
+   */
+  @AfterEach
+  void tearDown() {
+    this.recipientRepository.deleteAll();
+    this.notificationRepository.deleteAll();
   }
 
   @Test
@@ -62,6 +90,34 @@ public class TestNotificationService {
     Assertions.assertEquals(save.getId(), recipients.get(1).getNotificationId());
   }
 
+  @Test
+  void testSaveSeveral() {
+    List<NotificationAndRecipients> notifications = new ArrayList<>();
+    for (int i = 0; i < 120; i++) {
+      WorkflowNotification notification = new WorkflowNotificationImpl("task" + i, "type", "message" + i);
+      notifications.add(new NotificationAndRecipients(notification, Collections.singleton("user" + i), new HashSet<>(Arrays.asList("group1", "group2"))));
+    }
+    List<Notification> saved = this.service.saveNotificationsAndRecipients(notifications);
+
+    Assertions.assertEquals(notifications.size(), saved.size());
+    for (int i = 0; i < saved.size(); i++) {
+      Assertions.assertEquals("task" + i, saved.get(i).getBusinessId());
+      if (i > 0) {
+        // Ids must be given in increasing order
+        org.assertj.core.api.Assertions.assertThat(saved.get(i).getId()).isGreaterThan(saved.get(i - 1).getId());
+      }
+    }
+    org.assertj.core.api.Assertions.assertThat(this.notificationRepository.findAll()).containsExactlyInAnyOrderElementsOf(saved);
+
+    List<Recipient> recipients = this.recipientRepository.findAll();
+    Assertions.assertEquals(3 * notifications.size(), recipients.size());
+    org.assertj.core.api.Assertions.assertThat(recipients.stream().map(Recipient::getId).distinct()).hasSize(recipients.size());
+
+    org.assertj.core.api.Assertions.assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user7", Collections.emptyList()))
+            .containsExactly(saved.get(7));
+    Assertions.assertEquals(notifications.size(), this.service.countUnreadAndActiveNotifications("user7", Collections.singleton("group2")));
+  }
+
   @Test
   void testBusinessIdMustBeUnique() {
     Supplier<WorkflowNotification> supplier = () -> new WorkflowNotificationImpl("task1", "type1", "message1");
@@ -111,6 +167,7 @@ public class TestNotificationService {
   }
 
   @Test
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
   void testMarkAsInactive() {
     WorkflowNotification notification = new WorkflowNotificationImpl("task1", "type1", "message1");
     WorkflowNotification other = new WorkflowNotificationImpl("task2", "type1", "message1");
@@ -118,12 +175,124 @@ public class TestNotificationService {
     this.service.saveNotificationAndRecipients(other, Collections.singleton("user1"), Collections.singleton("group1"));
     Set<String> users = new HashSet<>();
     Set<String> groups = new HashSet<>();
+    long hits = this.service.getRecipientCache().hitCount();
+    long completions = this.service.getRecipientCache().completionCount();
     Notification inactive = this.service.markAsInactive("task1", users, groups);
 
     org.assertj.core.api.Assertions.assertThat(users).containsExactlyInAnyOrder("user1");
     org.assertj.core.api.Assertions.assertThat(groups).containsExactlyInAnyOrder("group1");
     save.setActive(false);
     Assertions.assertEquals(save, inactive);
+    Assertions.assertEquals(hits + 1, this.service.getRecipientCache().hitCount());
+    Assertions.assertEquals(completions + 1, this.service.getRecipientCache().completionCount());
+  }
+
+  @Test
+  void testApplyBatch() {
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type1", "message1"), Collections.singleton("user1"), Collections.emptySet());
+    NotificationBatch batch = new NotificationBatch()
+            .markAsInactive("task1")
+            .save(new WorkflowNotificationImpl("task2", "type1", "message1"), Collections.singleton("user1"), Collections.singleton("group1"))
+            .save(new WorkflowNotificationImpl("task3", "type1", "message1"), Collections.singleton("user2"), Collections.emptySet());
+    this.service.apply(batch);
+
+    List<NotificationBatch.Entry> entries = batch.getEntries();
+    org.assertj.core.api.Assertions.assertThat(entries.get(0).getNotification().getActive()).isFalse();
+    org.assertj.core.api.Assertions.assertThat(entries.get(0).getUsers()).containsExactly("user1");
+    org.assertj.core.api.Assertions.assertThat(entries.get(1).getNotification().getBusinessId()).isEqualTo("task2");
+    org.assertj.core.api.Assertions.assertThat(entries.get(2).getNotification().getId()).isGreaterThan(entries.get(1).getNotification().getId());
+    org.assertj.core.api.Assertions.assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.singleton("group1")))
+            .extracting(Notification::getBusinessId)
+            .containsExactly("task2");
+  }
+
+  @Test
+  void testMarkSeveralAsInactive() {
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type1", "message1"), Collections.singleton("user1"), Collections.emptySet());
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task2", "type1", "message1"), Collections.emptySet(), Collections.singleton("group1"));
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task3", "type1", "message1"), Collections.singleton("user2"), Collections.emptySet());
+    this.service.getRecipientCache().remove("task2"); // read from the database
+
+    NotificationBatch batch = new NotificationBatch().markAsInactive("task1").markAsInactive("task2").markAsInactive("unknown");
+    this.service.markAsInactive(batch.getEntries());
+
+    List<NotificationBatch.Entry> entries = batch.getEntries();
+    org.assertj.core.api.Assertions.assertThat(entries.get(0).getNotification().getActive()).isFalse();
+    org.assertj.core.api.Assertions.assertThat(entries.get(0).getUsers()).containsExactly("user1");
+    org.assertj.core.api.Assertions.assertThat(entries.get(1).getNotification().getBusinessId()).isEqualTo("task2");
+    org.assertj.core.api.Assertions.assertThat(entries.get(1).getNotification().getActive()).isFalse();
+    org.assertj.core.api.Assertions.assertThat(entries.get(1).getGroups()).containsExactly("group1");
+    org.assertj.core.api.Assertions.assertThat(entries.get(2).getNotification()).isNull();
+    org.assertj.core.api.Assertions.assertThat(this.service.countUnreadAndActiveNotifications("user1", Collections.singleton("group1"))).isZero();
+    org.assertj.core.api.Assertions.assertThat(this.service.countUnreadAndActiveNotifications("user2", Collections.emptySet())).isEqualTo(1);
+  }
+
+  @Test
+  void testMarkSeveralAsInactiveWithDuplicates() {
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type1", "message1"), Collections.singleton("user1"), Collections.emptySet());
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task2", "type1", "message1"), Collections.emptySet(), Collections.singleton("group1"));
+    this.service.getRecipientCache().remove("task2"); // read from the database
+
+    NotificationBatch batch = new NotificationBatch()
+            .markAsInactive("task1")
+            .markAsInactive("task2")
+            .markAsInactive("task1")
+            .markAsInactive("task2");
+    this.service.markAsInactive(batch.getEntries());
+
+    List<NotificationBatch.Entry> entries = batch.getEntries();
+    for (int i = 0; i < entries.size(); i++) {
+      org.assertj.core.api.Assertions.assertThat(entries.get(i).getNotification().getBusinessId()).isEqualTo(i % 2 == 0 ? "task1" : "task2");
+      org.assertj.core.api.Assertions.assertThat(entries.get(i).getNotification().getActive()).isFalse();
+    }
+    org.assertj.core.api.Assertions.assertThat(entries.get(2).getUsers()).containsExactly("user1");
+    org.assertj.core.api.Assertions.assertThat(entries.get(3).getGroups()).containsExactly("group1");
+  }
+
+  @Test
+  void testUpdateRecipients() {
+    Notification saved = this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type1", "message1"), Collections.singleton("user1"), Collections.singleton("group1"));
+    this.service.getRecipientCache().clear(); // read from the database
+
+    Set<String> previousUsers = new HashSet<>();
+    Set<String> previousGroups = new HashSet<>();
+    Notification updated = this.service.updateRecipients("task1", Collections.singleton("user2"), Collections.emptySet(), previousUsers, previousGroups);
+
+    Assertions.assertEquals(saved, updated);
+    org.assertj.core.api.Assertions.assertThat(previousUsers).containsExactly("user1");
+    org.assertj.core.api.Assertions.assertThat(previousGroups).containsExactly("group1");
+    org.assertj.core.api.Assertions.assertThat(this.service.countUnreadAndActiveNotifications("user1", Collections.singleton("group1"))).isZero();
+    org.assertj.core.api.Assertions.assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user2", Collections.emptySet()))
+            .extracting(Notification::getBusinessId)
+            .containsExactly("task1");
+
+    // From the cache this time
+    previousUsers.clear();
+    this.service.updateRecipients("task1", Collections.singleton("user3"), Collections.emptySet(), previousUsers, new HashSet<>());
+    org.assertj.core.api.Assertions.assertThat(previousUsers).containsExactly("user2");
+    org.assertj.core.api.Assertions.assertThat(this.service.countUnreadAndActiveNotifications("user3", Collections.emptySet())).isEqualTo(1);
+
+    this.service.markAsInactive("task1", new HashSet<>(), new HashSet<>());
+    Assertions.assertNull(this.service.updateRecipients("task1", Collections.singleton("user1"), Collections.emptySet(), new HashSet<>(), new HashSet<>()));
+  }
+
+  @Test
+  void testMarkAsInactiveNotInCache() {
+    WorkflowNotification notification = new WorkflowNotificationImpl("task1", "type1", "message1");
+    Notification save = this.service.saveNotificationAndRecipients(notification, new HashSet<>(Arrays.asList("user1", "user2")), Collections.singleton("group1"));
+    this.service.getRecipientCache().clear();
+
+    Set<String> users = new HashSet<>();
+    Set<String> groups = new HashSet<>();
+    long misses = this.service.getRecipientCache().missCount();
+    Notification inactive = this.service.markAsInactive("task1", users, groups);
+
+    org.assertj.core.api.Assertions.assertThat(users).containsExactlyInAnyOrder("user1", "user2");
+    org.assertj.core.api.Assertions.assertThat(groups).containsExactlyInAnyOrder("group1");
+    save.setActive(false);
+    Assertions.assertEquals(save, inactive);
+    Assertions.assertEquals(misses + 1, this.service.getRecipientCache().missCount());
+    Assertions.assertTrue(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.singleton("group1")).isEmpty());
   }
 
   @Test
@@ -160,4 +329,207 @@ public class TestNotificationService {
     unreadNotificationsInDescOrder = this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.singleton("group1"));
     org.assertj.core.api.Assertions.assertThat(unreadNotificationsInDescOrder).containsExactlyInAnyOrder(notifications.toArray(new Notification[0]));
   }
+
+  @Test
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  void testCountUnreadNotifications() {
+    List<String> groups = Arrays.asList("group1", "group2");
+    Assertions.assertEquals(0, this.service.countUnreadAndActiveNotifications("user1", groups));
+
+    // Created once the count is known for user1
+    WorkflowNotification notification1 = new WorkflowNotificationImpl("task1", "type1", "message1");
+    WorkflowNotification notification2 = new WorkflowNotificationImpl("task2", "type1", "message2");
+    WorkflowNotification notification3 = new WorkflowNotificationImpl("task3", "type1", "message3");
+    WorkflowNotification notification4 = new WorkflowNotificationImpl("task4", "type1", "message4");
+    this.service.saveNotificationAndRecipients(notification1, Collections.singleton("user1"), Collections.singleton("group1"));
+    this.service.saveNotificationAndRecipients(notification2, Collections.emptySet(), Collections.singleton("group2"));
+    this.service.saveNotificationAndRecipients(notification3, Collections.singleton("user1"), Collections.emptySet());
+    this.service.saveNotificationAndRecipients(notification4, Collections.singleton("user2"), Collections.singleton("group3"));
+    Assertions.assertEquals(3, this.service.countUnreadAndActiveNotifications("user1", groups));
+
+    // Only notifications sent directly to the user can be read
+    this.service.markAsRead("user1", Arrays.asList(notification1.getId(), notification2.getId()));
+    Assertions.assertEquals(2, this.service.countUnreadAndActiveNotifications("user1", groups));
+
+    this.service.markAsInactive(notification2.getId(), new HashSet<>(), new HashSet<>());
+    this.service.markAsInactive(notification4.getId(), new HashSet<>(), new HashSet<>());
+    Assertions.assertEquals(1, this.service.countUnreadAndActiveNotifications("user1", groups));
+
+    // Counters must agree with the database
+    for (String user : Arrays.asList("user1", "user2")) {
+      for (List<String> g : Arrays.asList(groups, Collections.<String>emptyList(), Collections.singletonList("group3"))) {
+        long count = this.service.countUnreadAndActiveNotifications(user, g);
+        Assertions.assertEquals(this.service.getUnreadAndActiveNotificationsInDescOrder(user, g).size(), count);
+        this.service.getUnreadCounter().invalidate(user);
+        Assertions.assertEquals(count, this.service.countUnreadAndActiveNotifications(user, g));
+      }
+    }
+  }
+
+  @Test
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  void testUnreadCounterEviction() {
+    UnreadNotificationCounter counter = new UnreadNotificationCounter(1, Duration.ofMinutes(5));
+    NotificationServiceImpl service = new NotificationServiceImpl(this.manager, this.notificationRepository,
+            this.recipientRepository, Instant::now, RecipientCache.DEFAULT_MAXIMUM_SIZE, InboxQueryStrategy.UNION_ALL, counter);
+    List<String> groups = Collections.singletonList("group1");
+    Assertions.assertEquals(0, service.countUnreadAndActiveNotifications("user1", groups));
+    Assertions.assertEquals(0, service.countUnreadAndActiveNotifications("user2", groups));
+    // user1 is evicted
+    org.assertj.core.api.Assertions.assertThat(counter.entriesByUserId.asMap()).containsOnlyKeys("user2");
+    org.assertj.core.api.Assertions.assertThat(counter.userIdsByGroupId).containsOnlyKeys("group1");
+    org.assertj.core.api.Assertions.assertThat(counter.userIdsByGroupId.get("group1")).containsOnly("user2");
+
+    new TransactionTemplate(this.transactionManager).executeWithoutResult(__ -> service.saveNotificationAndRecipients(
+            new WorkflowNotificationImpl("task1", "type1", "message1"), Collections.emptySet(), Collections.singleton("group1")));
+    Assertions.assertEquals(1, service.countUnreadAndActiveNotifications("user2", groups));
+    Assertions.assertEquals(1, service.countUnreadAndActiveNotifications("user1", groups));
+    org.assertj.core.api.Assertions.assertThat(counter.userIdsByGroupId.get("group1")).containsOnly("user1");
+  }
+
+  @Test
+  void testMarkAsReadManyIds() {
+    List<Notification> notifications = this.service.saveNotificationsAndRecipients(IntStream.range(0, 2 * NotificationServiceImpl.MAX_IN_PARAMETERS + 1)
+            .mapToObj(i -> new NotificationAndRecipients(new WorkflowNotificationImpl("task" + i, "type", "message"), Collections.singleton("user1"), Collections.emptySet()))
+            .collect(Collectors.toList()));
+
+    List<String> ids = notifications.stream().map(Notification::getBusinessId).collect(Collectors.toList());
+    this.service.markAsRead("user1", ids.subList(1, ids.size()));
+    org.assertj.core.api.Assertions.assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.emptyList()))
+            .containsExactly(notifications.get(0));
+  }
+
+  @Test
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  void testMarkAllAsRead() {
+    List<Notification> notifications = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      WorkflowNotification notification = new WorkflowNotificationImpl("task" + i, "type", "message");
+      notifications.add(this.service.saveNotificationAndRecipients(notification, Collections.singleton("user1"), Collections.singleton("group1")));
+    }
+    // Only sent to the group, it cannot be read.
+    Notification groupNotification = this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task10", "type", "message"), Collections.emptySet(), Collections.singleton("group1"));
+    Assertions.assertEquals(11, this.service.countUnreadAndActiveNotifications("user1", Collections.singleton("group1")));
+
+    this.service.markAllAsRead("user1", notifications.get(4).getId());
+    org.assertj.core.api.Assertions.assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.singleton("group1")))
+            .containsExactlyInAnyOrderElementsOf(() -> Stream.concat(notifications.subList(5, 10).stream(), Stream.of(groupNotification)).iterator());
+    Assertions.assertEquals(6, this.service.countUnreadAndActiveNotifications("user1", Collections.singleton("group1")));
+    // Not read by user2
+    Assertions.assertEquals(11, this.service.getUnreadAndActiveNotificationsInDescOrder("user2", Collections.singleton("group1")).size());
+
+    this.service.markAllAsRead("user1");
+    org.assertj.core.api.Assertions.assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.singleton("group1")))
+            .containsExactly(groupNotification);
+    Assertions.assertEquals(1, this.service.countUnreadAndActiveNotifications("user1", Collections.singleton("group1")));
+  }
+
+  @Test
+  void testInboxQueryStrategies() {
+    List<NotificationAndRecipients> notifications = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      Set<String> users = i % 4 == 0 ? Collections.emptySet() : new HashSet<>(Arrays.asList("user" + (i % 3), "user3"));
+      Set<String> groups = i % 5 == 0 ? Collections.emptySet() : Collections.singleton("group" + (i % 2));
+      notifications.add(new NotificationAndRecipients(new WorkflowNotificationImpl("task" + i, "type", "message"), users, groups));
+    }
+    this.service.saveNotificationsAndRecipients(notifications);
+    this.service.markAsRead("user1", IntStream.range(0, 20).mapToObj(i -> "task" + i).collect(Collectors.toList()));
+    this.service.markAsInactive("task21", new HashSet<>(), new HashSet<>());
+    this.service.markAsInactive("task22", new HashSet<>(), new HashSet<>());
+
+    for (List<String> groups : Arrays.asList(Collections.<String>emptyList(), Arrays.asList("group0"), Arrays.asList("group0", "group1"))) {
+      List<Notification> expected = null;
+      Set<String> expectedIds = null;
+      for (InboxQueryStrategy strategy : InboxQueryStrategy.values()) {
+        if (strategy == InboxQueryStrategy.DIALECT) {
+          continue;
+        }
+        NotificationServiceImpl service = new NotificationServiceImpl(this.manager, this.notificationRepository,
+                this.recipientRepository, Instant::now, RecipientCache.DEFAULT_MAXIMUM_SIZE, strategy);
+        List<Notification> actual = service.getUnreadAndActiveNotificationsInDescOrder("user1", groups);
+        Set<String> actualIds = new HashSet<>();
+        service.getUnreadAndActiveNotificationIds("user1", groups, (id, businessId, direct) -> actualIds.add(id + businessId + direct));
+
+        org.assertj.core.api.Assertions.assertThat(actual).as(strategy + " " + groups)
+                .isSortedAccordingTo(Comparator.comparing(Notification::getCreatedAt).reversed());
+        if (expected == null) {
+          org.assertj.core.api.Assertions.assertThat(actual).isNotEmpty();
+          expected = actual;
+          expectedIds = actualIds;
+        } else {
+          org.assertj.core.api.Assertions.assertThat(actual).as(strategy + " " + groups).containsExactlyInAnyOrderElementsOf(expected);
+          org.assertj.core.api.Assertions.assertThat(actualIds).as(strategy + " " + groups).isEqualTo(expectedIds);
+        }
+      }
+    }
+  }
+
+  @Test
+  void testGetUnreadNotificationViews() {
+    List<NotificationAndRecipients> notifications = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      Set<String> users = i % 3 == 0 ? Collections.emptySet() : Collections.singleton("user1");
+      Set<String> groups = i % 2 == 0 ? Collections.singleton("group1") : Collections.emptySet();
+      notifications.add(new NotificationAndRecipients(new WorkflowNotificationImpl("task" + i, "type", i % 4 == 0 ? null : "message" + i), users, groups));
+    }
+    this.service.saveNotificationsAndRecipients(notifications);
+    this.service.markAsRead("user1", Arrays.asList("task1", "task2"));
+
+    for (List<String> groups : Arrays.asList(Collections.<String>emptyList(), Collections.singletonList("group1"))) {
+      List<NotificationView> expected = this.service.getUnreadAndActiveNotificationsInDescOrder("user1", groups)
+              .stream()
+              .map(NotificationView::of)
+              .collect(Collectors.toList());
+      org.assertj.core.api.Assertions.assertThat(expected).isNotEmpty();
+      org.assertj.core.api.Assertions.assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user1", groups))
+              .containsExactlyInAnyOrderElementsOf(expected)
+              .isSortedAccordingTo(Comparator.comparing(NotificationView::getCreatedAt).reversed());
+      List<NotificationView> streamed = new ArrayList<>();
+      this.service.forEachUnreadAndActiveNotificationView("user1", groups, streamed::add);
+      org.assertj.core.api.Assertions.assertThat(streamed).containsExactlyElementsOf(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user1", groups));
+    }
+  }
+
+  @Test
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  void testMarkAsReadSeveralUsers() {
+    for (int i = 0; i < 4; i++) {
+      this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task" + i, "type", "message"),
+              new HashSet<>(Arrays.asList("user1", "user2", "user3")), Collections.singleton("group1"));
+    }
+    Assertions.assertEquals(4, this.service.countUnreadAndActiveNotifications("user1", Collections.emptyList()));
+
+    Map<String, List<String>> receipts = new HashMap<>();
+    receipts.put("user1", Arrays.asList("task0", "task1", "unknown"));
+    receipts.put("user2", Collections.singletonList("task3"));
+    this.service.markAsRead(receipts);
+
+    Assertions.assertEquals(2, this.service.countUnreadAndActiveNotifications("user1", Collections.emptyList()));
+    Assertions.assertEquals(2, this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.emptyList()).size());
+    Assertions.assertEquals(3, this.service.getUnreadAndActiveNotificationsInDescOrder("user2", Collections.emptyList()).size());
+    Assertions.assertEquals(4, this.service.getUnreadAndActiveNotificationsInDescOrder("user3", Collections.emptyList()).size());
+  }
+
+  @Test
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  void testCountersIgnoreRolledBackChanges() {
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type", "message"), Collections.singleton("user1"), Collections.emptySet());
+    Assertions.assertEquals(1, this.service.countUnreadAndActiveNotifications("user1", Collections.emptyList()));
+
+    TransactionTemplate template = new TransactionTemplate(this.transactionManager);
+    template.executeWithoutResult(status -> {
+      this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task2", "type", "message"), Collections.singleton("user1"), Collections.emptySet());
+      this.service.markAsRead("user1", "task1");
+      status.setRollbackOnly();
+    });
+    Assertions.assertEquals(1, this.service.countUnreadAndActiveNotifications("user1", Collections.emptyList()));
+    template.executeWithoutResult(status -> {
+      this.service.markAllAsRead("user1");
+      status.setRollbackOnly();
+    });
+    Assertions.assertEquals(1, this.service.countUnreadAndActiveNotifications("user1", Collections.emptyList()));
+
+    this.service.markAsRead("user1", "task1");
+    Assertions.assertEquals(0, this.service.countUnreadAndActiveNotifications("user1", Collections.emptyList()));
+  }
 }
@@ -0,0 +1,133 @@
+package me.paulbares.service;
+
+import me.paulbares.camunda.WorkflowNotificationImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks that the queries of {@link NotificationServiceImpl} use the indexes created by the migration scripts instead
+ * of scanning the tables.
+ */
+@DataJpaTest
+public class TestQueryPlans {
+
+  static final Timestamp NOW = Timestamp.from(Instant.now());
+
+  @Autowired
+  EntityManager manager;
+
+  @Autowired
+  NotificationServiceImpl service;
+
+  @BeforeEach
+  void setUp() {
+    // Add some data so that the optimizer does not consider the tables as empty
+    List<NotificationAndRecipients> notifications = IntStream.range(0, 1000)
+            .mapToObj(i -> new NotificationAndRecipients(
+                    new WorkflowNotificationImpl("task" + i, "type", "message"),
+                    Set.of("user" + (i % 100), "user" + ((i + 1) % 100)),
+                    Set.of("group" + (i % 10))))
+            .collect(Collectors.toList());
+    this.service.saveNotificationsAndRecipients(notifications);
+  }
+
+  @Test
+  void testMarkAsRead() {
+    assertNoTableScan(NotificationServiceImpl.MARK_AS_READ_QUERY,
+            Map.of("userId", "user1", "notificationIds", Arrays.asList("task1", "task2"), "now", NOW));
+  }
+
+  @Test
+  void testMarkOneAsRead() {
+    assertNoTableScan(NotificationServiceImpl.MARK_ONE_AS_READ_QUERY, Map.of("userId", "user1", "notificationId", "task1", "now", NOW));
+  }
+
+  @Test
+  void testMarkAllAsRead() {
+    assertNoTableScan(NotificationServiceImpl.MARK_ALL_AS_READ_QUERY,
+            Map.of("userId", "user1", "maxNotificationId", Long.MAX_VALUE, "now", NOW));
+  }
+
+  @Test
+  void testMarkAsInactive() {
+    assertNoTableScan(NotificationServiceImpl.MARK_AS_INACTIVE_QUERY, Map.of("notificationId", "task1", "now", NOW));
+    assertNoTableScan(NotificationServiceImpl.MARK_SEVERAL_AS_INACTIVE_QUERY, Map.of("notificationIds", Arrays.asList("task1", "task2"), "now", NOW));
+    assertNoTableScan(NotificationServiceImpl.RECIPIENTS_QUERY, Map.of("businessId", "task1"));
+  }
+
+  @Test
+  void testCatchUp() {
+    assertNoTableScan(NotificationServiceImpl.CATCH_UP_SAVED_QUERY, Map.of("watermark", 900L));
+    assertNoTableScan(NotificationServiceImpl.CATCH_UP_LATE_SAVED_QUERY, Map.of("since", NOW, "watermark", 900L));
+    assertNoTableScan(NotificationServiceImpl.CATCH_UP_READ_QUERY, Map.of("since", NOW));
+    assertNoTableScan(NotificationServiceImpl.CATCH_UP_INACTIVE_QUERY, Map.of("since", NOW));
+  }
+
+  @Test
+  void testArchive() {
+    assertNoTableScan(NotificationServiceImpl.ARCHIVABLE_IDS_QUERY, Map.of("inactiveBefore", NOW));
+    List<Long> ids = Arrays.asList(1L, 2L);
+    assertNoTableScan(NotificationServiceImpl.ARCHIVE_NOTIFICATIONS_QUERY, Map.of("ids", ids, "now", NOW));
+    assertNoTableScan(NotificationServiceImpl.ARCHIVE_RECIPIENTS_QUERY, Map.of("ids", ids));
+    assertNoTableScan(NotificationServiceImpl.DELETE_RECIPIENTS_QUERY, Map.of("ids", ids));
+    assertNoTableScan(NotificationServiceImpl.DELETE_NOTIFICATIONS_QUERY, Map.of("ids", ids));
+  }
+
+  @Test
+  void testReconcile() {
+    assertNoTableScan(NotificationServiceImpl.ACTIVE_IDS_QUERY, Map.of("after", "task5", "type", "task"));
+    assertNoTableScan(NotificationServiceImpl.ACTIVE_RECIPIENTS_QUERY, Map.of("businessIds", Arrays.asList("task1", "task2"), "type", "task"));
+    assertNoTableScan(NotificationServiceImpl.INACTIVE_IDS_QUERY, Map.of("businessIds", Arrays.asList("task1", "task2")));
+    assertNoTableScan(NotificationServiceImpl.ACQUIRE_LEASE_QUERY, Map.of("name", "job", "owner", "node1", "now", NOW, "expiresAt", NOW));
+    assertNoTableScan(NotificationServiceImpl.RELEASE_LEASE_QUERY, Map.of("name", "job", "owner", "node1"));
+  }
+
+  @Test
+  void testReplicationPosition() {
+    assertNoTableScan(ReadReplica.POSITION_QUERY, Map.of());
+    assertNoTableScan(ReadReplica.ADVANCE_POSITION_QUERY, Map.of());
+  }
+
+  @Test
+  void testUnreadAndActive() {
+    // GROUP_BY is the baseline whose disjunction scans the recipient table.
+    for (InboxQueryStrategy strategy : EnumSet.of(InboxQueryStrategy.UNION_ALL, InboxQueryStrategy.EXISTS)) {
+      Map<String, Object> parameters = Map.of("userId", "user1");
+      assertNoTableScan(strategy.unreadAndActiveQuery(false), parameters);
+      assertNoTableScan(strategy.unreadAndActiveIdsQuery(false), parameters);
+
+      parameters = Map.of("userId", "user1", "groupIds", Arrays.asList("group1", "group2"));
+      assertNoTableScan(strategy.unreadAndActiveQuery(true), parameters);
+      assertNoTableScan(strategy.unreadAndActiveIdsQuery(true), parameters);
+    }
+  }
+
+  @Test
+  void testDefaultStrategy() {
+    // H2 is not among the databases for which EXISTS is preferred
+    assertThat(this.service.getInboxQueryStrategy()).isEqualTo(InboxQueryStrategy.UNION_ALL);
+  }
+
+  void assertNoTableScan(String sql, Map<String, Object> parameters) {
+    Query query = this.manager.createNativeQuery("EXPLAIN " + sql);
+    parameters.forEach(query::setParameter);
+    String plan = (String) query.getSingleResult();
+    assertThat(plan).doesNotContain("tableScan");
+  }
+}
@@ -0,0 +1,174 @@
+package me.paulbares.service;
+
+import me.paulbares.camunda.WorkflowNotificationImpl;
+import me.paulbares.domain.Notification;
+import me.paulbares.repository.NotificationRepository;
+import me.paulbares.repository.RecipientRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Receipts are written by a background thread in their own transactions so the test methods are not transactional and
+ * the tables are cleaned up after each test.
+ */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class TestReadReceiptAggregator {
+
+  @Autowired
+  NotificationRepository notificationRepository;
+
+  @Autowired
+  RecipientRepository recipientRepository;
+
+  @Autowired
+  NotificationServiceImpl delegate;
+
+  ReadReceiptAggregator aggregator;
+
+  @BeforeEach
+  void setUp() {
+    this.delegate.getUnreadCounter().clear();
+    this.delegate.getRecipientCache().clear();
+    this.delegate.saveNotificationsAndRecipients(IntStream.range(0, 5)
+            .mapToObj(i -> new NotificationAndRecipients(new WorkflowNotificationImpl("task" + i, "type", "message"),
+                    Set.of("user1", "user2"), Collections.emptySet()))
+            .collect(Collectors.toList()));
+  }
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    this.aggregator.close();
+    this.recipientRepository.deleteAll();
+    this.notificationRepository.deleteAll();
+  }
+
+  @Test
+  void testOptimisticUpdate() {
+    this.aggregator = new ReadReceiptAggregator(this.delegate, this.delegate.getUnreadCounter(), 60_000, 1000);
+    assertThat(this.aggregator.countUnreadAndActiveNotifications("user1", Collections.emptyList())).isEqualTo(5);
+
+    this.aggregator.markAsRead("user1", Arrays.asList("task0", "task1"));
+    this.aggregator.markAsRead("user1", "task1");
+    assertThat(this.aggregator.getPendingReceipts("user1")).containsExactlyInAnyOrder("task0", "task1");
+    assertThat(this.aggregator.countUnreadAndActiveNotifications("user1", Collections.emptyList())).isEqualTo(3);
+    assertThat(businessIds(this.aggregator.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.emptyList())))
+            .containsExactlyInAnyOrder("task2", "task3", "task4");
+    // Not written yet
+    assertThat(businessIds(this.delegate.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.emptyList()))).hasSize(5);
+    // Other users are not impacted
+    assertThat(this.aggregator.countUnreadAndActiveNotifications("user2", Collections.emptyList())).isEqualTo(5);
+
+    this.aggregator.flush();
+    assertThat(this.aggregator.getPendingReceipts("user1")).isEmpty();
+    assertThat(businessIds(this.delegate.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.emptyList())))
+            .containsExactlyInAnyOrder("task2", "task3", "task4");
+  }
+
+  @Test
+  void testCountLoadedWhilePending() {
+    this.aggregator = new ReadReceiptAggregator(this.delegate, this.delegate.getUnreadCounter(), 60_000, 1000);
+    // The counter is not loaded yet, it is loaded from the database that does not know the receipt
+    this.aggregator.markAsRead("user1", "task0");
+    assertThat(this.aggregator.countUnreadAndActiveNotifications("user1", Collections.emptyList())).isEqualTo(4);
+  }
+
+  @Test
+  void testFlushWhenFull() throws InterruptedException {
+    this.aggregator = new ReadReceiptAggregator(this.delegate, this.delegate.getUnreadCounter(), 60_000, 3);
+    this.aggregator.markAsRead("user1", Arrays.asList("task0", "task1"));
+    this.aggregator.markAsRead("user2", "task0");
+    awaitUnread("user1", 3);
+    awaitUnread("user2", 4);
+  }
+
+  @Test
+  void testFlushPeriodically() throws InterruptedException {
+    this.aggregator = new ReadReceiptAggregator(this.delegate, this.delegate.getUnreadCounter(), 10, 1000);
+    this.aggregator.markAsRead("user1", "task0");
+    awaitUnread("user1", 4);
+  }
+
+  @Test
+  void testCloseWritesPendingReceipts() throws InterruptedException {
+    this.aggregator = new ReadReceiptAggregator(this.delegate, this.delegate.getUnreadCounter(), 60_000, 1000);
+    this.aggregator.markAsRead("user1", "task0");
+    this.aggregator.close();
+    assertThat(this.delegate.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.emptyList())).hasSize(4);
+  }
+
+  @Test
+  void testFailedWriteIsRetried() {
+    NotificationService failing = Mockito.mock(NotificationService.class, AdditionalAnswers.delegatesTo(this.delegate));
+    Mockito.doThrow(new IllegalStateException("unavailable")).doAnswer(AdditionalAnswers.delegatesTo(this.delegate)).when(failing).markAsRead(Mockito.anyMap());
+    this.aggregator = new ReadReceiptAggregator(failing, this.delegate.getUnreadCounter(), 60_000, 1000);
+    this.aggregator.markAsRead("user1", "task0");
+
+    assertThatThrownBy(this.aggregator::flush).isInstanceOf(IllegalStateException.class);
+    assertThat(this.aggregator.getPendingReceipts("user1")).containsExactly("task0");
+    assertThat(this.aggregator.countUnreadAndActiveNotifications("user1", Collections.emptyList())).isEqualTo(4);
+
+    this.aggregator.flush();
+    assertThat(this.aggregator.getPendingReceipts("user1")).isEmpty();
+    assertThat(this.delegate.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.emptyList())).hasSize(4);
+  }
+
+  @Test
+  void testMarkAsReadAfterClose() throws InterruptedException {
+    this.aggregator = new ReadReceiptAggregator(this.delegate, this.delegate.getUnreadCounter(), 60_000, 1000);
+    this.aggregator.close();
+    // Written synchronously, nothing would write them later
+    this.aggregator.markAsRead("user1", "task0");
+    assertThat(this.aggregator.getPendingReceipts("user1")).isEmpty();
+    assertThat(this.delegate.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.emptyList())).hasSize(4);
+  }
+
+  @Test
+  void testBackpressureWhileWritesFail() throws InterruptedException {
+    NotificationService failing = Mockito.mock(NotificationService.class, AdditionalAnswers.delegatesTo(this.delegate));
+    Mockito.doThrow(new IllegalStateException("unavailable")).when(failing).markAsRead(Mockito.anyMap());
+    this.aggregator = new ReadReceiptAggregator(failing, this.delegate.getUnreadCounter(), 60_000, 2);
+    this.aggregator.markAsRead("user1", Arrays.asList("task0", "task1"));
+    this.aggregator.markAsRead("user1", Arrays.asList("task2", "task3"));
+    // Twice the threshold is pending, the caller writes them and gets the failure
+    assertThatThrownBy(() -> this.aggregator.markAsRead("user1", "task4")).isInstanceOf(IllegalStateException.class);
+    assertThat(this.aggregator.getPendingReceipts("user1")).containsExactlyInAnyOrder("task0", "task1", "task2", "task3");
+    // At most one write was scheduled when the threshold was reached, plus the one of the caller
+    this.aggregator.scheduler.shutdown();
+    this.aggregator.scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    Mockito.verify(failing, Mockito.atMost(3)).markAsRead(Mockito.anyMap());
+
+    Mockito.doAnswer(AdditionalAnswers.delegatesTo(this.delegate)).when(failing).markAsRead(Mockito.anyMap());
+  }
+
+  void awaitUnread(String userId, int expected) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (this.delegate.getUnreadAndActiveNotificationsInDescOrder(userId, Collections.emptyList()).size() != expected
+            && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(this.delegate.getUnreadAndActiveNotificationsInDescOrder(userId, Collections.emptyList())).hasSize(expected);
+  }
+
+  static List<String> businessIds(List<Notification> notifications) {
+    return notifications.stream().map(Notification::getBusinessId).collect(Collectors.toList());
+  }
+}
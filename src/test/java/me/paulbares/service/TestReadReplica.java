@@ -0,0 +1,205 @@
+package me.paulbares.service;
+
+import me.paulbares.Utils.AccumulatorSubscriber;
+import me.paulbares.camunda.WorkflowNotificationImpl;
+import me.paulbares.domain.Notification;
+import me.paulbares.domain.NotificationView;
+import me.paulbares.repository.NotificationRepository;
+import me.paulbares.repository.RecipientRepository;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import org.flywaydb.core.Flyway;
+import org.h2.Driver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static me.paulbares.Utils.user1;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+/**
+ * The replica is a second in-memory database. The replication is simulated by {@link #replicate()} which copies the
+ * primary database, replication position included, to the replica and marks the copied notifications. The watermark
+ * is raised once the writes are committed so the test methods are not transactional and the tables are cleaned up
+ * after each test.
+ */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class TestReadReplica {
+
+  static final String REPLICATED = " (replica)";
+
+  static SimpleDriverDataSource replicaDataSource;
+
+  @Autowired
+  DataSource dataSource;
+
+  @Autowired
+  NotificationRepository notificationRepository;
+
+  @Autowired
+  RecipientRepository recipientRepository;
+
+  @Autowired
+  NotificationServiceImpl service;
+
+  @BeforeAll
+  static void setUpReplica() {
+    replicaDataSource = new SimpleDriverDataSource(new Driver(), "jdbc:h2:mem:replica;DB_CLOSE_DELAY=-1");
+    Flyway.configure().dataSource(replicaDataSource).load().migrate();
+  }
+
+  @BeforeEach
+  void setUp() {
+    this.service.getUnreadCounter().clear();
+    this.service.getRecipientCache().clear();
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.service.setReadReplica(null);
+    this.recipientRepository.deleteAll();
+    this.notificationRepository.deleteAll();
+    replicate();
+  }
+
+  @Test
+  void testReadsFromReplica() {
+    this.service.setReadReplica(new ReadReplica(replicaDataSource, Duration.ZERO, Duration.ofMillis(5)));
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type", "message"),
+            Collections.singleton("user1"), Collections.singleton("group1"));
+    replicate();
+
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.singleton("group1")))
+            .extracting(Notification::getMessage).containsExactly("message" + REPLICATED);
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user1", Collections.emptyList()))
+            .extracting(NotificationView::getMessage).containsExactly("message" + REPLICATED);
+    assertThat(this.service.countUnreadAndActiveNotifications("user1", Collections.emptyList())).isEqualTo(1);
+  }
+
+  @Test
+  void testFallsBackToPrimaryWhenLagging() {
+    this.service.setReadReplica(new ReadReplica(replicaDataSource, Duration.ofMillis(50), Duration.ofMillis(5)));
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type", "message"),
+            Collections.singleton("user1"), Collections.emptySet());
+
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.emptyList()))
+            .extracting(Notification::getMessage).containsExactly("message");
+    assertThat(this.service.getUnreadAndActiveNotificationViewsInDescOrder("user1", Collections.emptyList()))
+            .extracting(NotificationView::getMessage).containsExactly("message");
+  }
+
+  @Test
+  void testWaitsForReplica() {
+    this.service.setReadReplica(new ReadReplica(replicaDataSource, Duration.ofSeconds(10), Duration.ofMillis(5)));
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type", "message"),
+            Collections.singleton("user1"), Collections.emptySet());
+    replicate();
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task2", "type", "message"),
+            Collections.singleton("user1"), Collections.emptySet());
+    this.service.markAsInactive("task1", new HashSet<>(), new HashSet<>());
+
+    CompletableFuture.runAsync(this::replicate, CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS));
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.emptyList()))
+            .extracting(Notification::getBusinessId, Notification::getMessage)
+            .containsExactly(tuple("task2", "message" + REPLICATED));
+  }
+
+  @Test
+  void testSubscribeWhileReplicaLags() {
+    this.service.setReadReplica(new ReadReplica(replicaDataSource, Duration.ofSeconds(10), Duration.ofMillis(5)));
+    ApproverWorkflowRegistrar registrar = new ApproverWorkflowRegistrar(this.service::getUnreadAndActiveNotificationsInDescOrder);
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task0", "type", "message"),
+            Collections.singleton("user1"), Collections.emptySet());
+    replicate();
+
+    // Published before the subscription, not replicated yet: they must be part of the initial view.
+    Notification created = this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type", "message"),
+            Collections.singleton("user1"), Collections.emptySet());
+    registrar.publish(created, Collections.singleton("user1"), Collections.emptySet(), true);
+    Notification inactive = this.service.markAsInactive("task0", new HashSet<>(), new HashSet<>());
+    registrar.publish(inactive, Collections.singleton("user1"), Collections.emptySet(), false);
+
+    CompletableFuture.runAsync(this::replicate, CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS));
+    AccumulatorSubscriber subscriber = new AccumulatorSubscriber();
+    registrar.subscribe(user1, subscriber);
+
+    assertThat(subscriber.initialIds).containsExactly("task1");
+    assertThat(subscriber.initialNotifications).extracting(Notification::getMessage).containsExactly("message" + REPLICATED);
+    assertThat(subscriber.updateIds).isEmpty();
+  }
+
+  @Test
+  void testWatermarkIsTheReplicationPosition() {
+    this.service.setReadReplica(new ReadReplica(replicaDataSource, Duration.ofMillis(50), Duration.ofMillis(5)));
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type", "message"),
+            Collections.singleton("user1"), Collections.emptySet());
+    replicate();
+    Notification created = this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task2", "type", "message"),
+            Collections.singleton("user1"), Collections.emptySet());
+    // The replica contains a notification with a higher id, e.g. committed by another node after task2: it has still
+    // not applied task2.
+    new JdbcTemplate(replicaDataSource).update("INSERT INTO notification (id, type, message, created_at, is_active, business_id)"
+            + " VALUES (?, 'type', 'message', CURRENT_TIMESTAMP, true, 'other')", created.getId() + 1000);
+
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.emptyList()))
+            .extracting(Notification::getBusinessId, Notification::getMessage)
+            .containsExactly(tuple("task2", "message"), tuple("task1", "message"));
+  }
+
+  @Test
+  void testRecipientUpdateRaisesWatermark() {
+    this.service.setReadReplica(new ReadReplica(replicaDataSource, Duration.ofMillis(50), Duration.ofMillis(5)));
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type", "message"),
+            Collections.singleton("user1"), Collections.emptySet());
+    replicate();
+    this.service.updateRecipients("task1", Collections.singleton("user2"), Collections.emptySet(), new HashSet<>(), new HashSet<>());
+
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user2", Collections.emptyList()))
+            .extracting(Notification::getMessage).containsExactly("message");
+  }
+
+  /**
+   * Replaces the content of the replica by the content of the primary database in one transaction.
+   */
+  void replicate() {
+    JdbcTemplate primary = new JdbcTemplate(this.dataSource);
+    List<Map<String, Object>> notifications = primary.queryForList("SELECT * FROM notification");
+    List<Map<String, Object>> recipients = primary.queryForList("SELECT * FROM recipient");
+    Long position = primary.queryForObject(ReadReplica.POSITION_QUERY, Long.class);
+    JdbcTemplate replica = new JdbcTemplate(replicaDataSource);
+    new TransactionTemplate(new DataSourceTransactionManager(replicaDataSource)).executeWithoutResult(status -> {
+      replica.update("DELETE FROM recipient");
+      replica.update("DELETE FROM notification");
+      for (Map<String, Object> n : notifications) {
+        replica.update("INSERT INTO notification (id, type, message, created_at, is_active, business_id, inactivated_at)"
+                        + " VALUES (?, ?, ?, ?, ?, ?, ?)",
+                n.get("ID"), n.get("TYPE"), n.get("MESSAGE") + REPLICATED, n.get("CREATED_AT"), n.get("IS_ACTIVE"),
+                n.get("BUSINESS_ID"), n.get("INACTIVATED_AT"));
+      }
+      for (Map<String, Object> r : recipients) {
+        replica.update("INSERT INTO recipient (id, notification_id, user_id, group_id, is_read) VALUES (?, ?, ?, ?, ?)",
+                r.get("ID"), r.get("NOTIFICATION_ID"), r.get("USER_ID"), r.get("GROUP_ID"), r.get("IS_READ"));
+      }
+      replica.update("UPDATE replication_heartbeat SET position = ? WHERE id = 1", position);
+    });
+  }
+}
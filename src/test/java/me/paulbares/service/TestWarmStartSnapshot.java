@@ -0,0 +1,173 @@
+package me.paulbares.service;
+
+import me.paulbares.camunda.WorkflowNotificationImpl;
+import me.paulbares.domain.Notification;
+import me.paulbares.repository.NotificationRepository;
+import me.paulbares.repository.RecipientRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@DataJpaTest
+public class TestWarmStartSnapshot {
+
+  @Autowired
+  NotificationServiceImpl service;
+
+  @Autowired
+  NotificationRepository notificationRepository;
+
+  @Autowired
+  RecipientRepository recipientRepository;
+
+  @Autowired
+  PlatformTransactionManager transactionManager;
+
+  @TempDir
+  Path directory;
+
+  final AtomicReference<Instant> now = new AtomicReference<>();
+
+  WarmStartSnapshot snapshot;
+
+  @BeforeEach
+  void setUp() {
+    this.service.getUnreadCounter().clear();
+    this.service.getRecipientCache().clear();
+    this.snapshot = new WarmStartSnapshot(this.service, this.directory.resolve("checkpoint"), Duration.ofMinutes(1),
+            Duration.ofHours(1), Duration.ZERO, () -> this.now.get() != null ? this.now.get() : Instant.now());
+  }
+
+  Notification save(String businessId, Set<String> users, Set<String> groups) {
+    return this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl(businessId, "type", "message"), users, groups);
+  }
+
+  /**
+   * Clears the in-memory structures as if the application restarted.
+   */
+  void restart() {
+    this.service.getUnreadCounter().clear();
+    this.service.getRecipientCache().clear();
+  }
+
+  @Test
+  void testRestoreAndCatchUp() throws Exception {
+    Notification n1 = save("task1", Set.of("user1"), Set.of("group1"));
+    save("task2", Set.of("user2"), Collections.emptySet());
+    save("task3", Collections.emptySet(), Set.of("group1"));
+    assertThat(this.service.countUnreadAndActiveNotifications("user1", List.of("group1"))).isEqualTo(2);
+    assertThat(this.service.countUnreadAndActiveNotifications("user2", Collections.emptyList())).isEqualTo(1);
+    assertThat(this.snapshot.checkpoint()).isEqualTo(this.service.getMaxSavedId());
+
+    // Changes after the checkpoint
+    Notification n4 = save("task4", Set.of("user1"), Set.of("group2"));
+    this.service.markAsRead("user1", n1.getBusinessId());
+    this.service.markAsInactive("task3", new HashSet<>(), new HashSet<>());
+    this.service.markAllAsRead("user2");
+
+    restart();
+    assertThat(this.snapshot.restore()).isTrue();
+    // The users are tracked again without loading them from the database
+    assertThat(this.service.getUnreadCounter().entriesByUserId.getIfPresent("user1").unread).containsOnlyKeys("task4");
+    assertThat(this.service.getUnreadCounter().entriesByUserId.getIfPresent("user2").unread).isEmpty();
+    assertThat(this.service.countUnreadAndActiveNotifications("user1", List.of("group1"))).isEqualTo(1);
+    assertThat(this.service.countUnreadAndActiveNotifications("user2", Collections.emptyList())).isZero();
+    assertThat(this.service.getMaxSavedId()).isEqualTo(n4.getId());
+
+    // The recipients of the notifications are restored too
+    Set<String> users = new HashSet<>();
+    Set<String> groups = new HashSet<>();
+    assertThat(this.service.onInactiveFromCache("task4", users, groups)).isNotNull();
+    assertThat(users).containsExactly("user1");
+    assertThat(groups).containsExactly("group2");
+    assertThat(this.service.onInactiveFromCache("task3", users, groups)).isNull();
+  }
+
+  @Test
+  void testCheckpointTooOldIsIgnored() throws Exception {
+    save("task1", Set.of("user1"), Collections.emptySet());
+    assertThat(this.service.countUnreadAndActiveNotifications("user1", Collections.emptyList())).isEqualTo(1);
+    this.now.set(Instant.now().minus(Duration.ofHours(2)));
+    this.snapshot.checkpoint();
+    this.now.set(null);
+
+    restart();
+    assertThat(this.snapshot.restore()).isFalse();
+    assertThat(this.service.getUnreadCounter().entriesByUserId.asMap()).isEmpty();
+  }
+
+  @Test
+  void testRestoreWithoutCheckpoint() throws Exception {
+    Notification n1 = save("task1", Set.of("user1"), Collections.emptySet());
+    restart();
+    assertThat(this.snapshot.restore()).isFalse();
+    assertThat(this.service.getMaxSavedId()).isGreaterThanOrEqualTo(n1.getId());
+  }
+
+  @Test
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  void testCatchUpNotificationCommittedAfterCheckpoint() throws Exception {
+    WarmStartSnapshot snapshot = new WarmStartSnapshot(this.service, this.directory.resolve("checkpoint"),
+            Duration.ofMinutes(1), Duration.ofHours(1), Duration.ofMinutes(1), () -> Instant.now());
+    try {
+      assertThat(this.service.countUnreadAndActiveNotifications("user1", Collections.emptyList())).isZero();
+      long[] watermark = new long[1];
+      Notification late = new TransactionTemplate(this.transactionManager).execute(status -> {
+        // Gets its id first, but commits after task2 and the checkpoint
+        Notification n = save("task1", Set.of("user1"), Collections.emptySet());
+        CompletableFuture.runAsync(() -> save("task2", Set.of("user1"), Collections.emptySet())).join();
+        try {
+          watermark[0] = snapshot.checkpoint();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        return n;
+      });
+      assertThat(late.getId()).isLessThan(watermark[0]);
+
+      restart();
+      assertThat(snapshot.restore()).isTrue();
+      assertThat(this.service.getUnreadCounter().entriesByUserId.getIfPresent("user1").unread).containsOnlyKeys("task1", "task2");
+    } finally {
+      this.recipientRepository.deleteAll();
+      this.notificationRepository.deleteAll();
+    }
+  }
+
+  @Test
+  void testCheckpointWaitsForUncommittedWrites() throws Exception {
+    this.service.getUncommittedWrites().incrementAndGet();
+    CompletableFuture<Long> checkpoint = CompletableFuture.supplyAsync(() -> {
+      try {
+        return this.snapshot.checkpoint();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+    Thread.sleep(50);
+    assertThat(checkpoint).isNotDone();
+    this.service.getUncommittedWrites().decrementAndGet();
+    checkpoint.get(10, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,218 @@
+package me.paulbares.service;
+
+import me.paulbares.Utils.AccumulatorSubscriber;
+import me.paulbares.camunda.WorkflowNotificationImpl;
+import me.paulbares.domain.Notification;
+import me.paulbares.repository.NotificationRepository;
+import me.paulbares.repository.RecipientRepository;
+import me.paulbares.subscription.ApproverWorkflowRegistrar;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static me.paulbares.Utils.user1;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Writes are committed by a background thread in their own transactions so the test methods are not transactional and
+ * the tables are cleaned up after each test.
+ */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class TestWriteBehindNotificationService {
+
+  @Autowired
+  NotificationRepository notificationRepository;
+
+  @Autowired
+  RecipientRepository recipientRepository;
+
+  @Autowired
+  NotificationServiceImpl delegate;
+
+  WriteBehindNotificationService service;
+
+  @BeforeEach
+  void setUp() {
+    this.delegate.getUnreadCounter().clear();
+    this.delegate.getRecipientCache().clear();
+  }
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    this.service.close();
+    this.recipientRepository.deleteAll();
+    this.notificationRepository.deleteAll();
+  }
+
+  @Test
+  void testReadsSeeQueuedWrites() {
+    // Long delay, only a read can trigger the write
+    this.service = new WriteBehindNotificationService(this.delegate, WriteBehindNotificationService.Durability.QUEUED, 60_000, 100);
+    Notification saved = this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type", "message"),
+            Collections.singleton("user1"), Collections.emptySet());
+    assertThat(saved.getId()).isNotNull();
+    assertThat(this.service.pendingWrites()).isEqualTo(1);
+    assertThat(this.notificationRepository.count()).isEqualTo(0);
+
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.emptyList())).containsExactly(saved);
+    assertThat(this.service.pendingWrites()).isEqualTo(0);
+    assertThat(this.service.countUnreadAndActiveNotifications("user1", Collections.emptyList())).isEqualTo(1);
+  }
+
+  @Test
+  void testMarkAsInactive() {
+    this.service = new WriteBehindNotificationService(this.delegate, WriteBehindNotificationService.Durability.QUEUED, 60_000, 100);
+    Notification saved = this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type", "message"),
+            Collections.singleton("user1"), Collections.singleton("group1"));
+    Set<String> users = new HashSet<>();
+    Set<String> groups = new HashSet<>();
+    Notification inactive = this.service.markAsInactive("task1", users, groups);
+    assertThat(inactive.getId()).isEqualTo(saved.getId());
+    assertThat(inactive.getActive()).isFalse();
+    assertThat(users).containsExactly("user1");
+    assertThat(groups).containsExactly("group1");
+    assertThat(this.service.pendingWrites()).isEqualTo(2);
+
+    assertThat(this.service.getUnreadAndActiveNotificationsInDescOrder("user1", Collections.singleton("group1"))).isEmpty();
+    assertThat(this.notificationRepository.findAll()).extracting(Notification::getActive).containsExactly(false);
+
+    // Not in the recipient cache anymore, it is read from the database.
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task2", "type", "message"),
+            Collections.singleton("user1"), Collections.emptySet());
+    this.delegate.getRecipientCache().clear();
+    users.clear();
+    assertThat(this.service.markAsInactive("task2", users, new HashSet<>()).getBusinessId()).isEqualTo("task2");
+    assertThat(users).containsExactly("user1");
+    assertThat(this.service.countUnreadAndActiveNotifications("user1", Collections.emptyList())).isEqualTo(0);
+  }
+
+  @Test
+  void testGroupCommit() throws Exception {
+    this.service = new WriteBehindNotificationService(this.delegate, WriteBehindNotificationService.Durability.COMMITTED, 5, 100);
+    int nbThreads = 8;
+    int nbSaves = 50;
+    ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+    try {
+      List<Future<List<Notification>>> futures = new ArrayList<>();
+      for (int t = 0; t < nbThreads; t++) {
+        int thread = t;
+        futures.add(executor.submit(() -> {
+          List<Notification> saved = new ArrayList<>();
+          for (int i = 0; i < nbSaves; i++) {
+            saved.add(this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task" + thread + "_" + i, "type", "message"),
+                    Collections.singleton("user1"), Collections.emptySet()));
+            // Committed when the call returns
+            assertThat(this.notificationRepository.findById(saved.get(i).getId())).isPresent();
+          }
+          return saved;
+        }));
+      }
+      Set<Long> ids = new HashSet<>();
+      for (Future<List<Notification>> future : futures) {
+        ids.addAll(future.get().stream().map(Notification::getId).collect(Collectors.toList()));
+      }
+      assertThat(ids).hasSize(nbThreads * nbSaves);
+      assertThat(this.notificationRepository.count()).isEqualTo(nbThreads * nbSaves);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void testInterruptWritesTheBatch() throws Exception {
+    // Long delay, the writer waits for more writes when it is interrupted
+    this.service = new WriteBehindNotificationService(this.delegate, WriteBehindNotificationService.Durability.COMMITTED, 60_000, 100);
+    CompletableFuture<Notification> saved = CompletableFuture.supplyAsync(() -> this.service.saveNotificationAndRecipients(
+            new WorkflowNotificationImpl("task1", "type", "message"), Collections.singleton("user1"), Collections.emptySet()));
+    // Taken off the queue by the writer
+    while (this.service.pendingWrites() == 0 || !this.service.queue.isEmpty()) {
+      Thread.sleep(10);
+    }
+    this.service.writer.interrupt();
+    assertThat(saved.get(10, TimeUnit.SECONDS).getBusinessId()).isEqualTo("task1");
+    assertThat(this.service.pendingWrites()).isEqualTo(0);
+    assertThat(this.delegate.getUncommittedWrites().get()).isEqualTo(0);
+    assertThat(this.notificationRepository.count()).isEqualTo(1);
+  }
+
+  @Test
+  void testCommittedFailureIsThrown() {
+    this.service = new WriteBehindNotificationService(this.delegate, WriteBehindNotificationService.Durability.COMMITTED, 0, 100);
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type", "message"),
+            Collections.singleton("user1"), Collections.emptySet());
+    org.assertj.core.api.Assertions.assertThatThrownBy(() -> this.service.saveNotificationAndRecipients(
+            new WorkflowNotificationImpl("task1", "type", "message"), Collections.singleton("user1"), Collections.emptySet()))
+            .isInstanceOf(RuntimeException.class);
+    assertThat(this.notificationRepository.count()).isEqualTo(1);
+  }
+
+  @Test
+  void testFailingWriteDoesNotFailTheBatch() {
+    this.service = new WriteBehindNotificationService(this.delegate, WriteBehindNotificationService.Durability.QUEUED, 60_000, 100);
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type", "message"),
+            Collections.singleton("user1"), Collections.emptySet());
+    // Same business id, it fails the group commit
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type", "message"),
+            Collections.singleton("user1"), Collections.emptySet());
+    this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task2", "type", "message"),
+            Collections.singleton("user1"), Collections.emptySet());
+    assertThat(this.service.pendingWrites()).isEqualTo(3);
+
+    this.service.flush();
+    assertThat(this.service.pendingWrites()).isEqualTo(0);
+    assertThat(this.notificationRepository.findAll()).extracting(Notification::getBusinessId).containsExactlyInAnyOrder("task1", "task2");
+    assertThat(this.service.countUnreadAndActiveNotifications("user1", Collections.emptyList())).isEqualTo(2);
+  }
+
+  @Test
+  void testSubscribeWhileWritesArePending() {
+    this.service = new WriteBehindNotificationService(this.delegate, WriteBehindNotificationService.Durability.QUEUED, 60_000, 100);
+    ApproverWorkflowRegistrar registrar = new ApproverWorkflowRegistrar(this.service::getUnreadAndActiveNotificationsInDescOrder);
+
+    // Queued and published before the subscription: it must be part of the initial view.
+    Notification before = this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task1", "type", "message"),
+            Collections.singleton("user1"), Collections.emptySet());
+    registrar.publish(before, Collections.singleton("user1"), Collections.emptySet(), true);
+
+    AccumulatorSubscriber subscriber = new AccumulatorSubscriber();
+    registrar.subscribe(user1, subscriber);
+
+    Notification after = this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task2", "type", "message"),
+            Collections.emptySet(), Collections.singleton("group1"));
+    registrar.publish(after, Collections.emptySet(), Collections.singleton("group1"), true);
+
+    assertThat(subscriber.initialIds).containsExactly("task1");
+    assertThat(subscriber.updateIds).containsExactly("task2");
+  }
+
+  @Test
+  void testCloseWritesPendingWrites() throws InterruptedException {
+    this.service = new WriteBehindNotificationService(this.delegate, WriteBehindNotificationService.Durability.QUEUED, 60_000, 100);
+    for (int i = 0; i < 10; i++) {
+      this.service.saveNotificationAndRecipients(new WorkflowNotificationImpl("task" + i, "type", "message"),
+              Collections.singleton("user1"), Collections.emptySet());
+    }
+    this.service.close();
+    assertThat(this.notificationRepository.count()).isEqualTo(10);
+    org.assertj.core.api.Assertions.assertThatThrownBy(() -> this.service.saveNotificationAndRecipients(
+            new WorkflowNotificationImpl("task10", "type", "message"), Collections.singleton("user1"), Collections.emptySet()))
+            .isInstanceOf(IllegalStateException.class);
+  }
+}
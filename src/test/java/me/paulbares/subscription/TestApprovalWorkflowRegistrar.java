@@ -4,6 +4,8 @@ import me.paulbares.Utils.AccumulatorSubscriber;
 import me.paulbares.camunda.WorkflowNotification;
 import me.paulbares.camunda.WorkflowNotificationImpl;
 import me.paulbares.domain.Notification;
+import me.paulbares.domain.NotificationView;
+import me.paulbares.service.NotificationAndRecipients;
 import me.paulbares.service.NotificationService;
 import me.paulbares.service.NotificationServiceImpl;
 import org.junit.jupiter.api.AfterAll;
@@ -25,6 +27,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -281,6 +284,53 @@ public class TestApprovalWorkflowRegistrar {
     return new WorkflowNotificationImpl(Long.toString(id), "type", "message");
   }
 
+  @Test
+  void testSubscribeAsync() {
+    createAndPublish(0, Collections.singleton(user1.getUser()), Collections.emptySet());
+    // Saved before the subscription but published after the initial view is read
+    Notification saved = this.service.saveNotificationAndRecipients(createNotification(1), Collections.singleton(user1.getUser()), Collections.emptySet());
+
+    CompletableFuture<List<Notification>> initialView = new CompletableFuture<>();
+    this.registrar = new ApproverWorkflowRegistrar((u, g) -> this.service.getUnreadAndActiveNotificationsInDescOrder(u, g), (u, g) -> {
+      List<Notification> notifications = this.service.getUnreadAndActiveNotificationsInDescOrder(u, g);
+      return initialView.thenApply(__ -> notifications); // delivered later
+    });
+    AccumulatorSubscriber subscriber = new AccumulatorSubscriber();
+    CompletableFuture<Subscription> subscription = this.registrar.subscribeAsync(user1, subscriber).toCompletableFuture();
+
+    // Published while the initial view is pending
+    this.registrar.publish(saved, Collections.singleton(user1.getUser()), Collections.emptySet(), true);
+    createAndPublish(2, Collections.emptySet(), Collections.singleton("group1"));
+    completeAndPublish(0);
+    assertThat(subscription).isNotDone();
+    assertThat(subscriber.initialIds).isEmpty();
+    assertThat(subscriber.updateIds).isEmpty();
+
+    initialView.complete(null);
+    assertThat(subscription).isCompleted();
+    assertThat(subscriber.initialIds).containsExactly("1", "0");
+    assertThat(subscriber.updateIds).containsExactly("2", "0"); // 1 is part of the initial view
+    subscriber.clear();
+
+    createAndPublish(3, Collections.singleton(user1.getUser()), Collections.emptySet());
+    assertThat(subscriber.updateIds).containsExactly("3");
+
+    subscription.join().unsubscribe();
+    Assertions.assertTrue(this.registrar.subscribersByGroupId.isEmpty());
+    Assertions.assertFalse(this.registrar.subscribersByUserId.hasSubscriber());
+  }
+
+  @Test
+  void testSubscribeAsyncFailure() {
+    this.registrar = new ApproverWorkflowRegistrar((u, g) -> this.service.getUnreadAndActiveNotificationsInDescOrder(u, g),
+            (u, g) -> CompletableFuture.failedFuture(new IllegalStateException("database down")));
+    CompletableFuture<Subscription> subscription = this.registrar.subscribeAsync(user1, new AccumulatorSubscriber()).toCompletableFuture();
+    assertThat(subscription).isCompletedExceptionally();
+    Assertions.assertTrue(this.registrar.subscribersByGroupId.isEmpty());
+    Assertions.assertFalse(this.registrar.subscribersByUserId.hasSubscriber());
+    Assertions.assertTrue(this.registrar.pendingUpdatesBySub.isEmpty());
+  }
+
   protected void createAndPublish(int id, Set<String> users, Set<String> groups) {
     Notification n = this.service.saveNotificationAndRecipients(createNotification(id), users, groups);
     this.registrar.publish(n, users, groups, true);
@@ -324,6 +374,13 @@ public class TestApprovalWorkflowRegistrar {
       return n;
     }
 
+    @Override
+    public synchronized List<Notification> saveNotificationsAndRecipients(List<NotificationAndRecipients> notifications) {
+      return notifications.stream()
+              .map(n -> saveNotificationAndRecipients(n.getNotification(), n.getUsers(), n.getGroups()))
+              .collect(Collectors.toList());
+    }
+
     @Override
     public synchronized List<Notification> getUnreadAndActiveNotificationsInDescOrder(String userId, Collection<String> groupIds) {
       Map<String, Notification> result = new HashMap<>();
@@ -371,6 +428,16 @@ public class TestApprovalWorkflowRegistrar {
       return notification;
     }
 
+    @Override
+    public List<NotificationView> getUnreadAndActiveNotificationViewsInDescOrder(String userId, Collection<String> groupIds) {
+      return getUnreadAndActiveNotificationsInDescOrder(userId, groupIds).stream().map(NotificationView::of).collect(Collectors.toList());
+    }
+
+    @Override
+    public long countUnreadAndActiveNotifications(String userId, Collection<String> groupIds) {
+      return getUnreadAndActiveNotificationsInDescOrder(userId, groupIds).size();
+    }
+
     @Override
     public void markAsRead(String userId, String notificationId) {
       throw new RuntimeException("not implemented");
@@ -381,6 +448,21 @@ public class TestApprovalWorkflowRegistrar {
       throw new RuntimeException("not implemented");
     }
 
+    @Override
+    public void markAsRead(Map<String, ? extends Collection<String>> notificationIdsByUserId) {
+      throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void markAllAsRead(String userId) {
+      throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void markAllAsRead(String userId, long maxNotificationId) {
+      throw new RuntimeException("not implemented");
+    }
+
     public synchronized void clear() {
       this.notifByGroup.clear();
       this.notifByUser.clear();